@@ -0,0 +1,216 @@
+package org.opendatakit.services.database.service;
+
+import android.Manifest;
+import android.content.ContentValues;
+
+import androidx.test.rule.GrantPermissionRule;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.FixMethodOrder;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runners.MethodSorters;
+import org.opendatakit.TestConsts;
+import org.opendatakit.aggregate.odktables.rest.entity.Column;
+import org.opendatakit.database.RoleConsts;
+import org.opendatakit.database.data.BaseTable;
+import org.opendatakit.database.data.OrderedColumns;
+import org.opendatakit.database.queries.BindArgs;
+import org.opendatakit.database.queries.QueryBounds;
+import org.opendatakit.database.service.DbHandle;
+import org.opendatakit.provider.DataTableColumns;
+import org.opendatakit.services.database.AndroidConnectFactory;
+import org.opendatakit.services.database.OdkConnectionFactorySingleton;
+import org.opendatakit.services.database.OdkConnectionInterface;
+import org.opendatakit.services.database.utilities.ODKDatabaseImplUtils;
+import org.opendatakit.utilities.ODKFileUtils;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Verifies the keying of cached query results and that writes to the
+ * queried tables invalidate them.
+ */
+@FixMethodOrder(MethodSorters.NAME_ASCENDING)
+public class QueryResultCacheTest {
+
+  private static final String tableId = "queryResultCacheTest";
+  private static final String activeUser = "anonymous";
+  private static final String currentLocale = "en_US";
+
+  private static final String SQL = "SELECT * FROM " + tableId + " WHERE col1 = ?";
+
+  private OdkConnectionInterface db;
+  private OrderedColumns orderedColumns;
+  private ODKDatabaseImplUtils.AccessContext accessContext;
+  private QueryResultCache cache;
+  private static boolean initialized = false;
+
+  @Rule
+  public GrantPermissionRule writeRuntimePermissionRule = GrantPermissionRule .grant(Manifest.permission.WRITE_EXTERNAL_STORAGE);
+
+  @Rule
+  public GrantPermissionRule readtimePermissionRule = GrantPermissionRule .grant(Manifest.permission.READ_EXTERNAL_STORAGE);
+
+  @Before
+  public void setUp() throws Throwable {
+    ODKFileUtils.assertDirectoryStructure(getAppName());
+    if (!initialized) {
+      initialized = true;
+      AndroidConnectFactory.configure();
+    }
+    DbHandle uniqueKey = new DbHandle(
+        getClass().getSimpleName() + AndroidConnectFactory.INTERNAL_TYPE_SUFFIX);
+    db = OdkConnectionFactorySingleton.getOdkConnectionFactoryInterface()
+        .getConnection(getAppName(), uniqueKey);
+
+    if (ODKDatabaseImplUtils.get().hasTableId(db, tableId)) {
+      ODKDatabaseImplUtils.get().deleteTableAndAllData(db, tableId);
+    }
+    List<Column> columns = new ArrayList<Column>();
+    columns.add(new Column("col1", "col1", "string", "[]"));
+    orderedColumns = ODKDatabaseImplUtils.get().createOrOpenTableWithColumns(db, tableId, columns);
+    accessContext = ODKDatabaseImplUtils.get()
+        .getAccessContext(db, tableId, activeUser, RoleConsts.ADMIN_ROLES_LIST);
+    cache = new QueryResultCache(10);
+  }
+
+  private static String getAppName() {
+    return TestConsts.APPNAME;
+  }
+
+  private void insertRow(String rowId, String value) throws Throwable {
+    ContentValues cvValues = new ContentValues();
+    cvValues.put("col1", value);
+    ODKDatabaseImplUtils.get().insertRowWithId(db, tableId, orderedColumns, cvValues, rowId,
+        activeUser, RoleConsts.ADMIN_ROLES_LIST, currentLocale);
+  }
+
+  private String getKey(String sql, Object[] args, QueryBounds bounds) {
+    return cache.getKey(db, tableId, sql, new BindArgs(args), bounds, accessContext,
+        RoleConsts.ADMIN_ROLES_LIST, false);
+  }
+
+  private BaseTable query(String sql, Object[] args) {
+    return ODKDatabaseImplUtils.get().query(db, tableId, sql, args, null, accessContext);
+  }
+
+  @Test
+  public void testKeyIgnoresWhitespace() throws Throwable {
+    String key = getKey(SQL, new Object[] { "a" }, null);
+    assertNotNull(key);
+    assertEquals(key, getKey("  SELECT *\n FROM " + tableId + "\tWHERE col1 = ? ",
+        new Object[] { "a" }, null));
+  }
+
+  @Test
+  public void testKeyDependsOnArgsAndBounds() throws Throwable {
+    String key = getKey(SQL, new Object[] { "a" }, null);
+    assertNotEquals(key, getKey(SQL, new Object[] { "b" }, null));
+    // the same text but a different type
+    assertNotEquals(getKey(SQL, new Object[] { 1 }, null),
+        getKey(SQL, new Object[] { "1" }, null));
+    assertNotEquals(key, getKey(SQL, new Object[] { "a" }, new QueryBounds(10, 0)));
+    assertNotEquals(getKey(SQL, new Object[] { "a" }, new QueryBounds(10, 0)),
+        getKey(SQL, new Object[] { "a" }, new QueryBounds(10, 10)));
+  }
+
+  @Test
+  public void testKeyDependsOnAccessContext() throws Throwable {
+    String key = getKey(SQL, new Object[] { "a" }, null);
+    assertNotEquals(key, cache.getKey(db, tableId, SQL, new BindArgs(new Object[] { "a" }), null,
+        accessContext, RoleConsts.ADMIN_ROLES_LIST, true));
+    ODKDatabaseImplUtils.AccessContext otherUser = ODKDatabaseImplUtils.get()
+        .getAccessContext(db, tableId, "mailto:other@example.com", RoleConsts.USER_ROLES_LIST);
+    assertNotEquals(key, cache.getKey(db, tableId, SQL, new BindArgs(new Object[] { "a" }), null,
+        otherUser, RoleConsts.USER_ROLES_LIST, false));
+  }
+
+  @Test
+  public void testWritesInvalidate() throws Throwable {
+    insertRow("r1", "a");
+
+    String key = getKey(SQL, new Object[] { "a" }, null);
+    cache.put(key, query(SQL, new Object[] { "a" }));
+    assertNotNull(cache.get(key));
+    assertEquals(key, getKey(SQL, new Object[] { "a" }, null));
+
+    // an insert changes the key
+    insertRow("r2", "b");
+    String keyAfterInsert = getKey(SQL, new Object[] { "a" }, null);
+    assertNotEquals(key, keyAfterInsert);
+    assertNull(cache.get(keyAfterInsert));
+
+    // as does an update
+    cache.put(keyAfterInsert, query(SQL, new Object[] { "a" }));
+    db.execSQL("UPDATE " + tableId + " SET col1 = ? WHERE " + DataTableColumns.ID + " = ?",
+        new Object[] { "c", "r2" });
+    assertNotEquals(keyAfterInsert, getKey(SQL, new Object[] { "a" }, null));
+  }
+
+  @Test
+  public void testReturnsCopies() throws Throwable {
+    insertRow("r1", "a");
+
+    String key = getKey(SQL, new Object[] { "a" }, null);
+    BaseTable result = query(SQL, new Object[] { "a" });
+    cache.put(key, result);
+
+    BaseTable first = cache.get(key);
+    BaseTable second = cache.get(key);
+    assertNotNull(first);
+    assertNotSame(first, second);
+    assertEquals(1, first.getNumberOfRows());
+
+    // changes to a returned result do not leak into the cache
+    first.addRow(first.getRowAtIndex(0));
+    assertEquals(1, cache.get(key).getNumberOfRows());
+
+    // nor do changes to the table that was put
+    result.addRow(result.getRowAtIndex(0));
+    assertEquals(1, cache.get(key).getNumberOfRows());
+    assertEquals("a", cache.get(key).getRowAtIndex(0).getRawStringByKey("col1"));
+  }
+
+  @Test
+  public void testNotCacheable() throws Throwable {
+    // metadata tables have no data revision
+    assertNull(getKey("SELECT * FROM _table_definitions", null, null));
+    // nor does the schema
+    assertNull(getKey("SELECT name FROM sqlite_master WHERE type='table'", null, null));
+    // a statement that does not compile
+    assertNull(getKey("SELECT * FROM noSuchTable", null, null));
+
+    // a join of a data table and a metadata table
+    assertNull(getKey("SELECT T.* FROM " + tableId + " AS T, _table_definitions AS D WHERE "
+        + "D._table_id = ?", new Object[] { tableId }, null));
+
+    // within a transaction
+    db.beginTransactionNonExclusive();
+    try {
+      assertNull(getKey(SQL, new Object[] { "a" }, null));
+    } finally {
+      db.endTransaction();
+    }
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    if (db != null) {
+      try {
+        ODKDatabaseImplUtils.get().deleteTableAndAllData(db, tableId);
+      } finally {
+        db.releaseReference();
+      }
+    }
+  }
+
+}
@@ -0,0 +1,258 @@
+package org.opendatakit.utilities;
+
+import android.Manifest;
+import android.database.Cursor;
+
+import androidx.test.rule.GrantPermissionRule;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.FixMethodOrder;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runners.MethodSorters;
+import org.opendatakit.TestConsts;
+import org.opendatakit.aggregate.odktables.rest.entity.Column;
+import org.opendatakit.database.DatabaseConstants;
+import org.opendatakit.database.service.DbHandle;
+import org.opendatakit.provider.InstanceColumns;
+import org.opendatakit.services.database.AndroidConnectFactory;
+import org.opendatakit.services.database.OdkConnectionFactorySingleton;
+import org.opendatakit.services.database.OdkConnectionInterface;
+import org.opendatakit.services.database.UploadsTableColumns;
+import org.opendatakit.services.database.utilities.ODKDatabaseImplUtils;
+import org.opendatakit.services.database.utilities.SchemaMigrator;
+import org.opendatakit.services.database.utilities.TableHealthUtils;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Verifies the schema version bookkeeping and the upgrade steps applied to
+ * the data tables of an existing database.
+ */
+@FixMethodOrder(MethodSorters.NAME_ASCENDING)
+public class SchemaMigratorTest {
+
+  private static final String tableId = "schemaMigratorTest";
+
+  private static final String[] METADATA_INDEX_SUFFIXES =
+      { "_idx_id", "_idx_sync_state", "_idx_conflict_type" };
+
+  private OdkConnectionInterface db;
+  private static boolean initialized = false;
+
+  @Rule
+  public GrantPermissionRule writeRuntimePermissionRule = GrantPermissionRule .grant(Manifest.permission.WRITE_EXTERNAL_STORAGE);
+
+  @Rule
+  public GrantPermissionRule readtimePermissionRule = GrantPermissionRule .grant(Manifest.permission.READ_EXTERNAL_STORAGE);
+
+  @Before
+  public void setUp() throws Throwable {
+    ODKFileUtils.assertDirectoryStructure(getAppName());
+    if (!initialized) {
+      initialized = true;
+      AndroidConnectFactory.configure();
+    }
+    DbHandle uniqueKey = new DbHandle(
+        getClass().getSimpleName() + AndroidConnectFactory.INTERNAL_TYPE_SUFFIX);
+    db = OdkConnectionFactorySingleton.getOdkConnectionFactoryInterface()
+        .getConnection(getAppName(), uniqueKey);
+
+    if (ODKDatabaseImplUtils.get().hasTableId(db, tableId)) {
+      ODKDatabaseImplUtils.get().deleteTableAndAllData(db, tableId);
+    }
+    List<Column> columns = new ArrayList<Column>();
+    columns.add(new Column("col1", "col1", "string", "[]"));
+    ODKDatabaseImplUtils.get().createOrOpenTableWithColumns(db, tableId, columns);
+  }
+
+  private static String getAppName() {
+    return TestConsts.APPNAME;
+  }
+
+  private List<Integer> getSchemaVersions() {
+    List<Integer> versions = new ArrayList<Integer>();
+    Cursor c = null;
+    try {
+      c = db.rawQuery("SELECT _version FROM " + SchemaMigrator.SCHEMA_VERSION_TABLE_NAME, null);
+      if (c != null && c.moveToFirst()) {
+        do {
+          versions.add(c.getInt(0));
+        } while (c.moveToNext());
+      }
+    } finally {
+      if (c != null && !c.isClosed()) {
+        c.close();
+      }
+    }
+    return versions;
+  }
+
+  private void setSchemaVersion(int version) {
+    db.execSQL("DELETE FROM " + SchemaMigrator.SCHEMA_VERSION_TABLE_NAME, null);
+    db.execSQL("INSERT INTO " + SchemaMigrator.SCHEMA_VERSION_TABLE_NAME + " (_version) VALUES (?)",
+        new Object[] { version });
+  }
+
+  private void migrate() {
+    db.beginTransactionNonExclusive();
+    try {
+      SchemaMigrator.migrate(db);
+      db.setTransactionSuccessful();
+    } finally {
+      db.endTransaction();
+    }
+  }
+
+  private boolean hasSchemaObject(String type, String name) {
+    Cursor c = null;
+    try {
+      c = db.rawQuery("SELECT name FROM sqlite_master WHERE type=? AND name=?",
+          new Object[] { type, name });
+      return c != null && c.moveToFirst();
+    } finally {
+      if (c != null && !c.isClosed()) {
+        c.close();
+      }
+    }
+  }
+
+  private boolean hasColumn(String tableName, String columnName) {
+    Cursor c = null;
+    try {
+      c = db.rawQuery("PRAGMA table_info(" + tableName + ")", null);
+      if (c != null && c.moveToFirst()) {
+        int idxName = c.getColumnIndex("name");
+        do {
+          if (columnName.equals(c.getString(idxName))) {
+            return true;
+          }
+        } while (c.moveToNext());
+      }
+      return false;
+    } finally {
+      if (c != null && !c.isClosed()) {
+        c.close();
+      }
+    }
+  }
+
+  @Test
+  public void testOpenedDatabaseIsCurrent() throws Throwable {
+    List<Integer> versions = getSchemaVersions();
+    assertEquals(1, versions.size());
+    assertEquals(SchemaMigrator.CURRENT_SCHEMA_VERSION, (int) versions.get(0));
+  }
+
+  @Test
+  public void testNewTableHasMetadataIndexesAndCounters() throws Throwable {
+    for (String suffix : METADATA_INDEX_SUFFIXES) {
+      assertTrue(hasSchemaObject("index", tableId + suffix));
+    }
+    assertNotNull(TableHealthUtils.getCounts(db, tableId));
+  }
+
+  @Test
+  public void testMigrateFromNothing() throws Throwable {
+    // a database that predates the metadata indexes and health counters
+    for (String suffix : METADATA_INDEX_SUFFIXES) {
+      db.execSQL("DROP INDEX IF EXISTS " + tableId + suffix, null);
+    }
+    for (String suffix : new String[] { "_health_ins", "_health_upd", "_health_del" }) {
+      db.execSQL("DROP TRIGGER IF EXISTS " + tableId + suffix, null);
+    }
+    db.execSQL("DELETE FROM " + TableHealthUtils.TABLE_HEALTH_TABLE_NAME + " WHERE "
+        + TableHealthUtils.TABLE_ID + "=?", new Object[] { tableId });
+    setSchemaVersion(0);
+    assertFalse(hasSchemaObject("index", tableId + METADATA_INDEX_SUFFIXES[0]));
+    assertNull(TableHealthUtils.getCounts(db, tableId));
+
+    migrate();
+
+    for (String suffix : METADATA_INDEX_SUFFIXES) {
+      assertTrue(hasSchemaObject("index", tableId + suffix));
+    }
+    for (String suffix : new String[] { "_health_ins", "_health_upd", "_health_del" }) {
+      assertTrue(hasSchemaObject("trigger", tableId + suffix));
+    }
+    assertNotNull(TableHealthUtils.getCounts(db, tableId));
+
+    List<Integer> versions = getSchemaVersions();
+    assertEquals(1, versions.size());
+    assertEquals(SchemaMigrator.CURRENT_SCHEMA_VERSION, (int) versions.get(0));
+  }
+
+  @Test
+  public void testMigrateAddsSubmissionPartsCompleted() throws Throwable {
+    assertTrue(hasColumn(DatabaseConstants.UPLOADS_TABLE_NAME,
+        UploadsTableColumns.SUBMISSION_PARTS_COMPLETED));
+
+    // an uploads table that predates the column
+    db.execSQL("DROP TABLE " + DatabaseConstants.UPLOADS_TABLE_NAME, null);
+    db.execSQL(InstanceColumns.getTableCreateSql(DatabaseConstants.UPLOADS_TABLE_NAME), null);
+    setSchemaVersion(4);
+    assertFalse(hasColumn(DatabaseConstants.UPLOADS_TABLE_NAME,
+        UploadsTableColumns.SUBMISSION_PARTS_COMPLETED));
+
+    migrate();
+    assertTrue(hasColumn(DatabaseConstants.UPLOADS_TABLE_NAME,
+        UploadsTableColumns.SUBMISSION_PARTS_COMPLETED));
+
+    // and the step can be re-applied once the column exists
+    setSchemaVersion(4);
+    migrate();
+    assertTrue(hasColumn(DatabaseConstants.UPLOADS_TABLE_NAME,
+        UploadsTableColumns.SUBMISSION_PARTS_COMPLETED));
+    List<Integer> versions = getSchemaVersions();
+    assertEquals(1, versions.size());
+    assertEquals(SchemaMigrator.CURRENT_SCHEMA_VERSION, (int) versions.get(0));
+  }
+
+  @Test
+  public void testMigrateWhenCurrentChangesNothing() throws Throwable {
+    db.execSQL("DROP INDEX IF EXISTS " + tableId + METADATA_INDEX_SUFFIXES[0], null);
+
+    migrate();
+
+    // no step was re-applied
+    assertFalse(hasSchemaObject("index", tableId + METADATA_INDEX_SUFFIXES[0]));
+    List<Integer> versions = getSchemaVersions();
+    assertEquals(1, versions.size());
+    assertEquals(SchemaMigrator.CURRENT_SCHEMA_VERSION, (int) versions.get(0));
+  }
+
+  @Test
+  public void testNewerVersionIsLeftAlone() throws Throwable {
+    int newer = SchemaMigrator.CURRENT_SCHEMA_VERSION + 1;
+    setSchemaVersion(newer);
+    try {
+      migrate();
+      List<Integer> versions = getSchemaVersions();
+      assertEquals(1, versions.size());
+      assertEquals(newer, (int) versions.get(0));
+    } finally {
+      setSchemaVersion(SchemaMigrator.CURRENT_SCHEMA_VERSION);
+    }
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    if (db != null) {
+      try {
+        setSchemaVersion(SchemaMigrator.CURRENT_SCHEMA_VERSION);
+        ODKDatabaseImplUtils.get().deleteTableAndAllData(db, tableId);
+      } finally {
+        db.releaseReference();
+      }
+    }
+  }
+
+}
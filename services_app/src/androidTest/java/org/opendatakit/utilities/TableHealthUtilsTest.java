@@ -0,0 +1,241 @@
+package org.opendatakit.utilities;
+
+import android.Manifest;
+
+import androidx.test.rule.GrantPermissionRule;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.FixMethodOrder;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runners.MethodSorters;
+import org.opendatakit.TestConsts;
+import org.opendatakit.aggregate.odktables.rest.ConflictType;
+import org.opendatakit.aggregate.odktables.rest.SavepointTypeManipulator;
+import org.opendatakit.aggregate.odktables.rest.SyncState;
+import org.opendatakit.database.service.DbHandle;
+import org.opendatakit.provider.DataTableColumns;
+import org.opendatakit.services.database.AndroidConnectFactory;
+import org.opendatakit.services.database.OdkConnectionFactorySingleton;
+import org.opendatakit.services.database.OdkConnectionInterface;
+import org.opendatakit.services.database.utilities.TableHealthUtils;
+
+import java.util.Collections;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Verifies the arithmetic of the triggers that maintain the health counters
+ * of a data table.
+ */
+@FixMethodOrder(MethodSorters.NAME_ASCENDING)
+public class TableHealthUtilsTest {
+
+  private static final String tableId = "tableHealthUtilsTest";
+
+  private OdkConnectionInterface db;
+  private static boolean initialized = false;
+
+  @Rule
+  public GrantPermissionRule writeRuntimePermissionRule = GrantPermissionRule .grant(Manifest.permission.WRITE_EXTERNAL_STORAGE);
+
+  @Rule
+  public GrantPermissionRule readtimePermissionRule = GrantPermissionRule .grant(Manifest.permission.READ_EXTERNAL_STORAGE);
+
+  @Before
+  public void setUp() throws Throwable {
+    ODKFileUtils.assertDirectoryStructure(getAppName());
+    if (!initialized) {
+      initialized = true;
+      AndroidConnectFactory.configure();
+    }
+    DbHandle uniqueKey = new DbHandle(
+        getClass().getSimpleName() + AndroidConnectFactory.INTERNAL_TYPE_SUFFIX);
+    db = OdkConnectionFactorySingleton.getOdkConnectionFactoryInterface()
+        .getConnection(getAppName(), uniqueKey);
+
+    dropTable();
+    db.execSQL("CREATE TABLE " + tableId + " (" + DataTableColumns.ID + " TEXT NOT NULL, "
+        + DataTableColumns.SAVEPOINT_TYPE + " TEXT NULL, "
+        + DataTableColumns.CONFLICT_TYPE + " INTEGER NULL, "
+        + DataTableColumns.SYNC_STATE + " TEXT NOT NULL)", null);
+    TableHealthUtils.initializeCounts(db, tableId);
+  }
+
+  private static String getAppName() {
+    return TestConsts.APPNAME;
+  }
+
+  private void dropTable() {
+    db.execSQL("DROP TABLE IF EXISTS " + tableId, null);
+    db.execSQL("DELETE FROM " + TableHealthUtils.TABLE_HEALTH_TABLE_NAME + " WHERE "
+        + TableHealthUtils.TABLE_ID + "=?", new Object[] { tableId });
+  }
+
+  private void insert(String rowId, String savepointType, Integer conflictType,
+      SyncState syncState) {
+    db.execSQL("INSERT INTO " + tableId + " (" + DataTableColumns.ID + ", "
+            + DataTableColumns.SAVEPOINT_TYPE + ", " + DataTableColumns.CONFLICT_TYPE + ", "
+            + DataTableColumns.SYNC_STATE + ") VALUES (?,?,?,?)",
+        new Object[] { rowId, savepointType, conflictType, syncState.name() });
+  }
+
+  private void assertCounts(long checkpoints, long conflicts, long changes, long rows) {
+    TableHealthUtils.Counts counts = TableHealthUtils.getCounts(db, tableId);
+    assertNotNull(counts);
+    assertEquals(checkpoints, counts.checkpoints);
+    assertEquals(conflicts, counts.conflicts);
+    assertEquals(changes, counts.changes);
+    assertEquals(rows, counts.rows);
+
+    // and the triggers agree with a scan of the table
+    TableHealthUtils.Counts scanned = TableHealthUtils.computeCounts(db, tableId);
+    assertEquals(scanned.checkpoints, counts.checkpoints);
+    assertEquals(scanned.conflicts, counts.conflicts);
+    assertEquals(scanned.changes, counts.changes);
+    assertEquals(scanned.rows, counts.rows);
+  }
+
+  @Test
+  public void testInitialCountsAreZero() throws Throwable {
+    assertCounts(0, 0, 0, 0);
+  }
+
+  @Test
+  public void testInsert() throws Throwable {
+    insert("a", SavepointTypeManipulator.complete(), null, SyncState.new_row);
+    assertCounts(0, 0, 1, 1);
+
+    // a checkpoint of the same row
+    insert("a", null, null, SyncState.new_row);
+    assertCounts(1, 0, 2, 2);
+
+    insert("b", SavepointTypeManipulator.complete(), null, SyncState.synced);
+    assertCounts(1, 0, 2, 3);
+
+    insert("c", SavepointTypeManipulator.complete(), null, SyncState.synced_pending_files);
+    assertCounts(1, 0, 2, 4);
+  }
+
+  @Test
+  public void testUpdate() throws Throwable {
+    insert("a", null, null, SyncState.new_row);
+    insert("b", SavepointTypeManipulator.complete(), null, SyncState.changed);
+    assertCounts(1, 0, 2, 2);
+
+    // saving the checkpoint as complete
+    db.execSQL("UPDATE " + tableId + " SET " + DataTableColumns.SAVEPOINT_TYPE + "=?",
+        new Object[] { SavepointTypeManipulator.complete() });
+    assertCounts(0, 0, 2, 2);
+
+    // syncing one row
+    db.execSQL("UPDATE " + tableId + " SET " + DataTableColumns.SYNC_STATE + "=? WHERE "
+        + DataTableColumns.ID + "=?", new Object[] { SyncState.synced.name(), "b" });
+    assertCounts(0, 0, 1, 2);
+
+    // an update that does not change any counted value
+    db.execSQL("UPDATE " + tableId + " SET " + DataTableColumns.SYNC_STATE + "=? WHERE "
+        + DataTableColumns.ID + "=?", new Object[] { SyncState.synced.name(), "b" });
+    assertCounts(0, 0, 1, 2);
+  }
+
+  @Test
+  public void testDelete() throws Throwable {
+    insert("a", SavepointTypeManipulator.complete(), null, SyncState.new_row);
+    insert("a", null, null, SyncState.new_row);
+    insert("b", SavepointTypeManipulator.complete(), null, SyncState.synced);
+    assertCounts(1, 0, 2, 3);
+
+    // deleting the checkpoint
+    db.execSQL("DELETE FROM " + tableId + " WHERE " + DataTableColumns.SAVEPOINT_TYPE
+        + " IS NULL", null);
+    assertCounts(0, 0, 1, 2);
+
+    db.execSQL("DELETE FROM " + tableId, null);
+    assertCounts(0, 0, 0, 0);
+  }
+
+  @Test
+  public void testConflictTypeChanges() throws Throwable {
+    insert("a", SavepointTypeManipulator.complete(), null, SyncState.synced);
+    assertCounts(0, 0, 0, 1);
+
+    // the local record enters conflict and the server record is added
+    db.execSQL("UPDATE " + tableId + " SET " + DataTableColumns.CONFLICT_TYPE + "=?, "
+            + DataTableColumns.SYNC_STATE + "=?",
+        new Object[] { ConflictType.LOCAL_UPDATED_UPDATED_VALUES, SyncState.in_conflict.name() });
+    insert("a", SavepointTypeManipulator.complete(), ConflictType.SERVER_UPDATED_UPDATED_VALUES,
+        SyncState.in_conflict);
+    assertCounts(0, 2, 2, 2);
+
+    // changing from one conflict type to another does not change the count
+    db.execSQL("UPDATE " + tableId + " SET " + DataTableColumns.CONFLICT_TYPE + "=? WHERE "
+            + DataTableColumns.CONFLICT_TYPE + "=?",
+        new Object[] { ConflictType.LOCAL_DELETED_OLD_VALUES,
+            ConflictType.LOCAL_UPDATED_UPDATED_VALUES });
+    assertCounts(0, 2, 2, 2);
+
+    // resolving by taking the server's changes
+    db.execSQL("DELETE FROM " + tableId + " WHERE " + DataTableColumns.CONFLICT_TYPE + "=?",
+        new Object[] { ConflictType.LOCAL_DELETED_OLD_VALUES });
+    db.execSQL("UPDATE " + tableId + " SET " + DataTableColumns.CONFLICT_TYPE + "=NULL, "
+        + DataTableColumns.SYNC_STATE + "=?", new Object[] { SyncState.synced.name() });
+    assertCounts(0, 0, 0, 1);
+  }
+
+  @Test
+  public void testInitializeCountsOfExistingRows() throws Throwable {
+    insert("a", null, null, SyncState.new_row);
+    insert("b", SavepointTypeManipulator.complete(), ConflictType.LOCAL_UPDATED_UPDATED_VALUES,
+        SyncState.in_conflict);
+
+    // recomputing the counters (as the schema migration does) agrees with the triggers
+    TableHealthUtils.initializeCounts(db, tableId);
+    assertCounts(1, 1, 2, 2);
+  }
+
+  private long getDataRevision() {
+    Map<String, Long> revisions = TableHealthUtils.getDataRevisions(db,
+        Collections.singletonList(tableId));
+    assertTrue(revisions.containsKey(tableId));
+    return revisions.get(tableId);
+  }
+
+  @Test
+  public void testDataRevisionAdvances() throws Throwable {
+    long revision = getDataRevision();
+
+    insert("a", SavepointTypeManipulator.complete(), null, SyncState.new_row);
+    assertTrue(getDataRevision() > revision);
+    revision = getDataRevision();
+
+    db.execSQL("UPDATE " + tableId + " SET " + DataTableColumns.SYNC_STATE + "=?",
+        new Object[] { SyncState.synced.name() });
+    assertTrue(getDataRevision() > revision);
+    revision = getDataRevision();
+
+    db.execSQL("DELETE FROM " + tableId, null);
+    assertTrue(getDataRevision() > revision);
+    revision = getDataRevision();
+
+    // re-initializing (e.g., by the schema migration) never moves it backwards
+    TableHealthUtils.initializeCounts(db, tableId);
+    assertTrue(getDataRevision() > revision);
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    if (db != null) {
+      try {
+        dropTable();
+      } finally {
+        db.releaseReference();
+      }
+    }
+  }
+
+}
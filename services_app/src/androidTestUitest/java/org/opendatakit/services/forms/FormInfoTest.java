@@ -45,7 +45,7 @@ public class FormInfoTest {
     info = new FormInfo("default", c, false);
     assertEquals(info.tableId, "breathcounter");
     assertEquals(info.formVersion, "20130408");
-    assertEquals(info.formDef, null);
+    assertEquals(info.getFormDef(), null);
   }
 
 //  @Test
@@ -0,0 +1,227 @@
+package fi.iki.elonen;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Size-bounded LRU cache of the files most recently served by the
+ * {@link SimpleWebServer}.
+ * <p>
+ * Each entry holds the raw file content, an optional gzip-compressed copy of
+ * it, and strong ETags derived from a digest of the content. Entries are
+ * validated against the file's last-modified time and length on every lookup,
+ * so an edited file is re-read the next time it is requested.
+ * <p>
+ * Files larger than the per-entry limit are never cached; the caller streams
+ * those from disk as before.
+ */
+class HotAssetCache {
+
+  /**
+   * Default bound on the total bytes (raw + gzip) held by the cache.
+   */
+  static final long DEFAULT_MAX_BYTES = 8L * 1024L * 1024L;
+
+  /**
+   * Default bound on the size of any single file admitted into the cache.
+   */
+  static final long DEFAULT_MAX_ENTRY_BYTES = 1024L * 1024L;
+
+  private static final String DIGEST_ALGORITHM = "SHA-1";
+
+  private static final int READ_BUFFER_SIZE = 16 * 1024;
+
+  /**
+   * Immutable snapshot of a cached file.
+   */
+  static final class Entry {
+    final long lastModified;
+    final long length;
+    final byte[] raw;
+    /**
+     * gzip-compressed content; null if the file is not compressible or if
+     * compression did not reduce its size.
+     */
+    final byte[] gzip;
+    /**
+     * true if a gzip variant was attempted when the entry was loaded.
+     */
+    final boolean compressible;
+    final String etag;
+    final String gzipEtag;
+
+    Entry(long lastModified, long length, byte[] raw, byte[] gzip, boolean compressible,
+        String etag) {
+      this.lastModified = lastModified;
+      this.compressible = compressible;
+      this.length = length;
+      this.raw = raw;
+      this.gzip = gzip;
+      this.etag = "\"" + etag + "\"";
+      this.gzipEtag = "\"" + etag + "-gz\"";
+    }
+
+    long footprint() {
+      return raw.length + ((gzip == null) ? 0 : gzip.length);
+    }
+
+    boolean isCurrent(long lastModified, long length) {
+      return this.lastModified == lastModified && this.length == length;
+    }
+  }
+
+  private final long maxBytes;
+  private final long maxEntryBytes;
+  private long currentBytes = 0L;
+
+  private final LinkedHashMap<String, Entry> entries =
+      new LinkedHashMap<String, Entry>(32, 0.75f, true);
+
+  HotAssetCache() {
+    this(DEFAULT_MAX_BYTES, DEFAULT_MAX_ENTRY_BYTES);
+  }
+
+  HotAssetCache(long maxBytes, long maxEntryBytes) {
+    this.maxBytes = maxBytes;
+    this.maxEntryBytes = Math.min(maxEntryBytes, maxBytes);
+  }
+
+  /**
+   * Return the cached content of the file, loading it if it is absent or stale.
+   *
+   * @param file the file to be served
+   * @param compressible true if a gzip variant should be kept
+   * @return the cache entry, or null if the file is too large to be cached.
+   * @throws IOException if the file could not be read
+   */
+  Entry get(File file, boolean compressible) throws IOException {
+    long length = file.length();
+    if (length > maxEntryBytes) {
+      return null;
+    }
+    long lastModified = file.lastModified();
+    String key = file.getAbsolutePath();
+
+    synchronized (entries) {
+      Entry entry = entries.get(key);
+      if (entry != null) {
+        if (entry.isCurrent(lastModified, length) && (entry.compressible || !compressible)) {
+          return entry;
+        }
+        remove(key);
+      }
+    }
+
+    // read and compress outside the lock so that other requests are not stalled
+    Entry entry = load(file, lastModified, compressible);
+    if (entry == null) {
+      return null;
+    }
+
+    synchronized (entries) {
+      Entry prior = entries.put(key, entry);
+      if (prior != null) {
+        currentBytes -= prior.footprint();
+      }
+      currentBytes += entry.footprint();
+      Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator();
+      while (currentBytes > maxBytes && it.hasNext()) {
+        Map.Entry<String, Entry> eldest = it.next();
+        currentBytes -= eldest.getValue().footprint();
+        it.remove();
+      }
+    }
+    return entry;
+  }
+
+  /**
+   * Discard every cached entry.
+   */
+  void clear() {
+    synchronized (entries) {
+      entries.clear();
+      currentBytes = 0L;
+    }
+  }
+
+  long getCurrentBytes() {
+    synchronized (entries) {
+      return currentBytes;
+    }
+  }
+
+  int size() {
+    synchronized (entries) {
+      return entries.size();
+    }
+  }
+
+  private void remove(String key) {
+    Entry prior = entries.remove(key);
+    if (prior != null) {
+      currentBytes -= prior.footprint();
+    }
+  }
+
+  private Entry load(File file, long lastModified, boolean compressible) throws IOException {
+    byte[] raw;
+    InputStream is = new FileInputStream(file);
+    try {
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream((int) file.length());
+      byte[] buffer = new byte[READ_BUFFER_SIZE];
+      int count;
+      while ((count = is.read(buffer)) >= 0) {
+        bytes.write(buffer, 0, count);
+        if (bytes.size() > maxEntryBytes) {
+          // file grew while we were reading it -- don't cache
+          return null;
+        }
+      }
+      raw = bytes.toByteArray();
+    } finally {
+      is.close();
+    }
+
+    // the file may have been rewritten while we read it.
+    if (file.lastModified() != lastModified || file.length() != raw.length) {
+      return null;
+    }
+
+    byte[] gzip = null;
+    if (compressible && raw.length != 0) {
+      ByteArrayOutputStream compressed = new ByteArrayOutputStream(raw.length / 2);
+      GZIPOutputStream gzipOutputStream = new GZIPOutputStream(compressed);
+      gzipOutputStream.write(raw);
+      gzipOutputStream.close();
+      if (compressed.size() < raw.length) {
+        gzip = compressed.toByteArray();
+      }
+    }
+
+    return new Entry(lastModified, raw.length, raw, gzip, compressible, digest(raw));
+  }
+
+  static String digest(byte[] content) {
+    try {
+      MessageDigest md = MessageDigest.getInstance(DIGEST_ALGORITHM);
+      byte[] hash = md.digest(content);
+      StringBuilder b = new StringBuilder(hash.length * 2);
+      for (byte h : hash) {
+        b.append(Character.forDigit((h >> 4) & 0x0f, 16));
+        b.append(Character.forDigit(h & 0x0f, 16));
+      }
+      return b.toString();
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException("Unable to obtain " + DIGEST_ALGORITHM + " digest", e);
+    }
+  }
+}
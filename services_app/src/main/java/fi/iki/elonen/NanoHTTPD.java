@@ -45,9 +45,8 @@ import java.io.BufferedWriter;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.Closeable;
-import java.io.DataOutput;
-import java.io.DataOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.FilterOutputStream;
 import java.io.IOException;
@@ -67,7 +66,10 @@ import java.net.SocketTimeoutException;
 import java.net.URL;
 import java.net.URLDecoder;
 import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
 import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.WritableByteChannel;
 import java.nio.charset.Charset;
 import java.security.KeyStore;
 import java.text.SimpleDateFormat;
@@ -312,7 +314,7 @@ public abstract class NanoHTTPD {
             try {
                 outputStream = this.acceptSocket.getOutputStream();
                 TempFileManager tempFileManager = NanoHTTPD.this.tempFileManagerFactory.create();
-                HTTPSession session = new HTTPSession(tempFileManager, this.inputStream, outputStream, this.acceptSocket.getInetAddress());
+                HTTPSession session = new HTTPSession(tempFileManager, this.inputStream, outputStream, this.acceptSocket.getInetAddress(), this.acceptSocket.getChannel());
                 while (!this.acceptSocket.isClosed()) {
                     session.execute();
                 }
@@ -558,14 +560,14 @@ public abstract class NanoHTTPD {
 
         public DefaultTempFileManager() {
             this.tmpdir = new File(System.getProperty("java.io.tmpdir"));
-            if (!tmpdir.exists()) {
-                tmpdir.mkdirs();
-            }
             this.tempFiles = new ArrayList<TempFile>();
         }
 
         @Override
         public void clear() {
+            if (this.tempFiles.isEmpty()) {
+                return;
+            }
             for (TempFile file : this.tempFiles) {
                 try {
                     file.delete();
@@ -578,6 +580,10 @@ public abstract class NanoHTTPD {
 
         @Override
         public TempFile createTempFile(String filename_hint) throws Exception {
+            // only touch the file system once a request actually needs a temp file
+            if (!tmpdir.exists()) {
+                tmpdir.mkdirs();
+            }
             DefaultTempFile tempFile = new DefaultTempFile(this.tmpdir);
             this.tempFiles.add(tempFile);
             return tempFile;
@@ -607,6 +613,20 @@ public abstract class NanoHTTPD {
 
     }
 
+    /**
+     * Creates a ServerSocket backed by a ServerSocketChannel. Sockets accepted
+     * from it expose a SocketChannel, allowing file-backed responses to be
+     * sent with FileChannel.transferTo() rather than copied through the heap.
+     */
+    public static class ChannelServerSocketFactory implements ServerSocketFactory {
+
+        @Override
+        public ServerSocket create() throws IOException {
+            return ServerSocketChannel.open().socket();
+        }
+
+    }
+
     /**
      * Creates a new SSLServerSocket
      */
@@ -638,6 +658,8 @@ public abstract class NanoHTTPD {
 
     }
 
+    private static final Charset REQUEST_HEADER_CHARSET = Charset.forName("UTF-8");
+
     private static final String CONTENT_DISPOSITION_REGEX = "([ |\t]*Content-Disposition[ |\t]*:)(.*)";
 
     private static final Pattern CONTENT_DISPOSITION_PATTERN = Pattern.compile(CONTENT_DISPOSITION_REGEX, Pattern.CASE_INSENSITIVE);
@@ -722,7 +744,18 @@ public abstract class NanoHTTPD {
 
         private static final int REQUEST_BUFFER_LEN = 512;
 
-        private static final int MEMORY_STORE_LIMIT = 1024;
+        /**
+         * Request bodies up to this size are held in memory (in a buffer that
+         * is reused across the requests of a connection) rather than being
+         * spooled to a temp file.
+         */
+        private static final int MEMORY_STORE_LIMIT = 64 * 1024;
+
+        /**
+         * Largest unread request body that will be skipped over to keep a
+         * persistent connection open. Larger bodies close the connection.
+         */
+        private static final int MAX_DRAIN_SIZE = 64 * 1024;
 
         public static final int BUFSIZE = 8192;
 
@@ -732,6 +765,11 @@ public abstract class NanoHTTPD {
 
         private final OutputStream outputStream;
 
+        /**
+         * Channel of the accepted socket, or null if the socket has none.
+         */
+        private final WritableByteChannel outputChannel;
+
         private final BufferedInputStream inputStream;
 
         private int splitbyte;
@@ -756,77 +794,154 @@ public abstract class NanoHTTPD {
 
         private String protocolVersion;
 
+        private boolean keepAlive;
+
+        /**
+         * Bytes of the current request's body not yet read from the input
+         * stream. These are skipped before the next request on the connection
+         * is parsed.
+         */
+        private long bodyRemaining;
+
+        /**
+         * true if serve() obtained the raw input stream; the amount of body
+         * consumed is then unknown.
+         */
+        private boolean inputStreamExposed;
+
+        /**
+         * Header buffer, reused for every request on this connection.
+         */
+        private final byte[] headerBuffer = new byte[HTTPSession.BUFSIZE];
+
+        /**
+         * In-memory body buffer, grown on demand (up to MEMORY_STORE_LIMIT)
+         * and reused for every request on this connection.
+         */
+        private byte[] bodyBuffer;
+
         public HTTPSession(TempFileManager tempFileManager, InputStream inputStream, OutputStream outputStream) {
             this.tempFileManager = tempFileManager;
             this.inputStream = new BufferedInputStream(inputStream, HTTPSession.BUFSIZE);
             this.outputStream = outputStream;
+            this.outputChannel = null;
         }
 
         public HTTPSession(TempFileManager tempFileManager, InputStream inputStream, OutputStream outputStream, InetAddress inetAddress) {
+            this(tempFileManager, inputStream, outputStream, inetAddress, null);
+        }
+
+        public HTTPSession(TempFileManager tempFileManager, InputStream inputStream, OutputStream outputStream, InetAddress inetAddress, WritableByteChannel outputChannel) {
             this.tempFileManager = tempFileManager;
             this.inputStream = new BufferedInputStream(inputStream, HTTPSession.BUFSIZE);
             this.outputStream = outputStream;
+            this.outputChannel = outputChannel;
             this.remoteIp = inetAddress.isLoopbackAddress() || inetAddress.isAnyLocalAddress() ? "127.0.0.1" : inetAddress.getHostAddress().toString();
             this.remoteHostname = inetAddress.isLoopbackAddress() || inetAddress.isAnyLocalAddress() ? "localhost" : inetAddress.getHostName().toString();
             this.headers = new HashMap<String, String>();
         }
 
         /**
-         * Decodes the sent headers and loads the data into Key/value pairs
+         * Decodes the sent headers and loads the data into Key/value pairs.
+         * The header block is parsed directly out of the request buffer so
+         * that no Reader or intermediate maps are allocated per request.
          */
-        private void decodeHeader(BufferedReader in, Map<String, String> pre, Map<String, List<String>> parms, Map<String, String> headers) throws ResponseException {
-            try {
-                // Read the request line
-                String inLine = in.readLine();
-                if (inLine == null) {
-                    return;
-                }
+        private void decodeHeader(byte[] buf, int len, Map<String, List<String>> parms, Map<String, String> headers) throws ResponseException {
+            // Read the request line
+            int lineEnd = findLineEnd(buf, 0, len);
+            if (len == 0) {
+                throw new ResponseException(Response.Status.BAD_REQUEST, "BAD REQUEST: Syntax error. HTTP verb null unhandled.");
+            }
+            String inLine = new String(buf, 0, lineEnd, REQUEST_HEADER_CHARSET);
 
-                StringTokenizer st = new StringTokenizer(inLine);
-                if (!st.hasMoreTokens()) {
-                    throw new ResponseException(Response.Status.BAD_REQUEST, "BAD REQUEST: Syntax error. Usage: GET /example/file.html");
-                }
+            StringTokenizer st = new StringTokenizer(inLine);
+            if (!st.hasMoreTokens()) {
+                throw new ResponseException(Response.Status.BAD_REQUEST, "BAD REQUEST: Syntax error. Usage: GET /example/file.html");
+            }
 
-                pre.put("method", st.nextToken());
+            String methodName = st.nextToken();
+            this.method = Method.lookup(methodName);
+            if (this.method == null) {
+                throw new ResponseException(Response.Status.BAD_REQUEST, "BAD REQUEST: Syntax error. HTTP verb " + methodName + " unhandled.");
+            }
 
-                if (!st.hasMoreTokens()) {
-                    throw new ResponseException(Response.Status.BAD_REQUEST, "BAD REQUEST: Missing URI. Usage: GET /example/file.html");
-                }
+            if (!st.hasMoreTokens()) {
+                throw new ResponseException(Response.Status.BAD_REQUEST, "BAD REQUEST: Missing URI. Usage: GET /example/file.html");
+            }
 
-                String uri = st.nextToken();
+            String uri = st.nextToken();
 
-                // Decode parameters from the URI
-                int qmi = uri.indexOf('?');
-                if (qmi >= 0) {
-                    decodeParms(uri.substring(qmi + 1), parms);
-                    uri = decodePercent(uri.substring(0, qmi));
-                } else {
-                    uri = decodePercent(uri);
-                }
+            // Decode parameters from the URI
+            int qmi = uri.indexOf('?');
+            if (qmi >= 0) {
+                decodeParms(uri.substring(qmi + 1), parms);
+                uri = decodePercent(uri.substring(0, qmi));
+            } else {
+                this.queryParameterString = null;
+                uri = decodePercent(uri);
+            }
 
-                // If there's another token, its protocol version,
-                // followed by HTTP headers.
-                // NOTE: this now forces header names lower case since they are
-                // case insensitive and vary by client.
-                if (st.hasMoreTokens()) {
-                    protocolVersion = st.nextToken();
-                } else {
-                    protocolVersion = "HTTP/1.1";
-                    NanoHTTPD.LOG.log(Level.FINE, "no protocol version specified, strange. Assuming HTTP/1.1.");
-                }
-                String line = in.readLine();
-                while (line != null && !line.trim().isEmpty()) {
-                    int p = line.indexOf(':');
-                    if (p >= 0) {
-                        headers.put(line.substring(0, p).trim().toLowerCase(Locale.US), line.substring(p + 1).trim());
+            // If there's another token, its protocol version,
+            // followed by HTTP headers.
+            // NOTE: this now forces header names lower case since they are
+            // case insensitive and vary by client.
+            if (st.hasMoreTokens()) {
+                protocolVersion = st.nextToken();
+            } else {
+                protocolVersion = "HTTP/1.1";
+                NanoHTTPD.LOG.log(Level.FINE, "no protocol version specified, strange. Assuming HTTP/1.1.");
+            }
+
+            int lineStart = skipLineTerminator(buf, lineEnd, len);
+            while (lineStart < len) {
+                lineEnd = findLineEnd(buf, lineStart, len);
+                int p = -1;
+                boolean blank = true;
+                for (int i = lineStart; i < lineEnd; ++i) {
+                    if (buf[i] > ' ') {
+                        blank = false;
+                    }
+                    if (buf[i] == ':') {
+                        p = i;
+                        break;
                     }
-                    line = in.readLine();
                 }
+                if (blank && p < 0) {
+                    break;
+                }
+                if (p >= 0) {
+                    headers.put(new String(buf, lineStart, p - lineStart, REQUEST_HEADER_CHARSET).trim().toLowerCase(Locale.US),
+                            new String(buf, p + 1, lineEnd - p - 1, REQUEST_HEADER_CHARSET).trim());
+                }
+                lineStart = skipLineTerminator(buf, lineEnd, len);
+            }
 
-                pre.put("uri", uri);
-            } catch (IOException ioe) {
-                throw new ResponseException(Response.Status.INTERNAL_ERROR, "SERVER INTERNAL ERROR: IOException: " + ioe.getMessage(), ioe);
+            this.uri = uri;
+        }
+
+        /**
+         * @return index of the first CR or LF at or after start, or len if
+         *         there is none.
+         */
+        private int findLineEnd(byte[] buf, int start, int len) {
+            int i = start;
+            while (i < len && buf[i] != '\r' && buf[i] != '\n') {
+                ++i;
             }
+            return i;
+        }
+
+        /**
+         * @return index just past the CR, LF or CRLF line terminator at idx.
+         */
+        private int skipLineTerminator(byte[] buf, int idx, int len) {
+            if (idx < len && buf[idx] == '\r') {
+                ++idx;
+            }
+            if (idx < len && buf[idx] == '\n') {
+                ++idx;
+            }
+            return idx;
         }
 
         /**
@@ -989,9 +1104,11 @@ public abstract class NanoHTTPD {
                 // Apache's default header limit is 8KB.
                 // Do NOT assume that a single read will get the entire header
                 // at once!
-                byte[] buf = new byte[HTTPSession.BUFSIZE];
+                byte[] buf = this.headerBuffer;
                 this.splitbyte = 0;
                 this.rlen = 0;
+                this.bodyRemaining = 0;
+                this.inputStreamExposed = false;
 
                 int read = -1;
                 this.inputStream.mark(HTTPSession.BUFSIZE);
@@ -1019,64 +1136,69 @@ public abstract class NanoHTTPD {
                     read = this.inputStream.read(buf, this.rlen, HTTPSession.BUFSIZE - this.rlen);
                 }
 
+                // leave the stream positioned at the start of the body (or of
+                // the next pipelined request).
                 if (this.splitbyte < this.rlen) {
                     this.inputStream.reset();
                     this.inputStream.skip(this.splitbyte);
                 }
 
-                this.parms = new HashMap<String, List<String>>();
+                if (null == this.parms) {
+                    this.parms = new HashMap<String, List<String>>();
+                } else {
+                    this.parms.clear();
+                }
                 if (null == this.headers) {
                     this.headers = new HashMap<String, String>();
                 } else {
                     this.headers.clear();
                 }
-
-                // Create a BufferedReader for parsing the header.
-                BufferedReader hin = new BufferedReader(new InputStreamReader(new ByteArrayInputStream(buf, 0, this.rlen)));
+                this.cookies = null;
 
                 // Decode the header into parms and header java properties
-                Map<String, String> pre = new HashMap<String, String>();
-                decodeHeader(hin, pre, this.parms, this.headers);
+                decodeHeader(buf, (this.splitbyte > 0) ? this.splitbyte : this.rlen, this.parms, this.headers);
 
                 if (null != this.remoteIp) {
                     this.headers.put("remote-addr", this.remoteIp);
                     this.headers.put("http-client-ip", this.remoteIp);
                 }
 
-                this.method = Method.lookup(pre.get("method"));
-                if (this.method == null) {
-                    throw new ResponseException(Response.Status.BAD_REQUEST, "BAD REQUEST: Syntax error. HTTP verb " + pre.get("method") + " unhandled.");
+                String connection = this.headers.get("connection");
+                if (connection != null) {
+                    connection = connection.toLowerCase(Locale.US);
+                }
+                if ("HTTP/1.1".equals(protocolVersion)) {
+                    this.keepAlive = (connection == null || !connection.contains("close"));
+                } else {
+                    this.keepAlive = (connection != null && connection.contains("keep-alive"));
                 }
 
-                this.uri = pre.get("uri");
-
-                this.cookies = new CookieHandler(this.headers);
-
-                String connection = this.headers.get("connection");
-                boolean keepAlive = "HTTP/1.1".equals(protocolVersion) && (connection == null || !connection.matches("(?i).*close.*"));
+                this.bodyRemaining = getBodySize();
 
                 // Ok, now do the serve()
-
-                // TODO: long body_size = getBodySize();
-                // TODO: long pos_before_serve = this.inputStream.totalRead()
-                // (requires implementation for totalRead())
                 r = serve(this);
-                // TODO: this.inputStream.skip(body_size -
-                // (this.inputStream.totalRead() - pos_before_serve))
 
                 if (r == null) {
                     throw new ResponseException(Response.Status.INTERNAL_ERROR, "SERVER INTERNAL ERROR: Serve() returned a null response.");
                 } else {
+                    // The next request can only be parsed if we can find the
+                    // end of this one's body.
+                    if (this.bodyRemaining > 0 && (this.inputStreamExposed || this.bodyRemaining > MAX_DRAIN_SIZE)) {
+                        this.keepAlive = false;
+                    }
                     String acceptEncoding = this.headers.get("accept-encoding");
-                    this.cookies.unloadQueue(r);
+                    if (this.cookies != null) {
+                        this.cookies.unloadQueue(r);
+                    }
                     r.setRequestMethod(this.method);
                     r.setGzipEncoding(useGzipWhenAccepted(r) && acceptEncoding != null && acceptEncoding.contains("gzip"));
-                    r.setKeepAlive(keepAlive);
-                    r.send(this.outputStream);
+                    r.setKeepAlive(this.keepAlive);
+                    r.send(this.outputStream, this.outputChannel);
                 }
-                if (!keepAlive || r.isCloseConnection()) {
+                if (!this.keepAlive || r.isCloseConnection()) {
                     throw new SocketException("NanoHttpd Shutdown");
                 }
+                skipUnreadBody();
             } catch (SocketException e) {
                 // throw it out to close socket object (finalAccept)
                 throw e;
@@ -1103,6 +1225,24 @@ public abstract class NanoHTTPD {
             }
         }
 
+        /**
+         * Discard whatever part of the request body serve() did not read so
+         * that the stream is positioned at the start of the next (possibly
+         * pipelined) request on this connection.
+         */
+        private void skipUnreadBody() throws IOException {
+            while (this.bodyRemaining > 0) {
+                long skipped = this.inputStream.skip(this.bodyRemaining);
+                if (skipped <= 0) {
+                    if (this.inputStream.read() == -1) {
+                        throw new SocketException("NanoHttpd Shutdown");
+                    }
+                    skipped = 1;
+                }
+                this.bodyRemaining -= skipped;
+            }
+        }
+
         /**
          * Find byte index separating header from body. It must be the last byte
          * of the first two sequential new lines.
@@ -1173,6 +1313,10 @@ public abstract class NanoHTTPD {
 
         @Override
         public CookieHandler getCookies() {
+            // most requests never look at cookies; only parse them on demand
+            if (this.cookies == null) {
+                this.cookies = new CookieHandler(this.headers);
+            }
             return this.cookies;
         }
 
@@ -1183,6 +1327,7 @@ public abstract class NanoHTTPD {
 
         @Override
         public final InputStream getInputStream() {
+            this.inputStreamExposed = true;
             return this.inputStream;
         }
 
@@ -1231,12 +1376,20 @@ public abstract class NanoHTTPD {
 
         /**
          * Deduce body length in bytes. Either from "content-length" header or
-         * read bytes.
+         * read bytes. On a persistent connection, bytes after the header that
+         * are not covered by a content-length belong to the next (pipelined)
+         * request, not to this one's body.
          */
         public long getBodySize() {
             if (this.headers.containsKey("content-length")) {
-                return Long.parseLong(this.headers.get("content-length"));
-            } else if (this.splitbyte < this.rlen) {
+                try {
+                    return Long.parseLong(this.headers.get("content-length").trim());
+                } catch (NumberFormatException e) {
+                    NanoHTTPD.LOG.log(Level.WARNING, "invalid content-length: " + this.headers.get("content-length"));
+                    this.keepAlive = false;
+                    return 0;
+                }
+            } else if (!this.keepAlive && this.splitbyte < this.rlen) {
                 return this.rlen - this.splitbyte;
             }
             return 0;
@@ -1246,33 +1399,39 @@ public abstract class NanoHTTPD {
         public void parseBody(Map<String, String> files) throws IOException, ResponseException {
             RandomAccessFile randomAccessFile = null;
             try {
-                long size = getBodySize();
-                ByteArrayOutputStream baos = null;
-                DataOutput requestDataOutput = null;
+                long size = this.bodyRemaining;
+                ByteBuffer fbuf = null;
 
                 // Store the request in memory or a file, depending on size
-                if (size < MEMORY_STORE_LIMIT) {
-                    baos = new ByteArrayOutputStream();
-                    requestDataOutput = new DataOutputStream(baos);
+                if (size <= MEMORY_STORE_LIMIT) {
+                    if (this.bodyBuffer == null || this.bodyBuffer.length < size) {
+                        this.bodyBuffer = new byte[(int) Math.max(size, REQUEST_BUFFER_LEN)];
+                    }
+                    int total = 0;
+                    while (total < size) {
+                        int read = this.inputStream.read(this.bodyBuffer, total, (int) size - total);
+                        if (read < 0) {
+                            break;
+                        }
+                        total += read;
+                    }
+                    this.bodyRemaining -= total;
+                    fbuf = ByteBuffer.wrap(this.bodyBuffer, 0, total);
                 } else {
                     randomAccessFile = getTmpBucket();
-                    requestDataOutput = randomAccessFile;
-                }
 
-                // Read all the body and write it to request_data_output
-                byte[] buf = new byte[REQUEST_BUFFER_LEN];
-                while (this.rlen >= 0 && size > 0) {
-                    this.rlen = this.inputStream.read(buf, 0, (int) Math.min(size, REQUEST_BUFFER_LEN));
-                    size -= this.rlen;
-                    if (this.rlen > 0) {
-                        requestDataOutput.write(buf, 0, this.rlen);
+                    // Read all the body and write it to the temp file
+                    byte[] buf = new byte[REQUEST_BUFFER_LEN];
+                    while (size > 0) {
+                        int read = this.inputStream.read(buf, 0, (int) Math.min(size, REQUEST_BUFFER_LEN));
+                        if (read < 0) {
+                            break;
+                        }
+                        size -= read;
+                        this.bodyRemaining -= read;
+                        randomAccessFile.write(buf, 0, read);
                     }
-                }
 
-                ByteBuffer fbuf = null;
-                if (baos != null) {
-                    fbuf = ByteBuffer.wrap(baos.toByteArray(), 0, baos.size());
-                } else {
                     fbuf = randomAccessFile.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, randomAccessFile.length());
                     randomAccessFile.seek(0);
                 }
@@ -1633,6 +1792,16 @@ public abstract class NanoHTTPD {
 
         private long contentLength;
 
+        /**
+         * Channel of the file backing this response, or null if the response
+         * is not file-backed. When present, and the body is sent without
+         * chunking or gzip, the content is transferred directly from this
+         * channel starting at fileChannelPosition.
+         */
+        private FileChannel fileChannel;
+
+        private long fileChannelPosition;
+
         /**
          * Headers for the HTTP response. Use addHeader() to add lines. the
          * lowercase map is automatically kept up to date.
@@ -1756,6 +1925,14 @@ public abstract class NanoHTTPD {
          * Sends given response to the socket.
          */
         protected void send(OutputStream outputStream) {
+            send(outputStream, null);
+        }
+
+        /**
+         * Sends given response to the socket. If the socket's channel is
+         * supplied, file-backed bodies are transferred to it directly.
+         */
+        protected void send(OutputStream outputStream, WritableByteChannel outputChannel) {
             SimpleDateFormat gmtFrmt = new SimpleDateFormat("E, d MMM yyyy HH:mm:ss 'GMT'", Locale.US);
             gmtFrmt.setTimeZone(TimeZone.getTimeZone("GMT"));
 
@@ -1814,7 +1991,7 @@ public abstract class NanoHTTPD {
                 pw.append("\r\n");
                 //cw.flush();
                 pw.flush();
-                sendBodyWithCorrectTransferAndEncoding(outputStream, pending);
+                sendBodyWithCorrectTransferAndEncoding(outputStream, outputChannel, pending);
                 //cw.flush();
                 pw.flush();
                 //cw.logResponse(getOdkAppName());
@@ -1861,11 +2038,13 @@ public abstract class NanoHTTPD {
             return size;
         }
 
-        private void sendBodyWithCorrectTransferAndEncoding(OutputStream outputStream, long pending) throws IOException {
+        private void sendBodyWithCorrectTransferAndEncoding(OutputStream outputStream, WritableByteChannel outputChannel, long pending) throws IOException {
             if (this.requestMethod != Method.HEAD && this.chunkedTransfer) {
                 ChunkedOutputStream chunkedOutputStream = new ChunkedOutputStream(outputStream);
                 sendBodyWithCorrectEncoding(chunkedOutputStream, -1);
                 chunkedOutputStream.finish();
+            } else if (!encodeAsGzip && this.fileChannel != null && pending > 0) {
+                sendFileChannelBody(outputStream, outputChannel, pending);
             } else {
                 sendBodyWithCorrectEncoding(outputStream, pending);
             }
@@ -1881,6 +2060,34 @@ public abstract class NanoHTTPD {
             }
         }
 
+        /**
+         * Sends pending bytes of the backing file, starting at
+         * fileChannelPosition, using FileChannel.transferTo(). If the socket
+         * channel is available the kernel copies the data directly (sendfile);
+         * otherwise the transfer goes through a channel wrapping the stream.
+         *
+         * @param outputStream
+         *            the socket OutputStream
+         * @param outputChannel
+         *            the socket channel, or null
+         * @param pending
+         *            number of bytes to send
+         * @throws IOException
+         *             if something goes wrong while sending the data.
+         */
+        private void sendFileChannelBody(OutputStream outputStream, WritableByteChannel outputChannel, long pending) throws IOException {
+            WritableByteChannel target = (outputChannel != null) ? outputChannel : Channels.newChannel(outputStream);
+            long position = this.fileChannelPosition;
+            long end = Math.min(position + pending, this.fileChannel.size());
+            while (position < end) {
+                long sent = this.fileChannel.transferTo(position, end - position, target);
+                if (sent <= 0) {
+                    break;
+                }
+                position += sent;
+            }
+        }
+
         /**
          * Sends the body to the specified OutputStream. The pending parameter
          * limits the maximum amounts of bytes sent unless it is -1, in which
@@ -1917,6 +2124,7 @@ public abstract class NanoHTTPD {
 
         public void setData(InputStream data) {
             this.data = data;
+            this.fileChannel = null;
         }
 
         public void setMimeType(String mimeType) {
@@ -2401,6 +2609,28 @@ public abstract class NanoHTTPD {
         return new Response(status, mimeType, data, totalBytes);
     }
 
+    /**
+     * Create a response with known length whose body is the byte range
+     * [position, position+totalBytes) of the given file. When sent without
+     * chunking or gzip, the body is transferred directly from the file's
+     * channel instead of being copied through a byte[] buffer.
+     */
+    public static Response newFixedLengthFileResponse(IStatus status, String mimeType, File file, long position, long totalBytes) throws IOException {
+        FileInputStream fis = new FileInputStream(file);
+        try {
+            FileChannel channel = fis.getChannel();
+            // keep the stream positioned for the chunked / gzip fallback
+            channel.position(position);
+            Response response = new Response(status, mimeType, fis, totalBytes);
+            response.fileChannel = channel;
+            response.fileChannelPosition = position;
+            return response;
+        } catch (IOException e) {
+            safeClose(fis);
+            throw e;
+        }
+    }
+
     /**
      * Create a text response with known length.
      */
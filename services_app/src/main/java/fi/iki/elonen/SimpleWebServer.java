@@ -35,10 +35,9 @@ package fi.iki.elonen;
 
 import org.opendatakit.utilities.ODKFileUtils;
 
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
 import java.io.FilenameFilter;
 import java.io.IOException;
 import java.io.InputStream;
@@ -48,6 +47,7 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.StringTokenizer;
 
@@ -100,6 +100,11 @@ public class SimpleWebServer extends NanoHTTPD {
 
   protected List<File> rootDirs;
 
+  /**
+   * Recently served files held in memory (raw and gzip) with strong ETags.
+   */
+  private final HotAssetCache hotAssetCache = new HotAssetCache();
+
   public SimpleWebServer(String host, int port, File wwwroot, boolean quiet, String cors) {
     this(host, port, Collections.singletonList(wwwroot), quiet, cors);
   }
@@ -117,6 +122,8 @@ public class SimpleWebServer extends NanoHTTPD {
     this.quiet = quiet;
     this.cors = cors;
     this.rootDirs = new ArrayList<File>(wwwroots);
+    // channel-backed sockets let file responses use FileChannel.transferTo()
+    setServerSocketFactory(new ChannelServerSocketFactory());
 
     init();
   }
@@ -383,12 +390,28 @@ public class SimpleWebServer extends NanoHTTPD {
   /**
    * Serves file from homeDir and its' subdirectories (only). Uses only URI,
    * ignores all headers and HTTP parameters.
+   * <p>
+   * Files small enough to be held in the {@link HotAssetCache} are served from
+   * memory with a strong, content-derived ETag; a pre-compressed gzip variant
+   * is returned when the client accepts it. Larger files are streamed from disk.
    */
   Response serveFile(String uri, Map<String, String> header, File file, String mime) {
     Response res;
     try {
+      boolean compressible = isCompressibleMimeType(mime);
+      HotAssetCache.Entry cached = hotAssetCache.get(file, compressible);
+
+      String acceptEncoding = header.get("accept-encoding");
+      boolean sendGzip = cached != null && cached.gzip != null &&
+          acceptEncoding != null && acceptEncoding.contains("gzip");
+
       // Calculate etag
-      String etag = Integer.toHexString((file.getAbsolutePath() + file.lastModified() + "" + file.length()).hashCode());
+      String etag;
+      if (cached != null) {
+        etag = sendGzip ? cached.gzipEtag : cached.etag;
+      } else {
+        etag = Integer.toHexString((file.getAbsolutePath() + file.lastModified() + "" + file.length()).hashCode());
+      }
 
       // Support (simple) skipping:
       long startFrom = 0;
@@ -406,6 +429,11 @@ public class SimpleWebServer extends NanoHTTPD {
           } catch (NumberFormatException ignored) {
           }
         }
+        // ranges always refer to the identity encoding
+        if (sendGzip) {
+          sendGzip = false;
+          etag = cached.etag;
+        }
       }
 
       // get if-range header. If present, it must match etag or else we
@@ -414,11 +442,11 @@ public class SimpleWebServer extends NanoHTTPD {
       boolean headerIfRangeMissingOrMatching = (ifRange == null || etag.equals(ifRange));
 
       String ifNoneMatch = header.get("if-none-match");
-      boolean headerIfNoneMatchPresentAndMatching = ifNoneMatch != null && ("*".equals(ifNoneMatch) || ifNoneMatch.equals(etag));
+      boolean headerIfNoneMatchPresentAndMatching = ifNoneMatch != null && etagListMatches(ifNoneMatch, etag);
 
       // Change return code and add Content-Range header when skipping is
       // requested
-      long fileLen = file.length();
+      long fileLen = (cached != null) ? cached.length : file.length();
 
       if (headerIfRangeMissingOrMatching && range != null && startFrom >= 0 && startFrom < fileLen) {
         // range request that matches current etag
@@ -439,10 +467,13 @@ public class SimpleWebServer extends NanoHTTPD {
             newLen = 0;
           }
 
-          FileInputStream fis = new FileInputStream(file);
-          fis.skip(startFrom);
-
-          res = newFixedLengthResponse(Response.Status.PARTIAL_CONTENT, mime, fis, newLen);
+          if (cached != null) {
+            res = newFixedLengthResponse(Response.Status.PARTIAL_CONTENT, mime,
+                new ByteArrayInputStream(cached.raw, (int) startFrom, (int) newLen), newLen);
+          } else {
+            // the range maps directly onto the file channel position
+            res = newFixedLengthFileResponse(Response.Status.PARTIAL_CONTENT, mime, file, startFrom, newLen);
+          }
           res.addHeader("Accept-Ranges", "bytes");
           res.addHeader("Content-Length", "" + newLen);
           res.addHeader("Content-Range", "bytes " + startFrom + "-" + endAt + "/" + fileLen);
@@ -469,6 +500,22 @@ public class SimpleWebServer extends NanoHTTPD {
 
           res = newFixedLengthResponse(Response.Status.NOT_MODIFIED, mime, "");
           res.addHeader("ETag", etag);
+        } else if (sendGzip) {
+          // supply the pre-compressed file from the cache.
+          // Content-Length suppresses the on-the-fly gzip in Response.send()
+          res = newFixedLengthResponse(Response.Status.OK, mime,
+              new ByteArrayInputStream(cached.gzip), cached.gzip.length);
+          res.addHeader("Accept-Ranges", "bytes");
+          res.addHeader("Content-Encoding", "gzip");
+          res.addHeader("Content-Length", "" + cached.gzip.length);
+          res.addHeader("ETag", etag);
+        } else if (cached != null) {
+          // supply the file from the cache
+          res = newFixedLengthResponse(Response.Status.OK, mime,
+              new ByteArrayInputStream(cached.raw), cached.raw.length);
+          res.addHeader("Accept-Ranges", "bytes");
+          res.addHeader("Content-Length", "" + fileLen);
+          res.addHeader("ETag", etag);
         } else {
           // supply the file
           res = newFixedFileResponse(file, mime);
@@ -476,6 +523,9 @@ public class SimpleWebServer extends NanoHTTPD {
           res.addHeader("ETag", etag);
         }
       }
+      if (cached != null && cached.gzip != null) {
+        res.addHeader("Vary", "Accept-Encoding");
+      }
     } catch (IOException ioe) {
       res = getForbiddenResponse("Reading file failed.");
     }
@@ -483,9 +533,45 @@ public class SimpleWebServer extends NanoHTTPD {
     return res;
   }
 
-  private Response newFixedFileResponse(File file, String mime) throws FileNotFoundException {
+  /**
+   * @return true if the If-None-Match header value (a single etag, a
+   * comma-separated list of etags, or "*") matches the given etag.
+   * Weak comparison is used, as required for If-None-Match.
+   */
+  static boolean etagListMatches(String ifNoneMatch, String etag) {
+    if ("*".equals(ifNoneMatch.trim())) {
+      return true;
+    }
+    String target = etag.startsWith("W/") ? etag.substring(2) : etag;
+    StringTokenizer st = new StringTokenizer(ifNoneMatch, ",");
+    while (st.hasMoreTokens()) {
+      String candidate = st.nextToken().trim();
+      if (candidate.startsWith("W/")) {
+        candidate = candidate.substring(2);
+      }
+      if (candidate.equals(target)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * @return true if files of this mime type benefit from being held in
+   * gzip-compressed form by the hot asset cache.
+   */
+  protected boolean isCompressibleMimeType(String mime) {
+    if (mime == null) {
+      return false;
+    }
+    String lower = mime.toLowerCase(Locale.US);
+    return lower.contains("text/") || lower.contains("/json") ||
+        lower.contains("javascript") || lower.contains("xml");
+  }
+
+  private Response newFixedFileResponse(File file, String mime) throws IOException {
     Response res;
-    res = newFixedLengthResponse(Response.Status.OK, mime, new FileInputStream(file), (int) file.length());
+    res = newFixedLengthFileResponse(Response.Status.OK, mime, file, 0L, file.length());
     res.addHeader("Accept-Ranges", "bytes");
     return res;
   }
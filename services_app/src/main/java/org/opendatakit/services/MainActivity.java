@@ -50,6 +50,7 @@ import org.opendatakit.logging.WebLogger;
 import org.opendatakit.properties.CommonToolProperties;
 import org.opendatakit.properties.PropertiesSingleton;
 import org.opendatakit.services.database.AndroidConnectFactory;
+import org.opendatakit.services.database.service.DatabaseMaintenanceJob;
 import org.opendatakit.services.preferences.activities.AppPropertiesActivity;
 import org.opendatakit.services.resolve.conflict.AllConflictsResolutionActivity;
 import org.opendatakit.services.sync.actions.activities.*;
@@ -124,6 +125,8 @@ public class MainActivity extends AbsSyncBaseActivity implements IAppAwareActivi
 
     requestAllowInstallFromUnknownSources();
     launch();
+    // not in launch(), which also runs on every resume
+    startDatabaseMaintenanceJob();
 
     //firebase
     FirebaseInstanceId.getInstance().getInstanceId()
@@ -390,6 +393,28 @@ public class MainActivity extends AbsSyncBaseActivity implements IAppAwareActivi
 
   }
 
+  private void startDatabaseMaintenanceJob() {
+    // Only run while charging (and, where supported, while the device is idle)
+    Constraints.Builder constraintsBuilder = new Constraints.Builder()
+            .setRequiresCharging(true)
+            .setRequiresBatteryNotLow(true);
+    if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+      constraintsBuilder.setRequiresDeviceIdle(true);
+    }
+
+    PeriodicWorkRequest maintenanceWork =
+            new PeriodicWorkRequest.Builder(DatabaseMaintenanceJob.class, 1, TimeUnit.DAYS)
+                    .addTag("DatabaseMaintenance")
+                    .setConstraints(constraintsBuilder.build())
+                    .setInputData(DatabaseMaintenanceJob.createInputData(appName))
+                    .build();
+    mWorkManager.enqueueUniquePeriodicWork(
+            "DATABASE_MAINTENANCE_" + appName,
+            ExistingPeriodicWorkPolicy.KEEP,
+            maintenanceWork
+    );
+  }
+
   public void performSync(SyncAttachmentState syncAttachmentState) {
     ((ISyncServiceInterfaceActivity) MainActivity.this)
             .invokeSyncInterfaceAction(new DoSyncActionCallback() {
@@ -19,11 +19,14 @@ import android.database.Cursor;
 import org.opendatakit.logging.WebLogger;
 import org.opendatakit.utilities.ODKFileUtils;
 import org.sqlite.database.SQLException;
+import org.sqlite.database.sqlite.SQLiteConnection;
 import org.sqlite.database.sqlite.SQLiteConnectionBase;
 import org.sqlite.database.sqlite.SQLiteDatabaseConfiguration;
 import org.sqlite.database.sqlite.SQLiteException;
+import org.sqlite.database.sqlite.SQLiteGlobal;
 
 import java.io.File;
+import java.util.ArrayList;
 import java.util.Map;
 
 public final class AndroidOdkConnection implements OdkConnectionInterface {
@@ -35,10 +38,24 @@ public final class AndroidOdkConnection implements OdkConnectionInterface {
    * One reference will be added when we put this into the OdkConnectionFactoryInterface session map
    */
   final OperationLog operationLog;
+  final TableDefinitionCache tableDefinitionCache;
+  final WalCheckpointScheduler walCheckpointScheduler;
   final String appName;
   final SQLiteConnectionBase db;
   final String sessionQualifier;
   int referenceCount = 1;
+  /**
+   * Access only within mutex
+   *
+   * wal_autocheckpoint value currently applied to this connection (set on open)
+   */
+  int autoCheckpointPages = SQLiteGlobal.getWALAutoCheckpoint();
+  /**
+   * Access only within mutex
+   *
+   * true if a write was issued since the outermost transaction began
+   */
+  boolean transactionHasWrites = false;
   final Object initializationMutex = new Object();
   boolean initializationComplete = false;
   boolean initializationStatus = false;
@@ -73,7 +90,9 @@ public final class AndroidOdkConnection implements OdkConnectionInterface {
       // this isn't going to throw an exception
       AndroidOdkConnection connection = new AndroidOdkConnection(
           appNameSharedStateContainer.getSessionMutex(), appName,
-          appNameSharedStateContainer.getOperationLog(), db, sessionQualifier);
+          appNameSharedStateContainer.getOperationLog(),
+          appNameSharedStateContainer.getTableDefinitionCache(),
+          appNameSharedStateContainer.getWalCheckpointScheduler(), db, sessionQualifier);
       success = true;
       return connection;
     } finally {
@@ -86,10 +105,14 @@ public final class AndroidOdkConnection implements OdkConnectionInterface {
   }
 
   private AndroidOdkConnection(Object mutex, String appName, OperationLog operationLog,
+                               TableDefinitionCache tableDefinitionCache,
+                               WalCheckpointScheduler walCheckpointScheduler,
                                SQLiteConnectionBase db, String sessionQualifier) {
     this.mutex = mutex;
     this.appName = appName;
     this.operationLog = operationLog;
+    this.tableDefinitionCache = tableDefinitionCache;
+    this.walCheckpointScheduler = walCheckpointScheduler;
     this.db = db;
     this.sessionQualifier = sessionQualifier;
   }
@@ -148,6 +171,33 @@ public final class AndroidOdkConnection implements OdkConnectionInterface {
     return sessionQualifier;
   }
 
+  public TableDefinitionCache getTableDefinitionCache() {
+    return tableDefinitionCache;
+  }
+
+  public WalCheckpointScheduler getWalCheckpointScheduler() {
+    return walCheckpointScheduler;
+  }
+
+  /**
+   * Tell the WAL checkpoint scheduler that we are about to write and apply
+   * the automatic checkpoint threshold it calls for (deferred during bulk
+   * write phases). Must be called within the mutex.
+   */
+  private void noteWrite() {
+    transactionHasWrites = true;
+    int pages = walCheckpointScheduler.noteWrite();
+    if (pages != autoCheckpointPages) {
+      Cursor c = db.rawQuery("PRAGMA wal_autocheckpoint=" + pages, null, null);
+      try {
+        c.moveToFirst();
+      } finally {
+        c.close();
+      }
+      autoCheckpointPages = pages;
+    }
+  }
+
   public void dumpDetail(StringBuilder b) {
     db.dump(b, true);
   }
@@ -332,7 +382,7 @@ public final class AndroidOdkConnection implements OdkConnectionInterface {
 
   public void setVersion(int version) throws SQLiteException {
     final int cookie = operationLog
-        .beginOperation(sessionQualifier, "setVersion(" + version + ")", null, null);
+        .beginMethodOperation(sessionQualifier, "setVersion", new Object[] { version });
 
     try {
       // invoke method
@@ -356,6 +406,9 @@ public final class AndroidOdkConnection implements OdkConnectionInterface {
    */
   private void internalBeginTransactionExclusive() {
     synchronized (mutex) {
+      if (!db.inTransaction()) {
+        transactionHasWrites = false;
+      }
       db.beginTransaction(SQLiteConnectionBase.TRANSACTION_MODE_IMMEDIATE, null);
     }
   }
@@ -368,7 +421,13 @@ public final class AndroidOdkConnection implements OdkConnectionInterface {
     try {
       // invoke method
       // Work-around for jacoco ART issue https://code.google.com/p/android/issues/detail?id=80961
-      internalBeginTransactionExclusive();
+      long startNanos = System.nanoTime();
+      try {
+        internalBeginTransactionExclusive();
+      } finally {
+        ServiceCallMetrics.get().addPhase(ServiceCallMetrics.Phase.LOCK_WAIT,
+            System.nanoTime() - startNanos);
+      }
       success = true;
     } catch (Throwable t) {
       operationLog.failOperation(cookie, t);
@@ -393,6 +452,9 @@ public final class AndroidOdkConnection implements OdkConnectionInterface {
    */
   private void internalBeginTransactionNonExclusive() {
     synchronized (mutex) {
+      if (!db.inTransaction()) {
+        transactionHasWrites = false;
+      }
       db.beginTransaction(SQLiteConnectionBase.TRANSACTION_MODE_DEFERRED, null);
     }
   }
@@ -405,7 +467,13 @@ public final class AndroidOdkConnection implements OdkConnectionInterface {
     try {
       // invoke method
       // Work-around for jacoco ART issue https://code.google.com/p/android/issues/detail?id=80961
-      internalBeginTransactionNonExclusive();
+      long startNanos = System.nanoTime();
+      try {
+        internalBeginTransactionNonExclusive();
+      } finally {
+        ServiceCallMetrics.get().addPhase(ServiceCallMetrics.Phase.LOCK_WAIT,
+            System.nanoTime() - startNanos);
+      }
       success = true;
     } catch (Throwable t) {
       operationLog.failOperation(cookie, t);
@@ -487,19 +555,27 @@ public final class AndroidOdkConnection implements OdkConnectionInterface {
    * Work-around for jacoco ART issue https://code.google.com/p/android/issues/detail?id=80961
    * @return
    */
-  private void internalEndTransaction() {
+  private boolean internalEndTransaction() {
     synchronized (mutex) {
-      db.endTransaction();
+      boolean committed = db.endTransaction();
+      if (db.inTransaction()) {
+        return false;
+      }
+      // the outermost transaction has ended
+      boolean committedWrites = committed && transactionHasWrites;
+      transactionHasWrites = false;
+      return committedWrites;
     }
   }
 
   public void endTransaction() {
+    boolean committedWrites = false;
     final int cookie = operationLog
         .beginOperation(sessionQualifier, "endTransaction()", null, null);
     try {
       // invoke method
       // Work-around for jacoco ART issue https://code.google.com/p/android/issues/detail?id=80961
-      internalEndTransaction();
+      committedWrites = internalEndTransaction();
     } catch (Throwable t) {
       operationLog.failOperation(cookie, t);
       if (t instanceof SQLiteException) {
@@ -510,6 +586,12 @@ public final class AndroidOdkConnection implements OdkConnectionInterface {
     } finally {
       operationLog.endOperation(cookie);
     }
+
+    // tell any listeners which tables were changed by the outermost transaction
+    // (nothing changed if it was rolled back or only read)
+    if (committedWrites && TableChangeNotifier.get().hasListeners(appName)) {
+      TableChangeNotifier.get().publishChanges(this);
+    }
   }
 
   /**
@@ -520,25 +602,15 @@ public final class AndroidOdkConnection implements OdkConnectionInterface {
   private int internalUpdate(String table, Map<String, Object> values, String whereClause,
       Object[] whereArgs) {
     synchronized (mutex) {
+      noteWrite();
       return db.update(table, values, whereClause, whereArgs);
     }
   }
 
   public int update(String table, Map<String, Object> values, String whereClause,
       Object[] whereArgs) {
-    StringBuilder b = new StringBuilder();
-    b.append("delete(\"").append(table).append("\",...,");
-    if (whereClause == null) {
-      b.append("null,");
-    } else {
-      b.append("\"").append(whereClause).append("\",");
-    }
-    if (whereArgs == null) {
-      b.append("null)");
-    } else {
-      b.append("...)");
-    }
-    final int cookie = operationLog.beginOperation(sessionQualifier, b.toString(), null, null);
+    final int cookie = operationLog.beginMethodOperation(sessionQualifier, "update",
+        new Object[] { table, values, whereClause, whereArgs });
     try {
       // invoke method
       // Work-around for jacoco ART issue https://code.google.com/p/android/issues/detail?id=80961
@@ -562,24 +634,14 @@ public final class AndroidOdkConnection implements OdkConnectionInterface {
    */
   private int internalDelete(String table, String whereClause, Object[] whereArgs) {
     synchronized (mutex) {
+      noteWrite();
       return db.delete(table, whereClause, whereArgs);
     }
   }
 
   public int delete(String table, String whereClause, Object[] whereArgs) {
-    StringBuilder b = new StringBuilder();
-    b.append("delete(\"").append(table).append("\",");
-    if (whereClause == null) {
-      b.append("null,");
-    } else {
-      b.append("\"").append(whereClause).append("\",");
-    }
-    if (whereArgs == null) {
-      b.append("null)");
-    } else {
-      b.append("...)");
-    }
-    final int cookie = operationLog.beginOperation(sessionQualifier, b.toString(), null, null);
+    final int cookie = operationLog.beginMethodOperation(sessionQualifier, "delete",
+        new Object[] { table, whereClause, whereArgs });
 
     try {
       // invoke method
@@ -603,20 +665,15 @@ public final class AndroidOdkConnection implements OdkConnectionInterface {
    */
   private void internalReplaceOrThrow(String table, String nullColumnHack, Map<String, Object> initialValues) {
     synchronized (mutex) {
+      noteWrite();
       db.replaceOrThrow(table, nullColumnHack, initialValues);
     }
   }
 
   public void replaceOrThrow(String table, String nullColumnHack, Map<String, Object> initialValues)
       throws SQLException {
-    StringBuilder b = new StringBuilder();
-    b.append("replaceOrThrow(\"").append(table).append("\",");
-    if (nullColumnHack == null) {
-      b.append("null,...)");
-    } else {
-      b.append("\"").append(nullColumnHack).append("\",...)");
-    }
-    final int cookie = operationLog.beginOperation(sessionQualifier, b.toString(), null, null);
+    final int cookie = operationLog.beginMethodOperation(sessionQualifier, "replaceOrThrow",
+        new Object[] { table, nullColumnHack, initialValues });
 
     try {
       // invoke method
@@ -640,20 +697,15 @@ public final class AndroidOdkConnection implements OdkConnectionInterface {
    */
   private void internalInsertOrThrow(String table, String nullColumnHack, Map<String, Object> values) {
     synchronized (mutex) {
+      noteWrite();
       db.insertOrThrow(table, nullColumnHack, values);
     }
   }
 
   public void insertOrThrow(String table, String nullColumnHack, Map<String, Object> values)
       throws SQLException {
-    StringBuilder b = new StringBuilder();
-    b.append("insertOrThrow(\"").append(table).append("\",");
-    if (nullColumnHack == null) {
-      b.append("null,...)");
-    } else {
-      b.append("\"").append(nullColumnHack).append("\",...)");
-    }
-    final int cookie = operationLog.beginOperation(sessionQualifier, b.toString(), null, null);
+    final int cookie = operationLog.beginMethodOperation(sessionQualifier, "insertOrThrow",
+        new Object[] { table, nullColumnHack, values });
 
     try {
       // invoke method
@@ -678,24 +730,25 @@ public final class AndroidOdkConnection implements OdkConnectionInterface {
    */
   private void internalExecSQL(String sql, Object[] bindArgs) {
     synchronized (mutex) {
+      noteWrite();
       db.execSQL(sql, bindArgs);
     }
   }
 
   public void execSQL(String sql, Object[] bindArgs) throws SQLException {
-    StringBuilder b = new StringBuilder();
-    b.append("execSQL(\"").append(sql).append("\",");
-    if (bindArgs == null) {
-      b.append("null)");
-    } else {
-      b.append("...)");
-    }
-    final int cookie = operationLog.beginOperation(sessionQualifier, b.toString(), null, null);
+    final int cookie = operationLog.beginMethodOperation(sessionQualifier, "execSQL",
+        new Object[] { sql, bindArgs });
 
     try {
       // invoke method
       // Work-around for jacoco ART issue https://code.google.com/p/android/issues/detail?id=80961
-      internalExecSQL(sql, bindArgs);
+      long startNanos = System.nanoTime();
+      try {
+        internalExecSQL(sql, bindArgs);
+      } finally {
+        ServiceCallMetrics.get().addPhase(ServiceCallMetrics.Phase.SQL,
+            System.nanoTime() - startNanos);
+      }
     } catch (Throwable t) {
       operationLog.failOperation(cookie, t);
       if (t instanceof SQLiteException) {
@@ -718,20 +771,71 @@ public final class AndroidOdkConnection implements OdkConnectionInterface {
     }
   }
 
-  public Cursor rawQuery(String sql, Object[] selectionArgs) {
-    StringBuilder b = new StringBuilder();
-    b.append("rawQuery(\"").append(sql).append("\",");
-    if (selectionArgs == null) {
-      b.append("null)");
-    } else {
-      b.append("...)");
+  /**
+   * Capture the query plan, row count and calling method of a slow query.
+   * Failures here are logged and otherwise ignored.
+   */
+  private void recordSlowQuery(long startTime, long elapsed, String sql, Object[] selectionArgs,
+      Cursor c) {
+    try {
+      ArrayList<String> queryPlan = new ArrayList<String>();
+      Cursor plan = null;
+      try {
+        plan = internalRawQuery("EXPLAIN QUERY PLAN " + sql, selectionArgs);
+        int idxDetail = plan.getColumnIndex("detail");
+        while (idxDetail != -1 && plan.moveToNext()) {
+          queryPlan.add(plan.getString(idxDetail));
+        }
+      } finally {
+        if (plan != null && !plan.isClosed()) {
+          plan.close();
+        }
+      }
+      operationLog.recordSlowQuery(startTime, elapsed, (c == null) ? 0 : c.getCount(), sql,
+          getCallingMethod(), queryPlan);
+    } catch (Throwable t) {
+      WebLogger.getLogger(appName).w("AndroidOdkConnection",
+          "unable to record slow query: " + t.toString());
     }
-    final int cookie = operationLog.beginOperation(sessionQualifier, b.toString(), null, null);
+  }
+
+  /**
+   * @return the ODKDatabaseImplUtils method that issued the current query or,
+   * failing that, the first method outside of this class.
+   */
+  private static String getCallingMethod() {
+    StackTraceElement outsideCaller = null;
+    for (StackTraceElement e : Thread.currentThread().getStackTrace()) {
+      String className = e.getClassName();
+      if (className.endsWith(".ODKDatabaseImplUtils")) {
+        return "ODKDatabaseImplUtils." + e.getMethodName();
+      }
+      if (outsideCaller == null && !className.equals(AndroidOdkConnection.class.getName())
+          && !className.startsWith("java.") && !className.startsWith("dalvik.")) {
+        outsideCaller = e;
+      }
+    }
+    return (outsideCaller == null) ? "unknown" :
+        outsideCaller.getClassName() + "." + outsideCaller.getMethodName();
+  }
+
+  public Cursor rawQuery(String sql, Object[] selectionArgs) {
+    final int cookie = operationLog.beginMethodOperation(sessionQualifier, "rawQuery",
+        new Object[] { sql, selectionArgs });
 
     try {
       // invoke method
       // Work-around for jacoco ART issue https://code.google.com/p/android/issues/detail?id=80961
-      return internalRawQuery(sql, selectionArgs);
+      long startTime = System.currentTimeMillis();
+      long startNanos = System.nanoTime();
+      Cursor c = internalRawQuery(sql, selectionArgs);
+      long elapsedNanos = System.nanoTime() - startNanos;
+      ServiceCallMetrics.get().addPhase(ServiceCallMetrics.Phase.SQL, elapsedNanos);
+      long elapsed = elapsedNanos / 1000000L;
+      if (operationLog.isSlowQuery(elapsed)) {
+        recordSlowQuery(startTime, elapsed, sql, selectionArgs, c);
+      }
+      return c;
     } catch (Throwable t) {
       operationLog.failOperation(cookie, t);
       if (t instanceof SQLiteException) {
@@ -757,50 +861,25 @@ public final class AndroidOdkConnection implements OdkConnectionInterface {
 
   public Cursor query(String table, String[] columns, String selection, Object[] selectionArgs,
       String groupBy, String having, String orderBy, String limit) {
-    StringBuilder b = new StringBuilder();
-    b.append("query(\"").append(table).append("\",");
-    if (columns == null) {
-      b.append("null,");
-    } else {
-      b.append("...,");
-    }
-    if (selection == null) {
-      b.append("null,");
-    } else {
-      b.append("\"").append(selection).append("\",");
-    }
-    if (selectionArgs == null) {
-      b.append("null,");
-    } else {
-      b.append("...,");
-    }
-    if (groupBy == null) {
-      b.append("null,");
-    } else {
-      b.append("\"").append(groupBy).append("\",");
-    }
-    if (having == null) {
-      b.append("null,");
-    } else {
-      b.append("\"").append(having).append("\",");
-    }
-    if (orderBy == null) {
-      b.append("null,");
-    } else {
-      b.append("\"").append(orderBy).append("\",");
-    }
-    if (limit == null) {
-      b.append("null)");
-    } else {
-      b.append("\"").append(limit).append("\")");
-    }
-    final int cookie = operationLog.beginOperation(sessionQualifier, b.toString(), null, null);
+    final int cookie = operationLog.beginMethodOperation(sessionQualifier, "query",
+        new Object[] { table, columns, selection, selectionArgs, groupBy, having, orderBy,
+            limit });
 
     try {
       // invoke method
       // Work-around for jacoco ART issue https://code.google.com/p/android/issues/detail?id=80961
-      return internalQuery(table, columns, selection, selectionArgs, groupBy, having, orderBy,
+      long startTime = System.currentTimeMillis();
+      long startNanos = System.nanoTime();
+      Cursor c = internalQuery(table, columns, selection, selectionArgs, groupBy, having, orderBy,
           limit);
+      long elapsedNanos = System.nanoTime() - startNanos;
+      ServiceCallMetrics.get().addPhase(ServiceCallMetrics.Phase.SQL, elapsedNanos);
+      long elapsed = elapsedNanos / 1000000L;
+      if (operationLog.isSlowQuery(elapsed)) {
+        recordSlowQuery(startTime, elapsed, SQLiteConnection.buildQueryString(false, table,
+            columns, selection, groupBy, having, orderBy, limit), selectionArgs, c);
+      }
+      return c;
     } catch (Throwable t) {
       operationLog.failOperation(cookie, t);
       if (t instanceof SQLiteException) {
@@ -827,50 +906,25 @@ public final class AndroidOdkConnection implements OdkConnectionInterface {
 
   public Cursor queryDistinct(String table, String[] columns, String selection,
       Object[] selectionArgs, String groupBy, String having, String orderBy, String limit) {
-    StringBuilder b = new StringBuilder();
-    b.append("queryDistinct(\"").append(table).append("\",");
-    if (columns == null) {
-      b.append("null,");
-    } else {
-      b.append("...,");
-    }
-    if (selection == null) {
-      b.append("null,");
-    } else {
-      b.append("\"").append(selection).append("\",");
-    }
-    if (selectionArgs == null) {
-      b.append("null,");
-    } else {
-      b.append("...,");
-    }
-    if (groupBy == null) {
-      b.append("null,");
-    } else {
-      b.append("\"").append(groupBy).append("\",");
-    }
-    if (having == null) {
-      b.append("null,");
-    } else {
-      b.append("\"").append(having).append("\",");
-    }
-    if (orderBy == null) {
-      b.append("null,");
-    } else {
-      b.append("\"").append(orderBy).append("\",");
-    }
-    if (limit == null) {
-      b.append("null)");
-    } else {
-      b.append("\"").append(limit).append("\")");
-    }
-    final int cookie = operationLog.beginOperation(sessionQualifier, b.toString(), null, null);
+    final int cookie = operationLog.beginMethodOperation(sessionQualifier, "queryDistinct",
+        new Object[] { table, columns, selection, selectionArgs, groupBy, having, orderBy,
+            limit });
 
     try {
       // invoke method
       // Work-around for jacoco ART issue https://code.google.com/p/android/issues/detail?id=80961
-      return internalQueryDistinct(table, columns, selection, selectionArgs, groupBy, having,
+      long startTime = System.currentTimeMillis();
+      long startNanos = System.nanoTime();
+      Cursor c = internalQueryDistinct(table, columns, selection, selectionArgs, groupBy, having,
           orderBy, limit);
+      long elapsedNanos = System.nanoTime() - startNanos;
+      ServiceCallMetrics.get().addPhase(ServiceCallMetrics.Phase.SQL, elapsedNanos);
+      long elapsed = elapsedNanos / 1000000L;
+      if (operationLog.isSlowQuery(elapsed)) {
+        recordSlowQuery(startTime, elapsed, SQLiteConnection.buildQueryString(true, table,
+            columns, selection, groupBy, having, orderBy, limit), selectionArgs, c);
+      }
+      return c;
     } catch (Throwable t) {
       operationLog.failOperation(cookie, t);
       if (t instanceof SQLiteException) {
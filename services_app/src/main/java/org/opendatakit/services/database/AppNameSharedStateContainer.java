@@ -54,12 +54,17 @@ public final class AppNameSharedStateContainer {
 
    private final OperationLog operationLog;
 
+   private final TableDefinitionCache tableDefinitionCache = new TableDefinitionCache();
+
+   private final WalCheckpointScheduler walCheckpointScheduler;
+
    private String beginTransactionSessionQualifier = null;
    private Long beginTransactionThreadId = null;
 
    AppNameSharedStateContainer(String appName) {
       this.appName = appName;
       this.operationLog = new OperationLog(appName);
+      this.walCheckpointScheduler = new WalCheckpointScheduler(appName);
    }
 
    /**
@@ -163,6 +168,9 @@ public final class AppNameSharedStateContainer {
       synchronized (appNameMutex) {
          b.append("\n---------------- ").append(appName).append(" ---------------------\n\n");
          operationLog.dump(b, true);
+         b.append("\n");
+         walCheckpointScheduler.dump(b);
+         b.append("\n");
 
          b.append("beginTransactionSessionQualifier ")
              .append(beginTransactionSessionQualifier)
@@ -204,6 +212,14 @@ public final class AppNameSharedStateContainer {
       return operationLog;
    }
 
+   public TableDefinitionCache getTableDefinitionCache() {
+      return tableDefinitionCache;
+   }
+
+   public WalCheckpointScheduler getWalCheckpointScheduler() {
+      return walCheckpointScheduler;
+   }
+
    void setBeginTransactionSession(String sessionQualifier) {
       synchronized (appNameMutex) {
          beginTransactionSessionQualifier = sessionQualifier;
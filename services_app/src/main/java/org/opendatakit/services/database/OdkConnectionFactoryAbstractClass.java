@@ -156,6 +156,42 @@ public abstract class OdkConnectionFactoryAbstractClass implements OdkConnection
     }
   }
 
+  /**
+   * Report the slow queries recorded for this appName.
+   *
+   * @param appName
+   * @return the report, or null if the appName has not been opened.
+   */
+  public final String getSlowQueryReport(String appName) {
+    AppNameSharedStateContainer container;
+    synchronized (mutex) {
+      container = appNameSharedStateMap.get(appName);
+    }
+    if (container == null) {
+      return null;
+    }
+    StringBuilder b = new StringBuilder();
+    container.getOperationLog().dumpSlowQueries(b);
+    return b.toString();
+  }
+
+  /**
+   * Report the WAL checkpoint activity for this appName.
+   *
+   * @param appName
+   * @return the statistics, or null if the appName has not been opened.
+   */
+  public final Map<String, Object> getWalCheckpointMetrics(String appName) {
+    AppNameSharedStateContainer container;
+    synchronized (mutex) {
+      container = appNameSharedStateMap.get(appName);
+    }
+    if (container == null) {
+      return null;
+    }
+    return container.getWalCheckpointScheduler().getSnapshot();
+  }
+
   private static String getDbFilePath(String appName) {
     File dbFile = new File(ODKFileUtils.getWebDbFolder(appName),
             ODKFileUtils.getNameOfSQLiteDatabase());
@@ -439,7 +475,13 @@ public abstract class OdkConnectionFactoryAbstractClass implements OdkConnection
   public final OdkConnectionInterface getConnection(String appName,
                                                     DbHandle dbHandleName) {
     if (dbHandleName != null) {
-      return getConnectionImpl(appName, dbHandleName.getDatabaseHandle());
+      long startNanos = System.nanoTime();
+      try {
+        return getConnectionImpl(appName, dbHandleName.getDatabaseHandle());
+      } finally {
+        ServiceCallMetrics.get().addPhase(ServiceCallMetrics.Phase.CONNECTION,
+            System.nanoTime() - startNanos);
+      }
     } else {
       throw new IllegalArgumentException("null dbHandleName " + appName);
     }
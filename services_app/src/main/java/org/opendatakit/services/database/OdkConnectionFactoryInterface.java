@@ -2,6 +2,8 @@ package org.opendatakit.services.database;
 
 import org.opendatakit.database.service.DbHandle;
 
+import java.util.Map;
+
 /**
  * Factory interface that provides database connections and manages them.
  * Implementors should derive from OdkConnectionFactoryAbstractClass
@@ -45,6 +47,25 @@ public interface OdkConnectionFactoryInterface {
     */
    void dumpInfo(boolean asError);
 
+   /**
+    * Report the slow queries recorded for this appName: per-SQL-shape timing
+    * statistics and the most recent offenders with their query plans.
+    * See OperationLog.setSlowQueryThresholdMillis() for the threshold.
+    *
+    * @param appName
+    * @return the report, or null if the appName has not been opened.
+    */
+   String getSlowQueryReport(String appName);
+
+   /**
+    * Report the WAL checkpoint activity for this appName: checkpoint counts
+    * and durations by mode, and the size of the WAL before and after them.
+    *
+    * @param appName
+    * @return the statistics, or null if the appName has not been opened.
+    */
+   Map<String, Object> getWalCheckpointMetrics(String appName);
+
    /**
     * Get a connection to the database for the given dbHandleName.
     * If no connection exists, this will create a new connection for that dbHandleName
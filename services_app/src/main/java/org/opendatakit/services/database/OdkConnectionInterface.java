@@ -36,6 +36,16 @@ public interface OdkConnectionInterface {
 
     String getSessionQualifier();
 
+  /**
+   * @return the table definition cache shared by all connections to this appName
+   */
+    TableDefinitionCache getTableDefinitionCache();
+
+  /**
+   * @return the WAL checkpoint scheduler shared by all connections to this appName
+   */
+    WalCheckpointScheduler getWalCheckpointScheduler();
+
     void dumpDetail(StringBuilder b);
 
    /**
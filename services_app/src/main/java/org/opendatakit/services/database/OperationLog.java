@@ -17,30 +17,62 @@ package org.opendatakit.services.database;
 import org.opendatakit.logging.WebLogger;
 import org.sqlite.database.sqlite.SQLiteDebug;
 
-import java.util.ArrayList;
+import java.util.List;
 import java.util.Locale;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 /**
  * Extracted from the SQLiteDatabase class.
  * Thread-safe.
+ * <p>
+ * Recording an operation is lock-free: each operation claims the next
+ * sequence number, which is also its cookie, and publishes a fresh entry
+ * into the corresponding slot of the ring. Descriptions are only formatted
+ * when the log is dumped or an operation is logged.
  *
  * @author mitchellsundt@gmail.com
  */
 public final class OperationLog {
 
-   private static final int MAX_RECENT_OPERATIONS = 60;
-   private static final int COOKIE_GENERATION_SHIFT = 8;
-   private static final int COOKIE_INDEX_MASK = 0xff;
+   /**
+    * Must be a power of 2
+    */
+   private static final int MAX_RECENT_OPERATIONS = 64;
+   private static final int OPERATION_INDEX_MASK = MAX_RECENT_OPERATIONS - 1;
    private static final byte[] EMPTY_BYTE_ARRAY = new byte[0];
 
+   /**
+    * Queries taking at least this long are recorded in the slow query log.
+    * A negative value disables the slow query log.
+    */
+   private static volatile long slowQueryThresholdMillis = 300L;
+
+   public static void setSlowQueryThresholdMillis(long thresholdMillis) {
+      slowQueryThresholdMillis = thresholdMillis;
+   }
+
+   public static long getSlowQueryThresholdMillis() {
+      return slowQueryThresholdMillis;
+   }
 
-   private final OperationLogEntry[] mOperations = new OperationLogEntry[MAX_RECENT_OPERATIONS];
+   private final AtomicReferenceArray<OperationLogEntry> mOperations =
+       new AtomicReferenceArray<OperationLogEntry>(MAX_RECENT_OPERATIONS);
+
+   /**
+    * Cookie of the most recently begun operation
+    */
+   private final AtomicInteger mSequence = new AtomicInteger();
 
    private final String appName;
-   private int mIndex;
-   private int mGeneration;
+   private final SlowQueryLog slowQueryLog = new SlowQueryLog();
+
+   /**
+    * Guards the open and close activity counters
+    */
+   private final Object mActivityLock = new Object();
   /**
-   * Access only within synchronized mOperations
+   * Access only within synchronized mActivityLock
    *
    * tracks the number of opens in the last 65 seconds
    */
@@ -49,7 +81,7 @@ public final class OperationLog {
   private int lastOpenIdx = 0;
 
   /**
-   * Access only within synchronized mOperations
+   * Access only within synchronized mActivityLock
    *
    * tracks the number of closes in the last 65 seconds
    */
@@ -65,60 +97,72 @@ public final class OperationLog {
     * Invoked when AppNameSharedStateContainer becomes empty
     */
    public void clearOperations() {
-      synchronized (mOperations) {
-         for ( int i = 0 ; i < mOperations.length ; ++i ) {
-            mOperations[i] = null;
-         }
+      for ( int i = 0 ; i < MAX_RECENT_OPERATIONS ; ++i ) {
+         mOperations.set(i, null);
       }
    }
 
    public int beginOperation(String sessionQualifier, String kind, String sql, Object[] bindArgs) {
-      synchronized (mOperations) {
-         final int index = (mIndex + 1) % MAX_RECENT_OPERATIONS;
-         OperationLogEntry operation = mOperations[index];
-         if (operation == null) {
-            operation = new OperationLogEntry();
-            mOperations[index] = operation;
-         } else {
-            operation.mFinished = false;
-            operation.mThrowable = null;
-            if (operation.mBindArgs != null) {
-               operation.mBindArgs.clear();
-            }
-         }
-         operation.mSessionQualifier = sessionQualifier;
-         operation.mStartTime = System.currentTimeMillis();
-         operation.mKind = kind;
-         operation.mThreadId = Thread.currentThread().getId();
-         operation.mSql = sql;
-         if (bindArgs != null) {
-            if (operation.mBindArgs == null) {
-               operation.mBindArgs = new ArrayList<Object>();
+      OperationLogEntry operation = new OperationLogEntry();
+      operation.mKind = kind;
+      operation.mSql = sql;
+      if (bindArgs != null) {
+         operation.mBindArgs = new Object[bindArgs.length];
+         for (int i = 0; i < bindArgs.length; i++) {
+            final Object arg = bindArgs[i];
+            if (arg != null && arg instanceof byte[]) {
+               // Don't hold onto the real byte array longer than necessary.
+               operation.mBindArgs[i] = EMPTY_BYTE_ARRAY;
             } else {
-               operation.mBindArgs.clear();
-            }
-            for (int i = 0; i < bindArgs.length; i++) {
-               final Object arg = bindArgs[i];
-               if (arg != null && arg instanceof byte[]) {
-                  // Don't hold onto the real byte array longer than necessary.
-                  operation.mBindArgs.add(EMPTY_BYTE_ARRAY);
-               } else {
-                  operation.mBindArgs.add(arg);
-               }
+               operation.mBindArgs[i] = arg;
             }
          }
-         operation.mCookie = newOperationCookieLocked(index);
-         mIndex = index;
-         return operation.mCookie;
       }
+      return publishOperation(sessionQualifier, operation);
+   }
+
+   /**
+    * Begin an operation described as a method invocation. The description,
+    * e.g., rawQuery("SELECT...",...), is only formatted if it is displayed.
+    *
+    * @param sessionQualifier
+    * @param methodName
+    * @param methodArgs  the arguments of the method. This array is retained;
+    *                    Strings and Numbers are displayed, other non-null
+    *                    values are replaced with a placeholder.
+    * @return cookie
+    */
+   public int beginMethodOperation(String sessionQualifier, String methodName,
+       Object[] methodArgs) {
+      OperationLogEntry operation = new OperationLogEntry();
+      operation.mKind = methodName;
+      for (int i = 0; i < methodArgs.length; i++) {
+         final Object arg = methodArgs[i];
+         if (arg != null && !(arg instanceof String) && !(arg instanceof Number)) {
+            methodArgs[i] = OperationLogEntry.ELIDED_ARGUMENT;
+         }
+      }
+      operation.mMethodArgs = methodArgs;
+      return publishOperation(sessionQualifier, operation);
+   }
+
+   private int publishOperation(String sessionQualifier, OperationLogEntry operation) {
+      operation.mSessionQualifier = sessionQualifier;
+      operation.mStartTime = System.currentTimeMillis();
+      operation.mThreadId = Thread.currentThread().getId();
+      final int cookie = mSequence.incrementAndGet();
+      operation.mCookie = cookie;
+      // volatile write -- safely publishes the fields set above
+      mOperations.set(cookie & OPERATION_INDEX_MASK, operation);
+      return cookie;
    }
 
    public void failOperation(int cookie, Throwable t) {
       String logString = null;
-      final OperationLogEntry operation = getOperationLocked(cookie);
+      final OperationLogEntry operation = getOperation(cookie);
       if (operation != null) {
          operation.mThrowable = t;
-         logString = logOperationLocked(operation, null);
+         logString = logOperation(operation, null);
       }
       if (logString != null) {
          WebLogger.getLogger(appName).i("operationLog",
@@ -129,10 +173,10 @@ public final class OperationLog {
 
    public void endOperation(int cookie) {
       String logString = null;
-      final OperationLogEntry operation = getOperationLocked(cookie);
+      final OperationLogEntry operation = getOperation(cookie);
       if (operation != null) {
-         if (endOperationDeferLogLocked(operation)) {
-            logString = logOperationLocked(operation, null);
+         if (endOperationDeferLog(operation)) {
+            logString = logOperation(operation, null);
          }
       }
       if ( logString != null ) {
@@ -142,11 +186,39 @@ public final class OperationLog {
       // silently ignore if not found -- we are processing requests too fast!
    }
 
+   public boolean isSlowQuery(long elapsedMillis) {
+      long threshold = slowQueryThresholdMillis;
+      return threshold >= 0 && elapsedMillis >= threshold;
+   }
+
+   /**
+    * Record a query that took at least the slow query threshold.
+    *
+    * @param startTime     when the query started
+    * @param elapsedMillis how long it took
+    * @param rowsReturned  number of rows in the result set
+    * @param sql           the query
+    * @param caller        the method that issued the query
+    * @param queryPlan     detail lines of EXPLAIN QUERY PLAN
+    */
+   public void recordSlowQuery(long startTime, long elapsedMillis, int rowsReturned, String sql,
+       String caller, List<String> queryPlan) {
+      slowQueryLog.record(startTime, elapsedMillis, rowsReturned, sql, caller, queryPlan);
+      WebLogger.getLogger(appName).i("operationLog", "slow query: took " + elapsedMillis
+          + "ms rows: " + rowsReturned + " caller: " + caller + " sql=\""
+          + AppNameSharedStateContainer.trimSqlForDisplay(sql) + "\"");
+   }
+
+   public void dumpSlowQueries(StringBuilder b) {
+      b.append("  Slow query threshold: ").append(slowQueryThresholdMillis).append("ms\n");
+      slowQueryLog.dump(b);
+   }
+
    public void endOperationDeferLogAdditional(int cookie, String logString) {
-      final OperationLogEntry operation = getOperationLocked(cookie);
+      final OperationLogEntry operation = getOperation(cookie);
       boolean shouldLog = false;
       if (operation != null) {
-         shouldLog = endOperationDeferLogLocked(operation);
+         shouldLog = endOperationDeferLog(operation);
       }
       if ( logString != null && shouldLog ) {
          WebLogger.getLogger(appName).i("operationLog",
@@ -155,11 +227,24 @@ public final class OperationLog {
       // silently ignore if not found -- we are processing requests too fast!
    }
 
+   /**
+    * As endOperationDeferLogAdditional(cookie, label + value), but
+    * only builds the log string if it will be logged.
+    */
+   public void endOperationDeferLogAdditional(int cookie, String label, long value) {
+      final OperationLogEntry operation = getOperation(cookie);
+      if (operation != null && endOperationDeferLog(operation)) {
+         WebLogger.getLogger(appName).i("operationLog",
+             "endOperation (long runtime): " + label + value);
+      }
+      // silently ignore if not found -- we are processing requests too fast!
+   }
+
   /**
    * Function to track the number of new connection opens within the last 65 seconds
    */
   public void tickOpen() {
-    synchronized (mOperations) {
+    synchronized (mActivityLock) {
       long now = System.currentTimeMillis();
       int idx = (int) ((now & 0xE000L) >> 13);
 
@@ -176,7 +261,7 @@ public final class OperationLog {
    * Function to track the number of connection closes within the last 65 seconds
    */
   public void tickClose() {
-    synchronized (mOperations) {
+    synchronized (mActivityLock) {
       long now = System.currentTimeMillis();
       int idx = (int) ((now & 0xE000L) >> 13);
 
@@ -190,10 +275,10 @@ public final class OperationLog {
   }
 
    public void logOperation(int cookie, String detail) {
-      final OperationLogEntry operation = getOperationLocked(cookie);
+      final OperationLogEntry operation = getOperation(cookie);
       String logString = null;
       if (operation != null) {
-         logString = logOperationLocked(operation, detail);
+         logString = logOperation(operation, detail);
       }
       if (logString != null) {
          WebLogger.getLogger(appName).i("operationLog", logString);
@@ -202,19 +287,18 @@ public final class OperationLog {
    }
 
    public String describeCurrentOperation() {
-      synchronized (mOperations) {
-         final OperationLogEntry operation = mOperations[mIndex];
-         if (operation != null && !operation.mFinished) {
-            StringBuilder msg = new StringBuilder();
-            operation.describe(msg, false);
-            return msg.toString();
-         }
-         return null;
+      final OperationLogEntry operation =
+          mOperations.get(mSequence.get() & OPERATION_INDEX_MASK);
+      if (operation != null && !operation.mFinished) {
+         StringBuilder msg = new StringBuilder();
+         operation.describe(msg, false);
+         return msg.toString();
       }
+      return null;
    }
 
    public void dump(StringBuilder b, boolean verbose) {
-      synchronized (mOperations) {
+      synchronized (mActivityLock) {
         //////////////////////////////////////////////////////
         // Display a time histogram of the number of opens and closes
         // in the last 65 seconds.
@@ -246,36 +330,41 @@ public final class OperationLog {
         b.append("Total opens: ").append(totalOpens).append(" closes: ").append(totalCloses)
             .append(" currently active: ").append(totalOpens-totalCloses).append("\n\n");
 
+        dumpSlowQueries(b);
+        b.append("\n");
+
         b.append("  Most recently executed operations:\n");
-         int index = mIndex;
-         OperationLogEntry operation = mOperations[index];
-         if (operation != null) {
-            int n = 0;
-            do {
-               b.append(" ").append(n).append(": ");
-               operation.describe(b, verbose);
-               b.append("\n");
-               if (index > 0) {
-                  index -= 1;
-               } else {
-                  index = MAX_RECENT_OPERATIONS - 1;
-               }
-               n += 1;
-               operation = mOperations[index];
-            } while (operation != null && n < MAX_RECENT_OPERATIONS);
-         } else {
-            b.append("    <none>\n");
+      }
+      // newest first; entries are replaced concurrently, so skip any
+      // slot that has already been reused by a newer operation.
+      final int newest = mSequence.get();
+      int n = 0;
+      for (int i = 0; i < MAX_RECENT_OPERATIONS; ++i) {
+         final int cookie = newest - i;
+         final OperationLogEntry operation = mOperations.get(cookie & OPERATION_INDEX_MASK);
+         if (operation == null) {
+            break;
+         }
+         if (operation.mCookie != cookie) {
+            continue;
          }
+         b.append(" ").append(n).append(": ");
+         operation.describe(b, verbose);
+         b.append("\n");
+         n += 1;
+      }
+      if (n == 0) {
+         b.append("    <none>\n");
       }
    }
 
    /**
-    * This is ONLY called within a synchronized(mOperations){} block.
+    * Only the thread that began the operation ends it.
     *
     * @param operation
     * @return
     */
-   private boolean endOperationDeferLogLocked(OperationLogEntry operation) {
+   private boolean endOperationDeferLog(OperationLogEntry operation) {
       if (operation != null) {
          if ( !operation.mFinished ) {
             operation.mEndTime = System.currentTimeMillis();
@@ -287,12 +376,10 @@ public final class OperationLog {
    }
 
    /**
-    * This is ONLY called within a synchronized(mOperations){} block.
-    *
     * @param operation
     * @param detail
     */
-   private String logOperationLocked(OperationLogEntry operation, String detail) {
+   private String logOperation(OperationLogEntry operation, String detail) {
       StringBuilder msg = new StringBuilder();
       operation.describe(msg, false);
       if (detail != null) {
@@ -302,33 +389,14 @@ public final class OperationLog {
    }
 
    /**
-    * This is ONLY called within a synchronized(mOperations){} block.
-    *
-    * @param index
-    * @return
-    */
-   private int newOperationCookieLocked(int index) {
-      final int generation = mGeneration++;
-      return generation << COOKIE_GENERATION_SHIFT | index;
-   }
-
-   /**
-    * This is ONLY called within a synchronized(mOperations){} block.
-    *
     * @param cookie
-    * @return
+    * @return the operation or null if its slot has been reused.
     */
-   private OperationLogEntry getOperationLocked(int cookie) {
-     final int index = cookie & COOKIE_INDEX_MASK;
-     synchronized (mOperations) {
-       if (index >= mOperations.length) {
-         return null;
-       }
-       final OperationLogEntry operation = mOperations[index];
-       if (operation == null) {
-         return null;
-       }
-       return operation.mCookie == cookie ? operation : null;
+   private OperationLogEntry getOperation(int cookie) {
+     final OperationLogEntry operation = mOperations.get(cookie & OPERATION_INDEX_MASK);
+     if (operation == null) {
+       return null;
      }
+     return operation.mCookie == cookie ? operation : null;
    }
 }
@@ -18,7 +18,6 @@ import java.io.ByteArrayOutputStream;
 import java.io.PrintStream;
 import java.io.UnsupportedEncodingException;
 import java.text.SimpleDateFormat;
-import java.util.ArrayList;
 import java.util.Date;
 import java.util.Locale;
 
@@ -40,19 +39,47 @@ final class OperationLogEntry {
      b.append(restrictedDateFormat.format(new Date(startTime)));
    }
 
+   /**
+    * Stands in for method arguments that are not displayed.
+    */
+   static final Object ELIDED_ARGUMENT = new Object();
+
    public long mThreadId;
    public String mSessionQualifier;
    public long mStartTime;
    public long mEndTime;
    public String mKind;
+   /**
+    * If non-null, mKind is a method name and these are its arguments.
+    */
+   public Object[] mMethodArgs;
    public String mSql;
-   public ArrayList<Object> mBindArgs;
-   public boolean mFinished;
+   public Object[] mBindArgs;
+   public volatile boolean mFinished;
    public Throwable mThrowable;
    public int mCookie;
 
    public void describe(StringBuilder msg, boolean verbose) {
       msg.append(mKind);
+      if (mMethodArgs != null) {
+         msg.append("(");
+         for (int i = 0; i < mMethodArgs.length; i++) {
+            final Object arg = mMethodArgs[i];
+            if (i != 0) {
+               msg.append(",");
+            }
+            if (arg == null) {
+               msg.append("null");
+            } else if (arg instanceof String) {
+               msg.append("\"").append((String) arg).append("\"");
+            } else if (arg == ELIDED_ARGUMENT) {
+               msg.append("...");
+            } else {
+               msg.append(arg);
+            }
+         }
+         msg.append(")");
+      }
       if (mFinished) {
          msg.append(" took ").append(mEndTime - mStartTime).append("ms");
       } else {
@@ -68,11 +95,11 @@ final class OperationLogEntry {
          msg.append(", sql=\"")
              .append(AppNameSharedStateContainer.trimSqlForDisplay(mSql)).append("\"");
       }
-      if (verbose && mBindArgs != null && mBindArgs.size() != 0) {
+      if (verbose && mBindArgs != null && mBindArgs.length != 0) {
          msg.append(", bindArgs=[");
-         final int count = mBindArgs.size();
+         final int count = mBindArgs.length;
          for (int i = 0; i < count; i++) {
-            final Object arg = mBindArgs.get(i);
+            final Object arg = mBindArgs[i];
             if (i != 0) {
                msg.append(", ");
             }
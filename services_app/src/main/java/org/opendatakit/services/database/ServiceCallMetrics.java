@@ -0,0 +1,380 @@
+package org.opendatakit.services.database;
+
+import org.opendatakit.logging.WebLogger;
+import org.opendatakit.utilities.ODKFileUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Per-method call counts and latency histograms for the database service API.
+ * <p>
+ * The database service stub brackets every binder transaction with
+ * beginCall() / endCall() and each service method names its call with
+ * identifyCall(). While a call is active on a thread, the lower layers attribute time to its
+ * phases (acquiring the connection, waiting for the database lock, executing
+ * SQL, building the result and chunking it for IPC). Recording is lock-free:
+ * per-thread accumulation followed by atomic increments of log-linear
+ * histogram buckets.
+ * <p>
+ * The database service runs in its own process, so the snapshot is also
+ * written (at most once a minute, on a background thread) to the app's webDb
+ * folder where the sync process can read it for its device-information
+ * publication.
+ */
+public final class ServiceCallMetrics {
+
+  private static final String TAG = ServiceCallMetrics.class.getSimpleName();
+
+  public enum Phase {
+    TOTAL, CONNECTION, LOCK_WAIT, SQL, RESULT_BUILD, CHUNKING
+  }
+
+  private static final String SNAPSHOT_FILE_NAME = "serviceCallMetrics.json";
+  private static final long SNAPSHOT_WRITE_INTERVAL_MILLIS = 60000L;
+
+  /**
+   * Histogram with 8 linear sub-buckets per power of two of microseconds,
+   * i.e., values are recorded with a relative error below 12.5%.
+   */
+  static final class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    // up to 2^40 microseconds (about 12 days)
+    private static final int MAX_EXPONENT = 40;
+    private static final int BUCKET_COUNT =
+        (MAX_EXPONENT - SUB_BUCKET_BITS + 2) * SUB_BUCKETS;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKET_COUNT);
+    private final AtomicLong sumMicros = new AtomicLong();
+    private final AtomicLong maxMicros = new AtomicLong();
+
+    static int bucketIndex(long micros) {
+      if (micros < SUB_BUCKETS) {
+        return (int) Math.max(0L, micros);
+      }
+      int exponent = 63 - Long.numberOfLeadingZeros(micros);
+      int sub = (int) ((micros >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1));
+      int idx = (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + sub;
+      return Math.min(idx, BUCKET_COUNT - 1);
+    }
+
+    static long bucketUpperBound(int idx) {
+      if (idx < SUB_BUCKETS) {
+        return idx;
+      }
+      int exponent = idx / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+      int sub = idx % SUB_BUCKETS;
+      return ((long) (SUB_BUCKETS + sub + 1) << (exponent - SUB_BUCKET_BITS)) - 1;
+    }
+
+    void record(long nanos) {
+      long micros = nanos / 1000L;
+      buckets.incrementAndGet(bucketIndex(micros));
+      sumMicros.addAndGet(micros);
+      long max = maxMicros.get();
+      while (micros > max && !maxMicros.compareAndSet(max, micros)) {
+        max = maxMicros.get();
+      }
+    }
+
+    Map<String, Object> snapshot() {
+      long[] counts = new long[BUCKET_COUNT];
+      long total = 0;
+      for (int i = 0; i < BUCKET_COUNT; ++i) {
+        counts[i] = buckets.get(i);
+        total += counts[i];
+      }
+      long max = maxMicros.get();
+      TreeMap<String, Object> values = new TreeMap<String, Object>();
+      values.put("count", total);
+      values.put("meanMicros", (total == 0) ? 0 : sumMicros.get() / total);
+      // bucket upper bounds can overshoot the largest recorded value
+      values.put("p50Micros", Math.min(max, percentile(counts, total, 50)));
+      values.put("p95Micros", Math.min(max, percentile(counts, total, 95)));
+      values.put("p99Micros", Math.min(max, percentile(counts, total, 99)));
+      values.put("maxMicros", max);
+      return values;
+    }
+
+    private static long percentile(long[] counts, long total, int percent) {
+      if (total == 0) {
+        return 0;
+      }
+      long rank = (long) Math.ceil(percent / 100.0 * total);
+      long seen = 0;
+      for (int i = 0; i < counts.length; ++i) {
+        seen += counts[i];
+        if (seen >= rank) {
+          return bucketUpperBound(i);
+        }
+      }
+      return bucketUpperBound(counts.length - 1);
+    }
+  }
+
+  private static final class MethodMetrics {
+    final AtomicLong failures = new AtomicLong();
+    final LatencyHistogram[] phases = new LatencyHistogram[Phase.values().length];
+
+    MethodMetrics() {
+      for (int i = 0; i < phases.length; ++i) {
+        phases[i] = new LatencyHistogram();
+      }
+    }
+  }
+
+  /**
+   * The call in progress on a thread.
+   */
+  private static final class CallScope {
+    String appName;
+    String method;
+    long startNanos;
+    boolean failed;
+    int depth = 0;
+    final long[] phaseNanos = new long[Phase.values().length];
+  }
+
+  private static ServiceCallMetrics metrics = new ServiceCallMetrics();
+
+  public static ServiceCallMetrics get() {
+    return metrics;
+  }
+
+  /**
+   * For mocking -- supply a mocked object.
+   *
+   * @param metrics
+   */
+  public static void set(ServiceCallMetrics metrics) {
+    ServiceCallMetrics.metrics = metrics;
+  }
+
+  private final ThreadLocal<CallScope> currentCall = new ThreadLocal<CallScope>() {
+    @Override
+    protected CallScope initialValue() {
+      return new CallScope();
+    }
+  };
+
+  /**
+   * appName -TO- method name -TO- metrics
+   */
+  private final ConcurrentHashMap<String, ConcurrentHashMap<String, MethodMetrics>> appMetrics =
+      new ConcurrentHashMap<String, ConcurrentHashMap<String, MethodMetrics>>();
+
+  private final ConcurrentHashMap<String, AtomicLong> lastSnapshotWrite =
+      new ConcurrentHashMap<String, AtomicLong>();
+
+  /**
+   * Writes the snapshots so that the file I/O is not charged to a service call.
+   */
+  private final ExecutorService snapshotWriter =
+      Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+          Thread thread = new Thread(r, TAG);
+          thread.setDaemon(true);
+          thread.setPriority(Thread.MIN_PRIORITY);
+          return thread;
+        }
+      });
+
+  protected ServiceCallMetrics() {
+  }
+
+  /**
+   * Start timing a service call on this thread. Nested calls are folded
+   * into the outermost one.
+   */
+  public void beginCall() {
+    CallScope scope = currentCall.get();
+    if (scope.depth++ != 0) {
+      return;
+    }
+    scope.appName = "";
+    scope.method = null;
+    scope.failed = false;
+    for (int i = 0; i < scope.phaseNanos.length; ++i) {
+      scope.phaseNanos[i] = 0L;
+    }
+    scope.startNanos = System.nanoTime();
+  }
+
+  /**
+   * Name the call in progress on this thread. Calls that are never named
+   * (e.g., binder interface queries) are not recorded.
+   *
+   * @param appName the appName of the call or null if it has none
+   * @param method
+   */
+  public void identifyCall(String appName, String method) {
+    CallScope scope = currentCall.get();
+    if (scope.depth != 0 && scope.method == null) {
+      scope.appName = (appName == null) ? "" : appName;
+      scope.method = method;
+    }
+  }
+
+  /**
+   * Mark the call in progress on this thread as having failed.
+   */
+  public void failCall() {
+    CallScope scope = currentCall.get();
+    if (scope.depth != 0) {
+      scope.failed = true;
+    }
+  }
+
+  /**
+   * Attribute time to a phase of the call in progress on this thread.
+   * Does nothing if no call is in progress (e.g., content providers).
+   *
+   * @param phase
+   * @param nanos
+   */
+  public void addPhase(Phase phase, long nanos) {
+    CallScope scope = currentCall.get();
+    if (scope.depth != 0) {
+      scope.phaseNanos[phase.ordinal()] += nanos;
+    }
+  }
+
+  public void endCall() {
+    CallScope scope = currentCall.get();
+    if (scope.depth == 0 || --scope.depth != 0 || scope.method == null) {
+      return;
+    }
+    scope.phaseNanos[Phase.TOTAL.ordinal()] = System.nanoTime() - scope.startNanos;
+
+    ConcurrentHashMap<String, MethodMetrics> methods = appMetrics.get(scope.appName);
+    if (methods == null) {
+      appMetrics.putIfAbsent(scope.appName, new ConcurrentHashMap<String, MethodMetrics>());
+      methods = appMetrics.get(scope.appName);
+    }
+    MethodMetrics m = methods.get(scope.method);
+    if (m == null) {
+      methods.putIfAbsent(scope.method, new MethodMetrics());
+      m = methods.get(scope.method);
+    }
+    if (scope.failed) {
+      m.failures.incrementAndGet();
+    }
+    for (Phase phase : Phase.values()) {
+      long nanos = scope.phaseNanos[phase.ordinal()];
+      if (phase == Phase.TOTAL || nanos != 0L) {
+        m.phases[phase.ordinal()].record(nanos);
+      }
+    }
+
+    if (scope.appName.length() != 0) {
+      maybeWriteSnapshot(scope.appName);
+    }
+  }
+
+  /**
+   * @param appName
+   * @return map of method name to its failure count and per-phase latency
+   * statistics (count, mean, p50, p95, p99 and max in microseconds).
+   */
+  public Map<String, Object> getSnapshot(String appName) {
+    TreeMap<String, Object> snapshot = new TreeMap<String, Object>();
+    ConcurrentHashMap<String, MethodMetrics> methods = appMetrics.get(appName);
+    if (methods == null) {
+      return snapshot;
+    }
+    for (Map.Entry<String, MethodMetrics> entry : methods.entrySet()) {
+      MethodMetrics m = entry.getValue();
+      TreeMap<String, Object> method = new TreeMap<String, Object>();
+      method.put("failures", m.failures.get());
+      for (Phase phase : Phase.values()) {
+        Map<String, Object> phaseValues = m.phases[phase.ordinal()].snapshot();
+        if (phase == Phase.TOTAL || ((Long) phaseValues.get("count")) != 0L) {
+          method.put(phase.name().toLowerCase(Locale.US), phaseValues);
+        }
+      }
+      snapshot.put(entry.getKey(), method);
+    }
+    return snapshot;
+  }
+
+  /**
+   * Read the snapshot most recently written by the database service process.
+   *
+   * @param appName
+   * @return the snapshot or null if none is available
+   */
+  public static Map<String, Object> readPublishedSnapshot(String appName) {
+    return readSnapshotFile(appName, SNAPSHOT_FILE_NAME);
+  }
+
+  /**
+   * @param appName
+   * @param fileName file within the app's webDb folder
+   * @return the snapshot or null if none is available
+   */
+  static Map<String, Object> readSnapshotFile(String appName, String fileName) {
+    File file = new File(ODKFileUtils.getWebDbFolder(appName), fileName);
+    if (!file.exists()) {
+      return null;
+    }
+    try {
+      @SuppressWarnings("unchecked")
+      Map<String, Object> snapshot = ODKFileUtils.mapper.readValue(file, Map.class);
+      return snapshot;
+    } catch (IOException e) {
+      WebLogger.getLogger(appName).w(TAG, "unable to read " + file.getAbsolutePath());
+      return null;
+    }
+  }
+
+  private void maybeWriteSnapshot(final String appName) {
+    AtomicLong last = lastSnapshotWrite.get(appName);
+    if (last == null) {
+      lastSnapshotWrite.putIfAbsent(appName, new AtomicLong(0L));
+      last = lastSnapshotWrite.get(appName);
+    }
+    long now = System.currentTimeMillis();
+    long previous = last.get();
+    if (now - previous < SNAPSHOT_WRITE_INTERVAL_MILLIS || !last.compareAndSet(previous, now)) {
+      return;
+    }
+    snapshotWriter.execute(new Runnable() {
+      @Override
+      public void run() {
+        writeSnapshotFile(appName, SNAPSHOT_FILE_NAME, getSnapshot(appName));
+      }
+    });
+  }
+
+  /**
+   * Replace the snapshot in the app's webDb folder so that other processes
+   * never read a partially written file.
+   *
+   * @param appName
+   * @param fileName file within the app's webDb folder
+   * @param snapshot
+   */
+  static void writeSnapshotFile(String appName, String fileName, Map<String, Object> snapshot) {
+    File file = new File(ODKFileUtils.getWebDbFolder(appName), fileName);
+    File temp = new File(file.getParentFile(), fileName + ".tmp");
+    try {
+      ODKFileUtils.mapper.writeValue(temp, snapshot);
+      if (!temp.renameTo(file)) {
+        WebLogger.getLogger(appName).w(TAG, "unable to replace " + file.getAbsolutePath());
+      }
+    } catch (IOException e) {
+      WebLogger.getLogger(appName).w(TAG, "unable to write " + file.getAbsolutePath());
+    }
+  }
+}
@@ -0,0 +1,171 @@
+package org.opendatakit.services.database;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * Record of the queries that exceeded the slow-query threshold of an OperationLog.
+ * Keeps the most recent offenders together with their query plans, and
+ * timing statistics aggregated per SQL shape (the SQL with its literals and
+ * IN-lists collapsed to placeholders).
+ * Thread-safe.
+ */
+final class SlowQueryLog {
+
+  private static final int MAX_RECENT_SLOW_QUERIES = 20;
+  private static final int MAX_SQL_SHAPES = 50;
+  private static final int MAX_SAMPLES_PER_SHAPE = 128;
+
+  private static final Pattern STRING_LITERAL_PATTERN = Pattern.compile("'(?:[^']|'')*'");
+  private static final Pattern NUMBER_LITERAL_PATTERN = Pattern.compile("\\b\\d+(?:\\.\\d+)?\\b");
+  private static final Pattern IN_LIST_PATTERN = Pattern.compile(
+      "(?i)\\bIN\\s*\\(\\s*\\?(?:\\s*,\\s*\\?)*\\s*\\)");
+  private static final Pattern WHITESPACE_PATTERN = Pattern.compile("\\s+");
+
+  private static final class SlowQuery {
+    final long startTime;
+    final long elapsedMillis;
+    final int rowsReturned;
+    final String sql;
+    final String caller;
+    final List<String> queryPlan;
+    final boolean fullScan;
+
+    SlowQuery(long startTime, long elapsedMillis, int rowsReturned, String sql, String caller,
+        List<String> queryPlan, boolean fullScan) {
+      this.startTime = startTime;
+      this.elapsedMillis = elapsedMillis;
+      this.rowsReturned = rowsReturned;
+      this.sql = sql;
+      this.caller = caller;
+      this.queryPlan = queryPlan;
+      this.fullScan = fullScan;
+    }
+  }
+
+  private static final class ShapeStatistics {
+    long count = 0;
+    long maxMillis = 0;
+    boolean fullScan = false;
+    /**
+     * ring of the most recent elapsed times -- percentiles are computed over these
+     */
+    final long[] samples = new long[MAX_SAMPLES_PER_SHAPE];
+    int sampleCount = 0;
+    int nextSample = 0;
+
+    void add(long elapsedMillis, boolean isFullScan) {
+      ++count;
+      maxMillis = Math.max(maxMillis, elapsedMillis);
+      fullScan = fullScan || isFullScan;
+      samples[nextSample] = elapsedMillis;
+      nextSample = (nextSample + 1) % MAX_SAMPLES_PER_SHAPE;
+      sampleCount = Math.min(sampleCount + 1, MAX_SAMPLES_PER_SHAPE);
+    }
+  }
+
+  /**
+   * Access only within synchronized methods.
+   */
+  private final SlowQuery[] recent = new SlowQuery[MAX_RECENT_SLOW_QUERIES];
+  private int recentIndex = 0;
+
+  /**
+   * Access only within synchronized methods.
+   *
+   * Least-recently-updated shapes are evicted first.
+   */
+  private final Map<String, ShapeStatistics> shapes =
+      new LinkedHashMap<String, ShapeStatistics>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, ShapeStatistics> eldest) {
+          return size() > MAX_SQL_SHAPES;
+        }
+      };
+
+  static String normalizeSql(String sql) {
+    String shape = STRING_LITERAL_PATTERN.matcher(sql).replaceAll("?");
+    shape = NUMBER_LITERAL_PATTERN.matcher(shape).replaceAll("?");
+    shape = WHITESPACE_PATTERN.matcher(shape.trim()).replaceAll(" ");
+    return IN_LIST_PATTERN.matcher(shape).replaceAll("IN (?...)");
+  }
+
+  /**
+   * @param queryPlan detail lines of EXPLAIN QUERY PLAN
+   * @return true if any table is scanned without the help of an index
+   */
+  static boolean isFullScan(List<String> queryPlan) {
+    for (String detail : queryPlan) {
+      if (detail.startsWith("SCAN ") && !detail.contains(" INDEX ")) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  synchronized void record(long startTime, long elapsedMillis, int rowsReturned, String sql,
+      String caller, List<String> queryPlan) {
+    boolean fullScan = isFullScan(queryPlan);
+    recentIndex = (recentIndex + 1) % MAX_RECENT_SLOW_QUERIES;
+    recent[recentIndex] = new SlowQuery(startTime, elapsedMillis, rowsReturned, sql, caller,
+        queryPlan, fullScan);
+
+    String shape = normalizeSql(sql);
+    ShapeStatistics stats = shapes.get(shape);
+    if (stats == null) {
+      stats = new ShapeStatistics();
+      shapes.put(shape, stats);
+    }
+    stats.add(elapsedMillis, fullScan);
+  }
+
+  synchronized void dump(StringBuilder b) {
+    b.append("  Slow query shapes (count, p50, p95, p99, max ms):\n");
+    if (shapes.isEmpty()) {
+      b.append("    <none>\n");
+    }
+    for (Map.Entry<String, ShapeStatistics> entry : shapes.entrySet()) {
+      ShapeStatistics stats = entry.getValue();
+      long[] sorted = Arrays.copyOf(stats.samples, stats.sampleCount);
+      Arrays.sort(sorted);
+      b.append(String.format(Locale.US, "    %1$6d %2$6d %3$6d %4$6d %5$6d%6$s  ",
+          stats.count, percentile(sorted, 50), percentile(sorted, 95), percentile(sorted, 99),
+          stats.maxMillis, stats.fullScan ? " FULL-SCAN" : ""));
+      b.append(AppNameSharedStateContainer.trimSqlForDisplay(entry.getKey())).append("\n");
+    }
+
+    b.append("\n  Most recent slow queries:\n");
+    int index = recentIndex;
+    int n = 0;
+    SlowQuery query = recent[index];
+    if (query == null) {
+      b.append("    <none>\n");
+    }
+    while (query != null && n < MAX_RECENT_SLOW_QUERIES) {
+      b.append(" ").append(n).append(": took ").append(query.elapsedMillis).append("ms rows: ")
+          .append(query.rowsReturned).append(query.fullScan ? " FULL-SCAN" : "")
+          .append("\n      caller:").append(query.caller).append(", startTime:");
+      OperationLogEntry.getFormattedStartTime(b, query.startTime);
+      b.append(", sql=\"").append(AppNameSharedStateContainer.trimSqlForDisplay(query.sql))
+          .append("\"\n");
+      for (String detail : query.queryPlan) {
+        b.append("      plan: ").append(detail).append("\n");
+      }
+      index = (index + MAX_RECENT_SLOW_QUERIES - 1) % MAX_RECENT_SLOW_QUERIES;
+      query = recent[index];
+      ++n;
+    }
+  }
+
+  private static long percentile(long[] sorted, int percent) {
+    if (sorted.length == 0) {
+      return 0;
+    }
+    int idx = (int) Math.ceil(percent / 100.0 * sorted.length) - 1;
+    return sorted[Math.max(0, Math.min(idx, sorted.length - 1))];
+  }
+}
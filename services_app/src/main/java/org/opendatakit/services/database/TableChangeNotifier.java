@@ -0,0 +1,160 @@
+package org.opendatakit.services.database;
+
+import org.opendatakit.logging.WebLogger;
+import org.opendatakit.services.database.utilities.TableHealthUtils;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Process-wide registry of listeners interested in changes to the rows of
+ * data tables.
+ * <p>
+ * When a connection commits an outermost transaction that wrote to the
+ * database, the data revisions of all tables are compared against the
+ * highest ones already reported and the listeners of that appName are told
+ * which tables changed. Nothing is read when no listener is registered for
+ * the appName.
+ */
+public final class TableChangeNotifier {
+
+  public interface TableChangeListener {
+    /**
+     * Invoked on the thread that committed the change. Implementations should
+     * return quickly and must not call back into the database on that thread.
+     *
+     * @param appName
+     * @param changedRevisions map of tableId to its new data revision
+     */
+    void onTablesChanged(String appName, Map<String, Long> changedRevisions);
+  }
+
+  private static TableChangeNotifier notifier = new TableChangeNotifier();
+
+  public static TableChangeNotifier get() {
+    return notifier;
+  }
+
+  /**
+   * For mocking -- supply a mocked object.
+   *
+   * @param notifier
+   */
+  public static void set(TableChangeNotifier notifier) {
+    TableChangeNotifier.notifier = notifier;
+  }
+
+  /**
+   * Access only within synchronized methods.
+   *
+   * Map of appName to its listeners.
+   */
+  private final Map<String, List<TableChangeListener>> listeners =
+      new TreeMap<String, List<TableChangeListener>>();
+
+  /**
+   * Access only within synchronized methods.
+   *
+   * Map of appName to the highest data revision reported for each tableId.
+   */
+  private final Map<String, Map<String, Long>> lastRevisions =
+      new TreeMap<String, Map<String, Long>>();
+
+  protected TableChangeNotifier() {
+  }
+
+  public synchronized void registerListener(String appName, TableChangeListener listener) {
+    List<TableChangeListener> appListeners = listeners.get(appName);
+    if (appListeners == null) {
+      appListeners = new ArrayList<TableChangeListener>();
+      listeners.put(appName, appListeners);
+    }
+    if (!appListeners.contains(listener)) {
+      appListeners.add(listener);
+    }
+  }
+
+  public synchronized void unregisterListener(String appName, TableChangeListener listener) {
+    List<TableChangeListener> appListeners = listeners.get(appName);
+    if (appListeners == null) {
+      return;
+    }
+    appListeners.remove(listener);
+    if (appListeners.isEmpty()) {
+      listeners.remove(appName);
+      // forget the snapshot; it would be stale by the time someone registers again
+      lastRevisions.remove(appName);
+    }
+  }
+
+  public synchronized boolean hasListeners(String appName) {
+    return listeners.containsKey(appName);
+  }
+
+  /**
+   * Called after a connection has committed an outermost transaction that
+   * wrote to the database. The first call after a listener registers reports
+   * every table as changed.
+   * <p>
+   * Connections commit and read the revisions concurrently, so the revisions
+   * read here may be older than ones already reported by another connection.
+   * A table is only reported (and recorded) when its revision is higher than
+   * the one recorded for it.
+   *
+   * @param db
+   */
+  void publishChanges(OdkConnectionInterface db) {
+    String appName = db.getAppName();
+    if (!hasListeners(appName)) {
+      return;
+    }
+
+    Map<String, Long> current;
+    try {
+      // read outside the lock; this may wait on the database
+      current = TableHealthUtils.getDataRevisions(db, null);
+    } catch (Exception e) {
+      // e.g., the health table has not yet been created
+      WebLogger.getLogger(appName).w("TableChangeNotifier",
+          "unable to read data revisions: " + e.toString());
+      return;
+    }
+
+    Map<String, Long> changed = new HashMap<String, Long>();
+    List<TableChangeListener> toNotify;
+    synchronized (this) {
+      Map<String, Long> reported = lastRevisions.get(appName);
+      if (reported == null) {
+        reported = new HashMap<String, Long>();
+        lastRevisions.put(appName, reported);
+      }
+      for (Map.Entry<String, Long> entry : current.entrySet()) {
+        Long previous = reported.get(entry.getKey());
+        if (previous == null || entry.getValue() > previous) {
+          reported.put(entry.getKey(), entry.getValue());
+          changed.put(entry.getKey(), entry.getValue());
+        }
+      }
+      // forget deleted tables so that a re-created one (whose revisions
+      // start over) is reported
+      reported.keySet().retainAll(current.keySet());
+
+      List<TableChangeListener> appListeners = listeners.get(appName);
+      if (changed.isEmpty() || appListeners == null) {
+        return;
+      }
+      toNotify = new ArrayList<TableChangeListener>(appListeners);
+    }
+
+    for (TableChangeListener listener : toNotify) {
+      try {
+        listener.onTablesChanged(appName, changed);
+      } catch (Exception e) {
+        WebLogger.getLogger(appName).printStackTrace(e);
+      }
+    }
+  }
+}
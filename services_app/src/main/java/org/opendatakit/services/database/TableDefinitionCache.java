@@ -0,0 +1,100 @@
+package org.opendatakit.services.database;
+
+import org.opendatakit.database.data.KeyValueStoreEntry;
+import org.opendatakit.database.data.OrderedColumns;
+
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Column definitions and table-level KVS entries of each table of an appName,
+ * shared across all of its connections.
+ * <p>
+ * Every change to a table's column definitions or KVS entries assigns the
+ * table a new revId (see ODKDatabaseImplUtils). Entries are stored and
+ * retrieved under the revId the caller read from the table definitions
+ * table, so a lookup never returns content from a different revision.
+ * Content written by an uncommitted (or rolled-back) transaction is cached
+ * under a revId that other connections never observe.
+ * Thread-safe.
+ */
+public final class TableDefinitionCache {
+
+  private static final class Entry {
+    final String revId;
+    volatile OrderedColumns columns;
+    volatile List<KeyValueStoreEntry> metadata;
+
+    Entry(String revId) {
+      this.revId = revId;
+    }
+  }
+
+  /**
+   * tableId -TO- cached content of its most recently seen revision
+   */
+  private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+
+  TableDefinitionCache() {
+  }
+
+  /**
+   * @param tableId
+   * @param revId
+   * @return the column definitions or null if not cached for this revId
+   */
+  public OrderedColumns getColumns(String tableId, String revId) {
+    Entry e = entries.get(tableId);
+    return (e != null && e.revId.equals(revId)) ? e.columns : null;
+  }
+
+  public void putColumns(String tableId, String revId, OrderedColumns columns) {
+    getOrCreateEntry(tableId, revId).columns = columns;
+  }
+
+  /**
+   * @param tableId
+   * @param revId
+   * @return all the table-level KVS entries of the table or null if not
+   * cached for this revId. The entries must not be modified.
+   */
+  public List<KeyValueStoreEntry> getMetadata(String tableId, String revId) {
+    Entry e = entries.get(tableId);
+    return (e != null && e.revId.equals(revId)) ? e.metadata : null;
+  }
+
+  public void putMetadata(String tableId, String revId, List<KeyValueStoreEntry> metadata) {
+    getOrCreateEntry(tableId, revId).metadata = metadata;
+  }
+
+  /**
+   * Forget a table that no longer exists.
+   *
+   * @param tableId
+   */
+  public void remove(String tableId) {
+    entries.remove(tableId);
+  }
+
+  public void clear() {
+    entries.clear();
+  }
+
+  private Entry getOrCreateEntry(String tableId, String revId) {
+    Entry e = entries.get(tableId);
+    while (e == null || !e.revId.equals(revId)) {
+      Entry replacement = new Entry(revId);
+      if (e == null) {
+        e = entries.putIfAbsent(tableId, replacement);
+        if (e == null) {
+          return replacement;
+        }
+      } else if (entries.replace(tableId, e, replacement)) {
+        return replacement;
+      } else {
+        e = entries.get(tableId);
+      }
+    }
+    return e;
+  }
+}
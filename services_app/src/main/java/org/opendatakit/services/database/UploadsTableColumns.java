@@ -0,0 +1,18 @@
+package org.opendatakit.services.database;
+
+/**
+ * Columns of the uploads table (DatabaseConstants.UPLOADS_TABLE_NAME) that
+ * are added by this application in addition to those of InstanceColumns.
+ */
+public final class UploadsTableColumns {
+
+  /**
+   * How many parts of a split submission post the server has accepted, as
+   * "count:fingerprint". Used by the uploader to resume a failed submission
+   * from its first unsent part.
+   */
+  public static final String SUBMISSION_PARTS_COMPLETED = "_submission_parts_completed";
+
+  private UploadsTableColumns() {
+  }
+}
@@ -0,0 +1,310 @@
+package org.opendatakit.services.database;
+
+import android.database.Cursor;
+
+import org.opendatakit.database.service.DbHandle;
+import org.opendatakit.logging.WebLogger;
+import org.opendatakit.utilities.ODKFileUtils;
+import org.sqlite.database.sqlite.SQLiteGlobal;
+
+import java.io.File;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Decides when the write-ahead log of an appName's database is checkpointed.
+ * <p>
+ * SQLite runs its automatic checkpoint on whichever connection's commit
+ * pushes the WAL past wal_autocheckpoint pages, i.e., usually on a
+ * user-facing operation. During bulk write phases (sync, CSV import, batched
+ * row-state transitions), connections raise that threshold so the automatic
+ * checkpoint is deferred while the WAL remains bounded. A bulk phase is
+ * either declared with beginBulkWrite() / endBulkWrite() (the database
+ * service declares one around each row written by sync or CSV import) or
+ * inferred from a sustained write rate.
+ * <p>
+ * Once there have been no writes for IDLE_DELAY_MILLIS, a PASSIVE checkpoint
+ * is run on an internal-use connection; if a bulk phase has ended since the
+ * last checkpoint, a TRUNCATE checkpoint is run instead to return the WAL
+ * file to zero length.
+ * <p>
+ * Thread-safe.
+ */
+public final class WalCheckpointScheduler {
+
+  private static final String TAG = WalCheckpointScheduler.class.getSimpleName();
+
+  public enum Mode {
+    PASSIVE, TRUNCATE
+  }
+
+  /**
+   * Time without writes after which the database is considered idle.
+   */
+  static final long IDLE_DELAY_MILLIS = 5000L;
+
+  /**
+   * Write statements per second above which a bulk phase is inferred.
+   */
+  static final int BULK_WRITES_PER_SECOND = 100;
+
+  /**
+   * An inferred bulk phase lasts this long past the last burst of writes.
+   */
+  static final long BULK_LINGER_NANOS = TimeUnit.SECONDS.toNanos(10);
+
+  /**
+   * Automatic checkpoint threshold (in pages) during a bulk phase.
+   */
+  static final int DEFERRED_AUTOCHECKPOINT_PAGES = 10 * SQLiteGlobal.getWALAutoCheckpoint();
+
+  /**
+   * Checkpoints taking longer than this are logged.
+   */
+  private static final long SLOW_CHECKPOINT_MILLIS = 1000L;
+
+  private static final String SNAPSHOT_FILE_NAME = "walCheckpointMetrics.json";
+
+  private static final ScheduledExecutorService executor =
+      Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+          Thread thread = new Thread(r, TAG);
+          thread.setDaemon(true);
+          thread.setPriority(Thread.MIN_PRIORITY);
+          return thread;
+        }
+      });
+
+  private final String appName;
+
+  private final AtomicInteger bulkWriteDepth = new AtomicInteger(0);
+  private volatile long bulkUntilNanos = 0L;
+  private volatile long lastWriteNanos = System.nanoTime();
+  private final AtomicLong rateWindowStartNanos = new AtomicLong(System.nanoTime());
+  private final AtomicInteger rateWindowWrites = new AtomicInteger(0);
+  private final AtomicBoolean idleCheckScheduled = new AtomicBoolean(false);
+  private volatile boolean truncatePending = false;
+
+  // metrics
+  private final ServiceCallMetrics.LatencyHistogram[] durations =
+      new ServiceCallMetrics.LatencyHistogram[Mode.values().length];
+  private final AtomicLong busyCheckpoints = new AtomicLong(0L);
+  private final AtomicLong failedCheckpoints = new AtomicLong(0L);
+  private final AtomicLong bulkPhases = new AtomicLong(0L);
+  private final AtomicLong lastWalBytesBefore = new AtomicLong(0L);
+  private final AtomicLong lastWalBytesAfter = new AtomicLong(0L);
+  private final AtomicLong maxWalBytes = new AtomicLong(0L);
+
+  WalCheckpointScheduler(String appName) {
+    this.appName = appName;
+    for (int i = 0; i < durations.length; ++i) {
+      durations[i] = new ServiceCallMetrics.LatencyHistogram();
+    }
+  }
+
+  /**
+   * Record that a connection is about to write to the database.
+   *
+   * @return the wal_autocheckpoint value (in pages) the connection should use
+   */
+  public int noteWrite() {
+    long now = System.nanoTime();
+    lastWriteNanos = now;
+
+    long windowStart = rateWindowStartNanos.get();
+    if (now - windowStart >= TimeUnit.SECONDS.toNanos(1)) {
+      if (rateWindowStartNanos.compareAndSet(windowStart, now)) {
+        rateWindowWrites.set(0);
+      }
+    }
+    if (rateWindowWrites.incrementAndGet() == BULK_WRITES_PER_SECOND) {
+      if (now - bulkUntilNanos > 0L) {
+        bulkPhases.incrementAndGet();
+      }
+      bulkUntilNanos = now + BULK_LINGER_NANOS;
+      truncatePending = true;
+    }
+
+    scheduleIdleCheck(IDLE_DELAY_MILLIS);
+    return isBulkWritePhase() ? DEFERRED_AUTOCHECKPOINT_PAGES :
+        SQLiteGlobal.getWALAutoCheckpoint();
+  }
+
+  /**
+   * Declare the start of a bulk write phase. Must be paired with endBulkWrite().
+   * <p>
+   * Sync and CSV import run in other processes and write one row per
+   * service call, so the phase lingers for BULK_LINGER_NANOS past each
+   * endBulkWrite() and the calls for consecutive rows form a single phase.
+   */
+  public void beginBulkWrite() {
+    if (bulkWriteDepth.getAndIncrement() == 0 && bulkUntilNanos - System.nanoTime() <= 0L) {
+      bulkPhases.incrementAndGet();
+    }
+  }
+
+  public void endBulkWrite() {
+    bulkUntilNanos = System.nanoTime() + BULK_LINGER_NANOS;
+    if (bulkWriteDepth.decrementAndGet() == 0) {
+      truncatePending = true;
+      scheduleIdleCheck(IDLE_DELAY_MILLIS);
+    }
+  }
+
+  public boolean isBulkWritePhase() {
+    return bulkWriteDepth.get() > 0 || bulkUntilNanos - System.nanoTime() > 0L;
+  }
+
+  /**
+   * Checkpoint the WAL on the given connection and record the outcome.
+   * Does nothing if the connection is within a transaction.
+   *
+   * @param db
+   * @param mode
+   * @return true if the WAL was fully checkpointed (and, for TRUNCATE, reset)
+   */
+  public boolean checkpoint(OdkConnectionInterface db, Mode mode) {
+    if (db.inTransaction()) {
+      return false;
+    }
+    File walFile = getWalFile();
+    long walBytesBefore = walFile.length();
+    long startNanos = System.nanoTime();
+    boolean completed = false;
+    Cursor c = null;
+    try {
+      c = db.rawQuery("PRAGMA wal_checkpoint(" + mode.name() + ")", null);
+      // returns: busy, log frames, checkpointed frames
+      if (c != null && c.moveToFirst()) {
+        completed = (c.getInt(0) == 0);
+        if (!completed) {
+          busyCheckpoints.incrementAndGet();
+        }
+      }
+    } catch (Exception e) {
+      failedCheckpoints.incrementAndGet();
+      WebLogger.getLogger(appName).w(TAG, mode.name() + " checkpoint failed: " + e.toString());
+    } finally {
+      if (c != null && !c.isClosed()) {
+        c.close();
+      }
+    }
+    long elapsedNanos = System.nanoTime() - startNanos;
+    durations[mode.ordinal()].record(elapsedNanos);
+
+    long walBytesAfter = walFile.length();
+    lastWalBytesBefore.set(walBytesBefore);
+    lastWalBytesAfter.set(walBytesAfter);
+    long max = maxWalBytes.get();
+    while (walBytesBefore > max && !maxWalBytes.compareAndSet(max, walBytesBefore)) {
+      max = maxWalBytes.get();
+    }
+
+    long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(elapsedNanos);
+    if (elapsedMillis >= SLOW_CHECKPOINT_MILLIS) {
+      WebLogger.getLogger(appName).i(TAG, String.format(Locale.US,
+          "%s checkpoint took %d ms (WAL %d -> %d bytes, completed=%b)", mode.name(),
+          elapsedMillis, walBytesBefore, walBytesAfter, completed));
+    }
+    return completed;
+  }
+
+  /**
+   * @return checkpoint counts, durations and WAL sizes (in bytes)
+   */
+  public Map<String, Object> getSnapshot() {
+    TreeMap<String, Object> snapshot = new TreeMap<String, Object>();
+    for (Mode mode : Mode.values()) {
+      snapshot.put(mode.name().toLowerCase(Locale.US), durations[mode.ordinal()].snapshot());
+    }
+    snapshot.put("busyCheckpoints", busyCheckpoints.get());
+    snapshot.put("failedCheckpoints", failedCheckpoints.get());
+    snapshot.put("bulkWritePhases", bulkPhases.get());
+    snapshot.put("inBulkWritePhase", isBulkWritePhase());
+    snapshot.put("walBytes", getWalFile().length());
+    snapshot.put("lastWalBytesBeforeCheckpoint", lastWalBytesBefore.get());
+    snapshot.put("lastWalBytesAfterCheckpoint", lastWalBytesAfter.get());
+    snapshot.put("maxWalBytesBeforeCheckpoint", maxWalBytes.get());
+    return snapshot;
+  }
+
+  void dump(StringBuilder b) {
+    b.append("  WAL checkpoints:\n");
+    for (Map.Entry<String, Object> entry : getSnapshot().entrySet()) {
+      b.append("    ").append(entry.getKey()).append(": ").append(entry.getValue()).append("\n");
+    }
+  }
+
+  /**
+   * Read the snapshot most recently written by the database service process
+   * (after its most recent idle checkpoint).
+   *
+   * @param appName
+   * @return the snapshot or null if none is available
+   */
+  public static Map<String, Object> readPublishedSnapshot(String appName) {
+    return ServiceCallMetrics.readSnapshotFile(appName, SNAPSHOT_FILE_NAME);
+  }
+
+  private File getWalFile() {
+    return new File(ODKFileUtils.getWebDbFolder(appName),
+        ODKFileUtils.getNameOfSQLiteDatabase() + "-wal");
+  }
+
+  private void scheduleIdleCheck(long delayMillis) {
+    if (idleCheckScheduled.compareAndSet(false, true)) {
+      executor.schedule(new Runnable() {
+        @Override
+        public void run() {
+          runIdleCheck();
+        }
+      }, delayMillis, TimeUnit.MILLISECONDS);
+    }
+  }
+
+  private void runIdleCheck() {
+    long idleMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - lastWriteNanos);
+    if (isBulkWritePhase() || idleMillis < IDLE_DELAY_MILLIS) {
+      idleCheckScheduled.set(false);
+      scheduleIdleCheck(Math.max(IDLE_DELAY_MILLIS - idleMillis, 100L));
+      return;
+    }
+    // any write from here on schedules the next check
+    idleCheckScheduled.set(false);
+
+    Mode mode = truncatePending ? Mode.TRUNCATE : Mode.PASSIVE;
+    OdkConnectionFactoryInterface factory =
+        OdkConnectionFactorySingleton.getOdkConnectionFactoryInterface();
+    DbHandle dbHandleName = factory.generateInternalUseDbHandle();
+    OdkConnectionInterface db = null;
+    try {
+      // +1 referenceCount if db is returned (non-null)
+      db = factory.getConnection(appName, dbHandleName);
+      if (checkpoint(db, mode) && mode == Mode.TRUNCATE) {
+        truncatePending = false;
+      }
+      // idle checkpoints are infrequent; publish for the sync process
+      ServiceCallMetrics.writeSnapshotFile(appName, SNAPSHOT_FILE_NAME, getSnapshot());
+    } catch (Exception e) {
+      WebLogger.getLogger(appName).w(TAG, "unable to run idle checkpoint: " + e.toString());
+    } finally {
+      if (db != null) {
+        try {
+          db.releaseReference();
+        } finally {
+          // this closes the connection
+          factory.removeConnection(appName, dbHandleName);
+        }
+      }
+    }
+  }
+}
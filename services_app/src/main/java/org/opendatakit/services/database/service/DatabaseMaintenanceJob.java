@@ -0,0 +1,77 @@
+package org.opendatakit.services.database.service;
+
+import android.content.Context;
+import androidx.annotation.NonNull;
+import androidx.work.Data;
+import androidx.work.Worker;
+import androidx.work.WorkerParameters;
+import org.opendatakit.consts.IntentConsts;
+import org.opendatakit.database.service.DbHandle;
+import org.opendatakit.logging.WebLogger;
+import org.opendatakit.services.database.AndroidConnectFactory;
+import org.opendatakit.services.database.OdkConnectionFactoryInterface;
+import org.opendatakit.services.database.OdkConnectionFactorySingleton;
+import org.opendatakit.services.database.OdkConnectionInterface;
+import org.opendatakit.services.database.utilities.DatabaseMaintenanceUtils;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Periodic database maintenance (integrity check, incremental vacuum and
+ * ANALYZE) of one appName. Scheduled by MainActivity to run while the device
+ * is charging and idle; each run stops starting new work after MAX_RUN_MILLIS.
+ */
+public class DatabaseMaintenanceJob extends Worker {
+
+  private static final String TAG = DatabaseMaintenanceJob.class.getSimpleName();
+
+  static final long MAX_RUN_MILLIS = TimeUnit.SECONDS.toMillis(60);
+
+  public DatabaseMaintenanceJob(@NonNull Context context, @NonNull WorkerParameters workerParams) {
+    super(context, workerParams);
+  }
+
+  /**
+   * @param appName
+   * @return the input data for a maintenance request for this appName
+   */
+  public static Data createInputData(String appName) {
+    return new Data.Builder().putString(IntentConsts.INTENT_KEY_APP_NAME, appName).build();
+  }
+
+  @NonNull
+  @Override
+  public Result doWork() {
+    String appName = getInputData().getString(IntentConsts.INTENT_KEY_APP_NAME);
+    if (appName == null) {
+      return Result.failure();
+    }
+
+    // Used to ensure that the singleton has been initialized properly
+    AndroidConnectFactory.configure();
+
+    OdkConnectionFactoryInterface factory =
+        OdkConnectionFactorySingleton.getOdkConnectionFactoryInterface();
+    DbHandle dbHandleName = factory.generateInternalUseDbHandle();
+    OdkConnectionInterface db = null;
+    try {
+      // +1 referenceCount if db is returned (non-null)
+      db = factory.getConnection(appName, dbHandleName);
+      DatabaseMaintenanceUtils.runMaintenance(db, System.currentTimeMillis() + MAX_RUN_MILLIS);
+      return Result.success();
+    } catch (Exception e) {
+      WebLogger.getLogger(appName).e(TAG, "database maintenance failed: " + e.toString());
+      WebLogger.getLogger(appName).printStackTrace(e);
+      return Result.retry();
+    } finally {
+      if (db != null) {
+        try {
+          db.releaseReference();
+        } finally {
+          // this closes the connection
+          factory.removeConnection(appName, dbHandleName);
+        }
+      }
+    }
+  }
+}
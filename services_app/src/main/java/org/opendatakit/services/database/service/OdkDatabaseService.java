@@ -88,6 +88,9 @@ public final class OdkDatabaseService extends Service {
   public synchronized void onDestroy() {
     Log.w(LOGTAG, "onDestroy -- shutting down worker (zero interfaces)!");
     super.onDestroy();
+    if (servInterface != null) {
+      servInterface.shutdown();
+    }
     // release all non-group instances
     OdkConnectionFactorySingleton.getOdkConnectionFactoryInterface().removeAllDatabaseServiceConnections();
     // this may be too aggressive, but ensures that WebLogger is released.
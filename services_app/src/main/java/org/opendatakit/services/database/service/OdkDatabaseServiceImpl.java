@@ -38,6 +38,8 @@ import org.opendatakit.properties.CommonToolProperties;
 import org.opendatakit.properties.PropertiesSingleton;
 import org.opendatakit.services.database.OdkConnectionFactorySingleton;
 import org.opendatakit.services.database.OdkConnectionInterface;
+import org.opendatakit.services.database.ServiceCallMetrics;
+import org.opendatakit.services.database.WalCheckpointScheduler;
 import org.opendatakit.services.database.utilities.ODKDatabaseImplUtils;
 import org.opendatakit.services.database.utilities.ProviderUtils;
 import org.opendatakit.services.database.utilities.SyncETagsUtils;
@@ -45,6 +47,8 @@ import org.opendatakit.services.utilities.ODKServicesPropertyUtils;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Extraction of database layer API prior to chunking enforcement.
@@ -57,8 +61,52 @@ public final class OdkDatabaseServiceImpl implements InternalUserDbInterface {
 
    private Context context;
 
+   /**
+    * appName -TO- cache of its simpleQuery and privilegedSimpleQuery results.
+    * Only appNames that have opted in have an entry.
+    */
+   private final ConcurrentHashMap<String, QueryResultCache> queryResultCaches =
+       new ConcurrentHashMap<String, QueryResultCache>();
+
+   /**
+    * Broadcasts the table changes of the appNames opened through this interface.
+    */
+   private final TableChangeBroadcaster tableChangeBroadcaster;
+
    public OdkDatabaseServiceImpl(Context context) {
       this.context = context;
+      this.tableChangeBroadcaster = new TableChangeBroadcaster(context);
+   }
+
+   /**
+    * Stop broadcasting table changes. Invoked when the database service is destroyed.
+    */
+   void stopTableChangeBroadcasts() {
+      tableChangeBroadcaster.stop();
+   }
+
+   /**
+    * Opt-in caching of query results, sized by the appName's
+    * ODKServicesPropertyUtils.KEY_QUERY_RESULT_CACHE_SIZE property. Cached
+    * results are returned only while the data revisions of the tables
+    * referenced by the query are unchanged.
+    *
+    * @param appName
+    * @return the query result cache of the appName, or null if it has not opted in.
+    */
+   private QueryResultCache getQueryResultCache(String appName) {
+      int maxEntries = ODKServicesPropertyUtils
+          .getQueryResultCacheSize(CommonToolProperties.get(context, appName));
+      if (maxEntries <= 0) {
+         queryResultCaches.remove(appName);
+         return null;
+      }
+      QueryResultCache cache = queryResultCaches.get(appName);
+      if (cache == null || cache.getMaxEntries() != maxEntries) {
+         cache = new QueryResultCache(maxEntries);
+         queryResultCaches.put(appName, cache);
+      }
+      return cache;
    }
 
    private String getInternalDefaultGroup(String appName) {
@@ -168,6 +216,7 @@ public final class OdkDatabaseServiceImpl implements InternalUserDbInterface {
          // +1 referenceCount if db is returned (non-null)
          db = OdkConnectionFactorySingleton.getOdkConnectionFactoryInterface()
              .getConnection(appName, dbHandleName);
+         tableChangeBroadcaster.listenTo(appName);
          return dbHandleName;
       } finally {
          if (db != null) {
@@ -693,6 +742,7 @@ public final class OdkDatabaseServiceImpl implements InternalUserDbInterface {
        {
 
       OdkConnectionInterface db = null;
+      WalCheckpointScheduler scheduler = null;
 
       String activeUser = getActiveUser(appName);
 
@@ -700,6 +750,9 @@ public final class OdkDatabaseServiceImpl implements InternalUserDbInterface {
          // +1 referenceCount if db is returned (non-null)
          db = OdkConnectionFactorySingleton.getOdkConnectionFactoryInterface()
              .getConnection(appName, dbHandleName);
+         // sync writes one row per call
+         scheduler = db.getWalCheckpointScheduler();
+         scheduler.beginBulkWrite();
          db.beginTransactionExclusive();
          ODKDatabaseImplUtils.get().privilegedDeleteRowWithId(db, tableId, rowId, activeUser);
          BaseTable t = ODKDatabaseImplUtils.get().privilegedGetMostRecentRowWithId(db, tableId,
@@ -709,6 +762,9 @@ public final class OdkDatabaseServiceImpl implements InternalUserDbInterface {
       } finally {
          if (db != null) {
             db.endTransaction();
+            if (scheduler != null) {
+               scheduler.endBulkWrite();
+            }
             // release the reference...
             // this does not necessarily close the db handle
             // or terminate any pending transaction
@@ -901,6 +957,71 @@ public final class OdkDatabaseServiceImpl implements InternalUserDbInterface {
     return kvsEntries;
   }
 
+  /**
+   * Return the data revisions of several tables in one call. A table's data
+   * revision increases whenever any of its rows is inserted, updated or deleted.
+   * Callers can hold onto these and skip re-querying tables whose revision
+   * has not changed. See TableChangeBroadcaster for change notification.
+   *
+   * @param appName
+   * @param dbHandleName
+   * @param tableIds
+   * @return map of tableId to data revision. Unknown tableIds are omitted.
+   */
+  public Map<String, Long> getTableDataRevisions(String appName, DbHandle dbHandleName,
+      List<String> tableIds) {
+
+    OdkConnectionInterface db = null;
+
+    try {
+      // +1 referenceCount if db is returned (non-null)
+      db = OdkConnectionFactorySingleton.getOdkConnectionFactoryInterface()
+          .getConnection(appName, dbHandleName);
+      return ODKDatabaseImplUtils.get().getTableDataRevisions(db, tableIds);
+    } finally {
+      if (db != null) {
+        // release the reference...
+        // this does not necessarily close the db handle
+        // or terminate any pending transaction
+        db.releaseReference();
+      }
+    }
+  }
+
+  /**
+   * Field diagnostics: the slow queries recorded for this appName.
+   *
+   * @param appName
+   * @return per-SQL-shape timing statistics and the most recent slow queries
+   * with their query plans, or null if the database has not been opened.
+   */
+  public String getSlowQueryReport(String appName) {
+    return OdkConnectionFactorySingleton.getOdkConnectionFactoryInterface()
+        .getSlowQueryReport(appName);
+  }
+
+  /**
+   * Field diagnostics: call counts, failures and per-phase latency percentiles
+   * of the database service API methods invoked for this appName.
+   *
+   * @param appName
+   * @return map of method name to its statistics
+   */
+  public Map<String, Object> getServiceCallMetrics(String appName) {
+    return ServiceCallMetrics.get().getSnapshot(appName);
+  }
+
+  /**
+   * Field diagnostics: WAL checkpoint counts, durations and WAL file sizes.
+   *
+   * @param appName
+   * @return the statistics, or null if the database has not been opened.
+   */
+  public Map<String, Object> getWalCheckpointMetrics(String appName) {
+    return OdkConnectionFactorySingleton.getOdkConnectionFactoryInterface()
+        .getWalCheckpointMetrics(appName);
+  }
+
    @Override public TableHealthInfo getTableHealthStatus(String appName, DbHandle dbHandleName,
        String tableId) {
 
@@ -936,7 +1057,7 @@ public final class OdkDatabaseServiceImpl implements InternalUserDbInterface {
        long elapsed = System.currentTimeMillis() - now;
        WebLogger.getLogger(appName).i("getTableHealthStatus",
            appName + " " + dbHandleName.getDatabaseHandle() + " " + tableId + " "
-               + "getTableHealthStatus -- full table scan completed: " + Long.toString(elapsed)
+               + "getTableHealthStatus -- completed: " + Long.toString(elapsed)
                + " ms");
 
        return healthInfo;
@@ -984,7 +1105,7 @@ public final class OdkDatabaseServiceImpl implements InternalUserDbInterface {
      long elapsed = System.currentTimeMillis() - now;
      WebLogger.getLogger(appName)
          .i("getTableHealthStatuses", appName + " " + dbHandleName.getDatabaseHandle() + " " +
-             "getTableHealthStatuses -- full table scan completed: " + Long.toString(elapsed)
+             "getTableHealthStatuses -- completed: " + Long.toString(elapsed)
              + " ms");
 
      return problems;
@@ -1170,6 +1291,7 @@ public final class OdkDatabaseServiceImpl implements InternalUserDbInterface {
        boolean asCsvRequestedChange) {
 
       OdkConnectionInterface db = null;
+      WalCheckpointScheduler scheduler = null;
 
       String activeUser = getActiveUser(appName);
       String userSelectedDefaultLocale = getUserSelectedDefaultLocale(appName);
@@ -1178,6 +1300,9 @@ public final class OdkDatabaseServiceImpl implements InternalUserDbInterface {
          // +1 referenceCount if db is returned (non-null)
          db = OdkConnectionFactorySingleton.getOdkConnectionFactoryInterface()
              .getConnection(appName, dbHandleName);
+         // sync and CSV import write one row per call
+         scheduler = db.getWalCheckpointScheduler();
+         scheduler.beginBulkWrite();
          db.beginTransactionExclusive();
          OrderedColumns orderedColumns = ODKDatabaseImplUtils.get()
              .getUserDefinedColumns(db, tableId);
@@ -1191,6 +1316,9 @@ public final class OdkDatabaseServiceImpl implements InternalUserDbInterface {
       } finally {
          if (db != null) {
             db.endTransaction();
+            if (scheduler != null) {
+               scheduler.endBulkWrite();
+            }
             // release the reference...
             // this does not necessarily close the db handle
             // or terminate any pending transaction
@@ -1215,6 +1343,7 @@ public final class OdkDatabaseServiceImpl implements InternalUserDbInterface {
        String rowId) {
 
       OdkConnectionInterface db = null;
+      WalCheckpointScheduler scheduler = null;
 
       String activeUser = getActiveUser(appName);
       String rolesList = getRolesList(appName);
@@ -1224,6 +1353,9 @@ public final class OdkDatabaseServiceImpl implements InternalUserDbInterface {
          // +1 referenceCount if db is returned (non-null)
          db = OdkConnectionFactorySingleton.getOdkConnectionFactoryInterface()
              .getConnection(appName, dbHandleName);
+         // sync writes one row per call
+         scheduler = db.getWalCheckpointScheduler();
+         scheduler.beginBulkWrite();
          db.beginTransactionExclusive();
          OrderedColumns orderedColumns = ODKDatabaseImplUtils.get()
              .getUserDefinedColumns(db, tableId);
@@ -1237,6 +1369,9 @@ public final class OdkDatabaseServiceImpl implements InternalUserDbInterface {
       } finally {
          if (db != null) {
             db.endTransaction();
+            if (scheduler != null) {
+               scheduler.endBulkWrite();
+            }
             // release the reference...
             // this does not necessarily close the db handle
             // or terminate any pending transaction
@@ -1263,10 +1398,24 @@ public final class OdkDatabaseServiceImpl implements InternalUserDbInterface {
          ODKDatabaseImplUtils.AccessContext accessContext =
              ODKDatabaseImplUtils.get().getAccessContext(db, tableId, activeUser, rolesList);
 
+         QueryResultCache cache = getQueryResultCache(appName);
+         String cacheKey = null;
+         if (cache != null) {
+            cacheKey = cache.getKey(db, tableId, sqlCommand, bindArgs, sqlQueryBounds,
+                accessContext, rolesList, false);
+            BaseTable cached = (cacheKey == null) ? null : cache.get(cacheKey);
+            if (cached != null) {
+               return cached;
+            }
+         }
+
          BaseTable result = ODKDatabaseImplUtils.get()
              .query(db, tableId, sqlCommand,
                  (bindArgs == null) ? null : bindArgs.bindArgs, sqlQueryBounds, accessContext);
 
+         if (cacheKey != null) {
+            cache.put(cacheKey, result);
+         }
          return result;
       } finally {
          if (db != null) {
@@ -1294,11 +1443,25 @@ public final class OdkDatabaseServiceImpl implements InternalUserDbInterface {
          ODKDatabaseImplUtils.AccessContext accessContext = ODKDatabaseImplUtils.get()
              .getAccessContext(db, tableId, activeUser, RoleConsts.ADMIN_ROLES_LIST);
 
+         QueryResultCache cache = getQueryResultCache(appName);
+         String cacheKey = null;
+         if (cache != null) {
+            cacheKey = cache.getKey(db, tableId, sqlCommand, bindArgs, sqlQueryBounds,
+                accessContext, RoleConsts.ADMIN_ROLES_LIST, true);
+            BaseTable cached = (cacheKey == null) ? null : cache.get(cacheKey);
+            if (cached != null) {
+               return cached;
+            }
+         }
+
          BaseTable result = ODKDatabaseImplUtils.get()
              .privilegedQuery(db, tableId, sqlCommand,
                  (bindArgs == null) ? null : bindArgs.bindArgs, sqlQueryBounds,
                  accessContext);
 
+         if (cacheKey != null) {
+            cache.put(cacheKey, result);
+         }
          return result;
       } finally {
          if (db != null) {
@@ -1678,6 +1841,7 @@ public final class OdkDatabaseServiceImpl implements InternalUserDbInterface {
        {
 
       OdkConnectionInterface db = null;
+      WalCheckpointScheduler scheduler = null;
 
       String activeUser = getActiveUser(appName);
 
@@ -1685,6 +1849,9 @@ public final class OdkDatabaseServiceImpl implements InternalUserDbInterface {
          // +1 referenceCount if db is returned (non-null)
          db = OdkConnectionFactorySingleton.getOdkConnectionFactoryInterface()
              .getConnection(appName, dbHandleName);
+         // sync writes one row per call
+         scheduler = db.getWalCheckpointScheduler();
+         scheduler.beginBulkWrite();
          if ( !ODKDatabaseImplUtils.get().privilegedUpdateRowETagAndSyncState(db, tableId, rowId, rowETag,
              SyncState.valueOf(syncState), activeUser) ) {
             throw new IllegalArgumentException(
@@ -1692,6 +1859,9 @@ public final class OdkDatabaseServiceImpl implements InternalUserDbInterface {
          }
       } finally {
          if (db != null) {
+            if (scheduler != null) {
+               scheduler.endBulkWrite();
+            }
             // release the reference...
             // this does not necessarily close the db handle
             // or terminate any pending transaction
@@ -15,6 +15,7 @@
 package org.opendatakit.services.database.service;
 
 import android.content.ContentValues;
+import android.os.Parcel;
 import android.os.ParcelUuid;
 import android.os.Parcelable;
 import android.os.RemoteException;
@@ -37,6 +38,7 @@ import org.opendatakit.database.utilities.DbChunkUtil;
 import org.opendatakit.exception.ActionNotAuthorizedException;
 import org.opendatakit.logging.WebLogger;
 import org.opendatakit.services.database.AndroidConnectFactory;
+import org.opendatakit.services.database.ServiceCallMetrics;
 
 import java.io.IOException;
 import java.io.Serializable;
@@ -64,9 +66,31 @@ class OdkDatabaseServiceInterface extends IDbInterface.Stub {
     this.odkDatabaseServiceImpl = new OdkDatabaseServiceImpl(odkDatabaseService);
   }
 
+  /**
+   * Times every call into the service; each method identifies its call.
+   */
+  @Override
+  public boolean onTransact(int code, Parcel data, Parcel reply, int flags)
+      throws RemoteException {
+    ServiceCallMetrics.get().beginCall();
+    try {
+      return super.onTransact(code, data, reply, flags);
+    } finally {
+      ServiceCallMetrics.get().endCall();
+    }
+  }
+
+  /**
+   * Invoked when the service is destroyed.
+   */
+  void shutdown() {
+    odkDatabaseServiceImpl.stopTableChangeBroadcasts();
+  }
+
   private IllegalStateException createWrappingRemoteException(String appName,
                                                               DbHandle dbHandleName,
                                                               String methodName, Throwable e) {
+    ServiceCallMetrics.get().failCall();
     String msg = e.getLocalizedMessage();
     if (msg == null) {
       msg = e.getMessage();
@@ -93,6 +117,7 @@ class OdkDatabaseServiceInterface extends IDbInterface.Stub {
    */
   @Override
   public String getActiveUser(String appName) {
+    ServiceCallMetrics.get().identifyCall(appName, "getActiveUser");
     try {
       return odkDatabaseServiceImpl.getActiveUser(appName);
     } catch (Exception e) {
@@ -111,6 +136,7 @@ class OdkDatabaseServiceInterface extends IDbInterface.Stub {
    * @return empty string or JSON serialization of an array of ROLES. See RoleConsts for possible values.
    */
   @Override public String getRolesList(String appName) throws RemoteException {
+    ServiceCallMetrics.get().identifyCall(appName, "getRolesList");
     try {
       return odkDatabaseServiceImpl.getRolesList(appName);
     } catch (Exception e) {
@@ -125,6 +151,7 @@ class OdkDatabaseServiceInterface extends IDbInterface.Stub {
    * @return empty string or the name of the default group.
    */
   @Override public String getDefaultGroup(String appName) throws RemoteException {
+    ServiceCallMetrics.get().identifyCall(appName, "getDefaultGroup");
     try {
       return odkDatabaseServiceImpl.getDefaultGroup(appName);
     } catch (Exception e) {
@@ -145,6 +172,7 @@ class OdkDatabaseServiceInterface extends IDbInterface.Stub {
    * structured as { "user_id": "...", "full_name": "...", "roles": ["...",...] }
    */
   @Override public DbChunk getUsersList(String appName) throws RemoteException {
+    ServiceCallMetrics.get().identifyCall(appName, "getUsersList");
     try {
       return getAndCacheChunksAllowNull(odkDatabaseServiceImpl.getUsersList(appName));
     } catch (Exception e) {
@@ -156,6 +184,7 @@ class OdkDatabaseServiceInterface extends IDbInterface.Stub {
 
     OdkDatabaseService.possiblyWaitForDatabaseServiceDebugger();
 
+    ServiceCallMetrics.get().identifyCall(appName, "openDatabase");
     try {
       return odkDatabaseServiceImpl.openDatabase(appName);
     } catch (Exception e) {
@@ -166,6 +195,7 @@ class OdkDatabaseServiceInterface extends IDbInterface.Stub {
   @Override public void closeDatabase(String appName, DbHandle dbHandleName)
       throws RemoteException {
 
+    ServiceCallMetrics.get().identifyCall(appName, "closeDatabase");
     try {
       odkDatabaseServiceImpl.closeDatabase(appName, dbHandleName);
     } catch (Exception e) {
@@ -185,6 +215,7 @@ class OdkDatabaseServiceInterface extends IDbInterface.Stub {
   @Override public DbChunk createLocalOnlyTableWithColumns(String appName, DbHandle dbHandleName,
                                                              String tableId, ColumnList columns) throws RemoteException {
 
+    ServiceCallMetrics.get().identifyCall(appName, "createLocalOnlyTableWithColumns");
     try {
       OrderedColumns results = odkDatabaseServiceImpl.createLocalOnlyTableWithColumns(appName,
           dbHandleName, tableId, columns);
@@ -204,6 +235,7 @@ class OdkDatabaseServiceInterface extends IDbInterface.Stub {
   @Override public void deleteLocalOnlyTable(String appName, DbHandle dbHandleName,
       String tableId) throws RemoteException {
 
+    ServiceCallMetrics.get().identifyCall(appName, "deleteLocalOnlyTable");
     try {
       odkDatabaseServiceImpl.deleteLocalOnlyTable(appName, dbHandleName, tableId);
     } catch (Exception e) {
@@ -224,6 +256,7 @@ class OdkDatabaseServiceInterface extends IDbInterface.Stub {
   public void insertLocalOnlyRow(String appName, DbHandle dbHandleName, String tableId,
       ContentValues rowValues) throws RemoteException {
 
+    ServiceCallMetrics.get().identifyCall(appName, "insertLocalOnlyRow");
     try {
       odkDatabaseServiceImpl.insertLocalOnlyRow(appName, dbHandleName, tableId, rowValues);
     } catch (Exception e) {
@@ -246,6 +279,7 @@ class OdkDatabaseServiceInterface extends IDbInterface.Stub {
       ContentValues rowValues, String whereClause, BindArgs sqlBindArgs)
       throws RemoteException {
 
+    ServiceCallMetrics.get().identifyCall(appName, "updateLocalOnlyRow");
     try {
       odkDatabaseServiceImpl.updateLocalOnlyRows(appName, dbHandleName, tableId, rowValues,
           whereClause, sqlBindArgs);
@@ -267,6 +301,7 @@ class OdkDatabaseServiceInterface extends IDbInterface.Stub {
   @Override public void deleteLocalOnlyRow(String appName, DbHandle dbHandleName, String tableId,
       String whereClause, BindArgs sqlBindArgs) throws RemoteException {
 
+    ServiceCallMetrics.get().identifyCall(appName, "deleteLocalOnlyRow");
     try {
       odkDatabaseServiceImpl.deleteLocalOnlyRows(appName, dbHandleName, tableId, whereClause,
           sqlBindArgs);
@@ -289,6 +324,7 @@ class OdkDatabaseServiceInterface extends IDbInterface.Stub {
       dbHandleName,
       String tableId, String schemaETag, String tableInstanceFilesUri) throws RemoteException {
 
+    ServiceCallMetrics.get().identifyCall(appName, "privilegedServerTableSchemaETagChanged");
     try {
       odkDatabaseServiceImpl.privilegedServerTableSchemaETagChanged(appName, dbHandleName,
           tableId, schemaETag, tableInstanceFilesUri);
@@ -310,6 +346,7 @@ class OdkDatabaseServiceInterface extends IDbInterface.Stub {
   @Override public String setChoiceList(String appName, DbHandle dbHandleName,
       String choiceListJSON) throws RemoteException {
 
+    ServiceCallMetrics.get().identifyCall(appName, "setChoiceList");
     try {
       return odkDatabaseServiceImpl.setChoiceList(appName, dbHandleName, choiceListJSON);
     } catch (Exception e) {
@@ -328,6 +365,7 @@ class OdkDatabaseServiceInterface extends IDbInterface.Stub {
   @Override public DbChunk getChoiceList(String appName, DbHandle dbHandleName,
       String choiceListId) throws RemoteException {
 
+    ServiceCallMetrics.get().identifyCall(appName, "getChoiceList");
     try {
       return getAndCacheChunksAllowNull(odkDatabaseServiceImpl.getChoiceList(appName, dbHandleName,
           choiceListId));
@@ -339,6 +377,7 @@ class OdkDatabaseServiceInterface extends IDbInterface.Stub {
   @Override public DbChunk createOrOpenTableWithColumns(String appName,
       DbHandle dbHandleName, String tableId, ColumnList columns) throws RemoteException {
 
+    ServiceCallMetrics.get().identifyCall(appName, "createOrOpenTableWithColumns");
     try {
       OrderedColumns results = odkDatabaseServiceImpl.createOrOpenTableWithColumns(appName,
           dbHandleName, tableId, columns);
@@ -352,6 +391,7 @@ class OdkDatabaseServiceInterface extends IDbInterface.Stub {
       DbHandle dbHandleName, String tableId, ColumnList columns,
       List<KeyValueStoreEntry> metaData, boolean clear) throws RemoteException {
 
+    ServiceCallMetrics.get().identifyCall(appName, "createOrOpenTableWithColumnsAndProperties");
     try {
       OrderedColumns results = odkDatabaseServiceImpl.createOrOpenTableWithColumnsAndProperties
           (appName, dbHandleName, tableId, columns, metaData, clear);
@@ -364,6 +404,7 @@ class OdkDatabaseServiceInterface extends IDbInterface.Stub {
   @Override public DbChunk deleteAllCheckpointRowsWithId(String appName, DbHandle dbHandleName,
       String tableId, String rowId) throws RemoteException {
 
+    ServiceCallMetrics.get().identifyCall(appName, "deleteAllCheckpointRowsWithId");
     try {
       BaseTable t = odkDatabaseServiceImpl.deleteAllCheckpointRowsWithId(appName, dbHandleName,
           tableId, rowId);
@@ -376,6 +417,7 @@ class OdkDatabaseServiceInterface extends IDbInterface.Stub {
   @Override public DbChunk deleteLastCheckpointRowWithId(String appName, DbHandle dbHandleName,
       String tableId, String rowId) throws RemoteException {
 
+    ServiceCallMetrics.get().identifyCall(appName, "deleteLastCheckpointRowWithId");
     try {
       BaseTable t = odkDatabaseServiceImpl.deleteLastCheckpointRowWithId(appName, dbHandleName,
           tableId, rowId);
@@ -388,6 +430,7 @@ class OdkDatabaseServiceInterface extends IDbInterface.Stub {
   @Override public void deleteTableAndAllData(String appName, DbHandle dbHandleName,
       String tableId) throws RemoteException {
 
+    ServiceCallMetrics.get().identifyCall(appName, "deleteTableAndAllData");
     try {
       odkDatabaseServiceImpl.deleteTableAndAllData(appName, dbHandleName, tableId);
     } catch (Exception e) {
@@ -398,6 +441,7 @@ class OdkDatabaseServiceInterface extends IDbInterface.Stub {
   @Override public boolean rescanTableFormDefs(String appName, DbHandle dbHandleName,
                                               String tableId) throws RemoteException {
 
+    ServiceCallMetrics.get().identifyCall(appName, "rescanTableFormDefs");
     try {
       return odkDatabaseServiceImpl.rescanTableFormDefs(appName, dbHandleName, tableId);
     } catch (Exception e) {
@@ -408,6 +452,7 @@ class OdkDatabaseServiceInterface extends IDbInterface.Stub {
   @Override public void deleteTableMetadata(String appName, DbHandle dbHandleName,
       String tableId, String partition, String aspect, String key) throws RemoteException {
 
+    ServiceCallMetrics.get().identifyCall(appName, "deleteTableMetadata");
     try {
       odkDatabaseServiceImpl.deleteTableMetadata(appName, dbHandleName, tableId, partition,
           aspect, key);
@@ -419,6 +464,7 @@ class OdkDatabaseServiceInterface extends IDbInterface.Stub {
   @Override public DbChunk deleteRowWithId(String appName, DbHandle dbHandleName,
       String tableId, String rowId) throws RemoteException {
 
+    ServiceCallMetrics.get().identifyCall(appName, "deleteRowWithId");
     try {
       BaseTable t = odkDatabaseServiceImpl.deleteRowWithId(appName, dbHandleName, tableId, rowId);
       return getAndCacheChunks(t);
@@ -441,6 +487,7 @@ class OdkDatabaseServiceInterface extends IDbInterface.Stub {
                                               DbHandle dbHandleName,
                                               String tableId, String rowId) throws RemoteException {
 
+    ServiceCallMetrics.get().identifyCall(appName, "privilegedDeleteRowWithId");
     try {
       BaseTable t = odkDatabaseServiceImpl.privilegedDeleteRowWithId(appName, dbHandleName,
           tableId, rowId);
@@ -452,6 +499,8 @@ class OdkDatabaseServiceInterface extends IDbInterface.Stub {
 
   @Override public DbChunk getAdminColumns() throws RemoteException {
 
+    // not specific to an appName
+    ServiceCallMetrics.get().identifyCall(null, "getAdminColumns");
     String[] results = odkDatabaseServiceImpl.getAdminColumns();
     return getAndCacheChunks(results);
   }
@@ -459,6 +508,7 @@ class OdkDatabaseServiceInterface extends IDbInterface.Stub {
   @Override public DbChunk getAllColumnNames(String appName, DbHandle dbHandleName,
       String tableId) throws RemoteException {
 
+    ServiceCallMetrics.get().identifyCall(appName, "getAllColumnNames");
     try {
       String[] results = odkDatabaseServiceImpl.getAllColumnNames(appName, dbHandleName, tableId);
       return getAndCacheChunks(results);
@@ -470,6 +520,7 @@ class OdkDatabaseServiceInterface extends IDbInterface.Stub {
   @Override public DbChunk getAllTableIds(String appName, DbHandle dbHandleName)
       throws RemoteException {
 
+    ServiceCallMetrics.get().identifyCall(appName, "getAllTableIds");
     try {
       List<String> results = odkDatabaseServiceImpl.getAllTableIds(appName, dbHandleName);
       return getAndCacheChunks((Serializable)results);
@@ -482,6 +533,7 @@ class OdkDatabaseServiceInterface extends IDbInterface.Stub {
       DbHandle dbHandleName, String tableId, String rowId)
       throws RemoteException {
 
+    ServiceCallMetrics.get().identifyCall(appName, "getRowsWithId");
     try {
       BaseTable results = odkDatabaseServiceImpl.getRowsWithId(appName, dbHandleName, tableId,
           rowId);
@@ -495,6 +547,7 @@ class OdkDatabaseServiceInterface extends IDbInterface.Stub {
       DbHandle dbHandleName, String tableId, String rowId)
       throws RemoteException {
 
+    ServiceCallMetrics.get().identifyCall(appName, "privilegedGetRowsWithId");
     try {
       BaseTable results = odkDatabaseServiceImpl.privilegedGetRowsWithId(appName, dbHandleName,
           tableId, rowId);
@@ -510,6 +563,7 @@ class OdkDatabaseServiceInterface extends IDbInterface.Stub {
       String rowId)
       throws RemoteException {
 
+    ServiceCallMetrics.get().identifyCall(appName, "getMostRecentRowWithId");
     try {
       BaseTable results = odkDatabaseServiceImpl.getMostRecentRowWithId(appName, dbHandleName,
           tableId, rowId);
@@ -523,6 +577,7 @@ class OdkDatabaseServiceInterface extends IDbInterface.Stub {
       DbHandle dbHandleName, String tableId, String partition, String aspect, String key)
       throws RemoteException {
 
+    ServiceCallMetrics.get().identifyCall(appName, "getTableMetadata");
     try {
       TableMetaDataEntries kvsEntries = odkDatabaseServiceImpl.getTableMetadata(appName,
           dbHandleName, tableId, partition, aspect, key);
@@ -536,6 +591,7 @@ class OdkDatabaseServiceInterface extends IDbInterface.Stub {
   public DbChunk getTableMetadataIfChanged(String appName, DbHandle dbHandleName, String tableId,
       String revId) throws RemoteException {
 
+    ServiceCallMetrics.get().identifyCall(appName, "getTableMetadataIfChanged");
     try {
       TableMetaDataEntries kvsEntries = odkDatabaseServiceImpl.getTableMetadataIfChanged(appName,
           dbHandleName, tableId, revId);
@@ -548,6 +604,7 @@ class OdkDatabaseServiceInterface extends IDbInterface.Stub {
   @Override public DbChunk getTableHealthStatus(String appName,
       DbHandle dbHandleName, String tableId) throws RemoteException {
 
+    ServiceCallMetrics.get().identifyCall(appName, "getTableHealthStatus");
     try {
       Parcelable healthInfo =
           odkDatabaseServiceImpl.getTableHealthStatus(appName, dbHandleName, tableId);
@@ -560,6 +617,7 @@ class OdkDatabaseServiceInterface extends IDbInterface.Stub {
   @Override public DbChunk getTableHealthStatuses(String appName,
       DbHandle dbHandleName) throws RemoteException {
 
+    ServiceCallMetrics.get().identifyCall(appName, "getTableHealthStatuses");
     try {
       ArrayList<TableHealthInfo> problems =
           odkDatabaseServiceImpl.getTableHealthStatuses(appName, dbHandleName);
@@ -571,6 +629,8 @@ class OdkDatabaseServiceInterface extends IDbInterface.Stub {
 
   @Override public DbChunk getExportColumns() throws RemoteException {
 
+    // not specific to an appName
+    ServiceCallMetrics.get().identifyCall(null, "getExportColumns");
     String[] results = odkDatabaseServiceImpl.getExportColumns();
     return getAndCacheChunks(results);
   }
@@ -578,6 +638,7 @@ class OdkDatabaseServiceInterface extends IDbInterface.Stub {
   @Override public String getSyncState(String appName, DbHandle dbHandleName, String tableId,
       String rowId) throws RemoteException {
 
+    ServiceCallMetrics.get().identifyCall(appName, "getSyncState");
     try {
       return odkDatabaseServiceImpl.getSyncState(appName, dbHandleName, tableId, rowId);
     } catch (Exception e) {
@@ -588,6 +649,7 @@ class OdkDatabaseServiceInterface extends IDbInterface.Stub {
   @Override public DbChunk getTableDefinitionEntry(String appName,
       DbHandle dbHandleName, String tableId) throws RemoteException {
 
+    ServiceCallMetrics.get().identifyCall(appName, "getTableDefinitionEntry");
     try {
       TableDefinitionEntry results = odkDatabaseServiceImpl.getTableDefinitionEntry(appName,
           dbHandleName, tableId);
@@ -600,6 +662,7 @@ class OdkDatabaseServiceInterface extends IDbInterface.Stub {
   @Override public DbChunk getUserDefinedColumns(String appName, DbHandle dbHandleName,
       String tableId) throws RemoteException {
 
+    ServiceCallMetrics.get().identifyCall(appName, "getUserDefinedColumns");
     try {
       OrderedColumns results = odkDatabaseServiceImpl.getUserDefinedColumns(appName,
           dbHandleName, tableId);
@@ -612,6 +675,7 @@ class OdkDatabaseServiceInterface extends IDbInterface.Stub {
   @Override public boolean hasTableId(String appName, DbHandle dbHandleName, String tableId)
       throws RemoteException {
 
+    ServiceCallMetrics.get().identifyCall(appName, "hasTableId");
     try {
       return odkDatabaseServiceImpl.hasTableId(appName, dbHandleName, tableId);
     } catch (Exception e) {
@@ -623,6 +687,7 @@ class OdkDatabaseServiceInterface extends IDbInterface.Stub {
       DbHandle dbHandleName, String tableId,
       ContentValues cvValues, String rowId) throws RemoteException {
 
+    ServiceCallMetrics.get().identifyCall(appName, "insertCheckpointRowWithId");
     try {
       BaseTable t = odkDatabaseServiceImpl.insertCheckpointRowWithId(appName, dbHandleName,
           tableId, cvValues, rowId);
@@ -636,6 +701,7 @@ class OdkDatabaseServiceInterface extends IDbInterface.Stub {
       DbHandle dbHandleName, String tableId,
       ContentValues cvValues, String rowId) throws RemoteException {
 
+    ServiceCallMetrics.get().identifyCall(appName, "insertRowWithId");
     try {
       BaseTable t = odkDatabaseServiceImpl.insertRowWithId(appName, dbHandleName, tableId,
           cvValues, rowId);
@@ -661,6 +727,7 @@ class OdkDatabaseServiceInterface extends IDbInterface.Stub {
                                                         String tableId, ContentValues cvValues,
                                                      String rowId, boolean asCsvRequestedChange)
       throws RemoteException {
+    ServiceCallMetrics.get().identifyCall(appName, "privilegedInsertRowWithId");
     try {
       BaseTable t = odkDatabaseServiceImpl.privilegedInsertRowWithId(appName, dbHandleName,
           tableId, cvValues, rowId, asCsvRequestedChange);
@@ -685,6 +752,7 @@ class OdkDatabaseServiceInterface extends IDbInterface.Stub {
   @Override public DbChunk privilegedPerhapsPlaceRowIntoConflictWithId(String appName, DbHandle
       dbHandleName, String tableId, ContentValues cvValues, String rowId) throws RemoteException {
 
+    ServiceCallMetrics.get().identifyCall(appName, "privilegedPerhapsPlaceRowIntoConflictWithId");
     try {
       BaseTable t = odkDatabaseServiceImpl.privilegedPerhapsPlaceRowIntoConflictWithId(appName,
           dbHandleName, tableId, cvValues, rowId);
@@ -698,6 +766,7 @@ class OdkDatabaseServiceInterface extends IDbInterface.Stub {
       String sqlCommand, BindArgs sqlBindArgs, QueryBounds sqlQueryBounds, String tableId) throws
       RemoteException {
 
+    ServiceCallMetrics.get().identifyCall(appName, "simpleQuery");
     try {
       BaseTable result = odkDatabaseServiceImpl.simpleQuery(appName, dbHandleName, sqlCommand,
           sqlBindArgs, sqlQueryBounds, tableId);
@@ -711,6 +780,7 @@ class OdkDatabaseServiceInterface extends IDbInterface.Stub {
   public DbChunk privilegedSimpleQuery(String appName, DbHandle dbHandleName,
       String sqlCommand, BindArgs sqlBindArgs, QueryBounds sqlQueryBounds, String tableId) throws RemoteException {
 
+    ServiceCallMetrics.get().identifyCall(appName, "privilegedSimpleQuery");
     try {
       BaseTable result = odkDatabaseServiceImpl.privilegedSimpleQuery(appName, dbHandleName,
           sqlCommand, sqlBindArgs, sqlQueryBounds, tableId);
@@ -724,6 +794,7 @@ class OdkDatabaseServiceInterface extends IDbInterface.Stub {
   public void privilegedExecute(String appName, DbHandle dbHandleName,
       String sqlCommand, BindArgs sqlBindArgs) {
 
+    ServiceCallMetrics.get().identifyCall(appName, "privilegedExecute");
     try {
       odkDatabaseServiceImpl.privilegedExecute(appName, dbHandleName, sqlCommand, sqlBindArgs);
     } catch (Exception e) {
@@ -734,6 +805,7 @@ class OdkDatabaseServiceInterface extends IDbInterface.Stub {
   @Override public void replaceTableMetadata(String appName, DbHandle dbHandleName,
       KeyValueStoreEntry entry) throws RemoteException {
 
+    ServiceCallMetrics.get().identifyCall(appName, "replaceTableMetadata");
     try {
       odkDatabaseServiceImpl.replaceTableMetadata(appName, dbHandleName, entry);
     } catch (Exception e) {
@@ -744,6 +816,7 @@ class OdkDatabaseServiceInterface extends IDbInterface.Stub {
   @Override public void replaceTableMetadataList(String appName, DbHandle dbHandleName,
       String tableId, List<KeyValueStoreEntry> entries, boolean clear) throws RemoteException {
 
+    ServiceCallMetrics.get().identifyCall(appName, "replaceTableMetadataList");
     try {
       odkDatabaseServiceImpl.replaceTableMetadataList(appName, dbHandleName, tableId, entries, clear);
     } catch (Exception e) {
@@ -755,6 +828,7 @@ class OdkDatabaseServiceInterface extends IDbInterface.Stub {
       String tableId, String partition, String aspect, List<KeyValueStoreEntry> entries)
       throws RemoteException {
 
+    ServiceCallMetrics.get().identifyCall(appName, "replaceTableMetadataSubList");
     try {
       odkDatabaseServiceImpl.replaceTableMetadataSubList(appName, dbHandleName, tableId,
           partition, aspect, entries);
@@ -767,6 +841,7 @@ class OdkDatabaseServiceInterface extends IDbInterface.Stub {
       DbHandle dbHandleName, String tableId, String rowId)
       throws RemoteException {
 
+    ServiceCallMetrics.get().identifyCall(appName, "saveAsIncompleteMostRecentCheckpointRowWithId");
     try {
       BaseTable t = odkDatabaseServiceImpl.saveAsIncompleteMostRecentCheckpointRowWithId(appName,
           dbHandleName, tableId, rowId);
@@ -780,6 +855,7 @@ class OdkDatabaseServiceInterface extends IDbInterface.Stub {
       DbHandle dbHandleName, String tableId, String rowId)
       throws RemoteException {
 
+    ServiceCallMetrics.get().identifyCall(appName, "saveAsCompleteMostRecentCheckpointRowWithId");
     try {
       BaseTable t = odkDatabaseServiceImpl.saveAsCompleteMostRecentCheckpointRowWithId(appName,
           dbHandleName, tableId, rowId);
@@ -803,6 +879,7 @@ class OdkDatabaseServiceInterface extends IDbInterface.Stub {
       String tableId,
       String schemaETag, String lastDataETag) throws RemoteException {
 
+    ServiceCallMetrics.get().identifyCall(appName, "privilegedUpdateTableETags");
     try {
       odkDatabaseServiceImpl.privilegedUpdateTableETags(appName, dbHandleName, tableId,
           schemaETag, lastDataETag);
@@ -823,6 +900,7 @@ class OdkDatabaseServiceInterface extends IDbInterface.Stub {
       dbHandleName,
       String tableId) throws RemoteException {
 
+    ServiceCallMetrics.get().identifyCall(appName, "privilegedUpdateTableLastSyncTime");
     try {
       odkDatabaseServiceImpl.privilegedUpdateTableLastSyncTime(appName, dbHandleName, tableId);
     } catch (Exception e) {
@@ -834,6 +912,7 @@ class OdkDatabaseServiceInterface extends IDbInterface.Stub {
       DbHandle dbHandleName, String tableId,
       ContentValues cvValues, String rowId) throws RemoteException {
 
+    ServiceCallMetrics.get().identifyCall(appName, "updateRowWithId");
     try {
       BaseTable t = odkDatabaseServiceImpl.updateRowWithId(appName, dbHandleName, tableId,
           cvValues, rowId);
@@ -846,6 +925,7 @@ class OdkDatabaseServiceInterface extends IDbInterface.Stub {
   @Override public void resolveServerConflictWithDeleteRowWithId(String appName,
       DbHandle dbHandleName, String tableId, String rowId) throws RemoteException {
 
+    ServiceCallMetrics.get().identifyCall(appName, "resolveServerConflictWithDeleteRowWithId");
     try {
       odkDatabaseServiceImpl.resolveServerConflictWithDeleteRowWithId(appName, dbHandleName,
           tableId, rowId);
@@ -857,6 +937,7 @@ class OdkDatabaseServiceInterface extends IDbInterface.Stub {
   @Override public void resolveServerConflictTakeLocalRowWithId(String appName,
       DbHandle dbHandleName, String tableId, String rowId) throws RemoteException {
 
+    ServiceCallMetrics.get().identifyCall(appName, "resolveServerConflictTakeLocalRowWithId");
     try {
       odkDatabaseServiceImpl.resolveServerConflictTakeLocalRowWithId(appName, dbHandleName,
           tableId, rowId);
@@ -869,6 +950,7 @@ class OdkDatabaseServiceInterface extends IDbInterface.Stub {
       DbHandle dbHandleName, String tableId, ContentValues cvValues, String rowId)
       throws  RemoteException {
 
+    ServiceCallMetrics.get().identifyCall(appName, "resolveServerConflictTakeLocalRowPlusServerDeltasWithId");
     try {
       odkDatabaseServiceImpl.resolveServerConflictTakeLocalRowPlusServerDeltasWithId(appName,
           dbHandleName, tableId, cvValues, rowId);
@@ -880,6 +962,7 @@ class OdkDatabaseServiceInterface extends IDbInterface.Stub {
   @Override public void resolveServerConflictTakeServerRowWithId(String appName,
       DbHandle dbHandleName, String tableId, String rowId) throws RemoteException {
 
+    ServiceCallMetrics.get().identifyCall(appName, "resolveServerConflictTakeServerRowWithId");
     try {
       odkDatabaseServiceImpl.resolveServerConflictTakeServerRowWithId(appName, dbHandleName,
           tableId, rowId);
@@ -903,6 +986,7 @@ class OdkDatabaseServiceInterface extends IDbInterface.Stub {
       dbHandleName,
       String tableId, String rowId, String rowETag, String syncState) throws RemoteException {
 
+    ServiceCallMetrics.get().identifyCall(appName, "privilegedUpdateRowETagAndSyncState");
     try {
       odkDatabaseServiceImpl.privilegedUpdateRowETagAndSyncState(appName, dbHandleName, tableId,
           rowId, rowETag, syncState);
@@ -914,6 +998,7 @@ class OdkDatabaseServiceInterface extends IDbInterface.Stub {
   @Override public void deleteAppAndTableLevelManifestSyncETags(String appName, DbHandle dbHandleName)
           throws RemoteException {
 
+    ServiceCallMetrics.get().identifyCall(appName, "deleteAppAndTableLevelManifestSyncETags");
     try {
       odkDatabaseServiceImpl.deleteAppAndTableLevelManifestSyncETags(appName, dbHandleName);
     } catch (Exception e) {
@@ -925,6 +1010,7 @@ class OdkDatabaseServiceInterface extends IDbInterface.Stub {
   @Override public void deleteAllSyncETagsForTableId(String appName, DbHandle dbHandleName,
       String tableId) throws RemoteException {
 
+    ServiceCallMetrics.get().identifyCall(appName, "deleteAllSyncETagsForTableId");
     try {
       odkDatabaseServiceImpl.deleteAllSyncETagsForTableId(appName, dbHandleName, tableId);
     } catch (Exception e) {
@@ -935,6 +1021,7 @@ class OdkDatabaseServiceInterface extends IDbInterface.Stub {
   @Override public void deleteAllSyncETagsExceptForServer(String appName, DbHandle dbHandleName,
       String verifiedUri) throws RemoteException {
 
+    ServiceCallMetrics.get().identifyCall(appName, "deleteAllSyncETagsExceptForServer");
     try {
       odkDatabaseServiceImpl.deleteAllSyncETagsExceptForServer(appName, dbHandleName, verifiedUri);
     } catch (Exception e) {
@@ -945,6 +1032,7 @@ class OdkDatabaseServiceInterface extends IDbInterface.Stub {
   @Override public void deleteAllSyncETagsUnderServer(String appName, DbHandle dbHandleName,
       String verifiedUri) throws RemoteException {
 
+    ServiceCallMetrics.get().identifyCall(appName, "deleteAllSyncETagsUnderServer");
     try {
       odkDatabaseServiceImpl.deleteAllSyncETagsUnderServer(appName, dbHandleName, verifiedUri);
     } catch (Exception e) {
@@ -955,6 +1043,7 @@ class OdkDatabaseServiceInterface extends IDbInterface.Stub {
   @Override public String getFileSyncETag(String appName, DbHandle dbHandleName,
       String verifiedUri, String tableId, long modificationTimestamp) throws RemoteException {
 
+    ServiceCallMetrics.get().identifyCall(appName, "getFileSyncETag");
     try {
       return odkDatabaseServiceImpl.getFileSyncETag(appName, dbHandleName, verifiedUri, tableId,
           modificationTimestamp);
@@ -966,6 +1055,7 @@ class OdkDatabaseServiceInterface extends IDbInterface.Stub {
   @Override public String getManifestSyncETag(String appName, DbHandle dbHandleName,
       String verifiedUri, String tableId) throws RemoteException {
 
+    ServiceCallMetrics.get().identifyCall(appName, "getManifestSyncETag");
     try {
       return odkDatabaseServiceImpl.getManifestSyncETag(appName, dbHandleName, verifiedUri,
           tableId);
@@ -978,6 +1068,7 @@ class OdkDatabaseServiceInterface extends IDbInterface.Stub {
       String verifiedUri, String tableId, long modificationTimestamp, String eTag)
       throws RemoteException {
 
+    ServiceCallMetrics.get().identifyCall(appName, "updateFileSyncETag");
     try {
       odkDatabaseServiceImpl.updateFileSyncETag(appName, dbHandleName, verifiedUri, tableId,
           modificationTimestamp, eTag);
@@ -989,6 +1080,7 @@ class OdkDatabaseServiceInterface extends IDbInterface.Stub {
   @Override public void updateManifestSyncETag(String appName, DbHandle dbHandleName,
       String verifiedUri, String tableId, String eTag) throws RemoteException {
 
+    ServiceCallMetrics.get().identifyCall(appName, "updateManifestSyncETag");
     try {
       odkDatabaseServiceImpl.updateManifestSyncETag(appName, dbHandleName, verifiedUri, tableId,
           eTag);
@@ -999,14 +1091,17 @@ class OdkDatabaseServiceInterface extends IDbInterface.Stub {
 
 
   @Override public DbChunk getChunk(ParcelUuid chunkID) {
+    // chunks are not tracked by appName
+    ServiceCallMetrics.get().identifyCall(null, "getChunk");
     return odkDatabaseService.removeParceledChunk(chunkID.getUuid());
   }
 
   private DbChunk getAndCacheChunks(Parcelable data) {
+    long startNanos = System.nanoTime();
     // Break the results into pieces that will fit over the wire
     List<DbChunk> chunkList = DbChunkUtil.convertToChunks(data, DatabaseConstants.PARCEL_SIZE);
 
-    return getAndCacheChunksHelper(chunkList);
+    return getAndCacheChunksHelper(chunkList, startNanos);
   }
 
   private DbChunk getAndCacheChunksAllowNull(Serializable data) {
@@ -1017,6 +1112,7 @@ class OdkDatabaseServiceInterface extends IDbInterface.Stub {
   }
 
   private DbChunk getAndCacheChunks(Serializable data) {
+    long startNanos = System.nanoTime();
     List<DbChunk> chunkList;
     try {
       chunkList = DbChunkUtil.convertToChunks(data, DatabaseConstants.PARCEL_SIZE);
@@ -1025,10 +1121,10 @@ class OdkDatabaseServiceInterface extends IDbInterface.Stub {
       return null;
     }
 
-    return getAndCacheChunksHelper(chunkList);
+    return getAndCacheChunksHelper(chunkList, startNanos);
   }
 
-  private DbChunk getAndCacheChunksHelper(List<DbChunk> chunkList) {
+  private DbChunk getAndCacheChunksHelper(List<DbChunk> chunkList, long startNanos) {
 
     if (chunkList == null || chunkList.size() == 0) {
       Log.e(TAG, "Invalid state. Failed to convert chunks");
@@ -1042,6 +1138,8 @@ class OdkDatabaseServiceInterface extends IDbInterface.Stub {
       odkDatabaseService.putParceledChunks(chunkList);
     }
 
+    ServiceCallMetrics.get().addPhase(ServiceCallMetrics.Phase.CHUNKING,
+        System.nanoTime() - startNanos);
     return firstChunk;
   }
 
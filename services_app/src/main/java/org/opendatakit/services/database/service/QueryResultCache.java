@@ -0,0 +1,282 @@
+package org.opendatakit.services.database.service;
+
+import android.database.Cursor;
+
+import org.opendatakit.database.data.BaseTable;
+import org.opendatakit.database.data.Row;
+import org.opendatakit.database.queries.BindArgs;
+import org.opendatakit.database.queries.QueryBounds;
+import org.opendatakit.services.database.OdkConnectionInterface;
+import org.opendatakit.services.database.utilities.ODKDatabaseImplUtils;
+import org.opendatakit.services.database.utilities.TableHealthUtils;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.regex.Pattern;
+
+/**
+ * Size-bounded LRU cache of the query results of one appName.
+ * <p>
+ * The key captures the whitespace-normalized SQL, the bind args, the query
+ * bounds, the access context and the data revision of every table the SQL
+ * reads from. A result is therefore only returned while none of those tables
+ * have changed. Queries that read from tables without a data revision
+ * (metadata and local-only tables), or whose table list cannot be determined,
+ * are never cached.
+ * <p>
+ * The tables a query reads from are taken from SQLite's own compilation of it
+ * (the root pages opened by its EXPLAIN program), so subqueries, aliases,
+ * comma joins and quoted names need no parsing here.
+ * <p>
+ * Results are copied on the way in and on the way out, so callers may
+ * modify what they are given.
+ */
+final class QueryResultCache {
+
+  /**
+   * Results with more rows than this are not worth holding onto.
+   */
+  static final int MAX_CACHED_ROWS = 2000;
+
+  /**
+   * Number of distinct SQL statements whose table lists are remembered.
+   */
+  private static final int MAX_TABLE_LISTS = 200;
+
+  private static final Pattern WHITESPACE_PATTERN = Pattern.compile("\\s+");
+
+  private static final String OPCODE_OPEN_READ = "OpenRead";
+  private static final String OPCODE_REOPEN_IDX = "ReopenIdx";
+  private static final String OPCODE_OPEN_WRITE = "OpenWrite";
+
+  /**
+   * Marks a statement whose result must not be cached.
+   */
+  private static final Set<String> NOT_CACHEABLE = Collections.emptySet();
+
+  private final int maxEntries;
+
+  private final Map<String, BaseTable> entries;
+
+  /**
+   * normalized SQL -TO- tables it reads from (or NOT_CACHEABLE)
+   */
+  private final Map<String, Set<String>> tableLists;
+
+  QueryResultCache(final int maxEntries) {
+    this.maxEntries = maxEntries;
+    this.entries = new LinkedHashMap<String, BaseTable>(16, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, BaseTable> eldest) {
+        return size() > maxEntries;
+      }
+    };
+    this.tableLists = new LinkedHashMap<String, Set<String>>(16, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, Set<String>> eldest) {
+        return size() > MAX_TABLE_LISTS;
+      }
+    };
+  }
+
+  int getMaxEntries() {
+    return maxEntries;
+  }
+
+  /**
+   * @return the key for this query, or null if its result must not be cached.
+   */
+  String getKey(OdkConnectionInterface db, String tableId, String sqlCommand,
+      BindArgs bindArgs, QueryBounds sqlQueryBounds,
+      ODKDatabaseImplUtils.AccessContext accessContext, String rolesList, boolean privileged) {
+
+    if (sqlCommand == null || db.inTransaction()) {
+      // uncommitted revisions may later be rolled back and then reused
+      return null;
+    }
+
+    String sql = WHITESPACE_PATTERN.matcher(sqlCommand.trim()).replaceAll(" ");
+    Object[] args = (bindArgs == null) ? null : bindArgs.bindArgs;
+
+    Set<String> tables;
+    synchronized (this) {
+      tables = tableLists.get(sql);
+    }
+    if (tables == null) {
+      tables = getTablesReadBy(db, sql, args);
+      synchronized (this) {
+        tableLists.put(sql, tables);
+      }
+    }
+    if (tables == NOT_CACHEABLE) {
+      return null;
+    }
+
+    Map<String, Long> revisions = TableHealthUtils.getDataRevisions(db, tables);
+    if (revisions.size() != tables.size()) {
+      return null;
+    }
+
+    StringBuilder b = new StringBuilder();
+    b.append(sql).append('\n');
+    if (args != null) {
+      for (Object arg : args) {
+        if (arg == null) {
+          b.append("null");
+        } else if (arg instanceof byte[]) {
+          b.append("byte[]:").append(Arrays.toString((byte[]) arg));
+        } else {
+          b.append(arg.getClass().getName()).append(':').append(arg.toString());
+        }
+        b.append('\u0001');
+      }
+    }
+    b.append('\n');
+    if (sqlQueryBounds != null) {
+      b.append(sqlQueryBounds.mLimit).append(',').append(sqlQueryBounds.mOffset);
+    }
+    b.append('\n').append(tableId)
+        .append('\n').append(privileged)
+        .append('\n').append(accessContext.activeUser)
+        .append('\n').append(rolesList)
+        .append('\n').append(accessContext.accessColumnType)
+        .append('\n').append(accessContext.canCreateRow)
+        .append('\n').append(accessContext.isPrivilegedUser)
+        .append('\n');
+    for (String table : tables) {
+      b.append(table).append('=').append(revisions.get(table)).append(';');
+    }
+    return b.toString();
+  }
+
+  /**
+   * @return the names of the tables whose b-trees (or whose indexes' b-trees)
+   * the compiled statement opens for reading, or NOT_CACHEABLE if it writes,
+   * reads from an attached or temporary database, or cannot be compiled.
+   */
+  private static Set<String> getTablesReadBy(OdkConnectionInterface db, String sql,
+      Object[] bindArgs) {
+    TreeSet<Long> rootPages = new TreeSet<Long>();
+    Cursor c = null;
+    try {
+      c = db.rawQuery("EXPLAIN " + sql, bindArgs);
+      if (c == null || !c.moveToFirst()) {
+        return NOT_CACHEABLE;
+      }
+      int idxOpcode = c.getColumnIndex("opcode");
+      int idxP2 = c.getColumnIndex("p2");
+      int idxP3 = c.getColumnIndex("p3");
+      do {
+        String opcode = c.getString(idxOpcode);
+        if (OPCODE_OPEN_WRITE.equals(opcode)) {
+          return NOT_CACHEABLE;
+        }
+        if (OPCODE_OPEN_READ.equals(opcode) || OPCODE_REOPEN_IDX.equals(opcode)) {
+          if (c.getLong(idxP3) != 0L) {
+            // not the main database
+            return NOT_CACHEABLE;
+          }
+          rootPages.add(c.getLong(idxP2));
+        }
+      } while (c.moveToNext());
+    } catch (Exception e) {
+      return NOT_CACHEABLE;
+    } finally {
+      if (c != null && !c.isClosed()) {
+        c.close();
+      }
+    }
+    if (rootPages.isEmpty()) {
+      return NOT_CACHEABLE;
+    }
+
+    StringBuilder b = new StringBuilder();
+    b.append("SELECT rootpage, tbl_name FROM sqlite_master WHERE rootpage IN (");
+    Object[] pages = rootPages.toArray();
+    for (int i = 0; i < pages.length; ++i) {
+      b.append((i == 0) ? "?" : ",?");
+    }
+    b.append(")");
+
+    TreeSet<String> tables = new TreeSet<String>();
+    TreeSet<Long> foundPages = new TreeSet<Long>();
+    try {
+      c = db.rawQuery(b.toString(), pages);
+      if (c != null && c.moveToFirst()) {
+        do {
+          foundPages.add(c.getLong(0));
+          tables.add(c.getString(1));
+        } while (c.moveToNext());
+      }
+    } finally {
+      if (c != null && !c.isClosed()) {
+        c.close();
+      }
+    }
+    // e.g., sqlite_master itself (root page 1) has no entry
+    if (!foundPages.equals(rootPages)) {
+      return NOT_CACHEABLE;
+    }
+    return Collections.unmodifiableSet(tables);
+  }
+
+  synchronized BaseTable get(String key) {
+    BaseTable result = entries.get(key);
+    return (result == null) ? null : copyOf(result);
+  }
+
+  void put(String key, BaseTable result) {
+    if (result == null || result.getNumberOfRows() > MAX_CACHED_ROWS) {
+      return;
+    }
+    BaseTable copy = copyOf(result);
+    synchronized (this) {
+      entries.put(key, copy);
+    }
+  }
+
+  synchronized int size() {
+    return entries.size();
+  }
+
+  synchronized void clear() {
+    entries.clear();
+    tableLists.clear();
+  }
+
+  /**
+   * Tables built by ODKDatabaseImplUtils share a read-only element key to
+   * index map with other results of the same shape; the copy is given its own
+   * element keys, index map and rows.
+   *
+   * @return a copy of the table that shares no state with it
+   */
+  static BaseTable copyOf(BaseTable table) {
+    String[] elementKeyForIndex = table.getElementKeyForIndex();
+    int width = (elementKeyForIndex == null) ? 0 : elementKeyForIndex.length;
+    String[] keys = new String[width];
+    HashMap<String, Integer> elementKeyToIndex = new HashMap<String, Integer>(width);
+    for (int i = 0; i < width; ++i) {
+      keys[i] = elementKeyForIndex[i];
+      elementKeyToIndex.put(keys[i], i);
+    }
+
+    int rowCount = table.getNumberOfRows();
+    BaseTable copy = new BaseTable(null, keys, elementKeyToIndex, rowCount);
+    for (int r = 0; r < rowCount; ++r) {
+      Row row = table.getRowAtIndex(r);
+      String[] rowData = new String[width];
+      for (int i = 0; i < width; ++i) {
+        rowData[i] = row.getRawStringByIndex(i);
+      }
+      copy.addRow(new Row(rowData, copy));
+    }
+    copy.setEffectiveAccessCreateRow(table.getEffectiveAccessCreateRow());
+    return copy;
+  }
+}
@@ -0,0 +1,86 @@
+package org.opendatakit.services.database.service;
+
+import android.content.Context;
+import android.content.Intent;
+
+import org.opendatakit.consts.IntentConsts;
+import org.opendatakit.services.database.TableChangeNotifier;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Broadcasts ACTION_TABLES_CHANGED whenever a committed transaction changes
+ * the rows of data tables of an appName the database service has opened.
+ * Clients (e.g., a list view) can register a receiver for it and re-query
+ * only the named tables, rather than polling.
+ * <p>
+ * The extras are the appName, the tableIds that changed and, in the same
+ * order, their new data revisions.
+ * <p>
+ * The tableIds reveal what data exists, so the broadcast is only delivered to
+ * receivers holding RECEIVER_PERMISSION -- the signature-level permission
+ * that is also required to bind to the database service.
+ */
+final class TableChangeBroadcaster implements TableChangeNotifier.TableChangeListener {
+
+  /**
+   * Receivers must hold RECEIVER_PERMISSION.
+   */
+  public static final String ACTION_TABLES_CHANGED =
+      "org.opendatakit.services.database.TABLES_CHANGED";
+  public static final String RECEIVER_PERMISSION = "org.opendatakit.database.RUN_DATABASE";
+  public static final String EXTRA_TABLE_IDS = "tableIds";
+  public static final String EXTRA_DATA_REVISIONS = "dataRevisions";
+
+  private final Context context;
+
+  /**
+   * Access only within synchronized methods.
+   */
+  private final Set<String> appNames = new TreeSet<String>();
+
+  TableChangeBroadcaster(Context context) {
+    this.context = context.getApplicationContext();
+  }
+
+  /**
+   * Start broadcasting the table changes of this appName.
+   *
+   * @param appName
+   */
+  synchronized void listenTo(String appName) {
+    if (appNames.add(appName)) {
+      TableChangeNotifier.get().registerListener(appName, this);
+    }
+  }
+
+  /**
+   * Stop broadcasting table changes.
+   */
+  synchronized void stop() {
+    for (String appName : appNames) {
+      TableChangeNotifier.get().unregisterListener(appName, this);
+    }
+    appNames.clear();
+  }
+
+  @Override
+  public void onTablesChanged(String appName, Map<String, Long> changedRevisions) {
+    String[] tableIds = new String[changedRevisions.size()];
+    long[] revisions = new long[changedRevisions.size()];
+    int i = 0;
+    for (Map.Entry<String, Long> entry : changedRevisions.entrySet()) {
+      tableIds[i] = entry.getKey();
+      revisions[i] = entry.getValue();
+      ++i;
+    }
+
+    Intent intent = new Intent(ACTION_TABLES_CHANGED);
+    intent.putExtra(IntentConsts.INTENT_KEY_APP_NAME, appName);
+    intent.putExtra(EXTRA_TABLE_IDS, tableIds);
+    intent.putExtra(EXTRA_DATA_REVISIONS, revisions);
+    context.sendBroadcast(intent, RECEIVER_PERMISSION);
+  }
+}
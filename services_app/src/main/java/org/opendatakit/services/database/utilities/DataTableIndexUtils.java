@@ -0,0 +1,195 @@
+package org.opendatakit.services.database.utilities;
+
+import android.database.Cursor;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+
+import org.opendatakit.logging.WebLogger;
+import org.opendatakit.provider.DataTableColumns;
+import org.opendatakit.services.database.OdkConnectionInterface;
+import org.opendatakit.utilities.ODKFileUtils;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Indexes on the metadata columns of synchronized data tables.
+ * <p>
+ * Per-row operations (fetching, deleting or updating the rows with a given
+ * rowId, choosing the most recent checkpoint, locating conflicts and rows
+ * that still need to be synced) all filter on these columns.
+ * <p>
+ * Also maintains the indexes implied by the index, sort and group-by
+ * table properties that app designers declare in the KVS.
+ */
+public final class DataTableIndexUtils {
+
+  private static final String ID_INDEX_SUFFIX = "_idx_id";
+  private static final String SYNC_STATE_INDEX_SUFFIX = "_idx_sync_state";
+  private static final String CONFLICT_TYPE_INDEX_SUFFIX = "_idx_conflict_type";
+
+  private static final String INDEX_COL_INDEX_SUFFIX = "_idx_prop_index";
+  private static final String SORT_COL_INDEX_SUFFIX = "_idx_prop_sort";
+  private static final String GROUP_BY_COLS_INDEX_SUFFIX = "_idx_prop_group_by";
+
+  private static final TypeReference<ArrayList<Object>> arrayListTypeReference =
+      new TypeReference<ArrayList<Object>>() {};
+
+  /**
+   * Methods are all static...
+   */
+  private DataTableIndexUtils() {
+  }
+
+  /**
+   * Create the standard metadata indexes on a synchronized data table
+   * if they do not already exist.
+   * <p>
+   * The rowId index also carries the savepoint timestamp so that the most
+   * recent checkpoint of a row is found without sorting.
+   *
+   * @param db
+   * @param tableId
+   */
+  public static void createMetadataIndexes(OdkConnectionInterface db, String tableId) {
+    db.execSQL("CREATE INDEX IF NOT EXISTS " + tableId + ID_INDEX_SUFFIX + " ON " + tableId
+        + " (" + DataTableColumns.ID + ", " + DataTableColumns.SAVEPOINT_TIMESTAMP + ")", null);
+    db.execSQL("CREATE INDEX IF NOT EXISTS " + tableId + SYNC_STATE_INDEX_SUFFIX + " ON "
+        + tableId + " (" + DataTableColumns.SYNC_STATE + ")", null);
+    db.execSQL("CREATE INDEX IF NOT EXISTS " + tableId + CONFLICT_TYPE_INDEX_SUFFIX + " ON "
+        + tableId + " (" + DataTableColumns.CONFLICT_TYPE + ")", null);
+  }
+
+  /**
+   * Bring the property-driven indexes of a data table in step with its
+   * index, sort and group-by table properties. An index is dropped when its
+   * property is removed and rebuilt only when its column list changes.
+   * Properties naming columns that are not stored in the table produce no index.
+   *
+   * @param db
+   * @param tableId
+   * @param retainedColumns element keys of the columns stored in the data table
+   * @param indexCol        value of the TABLE_INDEX_COL property, or null
+   * @param sortCol         value of the TABLE_SORT_COL property, or null
+   * @param groupByCols     value of the TABLE_GROUP_BY_COLS property, or null
+   */
+  public static void updatePropertyIndexes(OdkConnectionInterface db, String tableId,
+      Set<String> retainedColumns, String indexCol, String sortCol, String groupByCols) {
+    updateIndex(db, tableId, tableId + INDEX_COL_INDEX_SUFFIX,
+        parseElementKeys(db.getAppName(), indexCol, retainedColumns));
+    updateIndex(db, tableId, tableId + SORT_COL_INDEX_SUFFIX,
+        parseElementKeys(db.getAppName(), sortCol, retainedColumns));
+    updateIndex(db, tableId, tableId + GROUP_BY_COLS_INDEX_SUFFIX,
+        parseElementKeys(db.getAppName(), groupByCols, retainedColumns));
+  }
+
+  /**
+   * The property value may be a bare element key, a JSON string or a JSON
+   * array of element keys (or of objects with an elementKey field).
+   *
+   * @return the element keys, or an empty list if any of them is not a
+   * retained column of the table.
+   */
+  private static List<String> parseElementKeys(String appName, String value,
+      Set<String> retainedColumns) {
+    if (value == null || value.trim().length() == 0) {
+      return Collections.emptyList();
+    }
+    String trimmed = value.trim();
+
+    List<String> elementKeys = new ArrayList<String>();
+    try {
+      if (trimmed.startsWith("[")) {
+        ArrayList<Object> items = ODKFileUtils.mapper.readValue(trimmed, arrayListTypeReference);
+        for (Object item : items) {
+          if (item instanceof Map) {
+            item = ((Map<?, ?>) item).get("elementKey");
+          }
+          if (!(item instanceof String)) {
+            return Collections.emptyList();
+          }
+          elementKeys.add((String) item);
+        }
+      } else if (trimmed.startsWith("\"")) {
+        elementKeys.add(ODKFileUtils.mapper.readValue(trimmed, String.class));
+      } else {
+        elementKeys.add(trimmed);
+      }
+    } catch (Exception e) {
+      WebLogger.getLogger(appName).w("DataTableIndexUtils",
+          "unable to parse table property value: " + value);
+      return Collections.emptyList();
+    }
+
+    // these are interpolated into the SQL -- only accept known columns
+    for (String elementKey : elementKeys) {
+      if (!retainedColumns.contains(elementKey)) {
+        return Collections.emptyList();
+      }
+    }
+    return elementKeys;
+  }
+
+  private static void updateIndex(OdkConnectionInterface db, String tableId, String indexName,
+      List<String> elementKeys) {
+    String desired = null;
+    if (!elementKeys.isEmpty()) {
+      StringBuilder b = new StringBuilder();
+      b.append("CREATE INDEX ").append(indexName).append(" ON ").append(tableId).append(" (");
+      for (int i = 0; i < elementKeys.size(); ++i) {
+        if (i != 0) {
+          b.append(", ");
+        }
+        b.append(elementKeys.get(i));
+      }
+      b.append(")");
+      desired = b.toString();
+    }
+
+    // SQLite retains the text of the CREATE INDEX statement
+    String existing = null;
+    Cursor c = null;
+    try {
+      c = db.rawQuery("SELECT sql FROM sqlite_master WHERE type='index' AND name=?",
+          new Object[] { indexName });
+      if (c != null && c.moveToFirst()) {
+        existing = c.getString(0);
+      }
+    } finally {
+      if (c != null && !c.isClosed()) {
+        c.close();
+      }
+    }
+
+    if (desired == null ? existing == null : desired.equals(existing)) {
+      return;
+    }
+    if (existing != null) {
+      db.execSQL("DROP INDEX IF EXISTS " + indexName, null);
+    }
+    if (desired != null) {
+      db.execSQL(desired, null);
+    }
+  }
+
+  /**
+   * @param db
+   * @param tableId
+   * @return true if the data table physically exists in the database.
+   */
+  public static boolean tableExists(OdkConnectionInterface db, String tableId) {
+    Cursor c = null;
+    try {
+      c = db.rawQuery("SELECT name FROM sqlite_master WHERE type='table' AND name=?",
+          new Object[] { tableId });
+      return c != null && c.moveToFirst();
+    } finally {
+      if (c != null && !c.isClosed()) {
+        c.close();
+      }
+    }
+  }
+}
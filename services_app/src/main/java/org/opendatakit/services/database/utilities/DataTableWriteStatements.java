@@ -0,0 +1,185 @@
+package org.opendatakit.services.database.utilities;
+
+import org.opendatakit.database.data.OrderedColumns;
+import org.opendatakit.provider.DataTableColumns;
+import org.opendatakit.services.database.OdkConnectionInterface;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * INSERT and UPDATE statements of a data table that name the columns in a
+ * fixed order (the admin columns followed by the retention columns of its
+ * OrderedColumns) rather than in the iteration order of the values map.
+ * <p>
+ * Writes of rows with the same set of columns therefore produce identical
+ * SQL and reuse the prepared statement held in the connection's
+ * PreparedStatementCache; only the values are rebound. The SQL for each
+ * column set is built once.
+ * <p>
+ * Thread-safe.
+ */
+final class DataTableWriteStatements {
+
+  /**
+   * appName/tableId -TO- statements of the table's current column layout
+   */
+  private static final ConcurrentHashMap<String, DataTableWriteStatements> tableStatements =
+      new ConcurrentHashMap<String, DataTableWriteStatements>();
+
+  /**
+   * @param db
+   * @param tableId
+   * @param orderedColumns the table's current user-defined columns
+   * @return the statements for this table and column layout
+   */
+  static DataTableWriteStatements get(OdkConnectionInterface db, String tableId,
+      OrderedColumns orderedColumns) {
+    String key = db.getAppName() + "/" + tableId;
+    DataTableWriteStatements statements = tableStatements.get(key);
+    if (statements == null || !statements.matches(orderedColumns)) {
+      statements = new DataTableWriteStatements(tableId, orderedColumns);
+      tableStatements.put(key, statements);
+    }
+    return statements;
+  }
+
+  private final String tableId;
+  private final OrderedColumns orderedColumns;
+  private final List<String> retentionColumnNames;
+  private final String[] columnNames;
+  private final HashMap<String, Integer> columnIndex = new HashMap<String, Integer>();
+
+  /**
+   * set of columns present -TO- SQL
+   */
+  private final ConcurrentHashMap<BitSet, String> insertSql = new ConcurrentHashMap<BitSet, String>();
+  private final ConcurrentHashMap<BitSet, String> updateSql = new ConcurrentHashMap<BitSet, String>();
+
+  private DataTableWriteStatements(String tableId, OrderedColumns orderedColumns) {
+    this.tableId = tableId;
+    this.orderedColumns = orderedColumns;
+    this.retentionColumnNames = new ArrayList<String>(orderedColumns.getRetentionColumnNames());
+
+    List<String> adminColumns = DataTableColumns.getAdminColumns();
+    ArrayList<String> names = new ArrayList<String>(adminColumns.size() + retentionColumnNames.size());
+    names.addAll(adminColumns);
+    names.addAll(retentionColumnNames);
+    this.columnNames = names.toArray(new String[names.size()]);
+    for (int i = 0; i < columnNames.length; ++i) {
+      columnIndex.put(columnNames[i], i);
+    }
+  }
+
+  private boolean matches(OrderedColumns orderedColumns) {
+    return this.orderedColumns == orderedColumns ||
+        retentionColumnNames.equals(orderedColumns.getRetentionColumnNames());
+  }
+
+  /**
+   * @param values
+   * @return the columns present in values, or null if values names a column
+   * that is not an admin or retention column of the table.
+   */
+  private BitSet getColumnsPresent(Map<String, Object> values) {
+    BitSet present = new BitSet(columnNames.length);
+    for (String key : values.keySet()) {
+      Integer idx = columnIndex.get(key);
+      if (idx == null) {
+        return null;
+      }
+      present.set(idx);
+    }
+    return present;
+  }
+
+  /**
+   * Equivalent to db.insertOrThrow(tableId, null, values).
+   *
+   * @param db
+   * @param values
+   */
+  void insert(OdkConnectionInterface db, Map<String, Object> values) {
+    BitSet present = (values.isEmpty()) ? null : getColumnsPresent(values);
+    if (present == null) {
+      db.insertOrThrow(tableId, null, values);
+      return;
+    }
+
+    String sql = insertSql.get(present);
+    if (sql == null) {
+      StringBuilder b = new StringBuilder();
+      b.append("INSERT INTO ").append(tableId).append(" (");
+      StringBuilder params = new StringBuilder();
+      for (int i = present.nextSetBit(0); i >= 0; i = present.nextSetBit(i + 1)) {
+        if (params.length() != 0) {
+          b.append(",");
+          params.append(",");
+        }
+        b.append(columnNames[i]);
+        params.append("?");
+      }
+      b.append(") VALUES (").append(params).append(")");
+      sql = b.toString();
+      insertSql.put(present, sql);
+    }
+
+    db.execSQL(sql, getBindArgs(present, values, null));
+  }
+
+  /**
+   * Equivalent to db.update(tableId, values, whereClause, whereArgs), but
+   * without the count of updated rows.
+   *
+   * @param db
+   * @param values
+   * @param whereClause
+   * @param whereArgs
+   */
+  void update(OdkConnectionInterface db, Map<String, Object> values, String whereClause,
+      Object[] whereArgs) {
+    BitSet present = (values.isEmpty()) ? null : getColumnsPresent(values);
+    if (present == null) {
+      db.update(tableId, values, whereClause, whereArgs);
+      return;
+    }
+
+    String sql = updateSql.get(present);
+    if (sql == null) {
+      StringBuilder b = new StringBuilder();
+      b.append("UPDATE ").append(tableId).append(" SET ");
+      boolean first = true;
+      for (int i = present.nextSetBit(0); i >= 0; i = present.nextSetBit(i + 1)) {
+        if (!first) {
+          b.append(",");
+        }
+        first = false;
+        b.append(columnNames[i]).append("=?");
+      }
+      sql = b.toString();
+      updateSql.put(present, sql);
+    }
+    if (whereClause != null && whereClause.length() != 0) {
+      sql = sql + " WHERE " + whereClause;
+    }
+
+    db.execSQL(sql, getBindArgs(present, values, whereArgs));
+  }
+
+  private Object[] getBindArgs(BitSet present, Map<String, Object> values, Object[] whereArgs) {
+    int whereSize = (whereArgs == null) ? 0 : whereArgs.length;
+    Object[] bindArgs = new Object[present.cardinality() + whereSize];
+    int j = 0;
+    for (int i = present.nextSetBit(0); i >= 0; i = present.nextSetBit(i + 1)) {
+      bindArgs[j++] = values.get(columnNames[i]);
+    }
+    for (int i = 0; i < whereSize; ++i) {
+      bindArgs[j++] = whereArgs[i];
+    }
+    return bindArgs;
+  }
+}
@@ -0,0 +1,313 @@
+package org.opendatakit.services.database.utilities;
+
+import android.database.Cursor;
+
+import org.opendatakit.logging.WebLogger;
+import org.opendatakit.services.database.OdkConnectionInterface;
+import org.opendatakit.services.database.WalCheckpointScheduler;
+import org.opendatakit.utilities.ODKFileUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Background maintenance of an appName's database, performed in bounded
+ * steps by DatabaseMaintenanceJob:
+ * <ul>
+ * <li>a periodic PRAGMA quick_check (the O(N) subset of integrity_check that
+ * skips verifying index contents against their tables);</li>
+ * <li>a one-time migration to auto_vacuum=INCREMENTAL (this requires a full
+ * VACUUM, so it is only attempted if the database is small enough for the
+ * VACUUM to finish within the run and there is room for a copy of it);</li>
+ * <li>reclaiming up to MAX_VACUUM_PAGES_PER_RUN free pages with
+ * PRAGMA incremental_vacuum;</li>
+ * <li>refreshing the query planner statistics of the tables, least recently
+ * analyzed first, until the run's deadline.</li>
+ * </ul>
+ * The bundled SQLite predates PRAGMA optimize and PRAGMA analysis_limit, so
+ * the ANALYZE work is bounded by analyzing one table at a time.
+ * <p>
+ * Progress is kept in a small JSON file in the webDb folder so that each
+ * run picks up where the previous one stopped.
+ */
+public final class DatabaseMaintenanceUtils {
+
+  private static final String TAG = DatabaseMaintenanceUtils.class.getSimpleName();
+
+  private static final String STATE_FILE_NAME = "databaseMaintenance.json";
+
+  private static final String STATE_LAST_INTEGRITY_CHECK = "lastIntegrityCheck";
+  private static final String STATE_LAST_INTEGRITY_CHECK_RESULT = "lastIntegrityCheckResult";
+  private static final String STATE_LAST_ANALYZED = "lastAnalyzed";
+  private static final String STATE_LAST_RUN = "lastRun";
+
+  static final long INTEGRITY_CHECK_INTERVAL_MILLIS = TimeUnit.DAYS.toMillis(7);
+  static final long ANALYZE_INTERVAL_MILLIS = TimeUnit.DAYS.toMillis(7);
+
+  /**
+   * Free pages reclaimed per run, and the fewest worth reclaiming.
+   */
+  static final int MAX_VACUUM_PAGES_PER_RUN = 4096;
+  static final int MIN_FREE_PAGES_TO_VACUUM = 256;
+
+  private static final long AUTO_VACUUM_INCREMENTAL = 2L;
+
+  /**
+   * Databases larger than this are never migrated to incremental auto-vacuum:
+   * the VACUUM holds the write lock for as long as it takes to copy them.
+   */
+  static final long MAX_VACUUM_MIGRATION_BYTES = 64L * 1024L * 1024L;
+
+  /**
+   * Conservative VACUUM throughput on a low-end device, used to decide
+   * whether it will finish before the run's deadline.
+   */
+  static final long VACUUM_BYTES_PER_SECOND = 2L * 1024L * 1024L;
+
+  private DatabaseMaintenanceUtils() {
+  }
+
+  /**
+   * Perform the maintenance steps that are due, stopping between steps once
+   * the deadline has passed. Must not be called within a transaction.
+   *
+   * @param db
+   * @param deadlineMillis System.currentTimeMillis() value by which to stop
+   */
+  public static void runMaintenance(OdkConnectionInterface db, long deadlineMillis) {
+    if (db.inTransaction()) {
+      throw new IllegalStateException("database maintenance cannot run within a transaction");
+    }
+    String appName = db.getAppName();
+    Map<String, Object> state = readState(appName);
+    try {
+      long now = System.currentTimeMillis();
+      Object lastIntegrityCheck = state.get(STATE_LAST_INTEGRITY_CHECK);
+      if (!(lastIntegrityCheck instanceof Number)
+          || now - ((Number) lastIntegrityCheck).longValue() >= INTEGRITY_CHECK_INTERVAL_MILLIS) {
+        String result = checkIntegrity(db);
+        state.put(STATE_LAST_INTEGRITY_CHECK, System.currentTimeMillis());
+        state.put(STATE_LAST_INTEGRITY_CHECK_RESULT, result);
+      }
+
+      if (System.currentTimeMillis() < deadlineMillis) {
+        migrateToIncrementalAutoVacuum(db, deadlineMillis);
+      }
+
+      if (System.currentTimeMillis() < deadlineMillis) {
+        reclaimFreePages(db);
+      }
+
+      if (System.currentTimeMillis() < deadlineMillis) {
+        @SuppressWarnings("unchecked")
+        Map<String, Object> lastAnalyzed = (state.get(STATE_LAST_ANALYZED) instanceof Map) ?
+            (Map<String, Object>) state.get(STATE_LAST_ANALYZED) : new TreeMap<String, Object>();
+        state.put(STATE_LAST_ANALYZED, analyzeTables(db, lastAnalyzed, deadlineMillis));
+      }
+    } finally {
+      state.put(STATE_LAST_RUN, System.currentTimeMillis());
+      writeState(appName, state);
+      // VACUUM and ANALYZE leave their changes in the WAL
+      db.getWalCheckpointScheduler().checkpoint(db, WalCheckpointScheduler.Mode.TRUNCATE);
+    }
+  }
+
+  /**
+   * @param db
+   * @return "ok" or the first problem reported by PRAGMA quick_check
+   */
+  private static String checkIntegrity(OdkConnectionInterface db) {
+    String result = queryForString(db, "PRAGMA quick_check(1)");
+    if (result == null || !result.equalsIgnoreCase("ok")) {
+      WebLogger.getLogger(db.getAppName()).e(TAG, "PRAGMA quick_check(1) returned: " + result);
+    } else {
+      WebLogger.getLogger(db.getAppName()).i(TAG, "PRAGMA quick_check(1) returned: " + result);
+    }
+    return result;
+  }
+
+  /**
+   * Databases created before new databases were given auto_vacuum=INCREMENTAL
+   * must be rebuilt with VACUUM for the setting to take effect. VACUUM writes
+   * a complete copy of the database (into the WAL) while holding the write
+   * lock, so skip this if the database is too large, if the VACUUM would not
+   * finish before the deadline, or if there is not room for the copy.
+   */
+  private static void migrateToIncrementalAutoVacuum(OdkConnectionInterface db,
+      long deadlineMillis) {
+    if (queryForLong(db, "PRAGMA auto_vacuum") == AUTO_VACUUM_INCREMENTAL) {
+      return;
+    }
+    File dbFile = new File(ODKFileUtils.getWebDbFolder(db.getAppName()),
+        ODKFileUtils.getNameOfSQLiteDatabase());
+    long dbBytes = dbFile.length();
+    if (dbBytes > MAX_VACUUM_MIGRATION_BYTES) {
+      WebLogger.getLogger(db.getAppName()).i(TAG, "database (" + dbBytes
+          + " bytes) is too large to migrate to incremental auto-vacuum");
+      return;
+    }
+    long estimatedMillis = TimeUnit.SECONDS.toMillis(1) * dbBytes / VACUUM_BYTES_PER_SECOND;
+    if (System.currentTimeMillis() + estimatedMillis >= deadlineMillis) {
+      return;
+    }
+    if (dbFile.getParentFile().getUsableSpace() < 2L * dbBytes) {
+      WebLogger.getLogger(db.getAppName()).w(TAG,
+          "insufficient free space to migrate the database to incremental auto-vacuum");
+      return;
+    }
+    long startMillis = System.currentTimeMillis();
+    queryForLong(db, "PRAGMA auto_vacuum=INCREMENTAL");
+    db.execSQL("VACUUM", null);
+    WebLogger.getLogger(db.getAppName()).i(TAG,
+        "migrated the database to incremental auto-vacuum (" + dbBytes + " bytes) in "
+            + (System.currentTimeMillis() - startMillis) + " ms");
+  }
+
+  private static void reclaimFreePages(OdkConnectionInterface db) {
+    if (queryForLong(db, "PRAGMA auto_vacuum") != AUTO_VACUUM_INCREMENTAL) {
+      return;
+    }
+    long freePages = queryForLong(db, "PRAGMA freelist_count");
+    if (freePages < MIN_FREE_PAGES_TO_VACUUM) {
+      return;
+    }
+    long pages = Math.min(freePages, MAX_VACUUM_PAGES_PER_RUN);
+    // this returns an (empty) row for every page it frees; read them all.
+    Cursor c = null;
+    try {
+      c = db.rawQuery("PRAGMA incremental_vacuum(" + pages + ")", null);
+      if (c != null) {
+        c.getCount();
+      }
+    } finally {
+      if (c != null && !c.isClosed()) {
+        c.close();
+      }
+    }
+    WebLogger.getLogger(db.getAppName()).i(TAG,
+        "reclaimed " + pages + " of " + freePages + " free pages");
+  }
+
+  /**
+   * ANALYZE the tables not analyzed within ANALYZE_INTERVAL_MILLIS, least
+   * recently analyzed first, until the deadline.
+   *
+   * @param db
+   * @param lastAnalyzed table name -TO- time it was last analyzed
+   * @param deadlineMillis
+   * @return the updated lastAnalyzed map, without tables that no longer exist
+   */
+  private static Map<String, Object> analyzeTables(OdkConnectionInterface db,
+      final Map<String, Object> lastAnalyzed, long deadlineMillis) {
+    List<String> tableNames = new ArrayList<String>();
+    Cursor c = null;
+    try {
+      c = db.rawQuery("SELECT name FROM sqlite_master WHERE type='table'"
+          + " AND name NOT LIKE 'sqlite_%'", null);
+      if (c != null && c.moveToFirst()) {
+        do {
+          tableNames.add(c.getString(0));
+        } while (c.moveToNext());
+      }
+    } finally {
+      if (c != null && !c.isClosed()) {
+        c.close();
+      }
+    }
+
+    Map<String, Object> updated = new TreeMap<String, Object>();
+    for (String tableName : tableNames) {
+      updated.put(tableName, analyzedTime(lastAnalyzed, tableName));
+    }
+
+    Collections.sort(tableNames, new Comparator<String>() {
+      @Override
+      public int compare(String lhs, String rhs) {
+        long l = analyzedTime(lastAnalyzed, lhs);
+        long r = analyzedTime(lastAnalyzed, rhs);
+        return (l < r) ? -1 : ((l == r) ? lhs.compareTo(rhs) : 1);
+      }
+    });
+
+    for (String tableName : tableNames) {
+      long now = System.currentTimeMillis();
+      if (now >= deadlineMillis
+          || now - analyzedTime(lastAnalyzed, tableName) < ANALYZE_INTERVAL_MILLIS) {
+        break;
+      }
+      db.execSQL("ANALYZE \"" + tableName + "\"", null);
+      updated.put(tableName, System.currentTimeMillis());
+    }
+    return updated;
+  }
+
+  private static long analyzedTime(Map<String, Object> lastAnalyzed, String tableName) {
+    Object value = lastAnalyzed.get(tableName);
+    return (value instanceof Number) ? ((Number) value).longValue() : 0L;
+  }
+
+  private static String queryForString(OdkConnectionInterface db, String sql) {
+    Cursor c = null;
+    try {
+      c = db.rawQuery(sql, null);
+      return (c != null && c.moveToFirst()) ? c.getString(0) : null;
+    } finally {
+      if (c != null && !c.isClosed()) {
+        c.close();
+      }
+    }
+  }
+
+  private static long queryForLong(OdkConnectionInterface db, String sql) {
+    Cursor c = null;
+    try {
+      c = db.rawQuery(sql, null);
+      return (c != null && c.moveToFirst()) ? c.getLong(0) : 0L;
+    } finally {
+      if (c != null && !c.isClosed()) {
+        c.close();
+      }
+    }
+  }
+
+  /**
+   * @param appName
+   * @return the state saved by the previous run (e.g., the time and result of
+   * the last integrity check), or an empty map if there has been none.
+   */
+  public static Map<String, Object> readState(String appName) {
+    File file = new File(ODKFileUtils.getWebDbFolder(appName), STATE_FILE_NAME);
+    if (file.exists()) {
+      try {
+        @SuppressWarnings("unchecked")
+        Map<String, Object> state = ODKFileUtils.mapper.readValue(file, Map.class);
+        if (state != null) {
+          return new TreeMap<String, Object>(state);
+        }
+      } catch (IOException e) {
+        WebLogger.getLogger(appName).w(TAG, "unable to read " + file.getAbsolutePath());
+      }
+    }
+    return new TreeMap<String, Object>();
+  }
+
+  private static void writeState(String appName, Map<String, Object> state) {
+    File file = new File(ODKFileUtils.getWebDbFolder(appName), STATE_FILE_NAME);
+    File temp = new File(file.getParentFile(), STATE_FILE_NAME + ".tmp");
+    try {
+      ODKFileUtils.mapper.writeValue(temp, state);
+      if (!temp.renameTo(file)) {
+        WebLogger.getLogger(appName).w(TAG, "unable to replace " + file.getAbsolutePath());
+      }
+    } catch (IOException e) {
+      WebLogger.getLogger(appName).w(TAG, "unable to write " + file.getAbsolutePath());
+    }
+  }
+}
@@ -21,7 +21,14 @@ import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
  * Update the form definitions table based upon the content of the sdcard.
@@ -36,6 +43,12 @@ import java.util.Set;
 public class FormTableUtils {
   private static final String TAG = "FormTableUtils";
 
+  /**
+   * Upper bound on the number of formDef.json files hashed and parsed concurrently.
+   */
+  private static final int MAX_SCAN_THREADS =
+      Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors()));
+
   private static void patchUpValues(String appName, HashMap<String, Object>
       values) {
 
@@ -78,173 +91,112 @@ public class FormTableUtils {
     return;
   }
 
-  private static synchronized void insert(String appName, String tableId, String formId) {
-
-    HashMap<String, Object> values = new HashMap<String, Object>();
-    values.put(FormsColumns.TABLE_ID, tableId);
-    values.put(FormsColumns.FORM_ID, formId);
-
-    // force a scan from disk
-    patchUpValues(appName, values);
+  private static void insert(OdkConnectionInterface db, String tableId, String formId,
+      HashMap<String, Object> values) {
 
     // first try to see if a record with this filename already exists...
     String[] projection = { FormsColumns.TABLE_ID, FormsColumns.FORM_ID };
     String selection = FormsColumns.TABLE_ID + "=? AND " + FormsColumns.FORM_ID + "=?";
     String[] selectionArgs = { tableId, formId };
     Cursor c = null;
-
-    DbHandle dbHandleName = OdkConnectionFactorySingleton.getOdkConnectionFactoryInterface().generateInternalUseDbHandle();
-    OdkConnectionInterface db = null;
     try {
-      // +1 referenceCount if db is returned (non-null)
-      db = OdkConnectionFactorySingleton.getOdkConnectionFactoryInterface().getConnection(appName, dbHandleName);
-      db.beginTransactionNonExclusive();
-      try {
-        c = db.query(DatabaseConstants.FORMS_TABLE_NAME, projection, selection, selectionArgs,
-            null, null, null, null);
-        if (c == null) {
-          throw new SQLException("FAILED Insert into " + tableId + " form " + formId
-              + " -- unable to query for existing records. tableId=" + tableId + " formId=" + formId);
-        }
-        c.moveToFirst();
-        if (c.getCount() > 0) {
-          // already exists
-          throw new SQLException("FAILED Insert into " + tableId + " form " + formId
-              + " -- row already exists!");
-        }
-      } finally {
-        if (c != null) {
-          c.close();
-        }
+      c = db.query(DatabaseConstants.FORMS_TABLE_NAME, projection, selection, selectionArgs,
+          null, null, null, null);
+      if (c == null) {
+        throw new SQLException("FAILED Insert into " + tableId + " form " + formId
+            + " -- unable to query for existing records. tableId=" + tableId + " formId=" + formId);
       }
-
-      db.insertOrThrow(DatabaseConstants.FORMS_TABLE_NAME, null, values);
-      db.setTransactionSuccessful();
-    } catch (SQLException e) {
-      throw e;
-    } catch (Exception e) {
-      String msg = e.getMessage();
-      if ( msg == null ) {
-        msg = e.toString();
+      c.moveToFirst();
+      if (c.getCount() > 0) {
+        // already exists
+        throw new SQLException("FAILED Insert into " + tableId + " form " + formId
+            + " -- row already exists!");
       }
-      throw new SQLException("FAILED Insert into " + tableId + " form " + formId + " -- " + msg, e);
     } finally {
-      if (db != null) {
-        try {
-          db.endTransaction();
-        } finally {
-          try {
-            db.releaseReference();
-          } finally {
-            // this closes the connection
-            OdkConnectionFactorySingleton.getOdkConnectionFactoryInterface().removeConnection(
-                appName, dbHandleName);
-          }
-        }
+      if (c != null) {
+        c.close();
       }
     }
+
+    db.insertOrThrow(DatabaseConstants.FORMS_TABLE_NAME, null, values);
   }
 
   /**
-   * This method removes the entry from the content provider, and also removes
-   * any associated files. files: form.xml, [formmd5].formdef, formname
-   * {directory}
+   * This method removes the entry from the forms table. The files under the
+   * form directory are left unchanged.
    */
-  private static synchronized void delete(String appName, String tableId, String formId) {
+  private static void delete(OdkConnectionInterface db, String tableId, String formId) {
 
     String selection = FormsColumns.TABLE_ID + "=? AND " + FormsColumns.FORM_ID + "=?";
     String[] selectionArgs = { tableId, formId };
 
-    DbHandle dbHandleName = OdkConnectionFactorySingleton.getOdkConnectionFactoryInterface().generateInternalUseDbHandle();
-    OdkConnectionInterface db = null;
-
-    try {
-      // Get the database and run the query
-      // +1 referenceCount if db is returned (non-null)
-      db = OdkConnectionFactorySingleton.getOdkConnectionFactoryInterface()
-          .getConnection(appName, dbHandleName);
-      db.beginTransactionNonExclusive();
-      db.delete(DatabaseConstants.FORMS_TABLE_NAME, selection, selectionArgs);
-      // commit the transaction...
-      db.setTransactionSuccessful();
-    } catch (SQLException e) {
-      throw e;
-    } catch (Exception e) {
-      String msg = e.getMessage();
-      if ( msg == null ) {
-        msg = e.toString();
-      }
-      throw new SQLException("FAILED Delete from " + tableId + " form " + formId + " -- " + msg, e);
-    } finally {
-      if (db != null) {
-        try {
-          db.endTransaction();
-        } finally {
-          try {
-            db.releaseReference();
-          } finally {
-            // this closes the connection
-            OdkConnectionFactorySingleton.getOdkConnectionFactoryInterface()
-                .removeConnection(appName, dbHandleName);
-          }
-        }
-      }
-    }
+    db.delete(DatabaseConstants.FORMS_TABLE_NAME, selection, selectionArgs);
   }
 
-  private static synchronized void update(String appName, String tableId, String formId) {
+  private static void update(OdkConnectionInterface db, String tableId, String formId,
+      HashMap<String, Object> values) {
 
-    HashMap<String, Object> values = new HashMap<String, Object>();
-    values.put(FormsColumns.TABLE_ID, tableId);
-    values.put(FormsColumns.FORM_ID, formId);
-
-    // force a scan from disk
-    patchUpValues(appName, values);
-
-    String[] projection = { FormsColumns.TABLE_ID, FormsColumns.FORM_ID };
     String selection = FormsColumns.TABLE_ID + "=? AND " + FormsColumns.FORM_ID + "=?";
     String[] selectionArgs = { tableId, formId };
-    /*
-     * First, find out what records match this query. Replicate the
-     * ContentValues if there are multiple tableIds/formIds involved
-     * and the contentValues do not have formId and tableId specified.
-     *
-     * Otherwise, it is an error to specify the tableId or formId in
-     * the ContentValues and have those not match the where results.
-     *
-     */
+
+    // update the database with these patched-up values...
+    // duplicate records were removed before we get here, so at most one row matches.
+    int count = db.update(DatabaseConstants.FORMS_TABLE_NAME, values, selection, selectionArgs);
+    if ( count != 1 ) {
+      throw new SQLException("FAILED Update to " + tableId + " form " + formId
+          + " -- not exactly one row for this formId!");
+    }
+  }
+
+  /**
+   * Apply all of the changes found by the scan of the forms directory in a single
+   * transaction on a single internal-use connection.
+   */
+  private static synchronized void applyChanges(String appName, String tableId,
+      Set<String> duplicateFormIds, Set<String> badFormIds,
+      Map<String, HashMap<String, Object>> changedForms,
+      Map<String, HashMap<String, Object>> newForms) {
 
     DbHandle dbHandleName = OdkConnectionFactorySingleton.getOdkConnectionFactoryInterface().generateInternalUseDbHandle();
     OdkConnectionInterface db = null;
+    String formId = null;
     try {
       // +1 referenceCount if db is returned (non-null)
       db = OdkConnectionFactorySingleton.getOdkConnectionFactoryInterface().getConnection(appName, dbHandleName);
       db.beginTransactionNonExclusive();
 
-      Cursor c = null;
-      try {
-        c = db.query(DatabaseConstants.FORMS_TABLE_NAME, projection, selection, selectionArgs,
-            null, null, null, null);
+      ////////////////////////////
+      // The duplicateFormIds should be deleted from the form definitions table.
+      // They are then re-inserted along with the other new forms.
+      for (String id : duplicateFormIds) {
+        formId = id;
+        delete(db, tableId, formId);
+      }
 
-        if (c == null) {
-          throw new SQLException("FAILED Update of " + tableId + " form " + formId
-              + " -- query for existing row did not return a cursor");
-        }
-        c.moveToFirst();
-        if ( c.getCount() != 1 ) {
-          throw new SQLException("FAILED Update to " + tableId + " form " + formId
-              + " -- not exactly one row for this formId!");
-        }
-      } finally {
-        if (c != null && !c.isClosed()) {
-          c.close();
-        }
+      //////////////////////////
+      // delete the bad forms from the database -- these have no formDef.json files.
+      // Leave the other files that might be under these formDir locations unchanged.
+      // i.e., Assume that the files are as intended by the application architect.
+      for (String id : badFormIds) {
+        formId = id;
+        delete(db, tableId, formId);
       }
 
-      // update the database with these patched-up values...
-      db.update(DatabaseConstants.FORMS_TABLE_NAME, values, selection, selectionArgs);
-      db.setTransactionSuccessful();
+      //////////////////////////
+      // Update the changed forms
+      for (Map.Entry<String, HashMap<String, Object>> entry : changedForms.entrySet()) {
+        formId = entry.getKey();
+        update(db, tableId, formId, entry.getValue());
+      }
+
+      ///////////////////////////
+      // insert the forms that are new
+      for (Map.Entry<String, HashMap<String, Object>> entry : newForms.entrySet()) {
+        formId = entry.getKey();
+        insert(db, tableId, formId, entry.getValue());
+      }
 
+      db.setTransactionSuccessful();
     } catch (SQLException e) {
       throw e;
     } catch (Exception e) {
@@ -252,7 +204,7 @@ public class FormTableUtils {
       if ( msg == null ) {
         msg = e.toString();
       }
-      throw new SQLException("FAILED Update on " + tableId + " form " + formId + " -- " + msg, e);
+      throw new SQLException("FAILED Update of " + tableId + " form " + formId + " -- " + msg, e);
     } finally {
       if (db != null) {
         try {
@@ -272,15 +224,57 @@ public class FormTableUtils {
     }
   }
 
+  /**
+   * Hash and, if its content has changed, parse the formDef.json of a form.
+   *
+   * @param appName
+   * @param tableId
+   * @param formId
+   * @param recordedMd5 the md5 hash in the forms table, or null if there is no record
+   * @return the full set of forms-table values, or just the refreshed DATE and
+   * FILE_LENGTH if the content is unchanged from the recorded md5 hash.
+   */
+  private static HashMap<String, Object> scanFormDef(String appName, String tableId,
+      String formId, String recordedMd5) {
+
+    HashMap<String, Object> values = new HashMap<String, Object>();
+
+    if ( recordedMd5 != null ) {
+      File formDefJson = new File(ODKFileUtils.getFormFolder(appName, tableId, formId),
+          ODKFileUtils.FORMDEF_JSON_FILENAME);
+      long lastModified = formDefJson.lastModified();
+      long length = formDefJson.length();
+      String fileMd5 = ODKFileUtils.getMd5Hash(appName, formDefJson);
+      if ( recordedMd5.equals(fileMd5) ) {
+        // only the timestamp changed -- record it so the next scan can skip the hash
+        values.put(FormsColumns.DATE, lastModified);
+        values.put(FormsColumns.FILE_LENGTH, length);
+        return values;
+      }
+    }
+
+    values.put(FormsColumns.TABLE_ID, tableId);
+    values.put(FormsColumns.FORM_ID, formId);
+
+    // force a scan from disk
+    patchUpValues(appName, values);
+    return values;
+  }
+
   /**
    * This throws an exception on nearly all failures. I.e., the return code will
    * always be true.
+   * <p>
+   * A form whose formDef.json has the same length and last-modified time as recorded
+   * in the forms table is assumed to be unchanged and is not re-read. The remaining
+   * formDef.json files are hashed and parsed in parallel and all of the resulting
+   * changes to the forms table are committed in a single transaction.
    *
    * @param appName
    * @param tableIdFilter
    * @return true on success
    */
-  public static boolean updateFormDir(String appName, String tableIdFilter) {
+  public static boolean updateFormDir(final String appName, final String tableIdFilter) {
 
     WebLoggerIf log = WebLogger.getLogger(appName);
     log.i(TAG, "updateFormDir: " + appName + " tableId: " + tableIdFilter + " begin");
@@ -309,20 +303,20 @@ public class FormTableUtils {
     // /////////////////////////////////////////
     // look at list of forms recorded in forms table.
     Set<String> badFormIds = new HashSet<>();
-    Set<String> changedFormIds = new HashSet<>();
+    Map<String, String> suspectFormIds = new HashMap<>();
     Set<String> duplicateFormIds = new HashSet<>();
     // 1. If a form is in the database but does not exist in the formDirs list (on the sdcard)
     //    then add it to the badFormIds set -- this set needs to be deleted.
     // 2. If the form exists, check if it has already been processed, as evidenced by being in the
-    //    changedFormIds, processedFormIds, or duplicateFormIds lists. If it has, remove it
-    //    from these and add it to the duplicateFormIds list.
-    // 2. If the form exists in both, if the md5 hash of the form is unchanged, then remove
-    //    it from the formDirs list, since the matching hash indicates that the file is unchanged
-    //    and the information in the forms table is valid. Add to processedFormIds.
-    // 3. If the form exists in both, but the md5 hash has changed, add it to the changedFormIds
-    //    and processedFormIds sets and remove it from the formDirs list. These forms need to be
-    //    updated.
-    // 4. Finally, at the end, the formDirs will contain only the forms to be inserted.
+    //    processedIds set. If it has, remove it from the suspectFormIds map and add it to the
+    //    duplicateFormIds set.
+    // 3. If the form exists in both, and the length and last-modified time of the formDef.json
+    //    match the recorded values, then the information in the forms table is valid. Remove it
+    //    from the formDirs list and add it to processedIds.
+    // 4. Otherwise, add it with its recorded md5 hash to the suspectFormIds map, add it to
+    //    processedIds, and remove it from the formDirs list. These forms need to be re-hashed
+    //    and possibly updated.
+    // 5. Finally, at the end, the formDirs will contain only the forms to be inserted.
     {
       Set<String> processedIds = new HashSet<String>();
 
@@ -335,9 +329,11 @@ public class FormTableUtils {
 
         String selection = FormsColumns.TABLE_ID + "=?";
         String[] selectionArgs = { tableIdFilter };
+        String[] projection = { FormsColumns.FORM_ID, FormsColumns.JSON_MD5_HASH,
+            FormsColumns.DATE, FormsColumns.FILE_LENGTH };
 
-        Cursor c = db.query(DatabaseConstants.FORMS_TABLE_NAME, null, selection, selectionArgs,
-            null, null, null, null);
+        Cursor c = db.query(DatabaseConstants.FORMS_TABLE_NAME, projection, selection,
+            selectionArgs, null, null, null, null);
 
         if (c == null) {
           WebLogger.getLogger(appName)
@@ -345,8 +341,12 @@ public class FormTableUtils {
         } else {
           try {
             if (c.moveToFirst()) {
+              int idxFormId = c.getColumnIndex(FormsColumns.FORM_ID);
+              int idxMd5 = c.getColumnIndex(FormsColumns.JSON_MD5_HASH);
+              int idxDate = c.getColumnIndex(FormsColumns.DATE);
+              int idxLength = c.getColumnIndex(FormsColumns.FILE_LENGTH);
               do {
-                String formId = CursorUtils.getIndexAsString(c, c.getColumnIndex(FormsColumns.FORM_ID));
+                String formId = CursorUtils.getIndexAsString(c, idxFormId);
 
                 String formDir = ODKFileUtils.getFormFolder(appName, tableIdFilter, formId);
                 File f = new File(formDir);
@@ -357,17 +357,22 @@ public class FormTableUtils {
                 } else if ( processedIds.contains(formId) ) {
                   // formdef.json exists. But...
                   // there are two database records for this formId.
-                  // remove it from the changedFormIds set and add it to the
+                  // remove it from the suspectFormIds map and add it to the
                   // duplicateFormIds set.
-                  changedFormIds.remove(formId);
+                  suspectFormIds.remove(formId);
                   duplicateFormIds.add(formId);
                 } else {
                   // formdef.json exists. See if it is unchanged...
-                  String json_md5 = CursorUtils.getIndexAsString(c, c.getColumnIndex(FormsColumns.JSON_MD5_HASH));
-                  String fileMd5 = ODKFileUtils.getMd5Hash(appName, formDefJson);
-                  if (json_md5 == null || !json_md5.equals(fileMd5)) {
-                    // it HAS changed -- add it to the changed list
-                    changedFormIds.add(formId);
+                  String json_md5 = CursorUtils.getIndexAsString(c, idxMd5);
+                  Long date = CursorUtils.getIndexAsType(c, Long.class, idxDate);
+                  Long length = CursorUtils.getIndexAsType(c, Long.class, idxLength);
+                  if (json_md5 == null ) {
+                    // never hashed -- treat it as changed
+                    suspectFormIds.put(formId, "");
+                  } else if ( date == null || length == null ||
+                      date != formDefJson.lastModified() || length != formDefJson.length() ) {
+                    // it MAY have changed -- add it to the suspect list
+                    suspectFormIds.put(formId, json_md5);
                   }
                   // remove it from the formDirs list
                   formDirs.remove(f);
@@ -398,46 +403,75 @@ public class FormTableUtils {
     ///////////////////////////
     // we now have a:
     // 1. set of forms (duplicateFormIds) that had two or more entries in the form definitions
-    // table (internal error).
+    // table (internal error). These need to be deleted and re-inserted.
     // 2. a set of forms (badFormIds) that no longer exist on the sdcard and  which need to be
     // removed from the form definitions table.
-    // 3. a set of forms (changedFormIds) whose formDef.json have changed and therefore need
-    // their form definition record updated.
+    // 3. a map of forms (suspectFormIds) whose formDef.json may have changed and therefore need
+    // to be re-hashed and possibly have their form definition record updated.
     // 4. a list of formDirs who have formDef.json files that need to be scanned and added to the
     // form definitions table.
+    //
+    // Hash and parse everything that needs it on a bounded pool.
 
-    ////////////////////////////
-    // The duplicateFormIds should be deleted from the form definitions table.
-    // They should then be processed to insert new records into the table.
-    for (String formId : duplicateFormIds) {
-      delete(appName, tableIdFilter, formId);
-      insert(appName, tableIdFilter, formId);
-    }
-
-    //////////////////////////
-    // delete the bad forms from the database -- these have no formDef.json files.
-    // Leave the other files that might be under these formDir locations unchanged.
-    // i.e., Assume that the files are as intended by the application architect.
-    for (String formId : badFormIds) {
-      delete(appName, tableIdFilter, formId);
-    }
-
-    //////////////////////////
-    // Update the changed forms
-    for ( String formId : changedFormIds ) {
-      update(appName, tableIdFilter, formId);
-    }
+    Map<String, Future<HashMap<String, Object>>> changedScans = new HashMap<>();
+    Map<String, Future<HashMap<String, Object>>> newScans = new TreeMap<>();
+    ExecutorService executor = Executors.newFixedThreadPool(MAX_SCAN_THREADS);
+    try {
+      for (Map.Entry<String, String> entry : suspectFormIds.entrySet()) {
+        final String formId = entry.getKey();
+        final String recordedMd5 = entry.getValue().length() == 0 ? null : entry.getValue();
+        changedScans.put(formId, executor.submit(new Callable<HashMap<String, Object>>() {
+          @Override
+          public HashMap<String, Object> call() throws Exception {
+            return scanFormDef(appName, tableIdFilter, formId, recordedMd5);
+          }
+        }));
+      }
+      List<String> insertFormIds = new ArrayList<>(duplicateFormIds);
+      for (File formDir : formDirs) {
+        insertFormIds.add(formDir.getName());
+      }
+      for (final String formId : insertFormIds) {
+        newScans.put(formId, executor.submit(new Callable<HashMap<String, Object>>() {
+          @Override
+          public HashMap<String, Object> call() throws Exception {
+            return scanFormDef(appName, tableIdFilter, formId, null);
+          }
+        }));
+      }
 
-    ///////////////////////////
-    // insert the forms that are new
-    for (int i = 0; i < formDirs.size(); ++i) {
-      File formDir = formDirs.get(i);
+      Map<String, HashMap<String, Object>> changedForms = awaitScans(changedScans);
+      Map<String, HashMap<String, Object>> newForms = awaitScans(newScans);
 
-      String formId = formDir.getName();
-      insert(appName, tableIdFilter, formId);
+      if ( !duplicateFormIds.isEmpty() || !badFormIds.isEmpty() ||
+          !changedForms.isEmpty() || !newForms.isEmpty() ) {
+        applyChanges(appName, tableIdFilter, duplicateFormIds, badFormIds, changedForms, newForms);
+      }
+    } finally {
+      executor.shutdownNow();
     }
 
     log.i(TAG, "updateFormDir: " + appName + " tableId: " + tableIdFilter + " end");
     return true;
   }
+
+  private static Map<String, HashMap<String, Object>> awaitScans(
+      Map<String, Future<HashMap<String, Object>>> scans) {
+    Map<String, HashMap<String, Object>> results = new TreeMap<>();
+    for (Map.Entry<String, Future<HashMap<String, Object>>> entry : scans.entrySet()) {
+      try {
+        results.put(entry.getKey(), entry.getValue().get());
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new IllegalStateException("Interrupted while scanning form " + entry.getKey(), e);
+      } catch (ExecutionException e) {
+        Throwable cause = e.getCause();
+        if (cause instanceof RuntimeException) {
+          throw (RuntimeException) cause;
+        }
+        throw new IllegalStateException("Unable to scan form " + entry.getKey(), cause);
+      }
+    }
+    return results;
+  }
 }
@@ -58,6 +58,11 @@ import org.opendatakit.provider.SyncETagColumns;
 import org.opendatakit.provider.TableDefinitionsColumns;
 import org.opendatakit.services.database.AndroidConnectFactory;
 import org.opendatakit.services.database.OdkConnectionInterface;
+import org.opendatakit.services.database.ServiceCallMetrics;
+import org.opendatakit.services.database.TableDefinitionCache;
+import org.opendatakit.services.database.UploadsTableColumns;
+import org.opendatakit.services.database.WalCheckpointScheduler;
+import org.opendatakit.services.utilities.BackgroundFileDeleter;
 import org.opendatakit.utilities.LocalizationUtils;
 import org.opendatakit.utilities.ODKFileUtils;
 import org.opendatakit.utilities.StaticStateManipulator;
@@ -67,12 +72,17 @@ import org.sqlite.database.sqlite.SQLiteException;
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.TreeMap;
+import java.util.TreeSet;
 import java.util.UUID;
 
 public final class ODKDatabaseImplUtils {
@@ -105,6 +115,51 @@ public final class ODKDatabaseImplUtils {
 
   private static final String K_DATATABLE_ID_EQUALS_PARAM = DataTableColumns.ID + S_EQUALS_PARAM;
 
+  /**
+   * Upper bound on the number of rowIds bound into a single IN (...) clause.
+   * SQLite limits a statement to 999 bind arguments.
+   */
+  private static final int K_MAX_ROW_IDS_PER_QUERY = 500;
+
+  /**
+   * Number of rows rewritten per transaction by bulk row-state transitions
+   * that are not performed within a caller's transaction.
+   */
+  private static final int K_BULK_TRANSITION_BATCH_SIZE = 2000;
+
+  /**
+   * Number of distinct result-set column layouts whose index maps are
+   * retained for reuse by buildBaseTable.
+   */
+  private static final int K_MAX_CACHED_COLUMN_LAYOUTS = 64;
+
+  /**
+   * Index supporting the per-row lookups into the uploads table.
+   */
+  private static final String K_UPLOADS_TABLE_INSTANCE_INDEX =
+      DatabaseConstants.UPLOADS_TABLE_NAME + "_table_instance_idx";
+
+  /**
+   * Add an uploads-table record for a data row if one does not already exist.
+   * Bind args are tableId, rowId, tableId, rowId.
+   */
+  private static final String K_INSERT_UPLOADS_RECORD_IF_ABSENT =
+      "INSERT INTO " + DatabaseConstants.UPLOADS_TABLE_NAME + " ("
+          + InstanceColumns.DATA_TABLE_TABLE_ID + ", " + InstanceColumns.DATA_INSTANCE_ID
+          + ") SELECT ?, ? WHERE NOT EXISTS (SELECT 1 FROM "
+          + DatabaseConstants.UPLOADS_TABLE_NAME + K_WHERE
+          + InstanceColumns.DATA_TABLE_TABLE_ID + S_EQUALS_PARAM + S_AND
+          + InstanceColumns.DATA_INSTANCE_ID + S_EQUALS_PARAM + ")";
+
+  /**
+   * Remove the uploads-table record for a data row.
+   * Bind args are tableId, rowId.
+   */
+  private static final String K_DELETE_UPLOADS_RECORD =
+      "DELETE FROM " + DatabaseConstants.UPLOADS_TABLE_NAME + K_WHERE
+          + InstanceColumns.DATA_TABLE_TABLE_ID + S_EQUALS_PARAM + S_AND
+          + InstanceColumns.DATA_INSTANCE_ID + S_EQUALS_PARAM;
+
   /**
    * Also store an immutable cache of the roles for a tables administrator.
    * These are used for privileged requests.
@@ -363,6 +418,116 @@ public final class ODKDatabaseImplUtils {
   private ODKDatabaseImplUtils() {
   }
 
+  /**
+   * Element key arrays and element key to index maps of the result sets
+   * seen recently. Queries of the same shape share the (read-only) index map
+   * rather than rebuilding it for every BaseTable.
+   *
+   * Access only within synchronized (columnLayouts)
+   */
+  private final Map<List<String>, ColumnLayout> columnLayouts =
+      new LinkedHashMap<List<String>, ColumnLayout>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<List<String>, ColumnLayout> eldest) {
+          return size() > K_MAX_CACHED_COLUMN_LAYOUTS;
+        }
+      };
+
+  /**
+   * The column layout shared by every BaseTable of the same result set shape.
+   * BaseTable takes a String[] and a HashMap, so the array is copied for each
+   * table (see newElementKeyForIndex) while the map, whose construction is the
+   * costly part, is shared and read-only.
+   */
+  private static final class ColumnLayout {
+    private final String[] elementKeyForIndex;
+    final HashMap<String, Integer> elementKeyToIndex;
+
+    ColumnLayout(String[] elementKeyForIndex) {
+      this.elementKeyForIndex = elementKeyForIndex;
+      this.elementKeyToIndex = new ReadOnlyIndexMap(elementKeyForIndex);
+    }
+
+    int getColumnCount() {
+      return elementKeyForIndex.length;
+    }
+
+    /**
+     * @return a copy of the element keys that the caller may keep and modify
+     */
+    String[] newElementKeyForIndex() {
+      return elementKeyForIndex.clone();
+    }
+  }
+
+  /**
+   * An element key to index map that cannot be modified once constructed.
+   */
+  private static final class ReadOnlyIndexMap extends HashMap<String, Integer> {
+
+    ReadOnlyIndexMap(String[] elementKeyForIndex) {
+      super(elementKeyForIndex.length * 4 / 3 + 1);
+      for (int i = 0; i < elementKeyForIndex.length; ++i) {
+        super.put(elementKeyForIndex[i], i);
+      }
+    }
+
+    @Override
+    public Integer put(String key, Integer value) {
+      throw new UnsupportedOperationException("shared column layout");
+    }
+
+    @Override
+    public void putAll(Map<? extends String, ? extends Integer> m) {
+      throw new UnsupportedOperationException("shared column layout");
+    }
+
+    @Override
+    public Integer putIfAbsent(String key, Integer value) {
+      throw new UnsupportedOperationException("shared column layout");
+    }
+
+    @Override
+    public Integer remove(Object key) {
+      throw new UnsupportedOperationException("shared column layout");
+    }
+
+    @Override
+    public boolean remove(Object key, Object value) {
+      throw new UnsupportedOperationException("shared column layout");
+    }
+
+    @Override
+    public Integer replace(String key, Integer value) {
+      throw new UnsupportedOperationException("shared column layout");
+    }
+
+    @Override
+    public boolean replace(String key, Integer oldValue, Integer newValue) {
+      throw new UnsupportedOperationException("shared column layout");
+    }
+
+    @Override
+    public void clear() {
+      throw new UnsupportedOperationException("shared column layout");
+    }
+
+    @Override
+    public Set<String> keySet() {
+      return Collections.unmodifiableSet(super.keySet());
+    }
+
+    @Override
+    public Collection<Integer> values() {
+      return Collections.unmodifiableCollection(super.values());
+    }
+
+    @Override
+    public Set<Map.Entry<String, Integer>> entrySet() {
+      return Collections.unmodifiableSet(super.entrySet());
+    }
+  }
+
   /**
    * The rolesList expansion is very time consuming.
    * Implement a simple 1-deep cache and a
@@ -801,48 +966,66 @@ public final class ODKDatabaseImplUtils {
     db.execSQL(sqlCommand, sqlBindArgs);
   }
 
+  /**
+   * @param c
+   * @return the shared column layout of this cursor's result set
+   */
+  private ColumnLayout getColumnLayout(Cursor c) {
+    String[] columnNames = c.getColumnNames();
+    List<String> shape = Arrays.asList(columnNames);
+    synchronized (columnLayouts) {
+      ColumnLayout layout = columnLayouts.get(shape);
+      if (layout == null) {
+        // copy -- the cursor may hand back its own array
+        String[] elementKeyForIndex = columnNames.clone();
+        layout = new ColumnLayout(elementKeyForIndex);
+        columnLayouts.put(Arrays.asList(elementKeyForIndex), layout);
+      }
+      return layout;
+    }
+  }
+
   private BaseTable buildBaseTable(OdkConnectionInterface db, Cursor c, String tableId,
       boolean canCreateRow) {
+    // rawQuery() returns an SQLiteMemoryCursor that has already stepped through
+    // the entire result set, so this is only the time spent copying it into rows.
+    long startNanos = System.nanoTime();
+    try {
+      return buildBaseTableImpl(c, canCreateRow);
+    } finally {
+      ServiceCallMetrics.get().addPhase(ServiceCallMetrics.Phase.RESULT_BUILD,
+          System.nanoTime() - startNanos);
+    }
+  }
 
-    HashMap<String, Integer> mElementKeyToIndex = null;
-    String[] mElementKeyForIndex = null;
+  private BaseTable buildBaseTableImpl(Cursor c, boolean canCreateRow) {
 
     if (!c.moveToFirst()) {
 
       // Attempt to retrieve the columns from the cursor.
       // These may not be available if there were no rows returned.
       // It depends upon the cursor implementation.
+      ColumnLayout layout = null;
       try {
-        int columnCount = c.getColumnCount();
-        mElementKeyForIndex = new String[columnCount];
-        mElementKeyToIndex = new HashMap<>(columnCount);
-        int i;
-
-        for (i = 0; i < columnCount; ++i) {
-          String columnName = c.getColumnName(i);
-          mElementKeyForIndex[i] = columnName;
-          mElementKeyToIndex.put(columnName, i);
-        }
+        layout = getColumnLayout(c);
       } catch (Exception e) {
         // ignore.
       }
-
-      // if they were not available, declare an empty array.
-      if (mElementKeyForIndex == null) {
-        mElementKeyForIndex = new String[0];
-      }
       c.close();
 
       // we have no idea what the table should contain because it has no rows...
-      BaseTable table = new BaseTable(null, mElementKeyForIndex, mElementKeyToIndex, 0);
+      BaseTable table;
+      if (layout == null) {
+        // if they were not available, declare an empty array.
+        table = new BaseTable(null, new String[0], null, 0);
+      } else {
+        table = new BaseTable(null, layout.newElementKeyForIndex(), layout.elementKeyToIndex, 0);
+      }
       table.setEffectiveAccessCreateRow(canCreateRow);
       return table;
     }
 
     int rowCount = c.getCount();
-    int columnCount = c.getColumnCount();
-
-    BaseTable table = null;
 
     // These maps will map the element key to the corresponding index in
     // either data or metadata. If the user has defined a column with the
@@ -850,29 +1033,25 @@ public final class ODKDatabaseImplUtils {
     // array, dataKeyToIndex would then have a mapping of _my_data:5.
     // The sync_state column, if present at index 7, would have a mapping
     // in metadataKeyToIndex of sync_state:7.
-    mElementKeyForIndex = new String[columnCount];
-    mElementKeyToIndex = new HashMap<>(columnCount);
-
-    int i;
+    ColumnLayout layout = getColumnLayout(c);
+    int columnCount = layout.getColumnCount();
 
-    for (i = 0; i < columnCount; ++i) {
-      String columnName = c.getColumnName(i);
-      mElementKeyForIndex[i] = columnName;
-      mElementKeyToIndex.put(columnName, i);
-    }
-
-    table = new BaseTable(null, mElementKeyForIndex, mElementKeyToIndex, rowCount);
+    BaseTable table = new BaseTable(null, layout.newElementKeyForIndex(),
+        layout.elementKeyToIndex, rowCount);
 
-    String[] rowData = new String[columnCount];
     do {
-      // First get the user-defined data for this row.
-      for (i = 0; i < columnCount; i++) {
-        String value = CursorUtils.getIndexAsString(c, i);
-        rowData[i] = value;
+      // each Row takes ownership of its array; no scratch copy is needed.
+      String[] rowData = new String[columnCount];
+      for (int i = 0; i < columnCount; i++) {
+        int type = c.getType(i);
+        if (type == Cursor.FIELD_TYPE_STRING) {
+          rowData[i] = c.getString(i);
+        } else if (type != Cursor.FIELD_TYPE_NULL) {
+          rowData[i] = CursorUtils.getIndexAsString(c, i);
+        }
       }
 
-      Row nextRow = new Row(rowData.clone(), table);
-      table.addRow(nextRow);
+      table.addRow(new Row(rowData, table));
     } while (c.moveToNext());
     c.close();
 
@@ -1262,6 +1441,26 @@ public final class ODKDatabaseImplUtils {
    */
   public OrderedColumns getUserDefinedColumns(OdkConnectionInterface db,
       String tableId) {
+    TableDefinitionCache cache = db.getTableDefinitionCache();
+    String revId = getTableDefinitionRevId(db, tableId);
+    if (revId == null) {
+      // local-only tables have no table definition
+      cache.remove(tableId);
+      return queryUserDefinedColumns(db, tableId);
+    }
+
+    OrderedColumns columns = cache.getColumns(tableId, revId);
+    if (columns == null) {
+      columns = queryUserDefinedColumns(db, tableId);
+      // only cache if no other connection changed the definition while we were reading
+      if (revId.equals(getTableDefinitionRevId(db, tableId))) {
+        cache.putColumns(tableId, revId, columns);
+      }
+    }
+    return columns;
+  }
+
+  private OrderedColumns queryUserDefinedColumns(OdkConnectionInterface db, String tableId) {
     ArrayList<Column> userDefinedColumns = new ArrayList<Column>();
     String selection = K_COLUMN_DEFS_TABLE_ID_EQUALS_PARAM;
     Object[] selectionArgs = { tableId };
@@ -1339,47 +1538,42 @@ public final class ODKDatabaseImplUtils {
    * @return
    */
   public int getTableHealth(OdkConnectionInterface db, String tableId) {
-    StringBuilder b = new StringBuilder();
-    b.append("SELECT SUM(case when _savepoint_type is null then 1 else 0 end) as checkpoints,")
-        .append("SUM(case when _conflict_type is not null then 1 else 0 end) as conflicts,")
-        .append("SUM(case when _sync_state is 'synced' then 0 when _sync_state is "
-            + "'synced_pending_files' then 0 else 1 end) as changes FROM ")
-        .append(tableId);
-
-    Cursor c = null;
-    try {
-      c = db.rawQuery(b.toString(), null);
-      Long checkpoints = null;
-      Long conflicts = null;
-      Long changes = null;
-      if (c != null) {
-        if (c.moveToFirst()) {
-          int idxCheckpoints = c.getColumnIndex("checkpoints");
-          int idxConflicts = c.getColumnIndex("conflicts");
-          int idxChanges = c.getColumnIndex("changes");
-          checkpoints = CursorUtils.getIndexAsType(c, Long.class, idxCheckpoints);
-          conflicts = CursorUtils.getIndexAsType(c, Long.class, idxConflicts);
-          changes = CursorUtils.getIndexAsType(c, Long.class, idxChanges);
-        }
-        c.close();
-      }
+    // the counters are maintained by triggers on the data table. They are
+    // installed when the table is created (or by the schema migration for
+    // older tables); otherwise, fall back to scanning the rows.
+    TableHealthUtils.Counts counts = TableHealthUtils.getCounts(db, tableId);
+    if (counts == null) {
+      counts = TableHealthUtils.computeCounts(db, tableId);
+    }
 
-      int outcome = CursorUtils.TABLE_HEALTH_IS_CLEAN;
-      if (checkpoints != null && checkpoints != 0) {
-        outcome = CursorUtils.setTableHealthHasCheckpoints(outcome);
-      }
-      if (conflicts != null && conflicts != 0) {
-        outcome = CursorUtils.setTableHealthHasConflicts(outcome);
-      }
-      if (changes != null && changes != 0) {
-        outcome = CursorUtils.setTableHealthHasChanges(outcome);
-      }
-      return outcome;
-    } finally {
-      if (c != null && !c.isClosed()) {
-        c.close();
-      }
+    int outcome = CursorUtils.TABLE_HEALTH_IS_CLEAN;
+    if (counts.checkpoints != 0) {
+      outcome = CursorUtils.setTableHealthHasCheckpoints(outcome);
     }
+    if (counts.conflicts != 0) {
+      outcome = CursorUtils.setTableHealthHasConflicts(outcome);
+    }
+    if (counts.changes != 0) {
+      outcome = CursorUtils.setTableHealthHasChanges(outcome);
+    }
+    return outcome;
+  }
+
+  /**
+   * Return the data revisions of the given tables. The data revision of a table
+   * increases whenever one of its rows is inserted, updated or deleted, so
+   * callers can compare it against a remembered value to decide whether
+   * to re-query the table.
+   *
+   * @param db
+   * @param tableIds
+   * @return map of tableId to data revision. Unknown tableIds are omitted.
+   */
+  public Map<String, Long> getTableDataRevisions(OdkConnectionInterface db,
+      List<String> tableIds) {
+    // the counters of every data table are installed when it is created
+    // (or by the schema migration for older tables)
+    return TableHealthUtils.getDataRevisions(db, tableIds);
   }
 
   /**
@@ -1463,6 +1657,9 @@ public final class ODKDatabaseImplUtils {
         db.delete(DatabaseConstants.COLUMN_DEFINITIONS_TABLE_NAME, whereClause, whereArgs);
       }
 
+      // Delete the health counters for the tableId
+      TableHealthUtils.deleteCounts(db, tableId);
+
       // Delete the uploads for the tableId
       {
         String uploadWhereClause = InstanceColumns.DATA_TABLE_TABLE_ID + " = ?";
@@ -1487,9 +1684,11 @@ public final class ODKDatabaseImplUtils {
     }
 
     // And delete the files from the SDCard...
+    // The table's directory (including its row attachments) can be very
+    // large; it is moved aside and removed in the background.
     String tableDir = ODKFileUtils.getTablesFolder(db.getAppName(), tableId);
     try {
-      ODKFileUtils.deleteDirectory(new File(tableDir));
+      BackgroundFileDeleter.get().deleteDirectory(db.getAppName(), new File(tableDir));
     } catch (IOException e1) {
       e1.printStackTrace();
       throw new IllegalStateException("Unable to delete the " + tableDir + " directory", e1);
@@ -1527,7 +1726,6 @@ public final class ODKDatabaseImplUtils {
           }
         });
 
-        ODKFileUtils.deleteDirectory(new File(tableDir));
         for (File f : files) {
           ODKFileUtils.deleteQuietly(f);
         }
@@ -1701,6 +1899,25 @@ public final class ODKDatabaseImplUtils {
     return revId;
   }
 
+  /**
+   * Assign a new revId to a table (or to all tables if tableId is null),
+   * essentially telling all caches of its metadata that they are dirty.
+   * This must follow any change to its column definitions or KVS entries.
+   *
+   * @param db
+   * @param tableId
+   */
+  private void updateTableDefinitionRevId(OdkConnectionInterface db, String tableId) {
+    TreeMap<String, Object> metadataRev = new TreeMap<String, Object>();
+    metadataRev.put(TableDefinitionsColumns.REV_ID, UUID.randomUUID().toString());
+    if (tableId == null) {
+      db.update(DatabaseConstants.TABLE_DEFS_TABLE_NAME, metadataRev, null, null);
+    } else {
+      db.update(DatabaseConstants.TABLE_DEFS_TABLE_NAME, metadataRev,
+          K_TABLE_DEFS_TABLE_ID_EQUALS_PARAM, new Object[] { tableId });
+    }
+  }
+
   /*
    * Build the start of a create table statement -- specifies all the metadata
    * columns. Caller must then add all the user-defined column definitions and
@@ -1907,6 +2124,9 @@ public final class ODKDatabaseImplUtils {
         deleteTableMetadata(db, e.tableId, e.partition, e.aspect, e.key);
       } else {
         db.replaceOrThrow(DatabaseConstants.KEY_VALUE_STORE_ACTIVE_TABLE_NAME, null, values);
+        if (isIndexedTableProperty(e.partition, e.key)) {
+          updatePropertyIndexes(db, e.tableId);
+        }
       }
 
       // Update the table definition table with a new revision ID, essentially telling all caches
@@ -1953,6 +2173,12 @@ public final class ODKDatabaseImplUtils {
         replaceTableMetadata(db, e);
       }
 
+      // the delete above may have removed index-bearing properties
+      updatePropertyIndexes(db, tableId);
+
+      // nor is it otherwise reflected in the revId
+      updateTableDefinitionRevId(db, tableId);
+
       if (!dbWithinTransaction) {
         db.setTransactionSuccessful();
       }
@@ -1997,6 +2223,12 @@ public final class ODKDatabaseImplUtils {
         replaceTableMetadata(db, e);
       }
 
+      // the delete above may have removed index-bearing properties
+      updatePropertyIndexes(db, tableId);
+
+      // nor is it otherwise reflected in the revId
+      updateTableDefinitionRevId(db, tableId);
+
       if (!dbWithinTransaction) {
         db.setTransactionSuccessful();
       }
@@ -2007,6 +2239,45 @@ public final class ODKDatabaseImplUtils {
     }
   }
 
+  private static boolean isIndexedTableProperty(String partition, String key) {
+    return KeyValueStoreConstants.PARTITION_TABLE.equals(partition)
+        && (KeyValueStoreConstants.TABLE_INDEX_COL.equals(key)
+        || KeyValueStoreConstants.TABLE_SORT_COL.equals(key)
+        || KeyValueStoreConstants.TABLE_GROUP_BY_COLS.equals(key));
+  }
+
+  /**
+   * Create, rebuild or drop the indexes declared through the index, sort and
+   * group-by table properties so that they match the current KVS content.
+   *
+   * @param db
+   * @param tableId
+   */
+  void updatePropertyIndexes(OdkConnectionInterface db, String tableId) {
+    if (!DataTableIndexUtils.tableExists(db, tableId)) {
+      return;
+    }
+
+    TreeSet<String> retainedColumns = new TreeSet<String>();
+    for (ColumnDefinition column : getUserDefinedColumns(db, tableId).getColumnDefinitions()) {
+      if (column.isUnitOfRetention()) {
+        retainedColumns.add(column.getElementKey());
+      }
+    }
+
+    DataTableIndexUtils.updatePropertyIndexes(db, tableId, retainedColumns,
+        getTablePropertyValue(db, tableId, KeyValueStoreConstants.TABLE_INDEX_COL),
+        getTablePropertyValue(db, tableId, KeyValueStoreConstants.TABLE_SORT_COL),
+        getTablePropertyValue(db, tableId, KeyValueStoreConstants.TABLE_GROUP_BY_COLS));
+  }
+
+  private String getTablePropertyValue(OdkConnectionInterface db, String tableId, String key) {
+    List<KeyValueStoreEntry> entries = getTableMetadata(db, tableId,
+        KeyValueStoreConstants.PARTITION_TABLE, KeyValueStoreConstants.ASPECT_DEFAULT, key)
+        .getEntries();
+    return entries.isEmpty() ? null : entries.get(0).value;
+  }
+
   /**
    * The deletion filter includes all non-null arguments. If all arguments
    * (except the db) are null, then all properties are removed.
@@ -2057,6 +2328,13 @@ public final class ODKDatabaseImplUtils {
       db.delete(DatabaseConstants.KEY_VALUE_STORE_ACTIVE_TABLE_NAME, b.toString(),
           selArgs.toArray(new String[selArgs.size()]));
 
+      updateTableDefinitionRevId(db, tableId);
+
+      if (tableId != null && (partition == null || key == null
+          || isIndexedTableProperty(partition, key))) {
+        updatePropertyIndexes(db, tableId);
+      }
+
       if (!dbWithinTransaction) {
         db.setTransactionSuccessful();
       }
@@ -2080,9 +2358,57 @@ public final class ODKDatabaseImplUtils {
   public TableMetaDataEntries getTableMetadata(OdkConnectionInterface db, String tableId,
       String partition, String aspect, String key) {
 
-    TableMetaDataEntries metadata = new TableMetaDataEntries(tableId,
-        getTableDefinitionRevId(db, tableId));
+    if (tableId == null) {
+      TableMetaDataEntries metadata = new TableMetaDataEntries(null,
+          getTableDefinitionRevId(db, null));
+      for (KeyValueStoreEntry e : queryTableMetadata(db, null, partition, aspect, key)) {
+        metadata.addEntry(e);
+      }
+      return metadata;
+    }
+
+    TableDefinitionCache cache = db.getTableDefinitionCache();
+    String revId = getTableDefinitionRevId(db, tableId);
+    TableMetaDataEntries metadata = new TableMetaDataEntries(tableId, revId);
+    if (revId == null) {
+      cache.remove(tableId);
+      for (KeyValueStoreEntry e : queryTableMetadata(db, tableId, partition, aspect, key)) {
+        metadata.addEntry(e);
+      }
+      return metadata;
+    }
+
+    // the cache holds all the entries of the table; filter them here
+    List<KeyValueStoreEntry> entries = cache.getMetadata(tableId, revId);
+    if (entries == null) {
+      entries = queryTableMetadata(db, tableId, null, null, null);
+      // only cache if no other connection changed the metadata while we were reading
+      if (revId.equals(getTableDefinitionRevId(db, tableId))) {
+        cache.putMetadata(tableId, revId, entries);
+      }
+    }
+    for (KeyValueStoreEntry e : entries) {
+      if ((partition == null || partition.equals(e.partition))
+          && (aspect == null || aspect.equals(e.aspect))
+          && (key == null || key.equals(e.key))) {
+        // callers may modify the entries they are given
+        KeyValueStoreEntry copy = new KeyValueStoreEntry();
+        copy.tableId = e.tableId;
+        copy.partition = e.partition;
+        copy.aspect = e.aspect;
+        copy.key = e.key;
+        copy.type = e.type;
+        copy.value = e.value;
+        metadata.addEntry(copy);
+      }
+    }
+    return metadata;
+  }
+
+  private List<KeyValueStoreEntry> queryTableMetadata(OdkConnectionInterface db, String tableId,
+      String partition, String aspect, String key) {
 
+    ArrayList<KeyValueStoreEntry> entries = new ArrayList<KeyValueStoreEntry>();
     Cursor c = null;
     try {
       StringBuilder b = new StringBuilder();
@@ -2131,7 +2457,7 @@ public final class ODKDatabaseImplUtils {
           e.key = c.getString(idxKey);
           e.type = c.getString(idxType);
           e.value = c.getString(idxValue);
-          metadata.addEntry(e);
+          entries.add(e);
         } while (c.moveToNext());
       }
     } finally {
@@ -2139,7 +2465,7 @@ public final class ODKDatabaseImplUtils {
         c.close();
       }
     }
-    return metadata;
+    return entries;
   }
 
   /**
@@ -2148,8 +2474,9 @@ public final class ODKDatabaseImplUtils {
    * imported CSV files.
    *
    * @param db
+   * @param tableId the table whose metadata was imported
    */
-  private void enforceTypesTableMetadata(OdkConnectionInterface db) {
+  private void enforceTypesTableMetadata(OdkConnectionInterface db, String tableId) {
 
     boolean dbWithinTransaction = db.inTransaction();
     try {
@@ -2164,15 +2491,18 @@ public final class ODKDatabaseImplUtils {
           .append(" SET ").append(KeyValueStoreColumns.VALUE_TYPE).append(S_EQUALS_PARAM)
           .append(K_WHERE)
           .append(K_KVS_PARTITION_EQUALS_PARAM).append(S_AND)
-          .append(K_KVS_KEY_EQUALS_PARAM);
+          .append(K_KVS_KEY_EQUALS_PARAM).append(S_AND)
+          .append(K_KVS_TABLE_ID_EQUALS_PARAM);
       //@formatter:on
 
       String sql = b.toString();
 
       for (Object[] fields : knownKVSValueTypeRestrictions) {
-        db.execSQL(sql, fields);
+        db.execSQL(sql, new Object[] { fields[0], fields[1], fields[2], tableId });
       }
 
+      updateTableDefinitionRevId(db, tableId);
+
       if (!dbWithinTransaction) {
         db.setTransactionSuccessful();
       }
@@ -2268,13 +2598,20 @@ public final class ODKDatabaseImplUtils {
     db.execSQL(createTableCmdWithCols.toString(), null);
 
     if (isSynchronized) {
-      // Create the metadata for the table - table def and KVS
-      createTableMetadata(db, tableId);
+      // index the metadata columns used by the per-row operations
+      DataTableIndexUtils.createMetadataIndexes(db, tableId);
+
+      // install the triggers that maintain the health counters
+      TableHealthUtils.initializeCounts(db, tableId);
 
       // Now need to call the function to write out all the column values
       for (ColumnDefinition column : orderedDefs.getColumnDefinitions()) {
         createNewColumnMetadata(db, tableId, column);
       }
+
+      // Create the metadata for the table - table def and KVS
+      // This assigns the revId, so it must follow the column definitions.
+      createTableMetadata(db, tableId);
     }
   }
 
@@ -2499,7 +2836,7 @@ public final class ODKDatabaseImplUtils {
       }
 
       replaceTableMetadata(db, tableId, metaData, (clear || created));
-      enforceTypesTableMetadata(db);
+      enforceTypesTableMetadata(db, tableId);
 
       if (!dbWithinTransaction) {
         db.setTransactionSuccessful();
@@ -2559,6 +2896,13 @@ public final class ODKDatabaseImplUtils {
    * sync'd to the server.</li>
    * </ul>
    *
+   * If the caller is not within a transaction, the rows are rewritten in
+   * batches of K_BULK_TRANSITION_BATCH_SIZE rows, each committed in its own
+   * transaction with a passive WAL checkpoint in between, so that a large
+   * table neither holds the write lock nor grows the WAL for the duration of
+   * the whole transition. The transition is idempotent, so an interrupted
+   * run is simply resumed by calling this again.
+   *
    * @param db
    * @param tableId
    */
@@ -2568,11 +2912,10 @@ public final class ODKDatabaseImplUtils {
 
     // remove server conflicting rows
     b.setLength(0);
-    b.append("DELETE FROM ").append(tableId).append(K_WHERE)
-        .append(DataTableColumns.SYNC_STATE).append(S_EQUALS_PARAM).append(S_AND)
+    b.append(DataTableColumns.SYNC_STATE).append(S_EQUALS_PARAM).append(S_AND)
         .append(DataTableColumns.CONFLICT_TYPE).append(" IN (?, ?)");
 
-    String sqlConflictingServer = b.toString();
+    String whereConflictingServer = b.toString();
     //@formatter:off
     String argsConflictingServer[] = {
         SyncState.in_conflict.name(),
@@ -2581,76 +2924,107 @@ public final class ODKDatabaseImplUtils {
       };
     //@formatter:on
 
-    // update local delete conflicts to deletes
     b.setLength(0);
-    //@formatter:off
-    b.append("UPDATE ").append(tableId).append(" SET ")
-      .append(DataTableColumns.SYNC_STATE).append(S_EQUALS_PARAM).append(", ")
-      .append(DataTableColumns.CONFLICT_TYPE).append(" = null").append(K_WHERE)
-      .append(DataTableColumns.CONFLICT_TYPE).append(S_EQUALS_PARAM);
-    //@formatter:on
+    b.append("DELETE FROM ").append(tableId);
 
-    String sqlConflictingLocalDeleting = b.toString();
-    //@formatter:off
-    String argsConflictingLocalDeleting[] = {
-        SyncState.deleted.name(),
-        Integer.toString(ConflictType.LOCAL_DELETED_OLD_VALUES)
-      };
-    //@formatter:on
+    String sqlConflictingServer = b.toString();
 
-    // update local update conflicts to updates
-    String sqlConflictingLocalUpdating = sqlConflictingLocalDeleting;
-    //@formatter:off
-    String argsConflictingLocalUpdating[] = {
-        SyncState.changed.name(),
-        Integer.toString(ConflictType.LOCAL_UPDATED_UPDATED_VALUES)
-      };
-    //@formatter:on
+    // in one pass:
+    //   update local delete conflicts to deletes
+    //   update local update conflicts to updates
+    //   reset all 'rest' (synced and synced_pending_files) rows to 'insert'
+    b.setLength(0);
+    b.append(DataTableColumns.CONFLICT_TYPE).append(" IN (?, ?) OR ")
+        .append(DataTableColumns.SYNC_STATE).append(" IN (?, ?)");
+
+    String whereLocalAndRest = b.toString();
 
-    // reset all 'rest' rows to 'insert'
     b.setLength(0);
     //@formatter:off
     b.append("UPDATE ").append(tableId).append(" SET ")
-      .append(DataTableColumns.SYNC_STATE).append(S_EQUALS_PARAM).append(K_WHERE)
-      .append(DataTableColumns.SYNC_STATE).append(S_EQUALS_PARAM);
-    //@formatter:on
-
-    String sqlRest = b.toString();
-    //@formatter:off
-    String argsRest[] = {
-        SyncState.new_row.name(),
-        SyncState.synced.name()
-      };
+      .append(DataTableColumns.SYNC_STATE).append(" = CASE")
+        .append(" WHEN ").append(DataTableColumns.CONFLICT_TYPE).append(" = ? THEN ?")
+        .append(" WHEN ").append(DataTableColumns.CONFLICT_TYPE).append(" = ? THEN ?")
+        .append(" ELSE ? END, ")
+      .append(DataTableColumns.CONFLICT_TYPE).append(" = CASE")
+        .append(" WHEN ").append(DataTableColumns.CONFLICT_TYPE).append(" IN (?, ?) THEN null")
+        .append(" ELSE ").append(DataTableColumns.CONFLICT_TYPE).append(" END");
     //@formatter:on
 
-    String sqlRestPendingFiles = sqlRest;
+    String sqlLocalAndRest = b.toString();
     //@formatter:off
-    String argsRestPendingFiles[] = {
+    String argsLocalAndRest[] = {
+        Integer.toString(ConflictType.LOCAL_DELETED_OLD_VALUES),
+        SyncState.deleted.name(),
+        Integer.toString(ConflictType.LOCAL_UPDATED_UPDATED_VALUES),
+        SyncState.changed.name(),
         SyncState.new_row.name(),
+        Integer.toString(ConflictType.LOCAL_DELETED_OLD_VALUES),
+        Integer.toString(ConflictType.LOCAL_UPDATED_UPDATED_VALUES),
+        // where clause
+        Integer.toString(ConflictType.LOCAL_DELETED_OLD_VALUES),
+        Integer.toString(ConflictType.LOCAL_UPDATED_UPDATED_VALUES),
+        SyncState.synced.name(),
         SyncState.synced_pending_files.name()
       };
     //@formatter:on
 
-    boolean dbWithinTransaction = db.inTransaction();
-    try {
-      if (!dbWithinTransaction) {
-        db.beginTransactionNonExclusive();
+    if (!db.inTransaction()) {
+      WalCheckpointScheduler scheduler = db.getWalCheckpointScheduler();
+      scheduler.beginBulkWrite();
+      try {
+        executeInBatches(db, tableId, sqlConflictingServer, whereConflictingServer,
+            argsConflictingServer);
+        executeInBatches(db, tableId, sqlLocalAndRest, whereLocalAndRest, argsLocalAndRest);
+      } finally {
+        scheduler.endBulkWrite();
       }
+      return;
+    }
 
-      db.execSQL(sqlConflictingServer, argsConflictingServer);
-      db.execSQL(sqlConflictingLocalDeleting, argsConflictingLocalDeleting);
-      db.execSQL(sqlConflictingLocalUpdating, argsConflictingLocalUpdating);
-      db.execSQL(sqlRest, argsRest);
-      db.execSQL(sqlRestPendingFiles, argsRestPendingFiles);
+    db.execSQL(sqlConflictingServer + K_WHERE + whereConflictingServer, argsConflictingServer);
+    db.execSQL(sqlLocalAndRest + K_WHERE + whereLocalAndRest, argsLocalAndRest);
+  }
 
-      if (!dbWithinTransaction) {
+  /**
+   * Apply an UPDATE or DELETE statement to the rows of tableId matching the
+   * where clause, at most K_BULK_TRANSITION_BATCH_SIZE rows per transaction.
+   * The statement must remove the rows it is applied to from the where
+   * clause's result set (otherwise this never terminates).
+   * Must not be called within a transaction.
+   *
+   * @param db
+   * @param tableId
+   * @param sql          UPDATE or DELETE statement without a where clause
+   * @param whereClause
+   * @param bindArgs     arguments of the statement followed by those of the where clause
+   */
+  private void executeInBatches(OdkConnectionInterface db, String tableId, String sql,
+      String whereClause, Object[] bindArgs) {
+
+    StringBuilder b = new StringBuilder();
+    b.append(sql).append(K_WHERE).append("_ROWID_ IN (SELECT _ROWID_ FROM ").append(tableId)
+        .append(K_WHERE).append(whereClause).append(K_LIMIT)
+        .append(K_BULK_TRANSITION_BATCH_SIZE).append(")");
+    String sqlBatch = b.toString();
+
+    int changes;
+    do {
+      Cursor c = null;
+      db.beginTransactionNonExclusive();
+      try {
+        db.execSQL(sqlBatch, bindArgs);
+        c = db.rawQuery("SELECT changes()", null);
+        changes = (c != null && c.moveToFirst()) ? c.getInt(0) : 0;
         db.setTransactionSuccessful();
-      }
-    } finally {
-      if (!dbWithinTransaction) {
+      } finally {
+        if (c != null && !c.isClosed()) {
+          c.close();
+        }
         db.endTransaction();
       }
-    }
+      db.getWalCheckpointScheduler().checkpoint(db, WalCheckpointScheduler.Mode.PASSIVE);
+    } while (changes >= K_BULK_TRANSITION_BATCH_SIZE);
   }
 
   /**
@@ -2699,11 +3073,19 @@ public final class ODKDatabaseImplUtils {
       String schemaETag, String tableInstanceFilesUri) {
 
     boolean dbWithinTransaction = db.inTransaction();
+    if (!dbWithinTransaction) {
+      // rewrite the bulk of the rows in committed batches. The schemaETag is
+      // only updated once all rows have been transitioned, so if we are
+      // interrupted, the next sync repeats (resumes) this transition.
+      changeDataRowsToNewRowState(db, tableId);
+    }
+
     try {
       if (!dbWithinTransaction) {
         db.beginTransactionNonExclusive();
       }
 
+      // picks up any rows changed since the batches were committed
       changeDataRowsToNewRowState(db, tableId);
 
       privilegedUpdateTableETags(db, tableId, schemaETag, null);
@@ -3655,6 +4037,7 @@ public final class ODKDatabaseImplUtils {
       if (syncState == null) {
         // the rowId no longer exists (we deleted all checkpoints)
         shouldPhysicallyDelete = true;
+        deleteUploadsRecord(db, tableId, rowId);
 
       } else if (syncState == SyncState.new_row) {
         // we can safely remove this record from the database
@@ -3662,6 +4045,7 @@ public final class ODKDatabaseImplUtils {
 
         db.delete(tableId, whereClause, whereArgs);
         shouldPhysicallyDelete = true;
+        deleteUploadsRecord(db, tableId, rowId);
 
       } else if (syncState != SyncState.in_conflict) {
 
@@ -3788,6 +4172,9 @@ public final class ODKDatabaseImplUtils {
           c.close();
         }
       }
+      if (shouldPhysicallyDelete) {
+        deleteUploadsRecord(db, tableId, rowId);
+      }
 
       if (!dbWithinTransaction) {
         db.setTransactionSuccessful();
@@ -3842,40 +4229,151 @@ public final class ODKDatabaseImplUtils {
   }
 
   /**
-   * Delete any checkpoint rows for the given rowId in the tableId. Checkpoint
-   * rows are created by ODK Survey to hold intermediate values during the
-   * filling-in of the form. They act as restore points in the Survey, should
-   * the application die.
+   * Delete the checkpoint rows of many rowIds in the tableId, as
+   * deleteAllCheckpointRowsWithId does for one, with set-based statements
+   * (per K_MAX_ROW_IDS_PER_QUERY rowIds) within a single transaction. The
+   * table's security settings are read once; if the user may not change any
+   * of the checkpoint rows, nothing is deleted.
    *
    * @param db
    * @param tableId
-   * @param rowId
+   * @param rowIds
    * @param activeUser
    * @param rolesList
    * @throws ActionNotAuthorizedException
    */
-  public void deleteLastCheckpointRowWithId(OdkConnectionInterface db,
-      String tableId, String rowId, String activeUser, String rolesList)
+  public void deleteAllCheckpointRowsWithIds(OdkConnectionInterface db,
+      String tableId, List<String> rowIds, String activeUser, String rolesList)
       throws ActionNotAuthorizedException {
-    StringBuilder b = new StringBuilder();
-    b.append(K_DATATABLE_ID_EQUALS_PARAM).append(S_AND)
-        .append(DataTableColumns.SAVEPOINT_TYPE).append(S_IS_NULL).append(S_AND)
-        .append(DataTableColumns.SAVEPOINT_TIMESTAMP).append(" IN (SELECT MAX(")
-             .append(DataTableColumns.SAVEPOINT_TIMESTAMP).append(") FROM ").append(tableId)
-           .append(K_WHERE).append(K_DATATABLE_ID_EQUALS_PARAM).append(")");
 
-    rawCheckpointDeleteDataInTable(db, tableId, rowId,
-        b.toString(), new Object[] { rowId, rowId }, activeUser, rolesList);
-  }
+    ArrayList<String> removedRowIds = new ArrayList<String>();
 
-  /**
-   * Update all rows for the given rowId to SavepointType 'INCOMPLETE' and
-   * remove all but the most recent row. When used with a rowId that has
-   * checkpoints, this updates to the most recent checkpoint and removes any
-   * earlier checkpoints, incomplete or complete savepoints. Otherwise, it has
-   * the general effect of resetting the rowId to an INCOMPLETE state.
-   *
-   * @param db
+    boolean dbWithinTransaction = db.inTransaction();
+    try {
+      if (!dbWithinTransaction) {
+        db.beginTransactionNonExclusive();
+      }
+
+      List<String> rolesArray = getRolesArray(rolesList);
+      TableSecuritySettings tss = getTableSecuritySettings(db, tableId);
+
+      StringBuilder b = new StringBuilder();
+      b.append("SELECT ").append(DataTableColumns.SYNC_STATE).append(", ")
+          .append(DataTableColumns.DEFAULT_ACCESS).append(", ")
+          .append(DataTableColumns.ROW_OWNER).append(", ")
+          .append(DataTableColumns.GROUP_READ_ONLY).append(", ")
+          .append(DataTableColumns.GROUP_MODIFY).append(", ")
+          .append(DataTableColumns.GROUP_PRIVILEGED).append(" FROM ").append(tableId)
+          .append(K_WHERE).append(DataTableColumns.SAVEPOINT_TYPE).append(S_IS_NULL)
+          .append(S_AND);
+      String checkpointQuery = b.toString();
+      for (int start = 0; start < rowIds.size(); start += K_MAX_ROW_IDS_PER_QUERY) {
+        List<String> chunk = rowIds
+            .subList(start, Math.min(start + K_MAX_ROW_IDS_PER_QUERY, rowIds.size()));
+        b.setLength(0);
+        b.append(checkpointQuery);
+        appendRowIdInList(b, chunk.size());
+        Cursor c = null;
+        try {
+          c = db.rawQuery(b.toString(), chunk.toArray());
+          if (c.moveToFirst()) {
+            do {
+              tss.allowRowChange(activeUser, rolesArray, c.getString(0),
+                  c.isNull(1) ? null : c.getString(1), c.isNull(2) ? null : c.getString(2),
+                  c.isNull(3) ? null : c.getString(3), c.isNull(4) ? null : c.getString(4),
+                  c.isNull(5) ? null : c.getString(5), RowChange.CHANGE_ROW);
+            } while (c.moveToNext());
+          }
+        } finally {
+          if (c != null && !c.isClosed()) {
+            c.close();
+          }
+        }
+      }
+
+      executeForRowIds(db, "DELETE FROM " + tableId,
+          DataTableColumns.SAVEPOINT_TYPE + S_IS_NULL, new Object[0], rowIds);
+
+      // the rows with no records left are entirely removed -- delete their attachments
+      HashSet<String> remaining = new HashSet<String>();
+      b.setLength(0);
+      b.append("SELECT DISTINCT ").append(DataTableColumns.ID).append(" FROM ").append(tableId)
+          .append(K_WHERE);
+      String remainingQuery = b.toString();
+      for (int start = 0; start < rowIds.size(); start += K_MAX_ROW_IDS_PER_QUERY) {
+        List<String> chunk = rowIds
+            .subList(start, Math.min(start + K_MAX_ROW_IDS_PER_QUERY, rowIds.size()));
+        b.setLength(0);
+        b.append(remainingQuery);
+        appendRowIdInList(b, chunk.size());
+        Cursor c = null;
+        try {
+          c = db.rawQuery(b.toString(), chunk.toArray());
+          if (c.moveToFirst()) {
+            do {
+              remaining.add(c.getString(0));
+            } while (c.moveToNext());
+          }
+        } finally {
+          if (c != null && !c.isClosed()) {
+            c.close();
+          }
+        }
+      }
+      for (String rowId : rowIds) {
+        if (!remaining.contains(rowId)) {
+          removedRowIds.add(rowId);
+          deleteUploadsRecord(db, tableId, rowId);
+        }
+      }
+
+      if (!dbWithinTransaction) {
+        db.setTransactionSuccessful();
+      }
+    } finally {
+      if (!dbWithinTransaction) {
+        db.endTransaction();
+      }
+    }
+
+    deleteInstanceFolders(db, tableId, removedRowIds);
+  }
+
+  /**
+   * Delete any checkpoint rows for the given rowId in the tableId. Checkpoint
+   * rows are created by ODK Survey to hold intermediate values during the
+   * filling-in of the form. They act as restore points in the Survey, should
+   * the application die.
+   *
+   * @param db
+   * @param tableId
+   * @param rowId
+   * @param activeUser
+   * @param rolesList
+   * @throws ActionNotAuthorizedException
+   */
+  public void deleteLastCheckpointRowWithId(OdkConnectionInterface db,
+      String tableId, String rowId, String activeUser, String rolesList)
+      throws ActionNotAuthorizedException {
+    StringBuilder b = new StringBuilder();
+    b.append(K_DATATABLE_ID_EQUALS_PARAM).append(S_AND)
+        .append(DataTableColumns.SAVEPOINT_TYPE).append(S_IS_NULL).append(S_AND)
+        .append(DataTableColumns.SAVEPOINT_TIMESTAMP).append(" IN (SELECT MAX(")
+             .append(DataTableColumns.SAVEPOINT_TIMESTAMP).append(") FROM ").append(tableId)
+           .append(K_WHERE).append(K_DATATABLE_ID_EQUALS_PARAM).append(")");
+
+    rawCheckpointDeleteDataInTable(db, tableId, rowId,
+        b.toString(), new Object[] { rowId, rowId }, activeUser, rolesList);
+  }
+
+  /**
+   * Update all rows for the given rowId to SavepointType 'INCOMPLETE' and
+   * remove all but the most recent row. When used with a rowId that has
+   * checkpoints, this updates to the most recent checkpoint and removes any
+   * earlier checkpoints, incomplete or complete savepoints. Otherwise, it has
+   * the general effect of resetting the rowId to an INCOMPLETE state.
+   *
+   * @param db
    * @param tableId
    * @param rowId
    */
@@ -3959,6 +4457,46 @@ public final class ODKDatabaseImplUtils {
     }
   }
 
+  /**
+   * Update all rows for each of the given rowIds to SavepointType 'COMPLETE'
+   * and remove all but the most recent row of each, as
+   * saveAsCompleteMostRecentCheckpointRowWithId does for one rowId, with
+   * set-based statements (per K_MAX_ROW_IDS_PER_QUERY rowIds) within a single
+   * transaction.
+   *
+   * @param db
+   * @param tableId
+   * @param rowIds
+   */
+  public void saveAsCompleteMostRecentCheckpointRowsWithIds(OdkConnectionInterface db,
+      String tableId, List<String> rowIds) {
+
+    boolean dbWithinTransaction = db.inTransaction();
+    try {
+      if (!dbWithinTransaction) {
+        db.beginTransactionNonExclusive();
+      }
+
+      executeForRowIds(db, "UPDATE " + tableId + " SET " + DataTableColumns.SAVEPOINT_TYPE
+          + S_EQUALS_PARAM, null, new Object[] { SavepointTypeManipulator.complete() }, rowIds);
+
+      StringBuilder b = new StringBuilder();
+      b.append(DataTableColumns.SAVEPOINT_TIMESTAMP).append(" NOT IN (SELECT MAX(M.")
+          .append(DataTableColumns.SAVEPOINT_TIMESTAMP).append(") FROM ").append(tableId)
+          .append(" AS M WHERE M.").append(DataTableColumns.ID).append("=").append(tableId)
+          .append(".").append(DataTableColumns.ID).append(")");
+      executeForRowIds(db, "DELETE FROM " + tableId, b.toString(), new Object[0], rowIds);
+
+      if (!dbWithinTransaction) {
+        db.setTransactionSuccessful();
+      }
+    } finally {
+      if (!dbWithinTransaction) {
+        db.endTransaction();
+      }
+    }
+  }
+
   /**
    * Update the given rowId with the values in the cvValues. If certain metadata
    * values are not specified in the cvValues, then suitable default values may
@@ -4561,6 +5099,486 @@ public final class ODKDatabaseImplUtils {
     }
   }
 
+  /**
+   * Resolve the server conflicts on many rows by taking the local changes.
+   * <p/>
+   * The rows are resolved with a few set-based UPDATE and DELETE statements
+   * (per K_MAX_ROW_IDS_PER_QUERY rowIds) within a single transaction. The
+   * conflict records of all the rows and the table's security settings are
+   * read once; rows the user is not permitted to change (or delete) are left
+   * in conflict and reported back. If any requested row does not have both a
+   * local and a server conflict record, nothing is changed.
+   *
+   * @param db
+   * @param tableId
+   * @param rowIds     the rows to resolve, or null to resolve every row in conflict
+   * @param activeUser
+   * @param rolesList
+   * @param locale
+   * @return rowId -TO- reason, for the rows that were not resolved because the
+   * user does not have the necessary privileges
+   */
+  public Map<String, String> resolveServerConflictTakeLocalRowsWithIds(OdkConnectionInterface db,
+      String tableId, List<String> rowIds, String activeUser, String rolesList, String locale) {
+
+    LinkedHashMap<String, String> unauthorized = new LinkedHashMap<String, String>();
+
+    boolean inTransaction = false;
+    try {
+
+      inTransaction = db.inTransaction();
+      if (!inTransaction) {
+        db.beginTransactionNonExclusive();
+      }
+
+      Map<String, ConflictPair> conflicts = getServerConflictPairs(db, tableId, rowIds);
+
+      List<String> rolesArray = getRolesArray(rolesList);
+      TableSecuritySettings tss = getTableSecuritySettings(db, tableId);
+
+      ArrayList<String> updatedRowIds = new ArrayList<String>();
+      ArrayList<String> deletedRowIds = new ArrayList<String>();
+      for (ConflictPair pair : conflicts.values()) {
+        try {
+          // the local record is restored to the 'changed' state and then updated
+          tss.allowRowChange(activeUser, rolesArray, SyncState.changed.name(),
+              (pair.localAccess[0] == null) ? DataTableColumns.DEFAULT_DEFAULT_ACCESS :
+                  pair.localAccess[0], pair.localAccess[1], pair.localAccess[2],
+              pair.localAccess[3], pair.localAccess[4], RowChange.CHANGE_ROW);
+          if (pair.localConflictType == ConflictType.LOCAL_DELETED_OLD_VALUES) {
+            // ... and then deleted, by which time it has the server's filter values
+            tss.allowRowChange(activeUser, rolesArray, SyncState.changed.name(),
+                pair.serverAccess[0], pair.serverAccess[1], pair.serverAccess[2],
+                pair.serverAccess[3], pair.serverAccess[4], RowChange.DELETE_ROW);
+            deletedRowIds.add(pair.rowId);
+          } else {
+            updatedRowIds.add(pair.rowId);
+          }
+        } catch (ActionNotAuthorizedException e) {
+          unauthorized.put(pair.rowId, e.getMessage());
+        }
+      }
+
+      String now = TableConstants.nanoSecondsFromMillis(
+          System.currentTimeMillis(), TableConstants.TIMESTAMP_LOCALE);
+
+      // Local updates: keep the local record and its values, but take the
+      // server's row ETag, filter values and savepoint timestamp and creator.
+      String[] fromServer = { DataTableColumns.ROW_ETAG, DataTableColumns.DEFAULT_ACCESS,
+          DataTableColumns.ROW_OWNER, DataTableColumns.GROUP_READ_ONLY,
+          DataTableColumns.GROUP_MODIFY, DataTableColumns.GROUP_PRIVILEGED };
+      StringBuilder b = new StringBuilder();
+      b.append("UPDATE ").append(tableId).append(" SET ");
+      for (String name : fromServer) {
+        b.append(name).append("=").append(serverValueSubquery(tableId, name)).append(", ");
+      }
+      b.append(DataTableColumns.SAVEPOINT_TIMESTAMP).append("=COALESCE(")
+          .append(serverValueSubquery(tableId, DataTableColumns.SAVEPOINT_TIMESTAMP))
+          .append(", ?), ")
+          .append(DataTableColumns.SAVEPOINT_CREATOR).append("=COALESCE(")
+          .append(serverValueSubquery(tableId, DataTableColumns.SAVEPOINT_CREATOR))
+          .append(", ?), ")
+          .append(DataTableColumns.CONFLICT_TYPE).append("=NULL, ")
+          .append(DataTableColumns.SYNC_STATE).append(S_EQUALS_PARAM);
+      executeForRowIds(db, b.toString(), DataTableColumns.CONFLICT_TYPE + S_EQUALS_PARAM,
+          new Object[] { now, activeUser, SyncState.changed.name(),
+              ConflictType.LOCAL_UPDATED_UPDATED_VALUES }, updatedRowIds);
+
+      executeForRowIds(db, "DELETE FROM " + tableId, K_SERVER_CONFLICT_TYPES, new Object[0],
+          updatedRowIds);
+
+      // Local deletes: every value is taken from the server, so drop the local
+      // record and mark the server record as deleted in its place.
+      executeForRowIds(db, "DELETE FROM " + tableId, DataTableColumns.CONFLICT_TYPE + S_EQUALS_PARAM,
+          new Object[] { ConflictType.LOCAL_DELETED_OLD_VALUES }, deletedRowIds);
+
+      b.setLength(0);
+      b.append("UPDATE ").append(tableId).append(" SET ")
+          .append(DataTableColumns.CONFLICT_TYPE).append("=NULL, ")
+          .append(DataTableColumns.SYNC_STATE).append(S_EQUALS_PARAM).append(", ")
+          .append(DataTableColumns.LOCALE).append("=COALESCE(")
+          .append(DataTableColumns.LOCALE).append(", ?), ")
+          .append(DataTableColumns.SAVEPOINT_TYPE).append("=COALESCE(")
+          .append(DataTableColumns.SAVEPOINT_TYPE).append(", ?), ")
+          .append(DataTableColumns.SAVEPOINT_TIMESTAMP).append(S_EQUALS_PARAM).append(", ")
+          .append(DataTableColumns.SAVEPOINT_CREATOR).append("=COALESCE(")
+          .append(DataTableColumns.SAVEPOINT_CREATOR).append(", ?)");
+      executeForRowIds(db, b.toString(), K_SERVER_CONFLICT_TYPES,
+          new Object[] { SyncState.deleted.name(), locale,
+          SavepointTypeManipulator.complete(), now, activeUser }, deletedRowIds);
+
+      if (!inTransaction) {
+        db.setTransactionSuccessful();
+      }
+    } finally {
+      if (db != null) {
+        if (!inTransaction) {
+          db.endTransaction();
+        }
+      }
+    }
+    return unauthorized;
+  }
+
+  /**
+   * Resolve the server conflicts on many rows by taking the server changes.
+   * This may delete local rows.
+   * <p/>
+   * The rows are resolved with a few set-based UPDATE and DELETE statements
+   * (per K_MAX_ROW_IDS_PER_QUERY rowIds) within a single transaction. As with
+   * resolveServerConflictTakeServerRowWithId, this is a privileged action. If
+   * any requested row does not have both a local and a server conflict record,
+   * nothing is changed.
+   *
+   * @param db
+   * @param tableId
+   * @param rowIds     the rows to resolve, or null to resolve every row in conflict
+   * @param activeUser
+   * @param locale
+   */
+  public void resolveServerConflictTakeServerRowsWithIds(OdkConnectionInterface db,
+      String tableId, List<String> rowIds, String activeUser, String locale) {
+
+    ArrayList<String> removedRowIds = new ArrayList<String>();
+
+    boolean inTransaction = false;
+    try {
+
+      inTransaction = db.inTransaction();
+      if (!inTransaction) {
+        db.beginTransactionNonExclusive();
+      }
+
+      OrderedColumns orderedColumns = getUserDefinedColumns(db, tableId);
+
+      Map<String, ConflictPair> conflicts = getServerConflictPairs(db, tableId, rowIds);
+
+      ArrayList<String> updatedRowIds = new ArrayList<String>();
+      for (ConflictPair pair : conflicts.values()) {
+        if (pair.serverConflictType == ConflictType.SERVER_DELETED_OLD_VALUES) {
+          removedRowIds.add(pair.rowId);
+        } else {
+          updatedRowIds.add(pair.rowId);
+        }
+      }
+
+      // Server deletes: remove every record of the row.
+      executeForRowIds(db, "DELETE FROM " + tableId, null, new Object[0], removedRowIds);
+
+      // Server updates: drop the local records and turn the server record into
+      // the (synced) local row. If the server row names any file attachments,
+      // they are fetched at the next sync.
+      executeForRowIds(db, "DELETE FROM " + tableId,
+          DataTableColumns.CONFLICT_TYPE + S_IS_NULL + " OR " + DataTableColumns.CONFLICT_TYPE
+              + " IN (?, ?)", new Object[] { ConflictType.LOCAL_DELETED_OLD_VALUES,
+              ConflictType.LOCAL_UPDATED_UPDATED_VALUES }, updatedRowIds);
+
+      StringBuilder hasUriFragments = new StringBuilder();
+      for (ColumnDefinition cd : orderedColumns.getColumnDefinitions()) {
+        if (cd.getType().getDataType() != ElementDataType.rowpath) {
+          // not a file attachment
+          continue;
+        }
+        if (hasUriFragments.length() != 0) {
+          hasUriFragments.append(" OR ");
+        }
+        hasUriFragments.append("(").append(cd.getElementKey()).append(S_IS_NOT_NULL)
+            .append(S_AND).append(cd.getElementKey()).append(" <> '')");
+      }
+
+      String now = TableConstants.nanoSecondsFromMillis(
+          System.currentTimeMillis(), TableConstants.TIMESTAMP_LOCALE);
+      StringBuilder b = new StringBuilder();
+      b.append("UPDATE ").append(tableId).append(" SET ")
+          .append(DataTableColumns.CONFLICT_TYPE).append("=NULL, ")
+          .append(DataTableColumns.SYNC_STATE).append("=");
+      if (hasUriFragments.length() == 0) {
+        b.append("?");
+      } else {
+        b.append("CASE WHEN ").append(hasUriFragments).append(" THEN ? ELSE ? END");
+      }
+      b.append(", ")
+          .append(DataTableColumns.LOCALE).append("=COALESCE(")
+          .append(DataTableColumns.LOCALE).append(", ?), ")
+          .append(DataTableColumns.SAVEPOINT_TYPE).append("=COALESCE(")
+          .append(DataTableColumns.SAVEPOINT_TYPE).append(", ?), ")
+          .append(DataTableColumns.SAVEPOINT_TIMESTAMP).append("=COALESCE(")
+          .append(DataTableColumns.SAVEPOINT_TIMESTAMP).append(", ?), ")
+          .append(DataTableColumns.SAVEPOINT_CREATOR).append("=COALESCE(")
+          .append(DataTableColumns.SAVEPOINT_CREATOR).append(", ?)");
+      ArrayList<Object> bindArgs = new ArrayList<Object>();
+      if (hasUriFragments.length() == 0) {
+        bindArgs.add(SyncState.synced.name());
+      } else {
+        bindArgs.add(SyncState.synced_pending_files.name());
+        bindArgs.add(SyncState.synced.name());
+      }
+      bindArgs.add(locale);
+      bindArgs.add(SavepointTypeManipulator.complete());
+      bindArgs.add(now);
+      bindArgs.add(activeUser);
+      bindArgs.add(ConflictType.SERVER_UPDATED_UPDATED_VALUES);
+      executeForRowIds(db, b.toString(), DataTableColumns.CONFLICT_TYPE + S_EQUALS_PARAM,
+          bindArgs.toArray(), updatedRowIds);
+
+      // as with resolveServerConflictTakeServerRowWithId, the local attachments
+      // of every resolved row are removed.
+      removedRowIds.addAll(updatedRowIds);
+
+      if (!inTransaction) {
+        db.setTransactionSuccessful();
+      }
+    } finally {
+      if (db != null) {
+        if (!inTransaction) {
+          db.endTransaction();
+        }
+      }
+    }
+
+    deleteInstanceFolders(db, tableId, removedRowIds);
+  }
+
+  /**
+   * Find the rows in conflict whose local and server versions do not differ in
+   * any user-defined field, and so could be resolved by taking the server changes
+   * without involving the user. This is a single self-join of the local conflict
+   * records against the server conflict records.
+   * <p/>
+   * A row qualifies if both sides updated it and every unit-of-retention column
+   * has the same text value (nulls compare equal), or if both sides deleted it.
+   *
+   * @param db
+   * @param tableId
+   * @param orderedColumns
+   * @return the rowIds of the metadata-only conflicts
+   */
+  public List<String> getServerConflictRowIdsWithoutUserDataChanges(OdkConnectionInterface db,
+      String tableId, OrderedColumns orderedColumns) {
+
+    StringBuilder b = new StringBuilder();
+    b.append("SELECT L.").append(DataTableColumns.ID).append(" FROM ").append(tableId)
+        .append(" AS L JOIN ").append(tableId).append(" AS S ON L.").append(DataTableColumns.ID)
+        .append(" = S.").append(DataTableColumns.ID).append(K_WHERE)
+        .append("(L.").append(DataTableColumns.CONFLICT_TYPE).append(S_EQUALS_PARAM)
+        .append(S_AND).append("S.").append(DataTableColumns.CONFLICT_TYPE).append(S_EQUALS_PARAM);
+    for (String elementKey : orderedColumns.getRetentionColumnNames()) {
+      // compare the text values, as the resolution screens do (e.g., 1 differs from 1.0)
+      b.append(S_AND).append("CAST(L.").append(elementKey).append(" AS TEXT) IS CAST(S.")
+          .append(elementKey).append(" AS TEXT)");
+    }
+    b.append(") OR (L.").append(DataTableColumns.CONFLICT_TYPE).append(S_EQUALS_PARAM)
+        .append(S_AND).append("S.").append(DataTableColumns.CONFLICT_TYPE).append(S_EQUALS_PARAM)
+        .append(")");
+    Object[] bindArgs = { ConflictType.LOCAL_UPDATED_UPDATED_VALUES,
+        ConflictType.SERVER_UPDATED_UPDATED_VALUES, ConflictType.LOCAL_DELETED_OLD_VALUES,
+        ConflictType.SERVER_DELETED_OLD_VALUES };
+
+    ArrayList<String> rowIds = new ArrayList<String>();
+    Cursor c = null;
+    try {
+      c = db.rawQuery(b.toString(), bindArgs);
+      if (c.moveToFirst()) {
+        int idxId = c.getColumnIndex(DataTableColumns.ID);
+        do {
+          rowIds.add(c.getString(idxId));
+        } while (c.moveToNext());
+      }
+    } finally {
+      if (c != null && !c.isClosed()) {
+        c.close();
+      }
+    }
+    return rowIds;
+  }
+
+  /**
+   * The conflict records of a row in conflict, as needed to resolve it in bulk.
+   * The access arrays hold the default access, row owner, group read-only,
+   * group modify and group privileged values of each record.
+   */
+  private static final class ConflictPair {
+    final String rowId;
+    int localConflictType = -1;
+    int serverConflictType = -1;
+    String[] localAccess;
+    String[] serverAccess;
+
+    ConflictPair(String rowId) {
+      this.rowId = rowId;
+    }
+  }
+
+  private static final String K_SERVER_CONFLICT_TYPES = DataTableColumns.CONFLICT_TYPE + " IN ("
+      + ConflictType.SERVER_DELETED_OLD_VALUES + ", "
+      + ConflictType.SERVER_UPDATED_UPDATED_VALUES + ")";
+
+  private static final String[] K_CONFLICT_PAIR_COLUMNS = { DataTableColumns.ID,
+      DataTableColumns.CONFLICT_TYPE, DataTableColumns.DEFAULT_ACCESS, DataTableColumns.ROW_OWNER,
+      DataTableColumns.GROUP_READ_ONLY, DataTableColumns.GROUP_MODIFY,
+      DataTableColumns.GROUP_PRIVILEGED };
+
+  /**
+   * Read the conflict type and filter values of the local and server conflict
+   * records of a set of rows (one query per K_MAX_ROW_IDS_PER_QUERY rowIds).
+   *
+   * @param db
+   * @param tableId
+   * @param rowIds  the rows of interest, or null for every row in conflict
+   * @return map, in rowIds order, from rowId to its conflict records
+   * @throws IllegalStateException if a requested row does not have exactly
+   *                               one local and one server conflict record
+   */
+  private Map<String, ConflictPair> getServerConflictPairs(OdkConnectionInterface db,
+      String tableId, List<String> rowIds) {
+
+    LinkedHashMap<String, ConflictPair> pairs = new LinkedHashMap<String, ConflictPair>();
+    StringBuilder b = new StringBuilder();
+    b.append("SELECT ");
+    for (int i = 0; i < K_CONFLICT_PAIR_COLUMNS.length; ++i) {
+      b.append((i == 0) ? "" : ", ").append(K_CONFLICT_PAIR_COLUMNS[i]);
+    }
+    b.append(" FROM ").append(tableId).append(K_WHERE).append(DataTableColumns.CONFLICT_TYPE)
+        .append(S_IS_NOT_NULL);
+    if (rowIds == null) {
+      readConflictPairs(db, pairs, b.toString(), null);
+    } else {
+      for (String rowId : rowIds) {
+        pairs.put(rowId, new ConflictPair(rowId));
+      }
+      for (int start = 0; start < rowIds.size(); start += K_MAX_ROW_IDS_PER_QUERY) {
+        List<String> chunk = rowIds
+            .subList(start, Math.min(start + K_MAX_ROW_IDS_PER_QUERY, rowIds.size()));
+        StringBuilder q = new StringBuilder(b);
+        q.append(S_AND);
+        appendRowIdInList(q, chunk.size());
+        readConflictPairs(db, pairs, q.toString(), chunk.toArray());
+      }
+    }
+
+    for (ConflictPair pair : pairs.values()) {
+      if (pair.localAccess == null || pair.serverAccess == null) {
+        throw new IllegalStateException(
+            "Did not find a server and local row when resolving conflicts for rowId: "
+                + pair.rowId);
+      }
+    }
+    return pairs;
+  }
+
+  private void readConflictPairs(OdkConnectionInterface db,
+      LinkedHashMap<String, ConflictPair> pairs, String sql, Object[] bindArgs) {
+    Cursor c = null;
+    try {
+      c = db.rawQuery(sql, bindArgs);
+      if (c.moveToFirst()) {
+        do {
+          String rowId = c.getString(0);
+          ConflictPair pair = pairs.get(rowId);
+          if (pair == null) {
+            pair = new ConflictPair(rowId);
+            pairs.put(rowId, pair);
+          }
+          int conflictType = c.getInt(1);
+          String[] access = new String[K_CONFLICT_PAIR_COLUMNS.length - 2];
+          for (int i = 0; i < access.length; ++i) {
+            access[i] = c.isNull(i + 2) ? null : c.getString(i + 2);
+          }
+          if ((conflictType == ConflictType.LOCAL_UPDATED_UPDATED_VALUES
+              || conflictType == ConflictType.LOCAL_DELETED_OLD_VALUES)
+              && pair.localAccess == null) {
+            pair.localConflictType = conflictType;
+            pair.localAccess = access;
+          } else if ((conflictType == ConflictType.SERVER_UPDATED_UPDATED_VALUES
+              || conflictType == ConflictType.SERVER_DELETED_OLD_VALUES)
+              && pair.serverAccess == null) {
+            pair.serverConflictType = conflictType;
+            pair.serverAccess = access;
+          } else {
+            throw new IllegalStateException(
+                "Unexpected conflict record when resolving conflicts for rowId: " + rowId);
+          }
+        } while (c.moveToNext());
+      }
+    } finally {
+      if (c != null && !c.isClosed()) {
+        c.close();
+      }
+    }
+  }
+
+  /**
+   * Execute an UPDATE or DELETE statement restricted to the given rowIds,
+   * K_MAX_ROW_IDS_PER_QUERY rowIds at a time.
+   *
+   * @param db
+   * @param sql         the statement, without a WHERE clause
+   * @param whereClause further restriction on the affected records, or null
+   * @param bindArgs    the bind args of sql and whereClause
+   * @param rowIds
+   */
+  private void executeForRowIds(OdkConnectionInterface db, String sql, String whereClause,
+      Object[] bindArgs, List<String> rowIds) {
+    for (int start = 0; start < rowIds.size(); start += K_MAX_ROW_IDS_PER_QUERY) {
+      List<String> chunk = rowIds
+          .subList(start, Math.min(start + K_MAX_ROW_IDS_PER_QUERY, rowIds.size()));
+      StringBuilder b = new StringBuilder(sql);
+      b.append(K_WHERE);
+      if (whereClause != null) {
+        b.append("(").append(whereClause).append(")").append(S_AND);
+      }
+      appendRowIdInList(b, chunk.size());
+      Object[] args = new Object[bindArgs.length + chunk.size()];
+      System.arraycopy(bindArgs, 0, args, 0, bindArgs.length);
+      for (int i = 0; i < chunk.size(); ++i) {
+        args[bindArgs.length + i] = chunk.get(i);
+      }
+      db.execSQL(b.toString(), args);
+    }
+  }
+
+  /**
+   * Append "_id IN (?, ...)" with count placeholders.
+   */
+  private static void appendRowIdInList(StringBuilder b, int count) {
+    b.append(DataTableColumns.ID).append(" IN (");
+    for (int i = 0; i < count; ++i) {
+      b.append((i == 0) ? "?" : ",?");
+    }
+    b.append(")");
+  }
+
+  /**
+   * @return a subquery selecting the named value of the server conflict record
+   * of the row being updated
+   */
+  private static String serverValueSubquery(String tableId, String name) {
+    return "(SELECT S." + name + " FROM " + tableId + " AS S WHERE S." + DataTableColumns.ID
+        + "=" + tableId + "." + DataTableColumns.ID + " AND S." + K_SERVER_CONFLICT_TYPES + ")";
+  }
+
+  /**
+   * Remove the attachments of rows that no longer exist.
+   *
+   * @param db
+   * @param tableId
+   * @param rowIds
+   */
+  private void deleteInstanceFolders(OdkConnectionInterface db, String tableId,
+      List<String> rowIds) {
+    for (String rowId : rowIds) {
+      File instanceFolder = new File(
+          ODKFileUtils.getInstanceFolder(db.getAppName(), tableId, rowId));
+      try {
+        BackgroundFileDeleter.get().deleteDirectory(db.getAppName(), instanceFolder);
+      } catch (Exception e) {
+        WebLogger.getLogger(db.getAppName())
+            .e(t, "Unable to delete this directory: " + instanceFolder.getAbsolutePath());
+        WebLogger.getLogger(db.getAppName()).printStackTrace(e);
+      }
+    }
+  }
+
   /**
    * Resolve the server conflict by taking the server changes.  This may delete the local row.
    *
@@ -5166,7 +6184,8 @@ public final class ODKDatabaseImplUtils {
             priorOwner, priorGroupReadOnly, priorGroupModify, priorGroupPrivileged, RowChange.CHANGE_ROW);
       }
 
-      db.insertOrThrow(tableId, null, cvDataTableVal);
+      DataTableWriteStatements.get(db, tableId, orderedColumns).insert(db, cvDataTableVal);
+      insertUploadsRecordIfAbsent(db, tableId, rowId);
 
       if (!dbWithinTransaction) {
         db.setTransactionSuccessful();
@@ -5780,12 +6799,87 @@ public final class ODKDatabaseImplUtils {
 
       cleanUpValuesMap(orderedColumns, cvDataTableVal);
 
+      DataTableWriteStatements statements =
+          DataTableWriteStatements.get(db, tableId, orderedColumns);
       if (update) {
-        db.update(tableId, cvDataTableVal, whereClause, whereArgs);
+        statements.update(db, cvDataTableVal, whereClause, whereArgs);
       } else {
-        db.insertOrThrow(tableId, null, cvDataTableVal);
+        statements.insert(db, cvDataTableVal);
+        insertUploadsRecordIfAbsent(db, tableId, rowId);
+      }
+
+      if (!dbWithinTransaction) {
+        db.setTransactionSuccessful();
+      }
+    } finally {
+      if (!dbWithinTransaction) {
+        db.endTransaction();
+      }
+    }
+  }
+
+  /**
+   * Ensure that the uploads table has a record for the given data row.
+   * Called whenever a row is inserted into a data table so that the
+   * InstanceProvider never needs to rescan the data table to find new rows.
+   * <p/>
+   * The record is kept for as long as any version of the row (checkpoint,
+   * conflict or otherwise) remains, so the publish status survives conflict
+   * resolution; see deleteUploadsRecord.
+   *
+   * @param db
+   * @param tableId
+   * @param rowId
+   */
+  private void insertUploadsRecordIfAbsent(OdkConnectionInterface db, String tableId,
+      String rowId) {
+    db.execSQL(K_INSERT_UPLOADS_RECORD_IF_ABSENT, new Object[] { tableId, rowId, tableId, rowId });
+  }
+
+  /**
+   * Remove the uploads-table record for a data row. Called once the last
+   * version of the row has been physically deleted from the data table, so
+   * that the uploads table does not accumulate records for deleted rows.
+   *
+   * @param db
+   * @param tableId
+   * @param rowId
+   */
+  private void deleteUploadsRecord(OdkConnectionInterface db, String tableId, String rowId) {
+    db.execSQL(K_DELETE_UPLOADS_RECORD, new Object[] { tableId, rowId });
+  }
+
+  /**
+   * Add uploads-table records for any rows in the data table that do not yet
+   * have one. Rows inserted through this class are tracked incrementally; this
+   * is only needed to pick up rows created before that tracking existed or
+   * inserted by other means (e.g., raw SQL).
+   *
+   * @param db
+   * @param tableId
+   */
+  public void reconcileUploadsTable(OdkConnectionInterface db, String tableId) {
+
+    StringBuilder b = new StringBuilder();
+    //@formatter:off
+    b.append("INSERT INTO ").append(DatabaseConstants.UPLOADS_TABLE_NAME).append(" (")
+        .append(InstanceColumns.DATA_TABLE_TABLE_ID).append(", ")
+        .append(InstanceColumns.DATA_INSTANCE_ID).append(") SELECT DISTINCT ?, T.")
+        .append(DataTableColumns.ID).append(" FROM ").append(tableId).append(" AS T")
+        .append(" WHERE NOT EXISTS (SELECT 1 FROM ").append(DatabaseConstants.UPLOADS_TABLE_NAME)
+        .append(" AS U WHERE U.").append(InstanceColumns.DATA_TABLE_TABLE_ID).append(S_EQUALS_PARAM)
+        .append(" AND U.").append(InstanceColumns.DATA_INSTANCE_ID).append("=T.")
+        .append(DataTableColumns.ID).append(")");
+    //@formatter:on
+
+    boolean dbWithinTransaction = db.inTransaction();
+    try {
+      if (!dbWithinTransaction) {
+        db.beginTransactionNonExclusive();
       }
 
+      db.execSQL(b.toString(), new Object[] { tableId, tableId });
+
       if (!dbWithinTransaction) {
         db.setTransactionSuccessful();
       }
@@ -5813,10 +6907,13 @@ public final class ODKDatabaseImplUtils {
     String whereClause = K_DATATABLE_ID_EQUALS_PARAM;
     Object[] whereArgs = { rowId };
 
-    TreeMap<String,Object> cvDataTableVal = new TreeMap<String,Object>();
-
-    cvDataTableVal.put(DataTableColumns.ROW_ETAG, rowETag);
-    cvDataTableVal.put(DataTableColumns.SYNC_STATE, state.name());
+    // fixed SQL text, so every call reuses the same prepared statement
+    StringBuilder u = new StringBuilder();
+    u.append("UPDATE ").append(tableId).append(" SET ")
+        .append(DataTableColumns.ROW_ETAG).append(S_EQUALS_PARAM).append(", ")
+        .append(DataTableColumns.SYNC_STATE).append(S_EQUALS_PARAM)
+        .append(K_WHERE).append(whereClause);
+    Object[] updateArgs = { rowETag, state.name(), rowId };
 
     boolean dbWithinTransaction = db.inTransaction();
     try {
@@ -5836,7 +6933,7 @@ public final class ODKDatabaseImplUtils {
         return false;
       }
 
-      db.update(tableId, cvDataTableVal, whereClause, whereArgs);
+      db.execSQL(u.toString(), updateArgs);
 
       if (!dbWithinTransaction) {
         db.setTransactionSuccessful();
@@ -5962,12 +7059,48 @@ public final class ODKDatabaseImplUtils {
 
   public static void initializeDatabase(OdkConnectionInterface db) {
     commonTableDefn(db);
+    SchemaMigrator.migrate(db);
+  }
+
+  /**
+   * Add the SUBMISSION_PARTS_COMPLETED column to the uploads table of a
+   * database created before it existed. The uploads table is created from
+   * InstanceColumns, which does not define it, so this also applies to new
+   * databases. Called by SchemaMigrator.
+   *
+   * @param db
+   */
+  static void addSubmissionPartsCompletedColumn(OdkConnectionInterface db) {
+    Cursor c = null;
+    try {
+      c = db.rawQuery("PRAGMA table_info(" + DatabaseConstants.UPLOADS_TABLE_NAME + ")", null);
+      if (c != null && c.moveToFirst()) {
+        int idxName = c.getColumnIndex("name");
+        do {
+          if (UploadsTableColumns.SUBMISSION_PARTS_COMPLETED.equals(c.getString(idxName))) {
+            return;
+          }
+        } while (c.moveToNext());
+      }
+    } finally {
+      if (c != null && !c.isClosed()) {
+        c.close();
+      }
+    }
+    db.execSQL("ALTER TABLE " + DatabaseConstants.UPLOADS_TABLE_NAME + " ADD COLUMN "
+        + UploadsTableColumns.SUBMISSION_PARTS_COMPLETED + " TEXT NULL", null);
   }
 
   private static void commonTableDefn(OdkConnectionInterface db) {
     WebLogger.getLogger(db.getAppName()).i("commonTableDefn", "starting");
     WebLogger.getLogger(db.getAppName()).i("commonTableDefn", DatabaseConstants.UPLOADS_TABLE_NAME);
     db.execSQL(InstanceColumns.getTableCreateSql(DatabaseConstants.UPLOADS_TABLE_NAME), null);
+    db.execSQL("CREATE INDEX IF NOT EXISTS " + K_UPLOADS_TABLE_INSTANCE_INDEX + " ON "
+        + DatabaseConstants.UPLOADS_TABLE_NAME + " (" + InstanceColumns.DATA_TABLE_TABLE_ID + ", "
+        + InstanceColumns.DATA_INSTANCE_ID + ")", null);
+    WebLogger.getLogger(db.getAppName())
+        .i("commonTableDefn", TableHealthUtils.TABLE_HEALTH_TABLE_NAME);
+    db.execSQL(TableHealthUtils.getTableCreateSql(), null);
     WebLogger.getLogger(db.getAppName()).i("commonTableDefn", DatabaseConstants.FORMS_TABLE_NAME);
     db.execSQL(FormsColumns.getTableCreateSql(DatabaseConstants.FORMS_TABLE_NAME), null);
     WebLogger.getLogger(db.getAppName())
@@ -0,0 +1,123 @@
+package org.opendatakit.services.database.utilities;
+
+import android.database.Cursor;
+
+import org.opendatakit.database.utilities.CursorUtils;
+import org.opendatakit.logging.WebLogger;
+import org.opendatakit.services.database.OdkConnectionInterface;
+
+import java.util.List;
+
+/**
+ * Upgrades existing databases in place.
+ * <p>
+ * The schema version is recorded in its own table because the SQLite
+ * user_version is already used to verify the database layer version.
+ * Each step is applied once, in order, within the transaction that
+ * initializes the database. To change the schema, add a step to
+ * applyStep() and bump CURRENT_SCHEMA_VERSION.
+ */
+public final class SchemaMigrator {
+
+  private static final String TAG = SchemaMigrator.class.getSimpleName();
+
+  public static final String SCHEMA_VERSION_TABLE_NAME = "_schema_version";
+  private static final String VERSION = "_version";
+
+  /**
+   * 1 -- metadata indexes on all synchronized data tables
+   * 2 -- indexes declared by the index, sort and group-by table properties
+   * 3 -- data revision column of the table health table
+   * 4 -- health counters (and the triggers maintaining them, replacing any
+   *      that predate the data revision) of all data tables
+   * 5 -- submission parts completed column of the uploads table
+   */
+  public static final int CURRENT_SCHEMA_VERSION = 5;
+
+  /**
+   * Methods are all static...
+   */
+  private SchemaMigrator() {
+  }
+
+  /**
+   * Apply any schema changes this database has not yet seen.
+   * Must be called within a transaction.
+   *
+   * @param db
+   */
+  public static void migrate(OdkConnectionInterface db) {
+    db.execSQL("CREATE TABLE IF NOT EXISTS " + SCHEMA_VERSION_TABLE_NAME + " ("
+        + VERSION + " INTEGER NOT NULL)", null);
+
+    int version = getSchemaVersion(db);
+    if (version > CURRENT_SCHEMA_VERSION) {
+      WebLogger.getLogger(db.getAppName()).w(TAG, "schema version " + version
+          + " is newer than this software supports (" + CURRENT_SCHEMA_VERSION + ")");
+      return;
+    }
+
+    while (version < CURRENT_SCHEMA_VERSION) {
+      ++version;
+      WebLogger.getLogger(db.getAppName()).i(TAG, "upgrading schema to version " + version);
+      applyStep(db, version);
+      setSchemaVersion(db, version);
+    }
+  }
+
+  private static void applyStep(OdkConnectionInterface db, int version) {
+    List<String> tableIds = ODKDatabaseImplUtils.get().getAllTableIds(db);
+    switch (version) {
+    case 1:
+      for (String tableId : tableIds) {
+        if (DataTableIndexUtils.tableExists(db, tableId)) {
+          DataTableIndexUtils.createMetadataIndexes(db, tableId);
+        }
+      }
+      break;
+    case 2:
+      for (String tableId : tableIds) {
+        ODKDatabaseImplUtils.get().updatePropertyIndexes(db, tableId);
+      }
+      break;
+    case 3:
+      TableHealthUtils.addDataRevisionColumn(db);
+      break;
+    case 4:
+      for (String tableId : tableIds) {
+        if (DataTableIndexUtils.tableExists(db, tableId)) {
+          TableHealthUtils.initializeCounts(db, tableId);
+        }
+      }
+      break;
+    case 5:
+      ODKDatabaseImplUtils.addSubmissionPartsCompletedColumn(db);
+      break;
+    default:
+      throw new IllegalStateException("no schema upgrade step for version " + version);
+    }
+  }
+
+  private static int getSchemaVersion(OdkConnectionInterface db) {
+    Cursor c = null;
+    try {
+      c = db.rawQuery("SELECT MAX(" + VERSION + ") AS " + VERSION + " FROM "
+          + SCHEMA_VERSION_TABLE_NAME, null);
+      if (c == null || !c.moveToFirst()) {
+        return 0;
+      }
+      Integer version = CursorUtils.getIndexAsType(c, Integer.class, c.getColumnIndex(VERSION));
+      return (version == null) ? 0 : version;
+    } finally {
+      if (c != null && !c.isClosed()) {
+        c.close();
+      }
+    }
+  }
+
+  private static void setSchemaVersion(OdkConnectionInterface db, int version) {
+    db.execSQL("DELETE FROM " + SCHEMA_VERSION_TABLE_NAME, null);
+    db.execSQL("INSERT INTO " + SCHEMA_VERSION_TABLE_NAME + " (" + VERSION + ") VALUES (?)",
+        new Object[] { version });
+  }
+}
@@ -0,0 +1,320 @@
+package org.opendatakit.services.database.utilities;
+
+import android.database.Cursor;
+
+import org.opendatakit.aggregate.odktables.rest.SyncState;
+import org.opendatakit.database.utilities.CursorUtils;
+import org.opendatakit.provider.DataTableColumns;
+import org.opendatakit.services.database.OdkConnectionInterface;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Per-table counts of checkpoints, conflicts, unsynced changes and rows.
+ * <p>
+ * The counts live in the TABLE_HEALTH_TABLE_NAME table and are kept current by
+ * insert, update and delete triggers on each data table, so reading the health
+ * of a table does not require scanning its rows.
+ * <p>
+ * The same triggers advance a per-table data revision on every insert, update
+ * and delete. The revision only ever increases, even across deleting and
+ * re-creating the table, so a caller that remembers it can tell whether any
+ * row has changed since it last looked.
+ */
+public final class TableHealthUtils {
+
+  public static final String TABLE_HEALTH_TABLE_NAME = "_table_health";
+
+  public static final String TABLE_ID = "_table_id";
+  public static final String CHECKPOINTS = "_checkpoints";
+  public static final String CONFLICTS = "_conflicts";
+  public static final String CHANGES = "_changes";
+  public static final String ROWS = "_rows";
+  public static final String DATA_REVISION = "_data_revision";
+
+  private static final String TRIGGER_INSERT_SUFFIX = "_health_ins";
+  private static final String TRIGGER_UPDATE_SUFFIX = "_health_upd";
+  private static final String TRIGGER_DELETE_SUFFIX = "_health_del";
+
+  /**
+   * Snapshot of the counters of one table.
+   */
+  public static final class Counts {
+    public final long checkpoints;
+    public final long conflicts;
+    public final long changes;
+    public final long rows;
+
+    Counts(long checkpoints, long conflicts, long changes, long rows) {
+      this.checkpoints = checkpoints;
+      this.conflicts = conflicts;
+      this.changes = changes;
+      this.rows = rows;
+    }
+  }
+
+  /**
+   * Methods are all static...
+   */
+  private TableHealthUtils() {
+  }
+
+  public static String getTableCreateSql() {
+    //@formatter:off
+    return "CREATE TABLE IF NOT EXISTS " + TABLE_HEALTH_TABLE_NAME + " ("
+        + TABLE_ID + " TEXT NOT NULL PRIMARY KEY, "
+        + CHECKPOINTS + " INTEGER NOT NULL DEFAULT 0, "
+        + CONFLICTS + " INTEGER NOT NULL DEFAULT 0, "
+        + CHANGES + " INTEGER NOT NULL DEFAULT 0, "
+        + ROWS + " INTEGER NOT NULL DEFAULT 0, "
+        + DATA_REVISION + " INTEGER NOT NULL DEFAULT 0)";
+    //@formatter:on
+  }
+
+  /**
+   * Add the data revision column to a health table created before it existed.
+   *
+   * @param db
+   */
+  public static void addDataRevisionColumn(OdkConnectionInterface db) {
+    Cursor c = null;
+    try {
+      c = db.rawQuery("PRAGMA table_info(" + TABLE_HEALTH_TABLE_NAME + ")", null);
+      if (c != null && c.moveToFirst()) {
+        int idxName = c.getColumnIndex("name");
+        do {
+          if (DATA_REVISION.equals(c.getString(idxName))) {
+            return;
+          }
+        } while (c.moveToNext());
+      }
+    } finally {
+      if (c != null && !c.isClosed()) {
+        c.close();
+      }
+    }
+    db.execSQL("ALTER TABLE " + TABLE_HEALTH_TABLE_NAME + " ADD COLUMN " + DATA_REVISION
+        + " INTEGER NOT NULL DEFAULT 0", null);
+  }
+
+  /**
+   * @param db
+   * @param tableId
+   * @return the counters of the table, or null if they have not been initialized.
+   */
+  public static Counts getCounts(OdkConnectionInterface db, String tableId) {
+    Cursor c = null;
+    try {
+      c = db.rawQuery("SELECT " + CHECKPOINTS + ", " + CONFLICTS + ", " + CHANGES + ", " + ROWS
+          + " FROM " + TABLE_HEALTH_TABLE_NAME + " WHERE " + TABLE_ID + "=?",
+          new Object[] { tableId });
+      if (c == null || !c.moveToFirst()) {
+        return null;
+      }
+      return new Counts(
+          CursorUtils.getIndexAsType(c, Long.class, c.getColumnIndex(CHECKPOINTS)),
+          CursorUtils.getIndexAsType(c, Long.class, c.getColumnIndex(CONFLICTS)),
+          CursorUtils.getIndexAsType(c, Long.class, c.getColumnIndex(CHANGES)),
+          CursorUtils.getIndexAsType(c, Long.class, c.getColumnIndex(ROWS)));
+    } finally {
+      if (c != null && !c.isClosed()) {
+        c.close();
+      }
+    }
+  }
+
+  /**
+   * Compute the counters of a data table by scanning its rows. Unlike
+   * initializeCounts(), this neither installs the triggers nor records the
+   * counters.
+   *
+   * @param db
+   * @param tableId
+   * @return the current counters of the table
+   */
+  public static Counts computeCounts(OdkConnectionInterface db, String tableId) {
+    Cursor c = null;
+    try {
+      c = db.rawQuery("SELECT COALESCE(SUM(" + isCheckpoint(tableId) + "), 0) AS " + CHECKPOINTS
+          + ", COALESCE(SUM(" + isConflict(tableId) + "), 0) AS " + CONFLICTS
+          + ", COALESCE(SUM(" + isChange(tableId) + "), 0) AS " + CHANGES
+          + ", COUNT(*) AS " + ROWS + " FROM " + tableId, null);
+      if (c == null || !c.moveToFirst()) {
+        return new Counts(0L, 0L, 0L, 0L);
+      }
+      return new Counts(
+          CursorUtils.getIndexAsType(c, Long.class, c.getColumnIndex(CHECKPOINTS)),
+          CursorUtils.getIndexAsType(c, Long.class, c.getColumnIndex(CONFLICTS)),
+          CursorUtils.getIndexAsType(c, Long.class, c.getColumnIndex(CHANGES)),
+          CursorUtils.getIndexAsType(c, Long.class, c.getColumnIndex(ROWS)));
+    } finally {
+      if (c != null && !c.isClosed()) {
+        c.close();
+      }
+    }
+  }
+
+  /**
+   * Read the data revisions of several tables with a single query.
+   *
+   * @param db
+   * @param tableIds the tables of interest, or null for all tables
+   * @return map of tableId to data revision. Tables whose counters have not
+   * been initialized are absent from the map.
+   */
+  public static Map<String, Long> getDataRevisions(OdkConnectionInterface db,
+      Collection<String> tableIds) {
+    Map<String, Long> revisions = new HashMap<String, Long>();
+    if (tableIds != null && tableIds.isEmpty()) {
+      return revisions;
+    }
+
+    StringBuilder b = new StringBuilder();
+    b.append("SELECT ").append(TABLE_ID).append(", ").append(DATA_REVISION)
+        .append(" FROM ").append(TABLE_HEALTH_TABLE_NAME);
+    Object[] bindArgs = null;
+    if (tableIds != null) {
+      bindArgs = tableIds.toArray(new Object[tableIds.size()]);
+      b.append(" WHERE ").append(TABLE_ID).append(" IN (");
+      for (int i = 0; i < bindArgs.length; ++i) {
+        if (i != 0) {
+          b.append(",");
+        }
+        b.append("?");
+      }
+      b.append(")");
+    }
+
+    Cursor c = null;
+    try {
+      c = db.rawQuery(b.toString(), bindArgs);
+      if (c == null) {
+        return revisions;
+      }
+      int idxTableId = c.getColumnIndex(TABLE_ID);
+      int idxRevision = c.getColumnIndex(DATA_REVISION);
+      while (c.moveToNext()) {
+        revisions.put(c.getString(idxTableId),
+            CursorUtils.getIndexAsType(c, Long.class, idxRevision));
+      }
+      return revisions;
+    } finally {
+      if (c != null && !c.isClosed()) {
+        c.close();
+      }
+    }
+  }
+
+  /**
+   * Install (or replace) the triggers that maintain the counters of this data
+   * table and (re)compute the counters from its current content. This is the
+   * only place that scans the data table. The data revision is advanced, never
+   * reset.
+   *
+   * @param db
+   * @param tableId
+   * @return the freshly computed counters
+   */
+  public static Counts initializeCounts(OdkConnectionInterface db, String tableId) {
+
+    boolean dbWithinTransaction = db.inTransaction();
+    try {
+      if (!dbWithinTransaction) {
+        db.beginTransactionNonExclusive();
+      }
+
+      String where = " WHERE " + TABLE_ID + "=" + quote(tableId) + ";";
+
+      db.execSQL("DROP TRIGGER IF EXISTS " + tableId + TRIGGER_INSERT_SUFFIX, null);
+      db.execSQL("CREATE TRIGGER " + tableId + TRIGGER_INSERT_SUFFIX
+          + " AFTER INSERT ON " + tableId + " BEGIN UPDATE " + TABLE_HEALTH_TABLE_NAME
+          + " SET " + delta("+", "NEW") + where + " END", null);
+
+      db.execSQL("DROP TRIGGER IF EXISTS " + tableId + TRIGGER_DELETE_SUFFIX, null);
+      db.execSQL("CREATE TRIGGER " + tableId + TRIGGER_DELETE_SUFFIX
+          + " AFTER DELETE ON " + tableId + " BEGIN UPDATE " + TABLE_HEALTH_TABLE_NAME
+          + " SET " + delta("-", "OLD") + where + " END", null);
+
+      db.execSQL("DROP TRIGGER IF EXISTS " + tableId + TRIGGER_UPDATE_SUFFIX, null);
+      db.execSQL("CREATE TRIGGER " + tableId + TRIGGER_UPDATE_SUFFIX
+          + " AFTER UPDATE ON " + tableId + " BEGIN UPDATE " + TABLE_HEALTH_TABLE_NAME
+          + " SET " + CHECKPOINTS + " = " + CHECKPOINTS + " + " + isCheckpoint("NEW")
+          + " - " + isCheckpoint("OLD") + ", "
+          + CONFLICTS + " = " + CONFLICTS + " + " + isConflict("NEW")
+          + " - " + isConflict("OLD") + ", "
+          + CHANGES + " = " + CHANGES + " + " + isChange("NEW")
+          + " - " + isChange("OLD") + ", "
+          + nextRevision() + where + " END", null);
+
+      // and compute the current values of the counters
+      db.execSQL("INSERT OR REPLACE INTO " + TABLE_HEALTH_TABLE_NAME + " ("
+          + TABLE_ID + ", " + CHECKPOINTS + ", " + CONFLICTS + ", " + CHANGES + ", " + ROWS
+          + ", " + DATA_REVISION + ") SELECT ?, "
+          + "COALESCE(SUM(" + isCheckpoint(tableId) + "), 0), "
+          + "COALESCE(SUM(" + isConflict(tableId) + "), 0), "
+          + "COALESCE(SUM(" + isChange(tableId) + "), 0), "
+          + "COUNT(*), "
+          + "COALESCE((SELECT " + DATA_REVISION + " FROM " + TABLE_HEALTH_TABLE_NAME
+          + " WHERE " + TABLE_ID + "=?), 0) + 1 FROM " + tableId,
+          new Object[] { tableId, tableId });
+
+      Counts counts = getCounts(db, tableId);
+
+      if (!dbWithinTransaction) {
+        db.setTransactionSuccessful();
+      }
+      return counts;
+    } finally {
+      if (!dbWithinTransaction) {
+        db.endTransaction();
+      }
+    }
+  }
+
+  /**
+   * Clear the counters of a table. Invoked when we delete a table
+   * (the triggers are dropped along with the table). The row is kept so
+   * that the data revision continues to advance if the table is re-created.
+   *
+   * @param db
+   * @param tableId
+   */
+  public static void deleteCounts(OdkConnectionInterface db, String tableId) {
+    db.execSQL("UPDATE " + TABLE_HEALTH_TABLE_NAME + " SET " + CHECKPOINTS + " = 0, "
+        + CONFLICTS + " = 0, " + CHANGES + " = 0, " + ROWS + " = 0, " + nextRevision()
+        + " WHERE " + TABLE_ID + "=?", new Object[] { tableId });
+  }
+
+  private static String delta(String op, String row) {
+    return CHECKPOINTS + " = " + CHECKPOINTS + " " + op + " " + isCheckpoint(row) + ", "
+        + CONFLICTS + " = " + CONFLICTS + " " + op + " " + isConflict(row) + ", "
+        + CHANGES + " = " + CHANGES + " " + op + " " + isChange(row) + ", "
+        + ROWS + " = " + ROWS + " " + op + " 1, "
+        + nextRevision();
+  }
+
+  private static String nextRevision() {
+    return DATA_REVISION + " = " + DATA_REVISION + " + 1";
+  }
+
+  private static String isCheckpoint(String row) {
+    return "(" + row + "." + DataTableColumns.SAVEPOINT_TYPE + " IS NULL)";
+  }
+
+  private static String isConflict(String row) {
+    return "(" + row + "." + DataTableColumns.CONFLICT_TYPE + " IS NOT NULL)";
+  }
+
+  private static String isChange(String row) {
+    // a null sync state counts as a change
+    return "(" + row + "." + DataTableColumns.SYNC_STATE + " IS NOT '" + SyncState.synced.name()
+        + "' AND " + row + "." + DataTableColumns.SYNC_STATE + " IS NOT '"
+        + SyncState.synced_pending_files.name() + "')";
+  }
+
+  private static String quote(String value) {
+    return "'" + value.replace("'", "''") + "'";
+  }
+}
@@ -17,7 +17,9 @@ package org.opendatakit.services.forms;
 import android.database.Cursor;
 
 import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonParser;
 import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.JsonToken;
 import com.fasterxml.jackson.databind.JsonMappingException;
 
 import org.opendatakit.database.utilities.CursorUtils;
@@ -60,7 +62,9 @@ public class FormInfo {
   // formDef.json file...
   public final File formDefFile;
   // the entire formDef, parsed using Jackson...
-  public final HashMap<String, Object> formDef;
+  // parsed on first use when constructed from the formDef.json file.
+  private HashMap<String, Object> formDef;
+  private final boolean hasFormDef;
 
   static final String FORMDEF_VALUE = "value";
 
@@ -76,6 +80,106 @@ public class FormInfo {
 
   static final String FORMDEF_FORM_ID = "form_id";
 
+  /**
+   * @return the entire formDef, parsed using Jackson, or null if this FormInfo
+   * was constructed from a Cursor without requesting the formDef.
+   * When constructed from the formDef.json file, the file is parsed on the first call.
+   */
+  public synchronized HashMap<String, Object> getFormDef() {
+    if (formDef == null && hasFormDef) {
+      formDef = parseFormDef(appName, formDefFile);
+    }
+    return formDef;
+  }
+
+  @SuppressWarnings("unchecked")
+  private static HashMap<String, Object> parseFormDef(String appName, File formDefFile) {
+    HashMap<String, Object> om = null;
+    try {
+      om = ODKFileUtils.mapper.readValue(formDefFile, HashMap.class);
+    } catch (JsonParseException e) {
+      WebLogger.getLogger(appName).printStackTrace(e);
+    } catch (JsonMappingException e) {
+      WebLogger.getLogger(appName).printStackTrace(e);
+    } catch (IOException e) {
+      WebLogger.getLogger(appName).printStackTrace(e);
+    }
+    if (om == null) {
+      throw new IllegalArgumentException("File is not a json file! "
+          + formDefFile.getAbsolutePath());
+    }
+    return om;
+  }
+
+  /**
+   * Stream through the formDef.json and materialize only the
+   * specification.settings section. Every other section (e.g., the prompt
+   * and choice trees) is skipped at the token level.
+   *
+   * @param appName
+   * @param formDefFile
+   * @return the settings section of the formDef
+   */
+  @SuppressWarnings("unchecked")
+  private static Map<String, Object> readSettings(String appName, File formDefFile) {
+    boolean foundSpecification = false;
+    Map<String, Object> settings = null;
+    JsonParser parser = null;
+    try {
+      parser = ODKFileUtils.mapper.getFactory().createParser(formDefFile);
+      if (parser.nextToken() != JsonToken.START_OBJECT) {
+        throw new IllegalArgumentException("File is not a json file! "
+            + formDefFile.getAbsolutePath());
+      }
+      while (parser.nextToken() == JsonToken.FIELD_NAME) {
+        String name = parser.getCurrentName();
+        JsonToken value = parser.nextToken();
+        if (!foundSpecification && FORMDEF_SPECIFICATION_SECTION.equals(name)
+            && value == JsonToken.START_OBJECT) {
+          foundSpecification = true;
+          while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String specName = parser.getCurrentName();
+            JsonToken specValue = parser.nextToken();
+            if (settings == null && FORMDEF_SETTINGS_SUBSECTION.equals(specName)
+                && specValue == JsonToken.START_OBJECT) {
+              settings = ODKFileUtils.mapper.readValue(parser, HashMap.class);
+            } else {
+              parser.skipChildren();
+            }
+          }
+        } else {
+          parser.skipChildren();
+        }
+      }
+    } catch (JsonParseException e) {
+      WebLogger.getLogger(appName).printStackTrace(e);
+      throw new IllegalArgumentException("File is not a json file! "
+          + formDefFile.getAbsolutePath());
+    } catch (IOException e) {
+      WebLogger.getLogger(appName).printStackTrace(e);
+      throw new IllegalArgumentException("File is not a json file! "
+          + formDefFile.getAbsolutePath());
+    } finally {
+      if (parser != null) {
+        try {
+          parser.close();
+        } catch (IOException e) {
+          // ignore
+        }
+      }
+    }
+
+    if (!foundSpecification) {
+      throw new IllegalArgumentException("File is not a formdef json file! No specification element."
+          + formDefFile.getAbsolutePath());
+    }
+    if (settings == null) {
+      throw new IllegalArgumentException("File is not a formdef json file! No settings section inside specification element."
+          + formDefFile.getAbsolutePath());
+    }
+    return settings;
+  }
+
   /**
    * Return an array of string values. Useful for passing as selectionArgs to
    * SQLite. Or for iterating over and populating a ContentValues array.
@@ -129,7 +233,6 @@ public class FormInfo {
    * @param parseFormDef
    *          -- true if the formDef.json file should be opened.
    */
-  @SuppressWarnings("unchecked")
   public FormInfo(String appName, Cursor c, boolean parseFormDef) {
     this.appName = appName;
 
@@ -150,26 +253,12 @@ public class FormInfo {
       throw new IllegalArgumentException("File does not exist! " + formDefFile.getAbsolutePath());
     }
 
+    hasFormDef = parseFormDef;
     if (!parseFormDef) {
       formDef = null;
     } else {
-
       // OK -- parse the formDef file.
-      HashMap<String, Object> om = null;
-      try {
-        om = ODKFileUtils.mapper.readValue(formDefFile, HashMap.class);
-      } catch (JsonParseException e) {
-        WebLogger.getLogger(appName).printStackTrace(e);
-      } catch (JsonMappingException e) {
-        WebLogger.getLogger(appName).printStackTrace(e);
-      } catch (IOException e) {
-        WebLogger.getLogger(appName).printStackTrace(e);
-      }
-      formDef = om;
-      if (formDef == null) {
-        throw new IllegalArgumentException("File is not a json file! "
-            + formDefFile.getAbsolutePath());
-      }
+      formDef = parseFormDef(appName, formDefFile);
     }
 
   }
@@ -186,6 +275,7 @@ public class FormInfo {
     this.appName = appName;
     // save the File of the formDef...
     this.formDefFile = formDefFile;
+    this.hasFormDef = true;
 
     /**
      * IMPORTANT: called for its side-effect
@@ -193,22 +283,8 @@ public class FormInfo {
      */ 
     ODKFileUtils.getRelativeFormPath(appName, formDefFile);
     
-    // OK -- parse the formDef file.
-    HashMap<String, Object> om = null;
-    try {
-      om = ODKFileUtils.mapper.readValue(formDefFile, HashMap.class);
-    } catch (JsonParseException e) {
-      WebLogger.getLogger(appName).printStackTrace(e);
-    } catch (JsonMappingException e) {
-      WebLogger.getLogger(appName).printStackTrace(e);
-    } catch (IOException e) {
-      WebLogger.getLogger(appName).printStackTrace(e);
-    }
-    formDef = om;
-    if (formDef == null) {
-      throw new IllegalArgumentException("File is not a json file! "
-          + formDefFile.getAbsolutePath());
-    }
+    // the full formDef is only parsed if getFormDef() is called.
+    formDef = null;
 
     // /////////////////////////////////////////////////
     // TODO: DEPENDENCY ALERT!!!
@@ -217,20 +293,8 @@ public class FormInfo {
     // TODO: DEPENDENCY ALERT!!!
     // THIS ASSUMES A CERTAIN STRUCTURE FOR THE formDef.json
     // file...
-    Map<String, Object> specification = (Map<String, Object>) formDef
-            .get(FORMDEF_SPECIFICATION_SECTION);
-    if (specification == null) {
-        throw new IllegalArgumentException("File is not a formdef json file! No specification element."
-            + formDefFile.getAbsolutePath());
-      }
+    Map<String, Object> settings = readSettings(appName, formDefFile);
 
-    Map<String, Object> settings = (Map<String, Object>) specification
-        .get(FORMDEF_SETTINGS_SUBSECTION);
-    if (settings == null) {
-      throw new IllegalArgumentException("File is not a formdef json file! No settings section inside specification element."
-          + formDefFile.getAbsolutePath());
-    }
-    
     try {
       this.settings = ODKFileUtils.mapper.writeValueAsString(settings);
     } catch (JsonProcessingException ex) {
@@ -41,6 +41,7 @@ import org.opendatakit.provider.KeyValueStoreColumns;
 import org.opendatakit.services.database.AndroidConnectFactory;
 import org.opendatakit.services.database.OdkConnectionFactorySingleton;
 import org.opendatakit.services.database.OdkConnectionInterface;
+import org.opendatakit.services.database.UploadsTableColumns;
 import org.opendatakit.services.database.utilities.ODKDatabaseImplUtils;
 import org.opendatakit.services.utilities.ActiveUserAndLocale;
 import org.opendatakit.utilities.ODKFileUtils;
@@ -54,6 +55,7 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class InstanceProvider extends ContentProvider {
 
@@ -69,12 +71,26 @@ public class InstanceProvider extends ContentProvider {
     }
   }
 
+  /**
+   * Uploads-table column returned by this provider recording how many parts of
+   * a split submission post the server has accepted.
+   */
+  public static final String SUBMISSION_PARTS_COMPLETED =
+      UploadsTableColumns.SUBMISSION_PARTS_COMPLETED;
+
   private static final String DATA_TABLE_ID_COLUMN = DataTableColumns.ID;
   private static final String DATA_TABLE_SAVEPOINT_TIMESTAMP_COLUMN = DataTableColumns.SAVEPOINT_TIMESTAMP;
   private static final String DATA_TABLE_SAVEPOINT_TYPE_COLUMN = DataTableColumns.SAVEPOINT_TYPE;
 
   private static final HashMap<String, String> sInstancesProjectionMap;
 
+  /**
+   * appName/tableId -TO- the table definition revId at which its uploads table
+   * records were last reconciled against the data table by this process.
+   */
+  private static final ConcurrentHashMap<String, String> sReconciledTables =
+      new ConcurrentHashMap<String, String>();
+
   private class InvalidateMonitor extends DataSetObserver {
     String appName;
     DbHandle dbHandleName;
@@ -193,7 +209,13 @@ public class InstanceProvider extends ContentProvider {
   }
 
   /**
-   * Update the status columns for the instance upload table
+   * Ensure the uploads table has a record for every row in the data table.
+   * <p/>
+   * Records are added as rows are inserted (see ODKDatabaseImplUtils), so this
+   * full-table reconciliation only needs to run to pick up rows that pre-date
+   * that bookkeeping. It is repeated whenever the table definition revId
+   * changes (e.g., the table was re-created or its schema altered); otherwise
+   * it is a no-op and queries against this provider are read-only.
    *
    * @param db
    * @param uri
@@ -204,92 +226,71 @@ public class InstanceProvider extends ContentProvider {
       Uri uri,
       String appName, String tableId ) {
 
-    String instanceName = null;
-    Cursor c = null;
-
-    StringBuilder b = new StringBuilder();
-
+    String revId;
     try {
-      db.beginTransactionNonExclusive();
+      revId = ODKDatabaseImplUtils.get().getTableDefinitionRevId(db, tableId);
+    } catch (Exception e) {
+      WebLogger.getLogger(appName).printStackTrace(e);
+      throw new SQLException("Unknown URI (exception testing for tableId) " + uri);
+    }
+    if (revId == null) {
+      throw new SQLException("Unknown URI (missing data table for tableId) " + uri);
+    }
 
-      boolean success = false;
-      try {
-        success = ODKDatabaseImplUtils.get().hasTableId(db, tableId);
-      } catch (Exception e) {
-        WebLogger.getLogger(appName).printStackTrace(e);
-        throw new SQLException("Unknown URI (exception testing for tableId) " + uri);
-      }
-      if (!success) {
-        throw new SQLException("Unknown URI (missing data table for tableId) " + uri);
-      }
+    String reconciledKey = appName + "/" + tableId;
+    if (revId.equals(sReconciledTables.get(reconciledKey))) {
+      return;
+    }
 
-      try {
-        c = db.query(DatabaseConstants.KEY_VALUE_STORE_ACTIVE_TABLE_NAME,
-            new String[] { KeyValueStoreColumns.VALUE }, KeyValueStoreColumns.TABLE_ID + "=? AND "
-                + KeyValueStoreColumns.PARTITION + "=? AND " + KeyValueStoreColumns.ASPECT
-                + "=? AND " + KeyValueStoreColumns.KEY + "=?", new String[] { tableId,
-                KeyValueStoreConstants.PARTITION_TABLE, KeyValueStoreConstants.ASPECT_DEFAULT,
-                KeyValueStoreConstants.XML_INSTANCE_NAME }, null, null, null, null);
-        if ( c != null ) {
-          c.moveToFirst();
-          if (c.getCount() == 1) {
-            int idxInstanceName = c.getColumnIndex(KeyValueStoreColumns.VALUE);
-            instanceName = c.getString(idxInstanceName);
-          }
-        }
-      } finally {
-        if ( c != null ) {
-          c.close();
+    ODKDatabaseImplUtils.get().reconcileUploadsTable(db, tableId);
+    sReconciledTables.put(reconciledKey, revId);
+  }
+
+  /**
+   * Retrieve the elementKey of the column holding the instance name for this
+   * table, or null if none is specified (or it does not name a data column).
+   *
+   * @param db
+   * @param tableId
+   * @param orderedDefns
+   * @return
+   */
+  private String getInstanceNameColumn(OdkConnectionInterface db, String tableId,
+      OrderedColumns orderedDefns) {
+    String instanceName = null;
+    Cursor c = null;
+    try {
+      c = db.query(DatabaseConstants.KEY_VALUE_STORE_ACTIVE_TABLE_NAME,
+          new String[] { KeyValueStoreColumns.VALUE }, KeyValueStoreColumns.TABLE_ID + "=? AND "
+              + KeyValueStoreColumns.PARTITION + "=? AND " + KeyValueStoreColumns.ASPECT
+              + "=? AND " + KeyValueStoreColumns.KEY + "=?", new String[] { tableId,
+              KeyValueStoreConstants.PARTITION_TABLE, KeyValueStoreConstants.ASPECT_DEFAULT,
+              KeyValueStoreConstants.XML_INSTANCE_NAME }, null, null, null, null);
+      if ( c != null ) {
+        c.moveToFirst();
+        if (c.getCount() == 1) {
+          int idxInstanceName = c.getColumnIndex(KeyValueStoreColumns.VALUE);
+          instanceName = c.getString(idxInstanceName);
         }
       }
+    } finally {
+      if ( c != null ) {
+        c.close();
+      }
+    }
 
-      // ARGH! we must ensure that we have records in our UPLOADS_TABLE_NAME
-      // for every distinct instance in the data table.
-      b.setLength(0);
-      //@formatter:off
-      b.append("INSERT INTO ").append(DatabaseConstants.UPLOADS_TABLE_NAME).append("(")
-          .append(InstanceColumns.DATA_INSTANCE_ID).append(",")
-          .append(InstanceColumns.DATA_TABLE_TABLE_ID).append(",").append("SELECT ")
-          .append(InstanceColumns.DATA_INSTANCE_ID).append(",")
-          .append(InstanceColumns.DATA_TABLE_TABLE_ID).append(",").append(" FROM (")
-            .append("SELECT DISTINCT ").append(DATA_TABLE_ID_COLUMN).append(" as ")
-            .append(InstanceColumns.DATA_INSTANCE_ID).append(",").append("? as ")
-            .append(InstanceColumns.DATA_TABLE_TABLE_ID).append(" FROM ")
-            .append(tableId).append(" EXCEPT SELECT DISTINCT ")
-            .append(InstanceColumns.DATA_INSTANCE_ID).append(",")
-            .append(InstanceColumns.DATA_TABLE_TABLE_ID).append(" FROM ")
-            .append(DatabaseConstants.UPLOADS_TABLE_NAME).append(")");
-      //@formatter:on
-
-      String[] args = { tableId };
-      db.execSQL(b.toString(), args);
-
-      //@formatter:off
-      b.append("WITH idname AS (SELECT t.")
-              .append(DATA_TABLE_ID_COLUMN).append(" as ").append(InstanceColumns.DATA_INSTANCE_ID).append(", t.");
-      if ( instanceName == null ) {
-        b.append(DataTableColumns.SAVEPOINT_TIMESTAMP);
-      } else {
-        b.append(instanceName);
+    if ( instanceName == null ) {
+      return null;
+    }
+    // only accept the name of an actual data column -- it is spliced into the SQL
+    for ( ColumnDefinition cd : orderedDefns.getColumnDefinitions() ) {
+      if ( cd.isUnitOfRetention() && cd.getElementKey().equals(instanceName) ) {
+        return instanceName;
       }
-      b.append(" as ").append(InstanceColumns.DATA_INSTANCE_NAME).append(" FROM ")
-              .append(tableId).append(" t WHERE t.").append(DataTableColumns.SAVEPOINT_TIMESTAMP).append("=")
-              .append("(select max(v.").append(DataTableColumns.SAVEPOINT_TIMESTAMP)
-                  .append(") from ").append(tableId).append(" as v where v._id=t._id)")
-              .append(") UPDATE ").append(DatabaseConstants.UPLOADS_TABLE_NAME).append(" SET ")
-                .append(InstanceColumns.DATA_INSTANCE_NAME).append("=idname.").append(InstanceColumns.DATA_INSTANCE_NAME)
-              .append(" WHERE ")
-          .append(InstanceColumns.DATA_TABLE_TABLE_ID).append("=? AND ")
-          .append(InstanceColumns.DATA_INSTANCE_ID).append("=idname.").append(InstanceColumns.DATA_INSTANCE_ID);
-      //@formatter:on
-      db.execSQL(b.toString(), args);
-      db.setTransactionSuccessful();
-    } finally {
-      db.endTransaction();
     }
+    return null;
   }
 
-
   Cursor internalQuery(OdkConnectionInterface db,
       Uri uri,
       String appName, String tableId, String instanceId,
@@ -343,7 +344,10 @@ public class InstanceProvider extends ContentProvider {
          .append(" as ").append(InstanceColumns.DATA_INSTANCE_ID).append(",")
      .append(DatabaseConstants.UPLOADS_TABLE_NAME)
        .append(".").append(InstanceColumns.SUBMISSION_INSTANCE_ID)
-         .append(" as ").append(InstanceColumns.SUBMISSION_INSTANCE_ID).append(",");
+         .append(" as ").append(InstanceColumns.SUBMISSION_INSTANCE_ID).append(",")
+     .append(DatabaseConstants.UPLOADS_TABLE_NAME)
+       .append(".").append(SUBMISSION_PARTS_COMPLETED)
+         .append(" as ").append(SUBMISSION_PARTS_COMPLETED).append(",");
     // add the dataTable metadata except for _ID (which conflicts with InstanceColumns._ID)
     b.append(tableId).append(".").append(DataTableColumns.ROW_ETAG)
          .append(" as ").append(DataTableColumns.ROW_ETAG).append(",")
@@ -396,15 +400,30 @@ public class InstanceProvider extends ContentProvider {
         .append(" > ").append(InstanceColumns.XML_PUBLISH_TIMESTAMP).append(" THEN null")
         .append(" ELSE ").append(InstanceColumns.DISPLAY_SUBTEXT).append(" END as ")
             .append(InstanceColumns.DISPLAY_SUBTEXT).append(",");
-    b.append(InstanceColumns.DATA_INSTANCE_NAME);
+    String instanceNameColumn = getInstanceNameColumn(db, tableId, orderedDefns);
+    b.append(tableId).append(".").append((instanceNameColumn == null) ?
+        DataTableColumns.SAVEPOINT_TIMESTAMP : instanceNameColumn);
     b.append(" as ").append(InstanceColumns.DISPLAY_NAME);
     b.append(" FROM ");
-    b.append("( SELECT * FROM ").append(tableId).append(" AS T WHERE T.")
-     .append(DATA_TABLE_SAVEPOINT_TIMESTAMP_COLUMN).append("=(SELECT MAX(V.")
-     .append(DATA_TABLE_SAVEPOINT_TIMESTAMP_COLUMN).append(") FROM ")
-       .append(tableId).append(" AS V WHERE V.")
-       .append(DATA_TABLE_ID_COLUMN).append("=T.").append(DATA_TABLE_ID_COLUMN)
-     .append(" AND V.").append(DATA_TABLE_SAVEPOINT_TYPE_COLUMN).append(" IS NOT NULL").append(")")
+    // the most recent savepoint of each row, joined against a single grouped
+    // pass over the data table rather than a MAX() subquery per row. When a
+    // single instance is requested, the row is selected before grouping so
+    // that only its savepoints are read (via the (_id, _savepoint_timestamp)
+    // index) instead of the whole table.
+    String rowFilter = "";
+    if (instanceId != null) {
+      rowFilter = " AND " + DATA_TABLE_ID_COLUMN + "=(SELECT "
+          + InstanceColumns.DATA_INSTANCE_ID + " FROM " + DatabaseConstants.UPLOADS_TABLE_NAME
+          + " WHERE " + InstanceColumns._ID + "=?)";
+    }
+    b.append("( SELECT T.* FROM ").append(tableId).append(" AS T JOIN (SELECT ")
+       .append(DATA_TABLE_ID_COLUMN).append(" AS M_id, MAX(")
+       .append(DATA_TABLE_SAVEPOINT_TIMESTAMP_COLUMN).append(") AS M_ts FROM ")
+       .append(tableId).append(" WHERE ").append(DATA_TABLE_SAVEPOINT_TYPE_COLUMN)
+       .append(" IS NOT NULL").append(rowFilter).append(" GROUP BY ")
+       .append(DATA_TABLE_ID_COLUMN).append(") AS M ON T.")
+       .append(DATA_TABLE_ID_COLUMN).append("=M.M_id AND T.")
+       .append(DATA_TABLE_SAVEPOINT_TIMESTAMP_COLUMN).append("=M.M_ts")
      .append(") as ").append(tableId);
     b.append(" JOIN ").append(DatabaseConstants.UPLOADS_TABLE_NAME).append(" ON ")
         .append(tableId).append(".").append(DATA_TABLE_ID_COLUMN).append("=")
@@ -418,7 +437,7 @@ public class InstanceProvider extends ContentProvider {
     if (instanceId != null) {
       b.append(" AND ").append(DatabaseConstants.UPLOADS_TABLE_NAME).append(".")
           .append(InstanceColumns._ID).append("=?");
-      String tempArgs[] = { tableId, InstanceColumns.STATUS_COMPLETE, instanceId };
+      String tempArgs[] = { instanceId, tableId, InstanceColumns.STATUS_COMPLETE, instanceId };
       filterArgs = tempArgs;
     } else {
       String tempArgs[] = { tableId, InstanceColumns.STATUS_COMPLETE };
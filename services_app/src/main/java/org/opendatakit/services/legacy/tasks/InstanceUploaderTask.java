@@ -54,6 +54,7 @@ import org.opendatakit.provider.InstanceColumns;
 import org.opendatakit.provider.InstanceProviderAPI;
 import org.opendatakit.provider.ProviderConsts;
 import org.opendatakit.services.R;
+import org.opendatakit.services.instance.provider.InstanceProvider;
 import org.opendatakit.services.legacy.listeners.InstanceUploaderListener;
 import org.opendatakit.services.legacy.logic.InstanceUploadOutcome;
 import org.opendatakit.services.legacy.utilities.WebUtils;
@@ -78,6 +79,12 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Background task for uploading completed forms.
@@ -89,6 +96,11 @@ public class InstanceUploaderTask extends AsyncTask<String, Integer, InstanceUpl
   private static final String TAG = InstanceUploaderTask.class.getSimpleName();
   private static final String fail = "Error: ";
 
+  /**
+   * Maximum number of submissions uploaded concurrently.
+   */
+  private static final int MAX_CONCURRENT_UPLOADS = 3;
+
   private Application appContext;
   private InstanceUploaderListener mStateListener;
 
@@ -122,12 +134,15 @@ public class InstanceUploaderTask extends AsyncTask<String, Integer, InstanceUpl
    *          - context (e.g., credentials, cookies) for client connection
    * @param uriRemap
    *          - mapping of Uris to avoid redirects on subsequent invocations
+   * @param priorPartsCompleted
+   *          - progress recorded by an earlier, failed, attempt at this same
+   *          submission (null if this is not a retry)
    * @return false if credentials are required and we should terminate
    *         immediately.
    */
   private boolean uploadOneSubmission(String urlString, Uri toUpdate, String id,
       String submissionInstanceId, FileSet instanceFiles, HttpClient httpclient,
-      HttpContext localContext, Map<URI, URI> uriRemap) {
+      HttpContext localContext, Map<URI, URI> uriRemap, String priorPartsCompleted) {
 
     ContentValues cv = new ContentValues();
     cv.put(InstanceColumns.SUBMISSION_INSTANCE_ID, submissionInstanceId);
@@ -137,21 +152,21 @@ public class InstanceUploaderTask extends AsyncTask<String, Integer, InstanceUpl
       u = url.toURI();
     } catch (MalformedURLException e) {
       WebLogger.getLogger(appName).printStackTrace(e);
-      mOutcome.mResults.put(id,
+      recordResult(id,
           fail + "invalid url: " + urlString + " :: details: " + e.getMessage());
       cv.put(InstanceColumns.XML_PUBLISH_STATUS, InstanceColumns.STATUS_SUBMISSION_FAILED);
       appContext.getContentResolver().update(toUpdate, cv, null, null);
       return true;
     } catch (URISyntaxException e) {
       WebLogger.getLogger(appName).printStackTrace(e);
-      mOutcome.mResults.put(id,
+      recordResult(id,
           fail + "invalid uri: " + urlString + " :: details: " + e.getMessage());
       cv.put(InstanceColumns.XML_PUBLISH_STATUS, InstanceColumns.STATUS_SUBMISSION_FAILED);
       appContext.getContentResolver().update(toUpdate, cv, null, null);
       return true;
     } catch (UnsupportedEncodingException e) {
       WebLogger.getLogger(appName).printStackTrace(e);
-      mOutcome.mResults.put(id,
+      recordResult(id,
           fail + "invalid url: " + urlString + " :: details: " + e.getMessage());
       cv.put(InstanceColumns.XML_PUBLISH_STATUS, InstanceColumns.STATUS_SUBMISSION_FAILED);
       appContext.getContentResolver().update(toUpdate, cv, null, null);
@@ -180,7 +195,9 @@ public class InstanceUploaderTask extends AsyncTask<String, Integer, InstanceUpl
           WebUtils.get().discardEntityBytes(response);
           // we need authentication, so stop and return what we've
           // done so far.
-          mOutcome.mAuthRequestingServer = u;
+          synchronized (mOutcome) {
+            mOutcome.mAuthRequestingServer = u;
+          }
           return false;
         } else if (statusCode == 204) {
           Header[] locations = response.getHeaders("Location");
@@ -198,7 +215,7 @@ public class InstanceUploaderTask extends AsyncTask<String, Integer, InstanceUpl
                 // Don't follow a redirection attempt to a
                 // different host.
                 // We can't tell if this is a spoof or not.
-                mOutcome.mResults.put(id, fail
+                recordResult(id, fail
                     + "Unexpected redirection attempt to a different host: " + uNew.toString());
                 cv.put(InstanceColumns.XML_PUBLISH_STATUS, InstanceColumns.STATUS_SUBMISSION_FAILED);
                 appContext.getContentResolver().update(toUpdate, cv, null, null);
@@ -206,7 +223,7 @@ public class InstanceUploaderTask extends AsyncTask<String, Integer, InstanceUpl
               }
             } catch (Exception e) {
               WebLogger.getLogger(appName).printStackTrace(e);
-              mOutcome.mResults.put(id, fail + urlString + " " + e.getMessage());
+              recordResult(id, fail + urlString + " " + e.getMessage());
               cv.put(InstanceColumns.XML_PUBLISH_STATUS, InstanceColumns.STATUS_SUBMISSION_FAILED);
               appContext.getContentResolver().update(toUpdate, cv, null, null);
               return true;
@@ -218,11 +235,8 @@ public class InstanceUploaderTask extends AsyncTask<String, Integer, InstanceUpl
 
           WebLogger.getLogger(appName).w(TAG, "Status code on Head request: " + statusCode);
           if (statusCode >= 200 && statusCode <= 299) {
-            mOutcome.mResults
-                .put(
-                    id,
-                    fail
-                        + "Invalid status code on Head request.  If you have a web proxy, you may need to login to your network. ");
+            recordResult(id, fail
+                + "Invalid status code on Head request.  If you have a web proxy, you may need to login to your network. ");
             cv.put(InstanceColumns.XML_PUBLISH_STATUS, InstanceColumns.STATUS_SUBMISSION_FAILED);
             appContext.getContentResolver().update(toUpdate, cv, null, null);
             return true;
@@ -231,20 +245,20 @@ public class InstanceUploaderTask extends AsyncTask<String, Integer, InstanceUpl
       } catch (ClientProtocolException e) {
         WebLogger.getLogger(appName).printStackTrace(e);
         WebLogger.getLogger(appName).e(TAG, e.getMessage());
-        mOutcome.mResults.put(id, fail + "Client Protocol Exception");
+        recordResult(id, fail + "Client Protocol Exception");
         cv.put(InstanceColumns.XML_PUBLISH_STATUS, InstanceColumns.STATUS_SUBMISSION_FAILED);
         appContext.getContentResolver().update(toUpdate, cv, null, null);
         return true;
       } catch (ConnectTimeoutException e) {
         WebLogger.getLogger(appName).printStackTrace(e);
         WebLogger.getLogger(appName).e(TAG, e.getMessage());
-        mOutcome.mResults.put(id, fail + "Connection Timeout");
+        recordResult(id, fail + "Connection Timeout");
         cv.put(InstanceColumns.XML_PUBLISH_STATUS, InstanceColumns.STATUS_SUBMISSION_FAILED);
         appContext.getContentResolver().update(toUpdate, cv, null, null);
         return true;
       } catch (UnknownHostException e) {
         WebLogger.getLogger(appName).printStackTrace(e);
-        mOutcome.mResults.put(id, fail + e.getMessage() + " :: Network Connection Failed");
+        recordResult(id, fail + e.getMessage() + " :: Network Connection Failed");
         WebLogger.getLogger(appName).e(TAG, e.getMessage());
         cv.put(InstanceColumns.XML_PUBLISH_STATUS, InstanceColumns.STATUS_SUBMISSION_FAILED);
         appContext.getContentResolver().update(toUpdate, cv, null, null);
@@ -252,20 +266,20 @@ public class InstanceUploaderTask extends AsyncTask<String, Integer, InstanceUpl
       } catch (SocketTimeoutException e) {
         WebLogger.getLogger(appName).printStackTrace(e);
         WebLogger.getLogger(appName).e(TAG, e.getMessage());
-        mOutcome.mResults.put(id, fail + "Connection Timeout");
+        recordResult(id, fail + "Connection Timeout");
         cv.put(InstanceColumns.XML_PUBLISH_STATUS, InstanceColumns.STATUS_SUBMISSION_FAILED);
         appContext.getContentResolver().update(toUpdate, cv, null, null);
         return true;
       } catch (HttpHostConnectException e) {
         WebLogger.getLogger(appName).printStackTrace(e);
         WebLogger.getLogger(appName).e(TAG, e.toString());
-        mOutcome.mResults.put(id, fail + "Network Connection Refused");
+        recordResult(id, fail + "Network Connection Refused");
         cv.put(InstanceColumns.XML_PUBLISH_STATUS, InstanceColumns.STATUS_SUBMISSION_FAILED);
         appContext.getContentResolver().update(toUpdate, cv, null, null);
         return true;
       } catch (Exception e) {
         WebLogger.getLogger(appName).printStackTrace(e);
-        mOutcome.mResults.put(id, fail + "Generic Exception");
+        recordResult(id, fail + "Generic Exception");
         WebLogger.getLogger(appName).e(TAG, e.getMessage());
         cv.put(InstanceColumns.XML_PUBLISH_STATUS, InstanceColumns.STATUS_SUBMISSION_FAILED);
         appContext.getContentResolver().update(toUpdate, cv, null, null);
@@ -286,23 +300,43 @@ public class InstanceUploaderTask extends AsyncTask<String, Integer, InstanceUpl
     File instanceFile = instanceFiles.instanceFile;
 
     if (!instanceFile.exists()) {
-      mOutcome.mResults.put(id, fail + "instance XML file does not exist!");
+      recordResult(id, fail + "instance XML file does not exist!");
       cv.put(InstanceColumns.XML_PUBLISH_STATUS, InstanceColumns.STATUS_SUBMISSION_FAILED);
       appContext.getContentResolver().update(toUpdate, cv, null, null);
       return true;
     }
 
     List<MimeFile> files = instanceFiles.attachmentFiles;
-    boolean first = true;
-    int j = 0;
-    int lastJ;
-    while (j < files.size() || first) {
-      lastJ = j;
-      first = false;
+    List<int[]> parts = splitIntoParts(instanceFile, files);
+    String fingerprint = partitionFingerprint(submissionInstanceId, files, parts.size());
+
+    // resume after the parts the server already accepted on the prior attempt.
+    // Encrypted attachments are re-encrypted under a new key on every attempt,
+    // so those submissions must always be re-sent in full.
+    int firstPart = 0;
+    if (priorPartsCompleted != null && !isEncrypted(files)) {
+      int idxSeparator = priorPartsCompleted.indexOf(':');
+      if (idxSeparator != -1 &&
+          fingerprint.equals(priorPartsCompleted.substring(idxSeparator + 1))) {
+        try {
+          firstPart = Integer.parseInt(priorPartsCompleted.substring(0, idxSeparator));
+        } catch (NumberFormatException e) {
+          firstPart = 0;
+        }
+        if (firstPart < 0 || firstPart >= parts.size()) {
+          firstPart = 0;
+        }
+      }
+      if (firstPart != 0) {
+        WebLogger.getLogger(appName).i(TAG, "Resuming submission " + submissionInstanceId
+            + " at part " + (firstPart + 1) + " of " + parts.size());
+      }
+    }
 
-      HttpPost httppost = WebUtils.get().createOpenRosaHttpPost(u);
+    for (int k = firstPart; k < parts.size(); ++k) {
+      int[] part = parts.get(k);
 
-      long byteCount = 0L;
+      HttpPost httppost = WebUtils.get().createOpenRosaHttpPost(u);
 
       // mime post
       MultipartEntityBuilder builder = MultipartEntityBuilder.create();
@@ -311,32 +345,23 @@ public class InstanceUploaderTask extends AsyncTask<String, Integer, InstanceUpl
       builder.addBinaryBody("xml_submission_file", instanceFile,
           ContentType.TEXT_XML.withCharset(Charset.forName(CharEncoding.UTF_8)), instanceFile.getName());
       WebLogger.getLogger(appName).i(TAG, "added xml_submission_file: " + instanceFile.getName());
-      byteCount += instanceFile.length();
 
-      for (; j < files.size(); j++) {
+      for (int j = part[0]; j < part[1]; j++) {
         MimeFile mf = files.get(j);
         File f = mf.file;
         String contentType = mf.contentType;
 
         builder.addBinaryBody(f.getName(), f, ContentType.create(contentType), f.getName());
-        byteCount += f.length();
         WebLogger.getLogger(appName).i(TAG, "added " + contentType + " file " + f.getName());
+      }
 
-        // we've added at least one attachment to the request...
-        if (j + 1 < files.size()) {
-          long nextFileLength = (files.get(j + 1).file.length());
-          if ((j - lastJ + 1 > 100) || (byteCount + nextFileLength > 10000000L)) {
-            // the next file would exceed the 10MB threshold...
-            WebLogger.getLogger(appName).i(TAG, "Extremely long post is being split into multiple posts");
-            try {
-              builder.addTextBody("*isIncomplete*", "yes",
-                  ContentType.TEXT_PLAIN.withCharset(Charset.forName((CharEncoding.UTF_8))));
-            } catch (Exception e) {
-              WebLogger.getLogger(appName).printStackTrace(e); // never happens...
-            }
-            ++j; // advance over the last attachment added...
-            break;
-          }
+      if (k + 1 < parts.size()) {
+        WebLogger.getLogger(appName).i(TAG, "Extremely long post is being split into multiple posts");
+        try {
+          builder.addTextBody("*isIncomplete*", "yes",
+              ContentType.TEXT_PLAIN.withCharset(Charset.forName((CharEncoding.UTF_8))));
+        } catch (Exception e) {
+          WebLogger.getLogger(appName).printStackTrace(e); // never happens...
         }
       }
 
@@ -354,9 +379,9 @@ public class InstanceUploaderTask extends AsyncTask<String, Integer, InstanceUpl
         // If it wasn't, the submission has failed.
         if (responseCode != 201 && responseCode != 202) {
           if (responseCode == 200) {
-            mOutcome.mResults.put(id, fail + "Network login failure? Again?");
+            recordResult(id, fail + "Network login failure? Again?");
           } else {
-            mOutcome.mResults.put(id, fail + response.getStatusLine().getReasonPhrase() + " ("
+            recordResult(id, fail + response.getStatusLine().getReasonPhrase() + " ("
                 + responseCode + ") at " + urlString);
           }
           cv.put(InstanceColumns.XML_PUBLISH_STATUS, InstanceColumns.STATUS_SUBMISSION_FAILED);
@@ -365,20 +390,102 @@ public class InstanceUploaderTask extends AsyncTask<String, Integer, InstanceUpl
         }
       } catch (Exception e) {
         WebLogger.getLogger(appName).printStackTrace(e);
-        mOutcome.mResults.put(id, fail + "Generic Exception. " + e.getMessage());
+        recordResult(id, fail + "Generic Exception. " + e.getMessage());
         cv.put(InstanceColumns.XML_PUBLISH_STATUS, InstanceColumns.STATUS_SUBMISSION_FAILED);
         appContext.getContentResolver().update(toUpdate, cv, null, null);
         return true;
       }
+
+      if (k + 1 < parts.size()) {
+        // record the progress so that a retry can pick up from the next part
+        ContentValues progress = new ContentValues();
+        progress.put(InstanceColumns.SUBMISSION_INSTANCE_ID, submissionInstanceId);
+        progress.put(InstanceProvider.SUBMISSION_PARTS_COMPLETED, (k + 1) + ":" + fingerprint);
+        appContext.getContentResolver().update(toUpdate, progress, null, null);
+      }
     }
 
     // if it got here, it must have worked
-    mOutcome.mResults.put(id, appContext.getString(R.string.success));
+    recordResult(id, appContext.getString(R.string.success));
     cv.put(InstanceColumns.XML_PUBLISH_STATUS, InstanceColumns.STATUS_SUBMITTED);
+    cv.putNull(InstanceProvider.SUBMISSION_PARTS_COMPLETED);
     appContext.getContentResolver().update(toUpdate, cv, null, null);
     return true;
   }
 
+  /**
+   * Split the attachments into the sequence of posts used to send them. Each
+   * post carries the submission file and no more than 100 attachments or
+   * (roughly) 10MB. The split is deterministic so that a retry produces the
+   * same parts as the failed attempt.
+   *
+   * @param instanceFile
+   * @param files
+   * @return list of [first, end) attachment index ranges, one per post
+   */
+  private static List<int[]> splitIntoParts(File instanceFile, List<MimeFile> files) {
+    List<int[]> parts = new ArrayList<int[]>();
+    boolean first = true;
+    int j = 0;
+    int lastJ;
+    while (j < files.size() || first) {
+      lastJ = j;
+      first = false;
+
+      long byteCount = instanceFile.length();
+      for (; j < files.size(); j++) {
+        byteCount += files.get(j).file.length();
+
+        // we've added at least one attachment to the request...
+        if (j + 1 < files.size()) {
+          long nextFileLength = (files.get(j + 1).file.length());
+          if ((j - lastJ + 1 > 100) || (byteCount + nextFileLength > 10000000L)) {
+            // the next file would exceed the 10MB threshold...
+            ++j; // advance over the last attachment added...
+            break;
+          }
+        }
+      }
+      parts.add(new int[] { lastJ, j });
+    }
+    return parts;
+  }
+
+  /**
+   * Identify the submission and the way its attachments were split into
+   * parts. Recorded progress is only honored if this is unchanged.
+   */
+  private static String partitionFingerprint(String submissionInstanceId, List<MimeFile> files,
+      int partCount) {
+    StringBuilder b = new StringBuilder();
+    b.append(submissionInstanceId).append('|').append(partCount);
+    for (MimeFile mf : files) {
+      b.append('|').append(mf.file.getName()).append(':').append(mf.file.length());
+    }
+    return Integer.toHexString(b.toString().hashCode());
+  }
+
+  private static boolean isEncrypted(List<MimeFile> files) {
+    for (MimeFile mf : files) {
+      if (mf.file.getName().endsWith(".enc")) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private void recordResult(String id, String message) {
+    synchronized (mOutcome) {
+      mOutcome.mResults.put(id, message);
+    }
+  }
+
+  private boolean isAuthenticationRequested() {
+    synchronized (mOutcome) {
+      return mOutcome.mAuthRequestingServer != null;
+    }
+  }
+
   /**
    * Write's the data to the sdcard, and updates the instances content provider.
    * In theory we don't have to write to disk, and this is where you'd add other
@@ -494,8 +601,8 @@ public class InstanceUploaderTask extends AsyncTask<String, Integer, InstanceUpl
       return mOutcome;
     }
 
-    CredentialsProvider credsProvider = new BasicCredentialsProvider();
-    CookieStore cookieStore = new BasicCookieStore();
+    final CredentialsProvider credsProvider = new BasicCredentialsProvider();
+    final CookieStore cookieStore = new BasicCookieStore();
 
     String authType = props.getProperty(CommonToolProperties.KEY_AUTHENTICATION_TYPE);
     if ( authType.equals(appContext.getString(R.string.credential_type_username_password))) {
@@ -505,86 +612,144 @@ public class InstanceUploaderTask extends AsyncTask<String, Integer, InstanceUpl
     }
 
     // context holds authentication state machine, so it cannot be
-    // shared across independent activities.
-    HttpClientContext localContext = HttpClientContext.create();
-
-    localContext.setCookieStore(cookieStore);
-    localContext.setCredentialsProvider(credsProvider);
-
-    CloseableHttpClient httpclient = WebUtils.createHttpClient(WebUtils.CONNECTION_TIMEOUT);
+    // shared across independent activities. Each upload worker keeps its
+    // own context (sharing the cookies and credentials) for all the
+    // submissions it sends.
+    final ThreadLocal<HttpClientContext> localContexts = new ThreadLocal<HttpClientContext>() {
+      @Override
+      protected HttpClientContext initialValue() {
+        HttpClientContext localContext = HttpClientContext.create();
+        localContext.setCookieStore(cookieStore);
+        localContext.setCredentialsProvider(credsProvider);
+        return localContext;
+      }
+    };
 
-    Map<URI, URI> uriRemap = new HashMap<URI, URI>();
+    // the pooled connections are kept alive across submissions
+    final int workerCount = Math.max(1, Math.min(MAX_CONCURRENT_UPLOADS, toUpload.length));
+    final CloseableHttpClient httpclient = WebUtils.createHttpClient(WebUtils.CONNECTION_TIMEOUT,
+        1, workerCount);
 
-    for (int i = 0; i < toUpload.length; ++i) {
-      if (isCancelled()) {
-        return mOutcome;
-      }
-      publishProgress(i + 1, toUpload.length);
+    final Map<URI, URI> uriRemap = new ConcurrentHashMap<URI, URI>();
+    final AtomicInteger started = new AtomicInteger(0);
+    final String submissionUrlString = urlString;
+    final int total = toUpload.length;
 
-      Uri toUpdate = Uri.withAppendedPath(InstanceProviderAPI.CONTENT_URI, appName + "/"
-          + uploadTableId + "/" + StringEscapeUtils.escapeHtml4(toUpload[i]));
-      Cursor c = null;
-      try {
-        c = appContext.getContentResolver().query(toUpdate, null, null, null, null);
-        if (c.getCount() == 1 && c.moveToFirst()) {
-
-          String id = CursorUtils.getIndexAsString(c,
-              c.getColumnIndex(InstanceColumns._ID));
-          String dataTableInstanceId = CursorUtils.getIndexAsString(c,
-              c.getColumnIndex(InstanceColumns.DATA_INSTANCE_ID));
-          String lastOutcome = CursorUtils.getIndexAsString(c,
-              c.getColumnIndex(InstanceColumns.XML_PUBLISH_STATUS));
-          String submissionInstanceId = LocalizationUtils.genUUID();
-          // submissions always get a new legacy instance id UNLESS the last
-          // submission failed,
-          // in which case we retry the submission using the legacy instance id
-          // associated with
-          // that failure. This supports resumption of sends of forms with many
-          // attachments.
-          if (lastOutcome != null && lastOutcome.equals(InstanceColumns.STATUS_SUBMISSION_FAILED)) {
-            String lastId = CursorUtils.getIndexAsString(c,
-                c.getColumnIndex(InstanceColumns.SUBMISSION_INSTANCE_ID));
-            if (lastId != null) {
-              submissionInstanceId = lastId;
+    ExecutorService executor = Executors.newFixedThreadPool(workerCount);
+    try {
+      List<Future<?>> uploads = new ArrayList<Future<?>>();
+      for (final String instanceId : toUpload) {
+        uploads.add(executor.submit(new Runnable() {
+          @Override
+          public void run() {
+            if (isCancelled() || isAuthenticationRequested()) {
+              return;
             }
+            publishProgress(started.incrementAndGet(), total);
+            uploadInstance(instanceId, submissionUrlString, httpclient, localContexts.get(),
+                uriRemap);
           }
-          c.close();
+        }));
+      }
+      for (Future<?> upload : uploads) {
+        try {
+          upload.get();
+        } catch (ExecutionException e) {
+          WebLogger.getLogger(appName).printStackTrace(e);
+        }
+      }
+    } catch (InterruptedException e) {
+      WebLogger.getLogger(appName).printStackTrace(e);
+      Thread.currentThread().interrupt();
+    } finally {
+      executor.shutdownNow();
+      try {
+        httpclient.close();
+      } catch (IOException e) {
+        WebLogger.getLogger(appName).printStackTrace(e);
+      }
+    }
 
-          FileSet instanceFiles;
-          try {
-            instanceFiles = constructSubmissionFiles(dataTableInstanceId, submissionInstanceId);
-            // NOTE: /submission must not be translated! It is
-            // the well-known path on the server.
+    return mOutcome;
+  }
 
-            if (!uploadOneSubmission(urlString, toUpdate, id, submissionInstanceId, instanceFiles,
-                httpclient, localContext, uriRemap)) {
-              return mOutcome; // get credentials...
-            }
-          } catch (JsonParseException e) {
-            WebLogger.getLogger(appName).printStackTrace(e);
-            mOutcome.mResults.put(id, fail + "unable to obtain manifest: " + dataTableInstanceId
-                + " :: details: " + e.toString());
-          } catch (JsonMappingException e) {
-            WebLogger.getLogger(appName).printStackTrace(e);
-            mOutcome.mResults.put(id, fail + "unable to obtain manifest: " + dataTableInstanceId
-                + " :: details: " + e.toString());
-          } catch (IOException e) {
-            WebLogger.getLogger(appName).printStackTrace(e);
-            mOutcome.mResults.put(id, fail + "unable to obtain manifest: " + dataTableInstanceId
-                + " :: details: " + e.toString());
+  /**
+   * Upload a single instance (the unit of work of one upload worker).
+   *
+   * @param instanceId
+   *          -- _ID in the InstanceColumns table.
+   * @param urlString
+   * @param httpclient
+   * @param localContext
+   * @param uriRemap
+   */
+  private void uploadInstance(String instanceId, String urlString, HttpClient httpclient,
+      HttpContext localContext, Map<URI, URI> uriRemap) {
+
+    Uri toUpdate = Uri.withAppendedPath(InstanceProviderAPI.CONTENT_URI, appName + "/"
+        + uploadTableId + "/" + StringEscapeUtils.escapeHtml4(instanceId));
+    Cursor c = null;
+    try {
+      c = appContext.getContentResolver().query(toUpdate, null, null, null, null);
+      if (c.getCount() == 1 && c.moveToFirst()) {
+
+        String id = CursorUtils.getIndexAsString(c,
+            c.getColumnIndex(InstanceColumns._ID));
+        String dataTableInstanceId = CursorUtils.getIndexAsString(c,
+            c.getColumnIndex(InstanceColumns.DATA_INSTANCE_ID));
+        String lastOutcome = CursorUtils.getIndexAsString(c,
+            c.getColumnIndex(InstanceColumns.XML_PUBLISH_STATUS));
+        String submissionInstanceId = LocalizationUtils.genUUID();
+        String priorPartsCompleted = null;
+        // submissions always get a new legacy instance id UNLESS the last
+        // submission failed,
+        // in which case we retry the submission using the legacy instance id
+        // associated with
+        // that failure. This supports resumption of sends of forms with many
+        // attachments.
+        if (lastOutcome != null && lastOutcome.equals(InstanceColumns.STATUS_SUBMISSION_FAILED)) {
+          String lastId = CursorUtils.getIndexAsString(c,
+              c.getColumnIndex(InstanceColumns.SUBMISSION_INSTANCE_ID));
+          if (lastId != null) {
+            submissionInstanceId = lastId;
+            priorPartsCompleted = CursorUtils.getIndexAsString(c,
+                c.getColumnIndex(InstanceProvider.SUBMISSION_PARTS_COMPLETED));
           }
-        } else {
-          mOutcome.mResults.put("unknown", fail + "unable to retrieve instance information via: "
-              + toUpdate.toString());
         }
-      } finally {
-        if (c != null && !c.isClosed()) {
-          c.close();
+        c.close();
+
+        FileSet instanceFiles;
+        try {
+          instanceFiles = constructSubmissionFiles(dataTableInstanceId, submissionInstanceId);
+          // NOTE: /submission must not be translated! It is
+          // the well-known path on the server.
+
+          // a false return means credentials are needed; the other
+          // workers stop picking up new submissions once that is recorded.
+          uploadOneSubmission(urlString, toUpdate, id, submissionInstanceId, instanceFiles,
+              httpclient, localContext, uriRemap, priorPartsCompleted);
+        } catch (JsonParseException e) {
+          WebLogger.getLogger(appName).printStackTrace(e);
+          recordResult(id, fail + "unable to obtain manifest: " + dataTableInstanceId
+              + " :: details: " + e.toString());
+        } catch (JsonMappingException e) {
+          WebLogger.getLogger(appName).printStackTrace(e);
+          recordResult(id, fail + "unable to obtain manifest: " + dataTableInstanceId
+              + " :: details: " + e.toString());
+        } catch (IOException e) {
+          WebLogger.getLogger(appName).printStackTrace(e);
+          recordResult(id, fail + "unable to obtain manifest: " + dataTableInstanceId
+              + " :: details: " + e.toString());
         }
+      } else {
+        recordResult("unknown", fail + "unable to retrieve instance information via: "
+            + toUpdate.toString());
+      }
+    } finally {
+      if (c != null && !c.isClosed()) {
+        c.close();
       }
     }
-
-    return mOutcome;
   }
 
   @Override
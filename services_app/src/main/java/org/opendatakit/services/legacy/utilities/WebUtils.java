@@ -116,6 +116,21 @@ public final class WebUtils {
   }
 
   public static CloseableHttpClient createHttpClient(int timeout, int maxRedirects) {
+    return createHttpClient(timeout, maxRedirects, 0);
+  }
+
+  /**
+   * Create an httpClient whose connection pool can keep up to
+   * maxConnectionsPerRoute connections alive to the same server, for use
+   * by concurrent requests.
+   *
+   * @param timeout
+   * @param maxRedirects
+   * @param maxConnectionsPerRoute zero to use the default pool size
+   * @return CloseableHttpClient properly configured.
+   */
+  public static CloseableHttpClient createHttpClient(int timeout, int maxRedirects,
+      int maxConnectionsPerRoute) {
     // configure connection
     SocketConfig socketConfig = SocketConfig.copy(SocketConfig.DEFAULT)
         .setSoTimeout(2*timeout)
@@ -137,18 +152,25 @@ public final class WebUtils {
         .build();
 
     // setup client
-    CloseableHttpClient httpclient = HttpClientBuilder.create()
+    HttpClientBuilder builder = HttpClientBuilder.create()
         .setDefaultSocketConfig(socketConfig)
-        .setDefaultRequestConfig(requestConfig)
-        .build();
+        .setDefaultRequestConfig(requestConfig);
+    if (maxConnectionsPerRoute > 0) {
+      builder.setMaxConnPerRoute(maxConnectionsPerRoute)
+          .setMaxConnTotal(2 * maxConnectionsPerRoute);
+    }
+    CloseableHttpClient httpclient = builder.build();
 
     return httpclient;
   }
 
   private void setOpenRosaHeaders(HttpRequest req) {
     req.setHeader(OPEN_ROSA_VERSION_HEADER, OPEN_ROSA_VERSION);
-    g.setTime(new Date());
-    req.setHeader(DATE_HEADER, DateFormat.format("E, dd MMM yyyy hh:mm:ss zz", g).toString());
+    // the calendar is shared; requests may be built on several upload threads
+    synchronized (g) {
+      g.setTime(new Date());
+      req.setHeader(DATE_HEADER, DateFormat.format("E, dd MMM yyyy hh:mm:ss zz", g).toString());
+    }
   }
 
   public HttpHead createOpenRosaHttpHead(URI uri) {
@@ -38,7 +38,6 @@ import org.opendatakit.provider.FormsColumns;
 import org.opendatakit.services.database.OdkConnectionFactorySingleton;
 import org.opendatakit.services.database.OdkConnectionInterface;
 import org.opendatakit.services.database.utilities.ODKDatabaseImplUtils;
-import org.opendatakit.services.resolve.views.components.ResolveActionList;
 import org.opendatakit.services.resolve.views.components.ResolveRowEntry;
 import org.opendatakit.services.utilities.ActiveUserAndLocale;
 import org.opendatakit.utilities.LocalizationUtils;
@@ -217,62 +216,47 @@ class OdkResolveConflictRowLoader extends AsyncTaskLoader<ArrayList<ResolveRowEn
 
         // the ids remaining in 'ids' are either hidden to the user or the user does not have
         // the ability to perform the local change they want in those rows.
-        for (String rowId : ids) {
+        if (!ids.isEmpty()) {
           // act as a privileged user so that we always restore to original row
-          ODKDatabaseImplUtils.get().resolveServerConflictTakeServerRowWithId(db, mTableId, rowId,
-              aul.activeUser, RoleConsts.ADMIN_ROLES_LIST);
-        }
-
-        {
-          // update the privileged query table again
-          // we always do this because we may have updated the permissions fields
-          selectionArgs = new Object[] { ConflictType.LOCAL_DELETED_OLD_VALUES,
-              ConflictType.LOCAL_UPDATED_UPDATED_VALUES };
-
-          baseTable = ODKDatabaseImplUtils.get().privilegedQuery(db, mTableId, QueryUtil
-                  .buildSqlStatement(mTableId, whereClause, groupBy, null, orderByKeys, orderByDir),
-              selectionArgs, null, accessContextPrivileged);
-          table = new UserTable(baseTable, orderedDefns, adminColArr);
+          ODKDatabaseImplUtils.get().resolveServerConflictTakeServerRowsWithIds(db, mTableId,
+              new ArrayList<String>(ids), aul.activeUser, aul.locale);
         }
       }
 
-      // and now scan to see if we can resolve the conflicts because the rows are
+      // and now find the conflicts we can resolve because the rows are
       // identical in all fields that the user should be able to select. This is after
       // the above processing because the
       // ODKDatabaseImplUtils.enforcePermissionsAndOptimizeConflictProcessing()
       // function may have eliminated all of the differences in the row (if they were
       // only impacting the permissions fields).
       //
+      // A single self-join identifies all of these rows; they are then resolved
+      // in one transaction.
       if ( !mHaveResolvedMetadataConflicts ) {
 
-        boolean tableSetChanged = false;
         // resolve the automatically-resolvable ones
         // (the ones that differ only in their metadata).
-        for ( int i = 0 ; i < table.getNumberOfRows(); ++i ) {
-          TypedRow row = table.getRowAtIndex(i);
-          String rowId = row.getRawStringByKey(DataTableColumns.ID);
-          OdkResolveConflictFieldLoader loader = new OdkResolveConflictFieldLoader(getContext()
-              , mAppName, mTableId, rowId);
-          ResolveActionList resolveActionList = loader.doWork(dbHandleName);
-
-          if ( resolveActionList.noChangesInUserDefinedFieldValues() ) {
-            tableSetChanged = true;
-            // all users can resolve taking the server's changes
-            // Use privileged user roles since we are taking the server's values
-            ODKDatabaseImplUtils.get().resolveServerConflictTakeServerRowWithId(db,
-                mTableId, rowId, aul.activeUser, aul.locale);
-          }
+        List<String> metadataOnlyRowIds = ODKDatabaseImplUtils.get()
+            .getServerConflictRowIdsWithoutUserDataChanges(db, mTableId, orderedDefns);
+
+        if ( !metadataOnlyRowIds.isEmpty() ) {
+          // all users can resolve taking the server's changes
+          // Use privileged user roles since we are taking the server's values
+          ODKDatabaseImplUtils.get().resolveServerConflictTakeServerRowsWithIds(db,
+              mTableId, metadataOnlyRowIds, aul.activeUser, aul.locale);
         }
+      }
 
-        if (tableSetChanged) {
-          selectionArgs = new Object[] { ConflictType.LOCAL_DELETED_OLD_VALUES,
-              ConflictType.LOCAL_UPDATED_UPDATED_VALUES };
+      {
+        // update the privileged query table again
+        // we always do this because we may have updated the permissions fields
+        selectionArgs = new Object[] { ConflictType.LOCAL_DELETED_OLD_VALUES,
+            ConflictType.LOCAL_UPDATED_UPDATED_VALUES };
 
-          baseTable = ODKDatabaseImplUtils.get().privilegedQuery(db, mTableId, QueryUtil
-                  .buildSqlStatement(mTableId, whereClause, groupBy, null, orderByKeys, orderByDir),
-              selectionArgs, null, accessContextPrivileged);
-          table = new UserTable(baseTable, orderedDefns, adminColArr);
-        }
+        baseTable = ODKDatabaseImplUtils.get().privilegedQuery(db, mTableId, QueryUtil
+                .buildSqlStatement(mTableId, whereClause, groupBy, null, orderByKeys, orderByDir),
+            selectionArgs, null, accessContextPrivileged);
+        table = new UserTable(baseTable, orderedDefns, adminColArr);
       }
 
       // at this point, the conflict rows that remain can be resolved either by taking the
@@ -15,6 +15,7 @@ import org.opendatakit.services.resolve.listener.ResolutionListener;
 import org.opendatakit.services.resolve.views.components.ResolveRowEntry;
 import org.opendatakit.services.utilities.ActiveUserAndLocale;
 
+import java.util.ArrayList;
 import java.util.UUID;
 
 /**
@@ -23,7 +24,7 @@ import java.util.UUID;
 public class CheckpointResolutionListTask extends AsyncTask<Void, String, String> {
 
   ActiveUserAndLocale aul;
-  String formatStrResolvingRowNofM;
+  String formatStrResolvingRows;
   String formatStrDone;
   boolean mTakeNewest;
   String mAppName;
@@ -39,7 +40,7 @@ public class CheckpointResolutionListTask extends AsyncTask<Void, String, String
     mAppName = appName;
     aul = ActiveUserAndLocale.getActiveUserAndLocale(context, mAppName);
 
-    formatStrResolvingRowNofM = context.getString(R.string.resolving_row_n_of_m);
+    formatStrResolvingRows = context.getString(R.string.resolving_n_rows);
     formatStrDone = context.getString(R.string.done_resolving_rows);
     mTakeNewest = takeNewest;
   }
@@ -50,62 +51,42 @@ public class CheckpointResolutionListTask extends AsyncTask<Void, String, String
 
     DbHandle dbHandleName = new DbHandle(UUID.randomUUID().toString());
 
-    StringBuilder exceptions = null;
+    String exceptions = null;
 
     try {
       // +1 referenceCount if db is returned (non-null)
       db = OdkConnectionFactorySingleton.getOdkConnectionFactoryInterface()
           .getConnection(mAppName, dbHandleName);
 
-      for ( int i = 0 ; i < mAdapter.getCount() ; ++i ) {
-        this.publishProgress(
-            String.format(formatStrResolvingRowNofM, i+1, mAdapter.getCount()));
-
-        ResolveRowEntry entry = mAdapter.getItem(i);
-        try {
-
-          if ( mTakeNewest ) {
-            // this may fail if user does not have permissions for modifying row
-            ODKDatabaseImplUtils.get()
-                .saveAsCompleteMostRecentCheckpointRowWithId(db, mTableId, entry.rowId);
-          } else {
-            // allow all users to automatically roll back
-            ODKDatabaseImplUtils.get().deleteAllCheckpointRowsWithId(db, mTableId,
-                entry.rowId, aul.activeUser, RoleConsts.ADMIN_ROLES_LIST);
-          }
-
-        } catch (Exception e) {
-          String msg = e.getLocalizedMessage();
-          if (msg == null)
-            msg = e.getMessage();
-          if (msg == null)
-            msg = e.toString();
-          msg = "Exception: " + msg;
-          WebLogger.getLogger(mAppName).e("takeAllLocal",
-              mAppName + " " + dbHandleName.getDatabaseHandle() + " " + msg);
-          WebLogger.getLogger(mAppName).printStackTrace(e);
-
-          if (exceptions == null) {
-            exceptions = new StringBuilder();
-          } else {
-            exceptions.append("\n");
-          }
-          exceptions.append(msg);
-
-          // and to be sure, try to release this database connection and create a new one...
-          OdkConnectionInterface dbOld = db;
-          db = null;
-
-          dbHandleName = new DbHandle(UUID.randomUUID().toString());
-
-          if ( dbOld != null ) {
-            dbOld.releaseReference();
-          }
-
-          // +1 referenceCount if db is returned (non-null)
-          db = OdkConnectionFactorySingleton.getOdkConnectionFactoryInterface()
-              .getConnection(mAppName, dbHandleName);
+      int count = mAdapter.getCount();
+      this.publishProgress(String.format(formatStrResolvingRows, count));
+
+      ArrayList<String> rowIds = new ArrayList<String>(count);
+      for ( int i = 0 ; i < count ; ++i ) {
+        rowIds.add(mAdapter.getItem(i).rowId);
+      }
+
+      try {
+        // resolve all the rows in a single transaction
+        if ( mTakeNewest ) {
+          ODKDatabaseImplUtils.get()
+              .saveAsCompleteMostRecentCheckpointRowsWithIds(db, mTableId, rowIds);
+        } else {
+          // allow all users to automatically roll back
+          ODKDatabaseImplUtils.get().deleteAllCheckpointRowsWithIds(db, mTableId,
+              rowIds, aul.activeUser, RoleConsts.ADMIN_ROLES_LIST);
         }
+      } catch (Exception e) {
+        String msg = e.getLocalizedMessage();
+        if (msg == null)
+          msg = e.getMessage();
+        if (msg == null)
+          msg = e.toString();
+        msg = "Exception: " + msg;
+        WebLogger.getLogger(mAppName).e("takeAllLocal",
+            mAppName + " " + dbHandleName.getDatabaseHandle() + " " + msg);
+        WebLogger.getLogger(mAppName).printStackTrace(e);
+        exceptions = msg;
       }
       this.publishProgress(formatStrDone);
 
@@ -118,7 +99,7 @@ public class CheckpointResolutionListTask extends AsyncTask<Void, String, String
         db.releaseReference();
       }
     }
-    return (exceptions != null) ? exceptions.toString() : null;
+    return exceptions;
   }
 
   @Override
@@ -198,7 +179,7 @@ public class CheckpointResolutionListTask extends AsyncTask<Void, String, String
     synchronized (this) {
       this.mAdapter = adapter;
       this.mProgress =
-          String.format(formatStrResolvingRowNofM, 1, mAdapter.getCount());
+          String.format(formatStrResolvingRows, mAdapter.getCount());
     }
   }
 
@@ -14,6 +14,8 @@ import org.opendatakit.services.resolve.listener.ResolutionListener;
 import org.opendatakit.services.resolve.views.components.ResolveRowEntry;
 import org.opendatakit.services.utilities.ActiveUserAndLocale;
 
+import java.util.ArrayList;
+import java.util.Map;
 import java.util.UUID;
 
 /**
@@ -22,7 +24,7 @@ import java.util.UUID;
 public class ConflictResolutionListTask extends AsyncTask<Void, String, String> {
 
   ActiveUserAndLocale aul;
-  String formatStrResolvingRowNofM;
+  String formatStrResolvingRows;
   String formatStrDone;
 
   boolean mTakeLocal;
@@ -44,7 +46,7 @@ public class ConflictResolutionListTask extends AsyncTask<Void, String, String>
     this.mAppName = appName;
     aul = ActiveUserAndLocale.getActiveUserAndLocale(context, mAppName);
 
-    formatStrResolvingRowNofM = context.getString(R.string.resolving_row_n_of_m);
+    formatStrResolvingRows = context.getString(R.string.resolving_n_rows);
     formatStrDone = context.getString(R.string.done_resolving_rows);
     mTakeLocal = takeLocal;
   }
@@ -62,56 +64,57 @@ public class ConflictResolutionListTask extends AsyncTask<Void, String, String>
       db = OdkConnectionFactorySingleton.getOdkConnectionFactoryInterface()
           .getConnection(mAppName, dbHandleName);
 
-      for ( int i = 0 ; i < mAdapter.getCount() ; ++i ) {
-        this.publishProgress(String.format(formatStrResolvingRowNofM, i+1, mAdapter.getCount()));
-
-        ResolveRowEntry entry = mAdapter.getItem(i);
-        try {
-
-          if ( mTakeLocal ) {
-            // this might fail due to lowered user privileges
-            ODKDatabaseImplUtils.get()
-                .resolveServerConflictTakeLocalRowWithId(db, mTableId, entry.rowId,
-                    aul.activeUser, aul.rolesList, aul.locale);
-          } else {
-            // all users can always take the server's changes
-            ODKDatabaseImplUtils.get()
-                .resolveServerConflictTakeServerRowWithId(db, mTableId, entry.rowId,
-                    aul.activeUser, aul.locale);
-          }
-
-        } catch (Exception e) {
-          String msg = e.getLocalizedMessage();
-          if (msg == null)
-            msg = e.getMessage();
-          if (msg == null)
-            msg = e.toString();
-          msg = "Exception: " + msg;
-          WebLogger.getLogger(mAppName).e("takeAllLocal",
-              mAppName + " " + dbHandleName.getDatabaseHandle() + " " + msg);
-          WebLogger.getLogger(mAppName).printStackTrace(e);
-
-          if (exceptions == null) {
-            exceptions = new StringBuilder();
-          } else {
-            exceptions.append("\n");
-          }
-          exceptions.append(msg);
-
-          // and to be sure, try to release this database connection and create a new one...
-          OdkConnectionInterface dbOld = db;
-          db = null;
+      int count = mAdapter.getCount();
+      this.publishProgress(String.format(formatStrResolvingRows, count));
 
-          dbHandleName = new DbHandle(UUID.randomUUID().toString());
+      ArrayList<String> rowIds = new ArrayList<String>(count);
+      for ( int i = 0 ; i < count ; ++i ) {
+        rowIds.add(mAdapter.getItem(i).rowId);
+      }
 
-          if ( dbOld != null ) {
-            dbOld.releaseReference();
+      try {
+        // resolve all the rows in a single transaction
+        if ( mTakeLocal ) {
+          // rows the user may no longer change (e.g., due to lowered user
+          // privileges) are left in conflict and reported back
+          Map<String, String> unauthorized = ODKDatabaseImplUtils.get()
+              .resolveServerConflictTakeLocalRowsWithIds(db, mTableId, rowIds,
+                  aul.activeUser, aul.rolesList, aul.locale);
+          for ( Map.Entry<String, String> e : unauthorized.entrySet() ) {
+            String msg = "Exception: " + e.getValue();
+            WebLogger.getLogger(mAppName).e("takeAllLocal",
+                mAppName + " " + dbHandleName.getDatabaseHandle() + " " + e.getKey() + " " + msg);
+
+            if (exceptions == null) {
+              exceptions = new StringBuilder();
+            } else {
+              exceptions.append("\n");
+            }
+            exceptions.append(msg);
           }
-
-          // +1 referenceCount if db is returned (non-null)
-          db = OdkConnectionFactorySingleton.getOdkConnectionFactoryInterface()
-              .getConnection(mAppName, dbHandleName);
+        } else {
+          // all users can always take the server's changes
+          ODKDatabaseImplUtils.get()
+              .resolveServerConflictTakeServerRowsWithIds(db, mTableId, rowIds,
+                  aul.activeUser, aul.locale);
+        }
+      } catch (Exception e) {
+        String msg = e.getLocalizedMessage();
+        if (msg == null)
+          msg = e.getMessage();
+        if (msg == null)
+          msg = e.toString();
+        msg = "Exception: " + msg;
+        WebLogger.getLogger(mAppName).e("takeAllLocal",
+            mAppName + " " + dbHandleName.getDatabaseHandle() + " " + msg);
+        WebLogger.getLogger(mAppName).printStackTrace(e);
+
+        if (exceptions == null) {
+          exceptions = new StringBuilder();
+        } else {
+          exceptions.append("\n");
         }
+        exceptions.append(msg);
       }
       this.publishProgress(formatStrDone);
 
@@ -203,7 +206,7 @@ public class ConflictResolutionListTask extends AsyncTask<Void, String, String>
   public void setResolveRowEntryAdapter(ArrayAdapter<ResolveRowEntry> adapter) {
     synchronized (this) {
       this.mAdapter = adapter;
-      this.mProgress = String.format(formatStrResolvingRowNofM, 1, mAdapter.getCount());
+      this.mProgress = String.format(formatStrResolvingRows, mAdapter.getCount());
     }
   }
 
@@ -21,9 +21,12 @@ import android.database.SQLException;
 import android.net.Uri;
 import android.os.ParcelFileDescriptor;
 import android.util.Log;
+import android.util.Xml;
 
 import androidx.annotation.NonNull;
 
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonGenerator;
 import com.fasterxml.jackson.core.JsonParseException;
 import com.fasterxml.jackson.databind.JsonMappingException;
 
@@ -52,15 +55,14 @@ import org.opendatakit.services.utilities.EncryptionUtils;
 import org.opendatakit.services.utilities.EncryptionUtils.EncryptedFormInformation;
 import org.opendatakit.utilities.FileSet;
 import org.opendatakit.utilities.ODKFileUtils;
-import org.w3c.dom.Document;
-import org.w3c.dom.Element;
-import org.w3c.dom.Text;
+import org.xmlpull.v1.XmlSerializer;
 
-import java.io.ByteArrayOutputStream;
+import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
@@ -70,17 +72,6 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
-import java.util.Properties;
-
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
-import javax.xml.parsers.ParserConfigurationException;
-import javax.xml.transform.OutputKeys;
-import javax.xml.transform.Transformer;
-import javax.xml.transform.TransformerException;
-import javax.xml.transform.TransformerFactory;
-import javax.xml.transform.dom.DOMSource;
-import javax.xml.transform.stream.StreamResult;
 
 /**
  * The WebKit does better if there is a content provider vending files to it.
@@ -156,32 +147,27 @@ public class SubmissionProvider extends ContentProvider {
   }
 
   @SuppressWarnings("unchecked")
-  private static int generateXmlHelper(Document d, Element data, int idx, String key,
-      Map<String, Object> values, WebLoggerIf logger) {
+  private static void generateXmlHelper(XmlSerializer serializer, String key,
+      Map<String, Object> values, WebLoggerIf logger) throws IOException {
     Object o = values.get(key);
 
-    Element e = d.createElement(key);
+    serializer.startTag(null, key);
 
     if (o == null) {
       logger.e(t, "Unexpected null value");
-    } else if (o instanceof Integer) {
-      Text txtNode = d.createTextNode(((Integer) o).toString());
-      e.appendChild(txtNode);
-    } else if (o instanceof Double) {
-      Text txtNode = d.createTextNode(((Double) o).toString());
-      e.appendChild(txtNode);
-    } else if (o instanceof Boolean) {
-      Text txtNode = d.createTextNode(((Boolean) o).toString());
-      e.appendChild(txtNode);
+    } else if (o instanceof Integer || o instanceof Long || o instanceof Double
+        || o instanceof Boolean) {
+      serializer.text(o.toString());
     } else if (o instanceof String) {
-      Text txtNode = d.createTextNode(((String) o));
-      e.appendChild(txtNode);
+      serializer.text((String) o);
     } else if (o instanceof List) {
       StringBuilder b = new StringBuilder();
       List<Object> al = (List<Object>) o;
       for (Object ob : al) {
         if (ob instanceof Integer) {
           b.append(((Integer) ob).toString());
+        } else if (ob instanceof Long) {
+          b.append(((Long) ob).toString());
         } else if (ob instanceof Double) {
           b.append(((Double) ob).toString());
         } else if (ob instanceof Boolean) {
@@ -193,24 +179,85 @@ public class SubmissionProvider extends ContentProvider {
         }
         b.append(" ");
       }
-      Text txtNode = d.createTextNode(b.toString().trim());
-      e.appendChild(txtNode);
+      serializer.text(b.toString().trim());
     } else if (o instanceof Map) {
       // it is an object...
       Map<String, Object> m = (Map<String, Object>) o;
-      int nidx = 0;
 
       ArrayList<String> entryNames = new ArrayList<String>();
       entryNames.addAll(m.keySet());
       Collections.sort(entryNames);
       for (String name : entryNames) {
-        nidx = generateXmlHelper(d, e, nidx, name, m, logger);
+        generateXmlHelper(serializer, name, m, logger);
       }
     } else {
       throw new IllegalArgumentException("Unexpected object type in XML submission serializer");
     }
-    data.appendChild(e);
-    return idx;
+    serializer.endTag(null, key);
+  }
+
+  /**
+   * Writes the XML submission directly to an output stream. The document is
+   * never materialized in memory: the meta block is emitted from the recorded
+   * (namespace, name, value) triples and the data values are walked in sorted
+   * order.
+   */
+  private static final class XmlSubmissionWriter implements EncryptionUtils.SubmissionWriter {
+    private final String rootElementName;
+    private final String tableId;
+    private final Map<String, Object> values;
+    private final WebLoggerIf logger;
+    private final List<String[]> metaElements = new ArrayList<String[]>();
+
+    XmlSubmissionWriter(String rootElementName, String tableId, Map<String, Object> values,
+        WebLoggerIf logger) {
+      this.rootElementName = rootElementName;
+      this.tableId = tableId;
+      this.values = values;
+      this.logger = logger;
+    }
+
+    /**
+     * Append an element to the meta block.
+     *
+     * @param namespace null for un-namespaced elements
+     * @param name
+     * @param value may be null; an empty element is then emitted
+     */
+    void addMeta(String namespace, String name, String value) {
+      metaElements.add(new String[] { namespace, name, value });
+    }
+
+    @Override
+    public void writeTo(OutputStream out) throws IOException {
+      XmlSerializer serializer = Xml.newSerializer();
+      // no XML declaration is emitted (no startDocument call)
+      serializer.setOutput(out, CharEncoding.UTF_8);
+
+      serializer.startTag(null, rootElementName);
+      serializer.attribute(null, "id", tableId);
+
+      serializer.setPrefix("jr", XML_OPENROSA_NAMESPACE);
+      serializer.startTag(XML_OPENROSA_NAMESPACE, "meta");
+      for (String[] meta : metaElements) {
+        serializer.startTag(meta[0], meta[1]);
+        if (meta[2] != null) {
+          serializer.text(meta[2]);
+        }
+        serializer.endTag(meta[0], meta[1]);
+      }
+      serializer.endTag(XML_OPENROSA_NAMESPACE, "meta");
+
+      ArrayList<String> entryNames = new ArrayList<String>();
+      entryNames.addAll(values.keySet());
+      Collections.sort(entryNames);
+      for (String name : entryNames) {
+        generateXmlHelper(serializer, name, values, logger);
+      }
+
+      serializer.endTag(null, rootElementName);
+      serializer.flush();
+    }
   }
 
   /**
@@ -523,188 +570,44 @@ public class SubmissionProvider extends ContentProvider {
               datestamp = (new SimpleDateFormat(ISO8601_DATE_FORMAT, Locale.US))
                   .format(new Date(TableConstants.milliSecondsFromNanos(savepointTimestamp, Locale.ROOT)));
 
-              // For XML, we traverse the map to serialize it
-              DocumentBuilderFactory dbf = DocumentBuilderFactory.newInstance();
-              DocumentBuilder docBuilder = dbf.newDocumentBuilder();
-              
-              Document d = docBuilder.newDocument();
-
-              d.setXmlStandalone(true);
-              
-              Element e = d.createElement(
-                  (xmlRootElementName == null) ? "data" : xmlRootElementName);
-              d.appendChild(e);
-              e.setAttribute("id", tableId);
+              // For XML, we stream the map straight to the output file
+              XmlSubmissionWriter writer = new XmlSubmissionWriter(
+                  (xmlRootElementName == null) ? "data" : xmlRootElementName, tableId, values,
+                  logger);
               DynamicPropertiesCallback cb = new DynamicPropertiesCallback(appName,
                   tableId, instanceId, aul.activeUser, aul.locale);
 
-              int idx = 0;
-              Element meta = d.createElementNS(XML_OPENROSA_NAMESPACE, "meta");
-              meta.setPrefix("jr");
-
-              Element v = d.createElementNS(XML_OPENROSA_NAMESPACE, "instanceID");
-              Text txtNode = d.createTextNode(submissionInstanceId);
-              v.appendChild(txtNode);
-              meta.appendChild(v);
+              writer.addMeta(XML_OPENROSA_NAMESPACE, "instanceID", submissionInstanceId);
 
               if (xmlDeviceIdPropertyName != null) {
                 String deviceId = propertyManager.getSingularProperty(xmlDeviceIdPropertyName, cb);
                 if (deviceId != null) {
-                  v = d.createElementNS(XML_OPENROSA_NAMESPACE, "deviceID");
-                  txtNode = d.createTextNode(deviceId);
-                  v.appendChild(txtNode);
-                  meta.appendChild(v);
+                  writer.addMeta(XML_OPENROSA_NAMESPACE, "deviceID", deviceId);
                 }
               }
               if (xmlUserIdPropertyName != null) {
                 String userId = propertyManager.getSingularProperty(xmlUserIdPropertyName, cb);
                 if (userId != null) {
-                  v = d.createElementNS(XML_OPENROSA_NAMESPACE, "userID");
-                  txtNode = d.createTextNode(userId);
-                  v.appendChild(txtNode);
-                  meta.appendChild(v);
+                  writer.addMeta(XML_OPENROSA_NAMESPACE, "userID", userId);
                 }
               }
-              v = d.createElementNS(XML_OPENROSA_NAMESPACE, "timeEnd");
-              txtNode = d.createTextNode(datestamp);
-              v.appendChild(txtNode);
-              meta.appendChild(v);
+              writer.addMeta(XML_OPENROSA_NAMESPACE, "timeEnd", datestamp);
 
               // these are extra metadata tags...
-              if (instanceName != null) {
-                v = d.createElement("instanceName");
-                txtNode = d.createTextNode(instanceName);
-                v.appendChild(txtNode);
-                meta.appendChild(v);
-              } else {
-                v = d.createElement("instanceName");
-                txtNode = d.createTextNode(savepointTimestamp);
-                v.appendChild(txtNode);
-                meta.appendChild(v);
-              }
-
-              // these are extra metadata tags...
-              // rowID
-              v = d.createElement("rowID");
-              txtNode = d.createTextNode(instanceId);
-              v.appendChild(txtNode);
-              meta.appendChild(v);
-
-              // rowETag
-              v = d.createElement("rowETag");
-              if (rowETag != null) {
-                txtNode = d.createTextNode(rowETag);
-                v.appendChild(txtNode);
-              }
-              meta.appendChild(v);
-
-              // defaultAccess
-              v = d.createElement("defaultAccess");
-              if (defaultAccess != null) {
-                txtNode = d.createTextNode(defaultAccess);
-                v.appendChild(txtNode);
-              }
-              meta.appendChild(v);
-
-              // owner
-              v = d.createElement("owner");
-              if (owner != null) {
-                txtNode = d.createTextNode(owner);
-                v.appendChild(txtNode);
-              }
-              meta.appendChild(v);
-
-              // groupReadOnly
-              v = d.createElement("groupReadOnly");
-              if (groupReadOnly != null) {
-                txtNode = d.createTextNode(groupReadOnly);
-                v.appendChild(txtNode);
-              }
-              meta.appendChild(v);
-
-              // groupModify
-              v = d.createElement("groupModify");
-              if (groupModify != null) {
-                txtNode = d.createTextNode(groupModify);
-                v.appendChild(txtNode);
-              }
-              meta.appendChild(v);
-
-              // groupPrivileged
-              v = d.createElement("groupPrivileged");
-              if (groupPrivileged != null) {
-                txtNode = d.createTextNode(groupPrivileged);
-                v.appendChild(txtNode);
-              }
-              meta.appendChild(v);
-
-              // formID
-              v = d.createElement("formID");
-              txtNode = d.createTextNode(formId);
-              v.appendChild(txtNode);
-              meta.appendChild(v);
-
-              // locale
-              v = d.createElement("locale");
-              txtNode = d.createTextNode(locale);
-              v.appendChild(txtNode);
-              meta.appendChild(v);
-
-              // savepointType
-              v = d.createElement("savepointType");
-              txtNode = d.createTextNode(savepointType);
-              v.appendChild(txtNode);
-              meta.appendChild(v);
-
-              // savepointCreator
-              v = d.createElement("savepointCreator");
-              if (savepointCreator != null) {
-                txtNode = d.createTextNode(savepointCreator);
-                v.appendChild(txtNode);
-              }
-              meta.appendChild(v);
-
-              // savepointTimestamp
-              v = d.createElement("savepointTimestamp");
-              txtNode = d.createTextNode(savepointTimestamp);
-              v.appendChild(txtNode);
-              meta.appendChild(v);
-
-              // and insert the meta block into the XML
-
-              e.appendChild(meta);
-
-              idx = 3;
-              ArrayList<String> entryNames = new ArrayList<String>();
-              entryNames.addAll(values.keySet());
-              Collections.sort(entryNames);
-              for (String name : entryNames) {
-                idx = generateXmlHelper(d, e, idx, name, values, logger);
-              }
-
-              TransformerFactory factory = TransformerFactory.newInstance();
-              Transformer transformer = factory.newTransformer();
-              Properties outFormat = new Properties();
-              outFormat.setProperty( OutputKeys.INDENT, "no" );
-              outFormat.setProperty( OutputKeys.METHOD, "xml" );
-              outFormat.setProperty( OutputKeys.OMIT_XML_DECLARATION, "yes" );
-              outFormat.setProperty( OutputKeys.VERSION, "1.0" );
-              outFormat.setProperty( OutputKeys.ENCODING, "UTF-8" );
-              transformer.setOutputProperties( outFormat );
-
-              ByteArrayOutputStream out = new ByteArrayOutputStream();
-
-              DOMSource domSource = new DOMSource( d.getDocumentElement() );
-              StreamResult result = new StreamResult( out );
-              transformer.transform( domSource, result );
-
-              out.flush();
-              out.close();
-
-              b.append(out.toString(CharEncoding.UTF_8));
-
-              // OK we have the document in the builder (b).
-              String doc = b.toString();
+              writer.addMeta(null, "instanceName",
+                  (instanceName != null) ? instanceName : savepointTimestamp);
+              writer.addMeta(null, "rowID", instanceId);
+              writer.addMeta(null, "rowETag", rowETag);
+              writer.addMeta(null, "defaultAccess", defaultAccess);
+              writer.addMeta(null, "owner", owner);
+              writer.addMeta(null, "groupReadOnly", groupReadOnly);
+              writer.addMeta(null, "groupModify", groupModify);
+              writer.addMeta(null, "groupPrivileged", groupPrivileged);
+              writer.addMeta(null, "formID", formId);
+              writer.addMeta(null, "locale", locale);
+              writer.addMeta(null, "savepointType", savepointType);
+              writer.addMeta(null, "savepointCreator", savepointCreator);
+              writer.addMeta(null, "savepointTimestamp", savepointTimestamp);
 
               freturn.instanceFile = submissionXml;
 
@@ -719,8 +622,10 @@ public class SubmissionProvider extends ContentProvider {
                 // if we are encrypting, the form cannot be
                 // reopened afterward
                 // and encrypt the submission (this is a
-                // one-way operation)...
-                if (!EncryptionUtils.generateEncryptedSubmission(freturn, doc, submissionXml,
+                // one-way operation). The plaintext submission
+                // is streamed through the cipher and never
+                // written to disk.
+                if (!EncryptionUtils.generateEncryptedSubmission(freturn, writer, submissionXml,
                     submissionXmlEnc, formInfo)) {
                   return null;
                 }
@@ -728,7 +633,7 @@ public class SubmissionProvider extends ContentProvider {
                 // been re-written with the encrypted media
                 // and xml files.
               } else {
-                exportFile(doc, submissionXml, logger);
+                exportFile(writer, submissionXml, logger);
               }
 
             } else {
@@ -794,11 +699,15 @@ public class SubmissionProvider extends ContentProvider {
               elem.put("saved", "COMPLETE");
               elem.put("timestamp", datestamp);
 
-              b.append(ODKFileUtils.mapper.writeValueAsString(wrapper));
-
-              // OK we have the document in the builder (b).
-              String doc = b.toString();
-              exportFile(doc, submissionXml, logger);
+              final HashMap<String, Object> document = wrapper;
+              exportFile(new EncryptionUtils.SubmissionWriter() {
+                @Override
+                public void writeTo(OutputStream out) throws IOException {
+                  JsonGenerator generator = ODKFileUtils.mapper.getFactory()
+                      .createGenerator(out, JsonEncoding.UTF8);
+                  ODKFileUtils.mapper.writeValue(generator, document);
+                }
+              }, submissionXml, logger);
             }
             exportFile(freturn.serializeUriFragmentList(), manifest, logger);
             return ParcelFileDescriptor.open(manifest, ParcelFileDescriptor.MODE_READ_ONLY);
@@ -811,10 +720,6 @@ public class SubmissionProvider extends ContentProvider {
           }
         }
 
-      } catch (ParserConfigurationException e) {
-        logger.printStackTrace(e);
-      } catch (TransformerException e) {
-        logger.printStackTrace(e);
       } catch (JsonParseException e) {
         logger.printStackTrace(e);
       } catch (JsonMappingException e) {
@@ -840,6 +745,38 @@ public class SubmissionProvider extends ContentProvider {
     return null;
   }
 
+  /**
+   * Stream a submission document to disk.
+   *
+   * @param writer emits the document
+   * @param outputFilePath the path to the file to write
+   * @param  logger a logger to write to, typically gotten with WebLogger.getWebLogger(appName)
+   * @return whether successful or not
+   */
+  private static boolean exportFile(EncryptionUtils.SubmissionWriter writer, File outputFilePath,
+      WebLoggerIf logger) {
+    OutputStream os = null;
+    try {
+      os = new BufferedOutputStream(new FileOutputStream(outputFilePath, false));
+      writer.writeTo(os);
+      os.flush();
+      os.close();
+      return true;
+
+    } catch (IOException e) {
+      logger.e(t, "Error writing file");
+      logger.printStackTrace(e);
+      try {
+        if (os != null) {
+          os.close();
+        }
+      } catch (IOException ex) {
+        logger.printStackTrace(ex);
+      }
+      return false;
+    }
+  }
+
   /**
    * This method actually writes the JSON appName-relative manifest to disk.
    *
@@ -37,6 +37,8 @@ import org.opendatakit.logging.WebLogger;
 import org.opendatakit.properties.CommonToolProperties;
 import org.opendatakit.properties.PropertiesSingleton;
 import org.opendatakit.properties.PropertyManager;
+import org.opendatakit.services.database.ServiceCallMetrics;
+import org.opendatakit.services.database.WalCheckpointScheduler;
 import org.opendatakit.services.sync.service.logic.Synchronizer;
 import org.opendatakit.services.sync.service.logic.Synchronizer.SynchronizerStatus;
 import org.opendatakit.sync.service.SyncOutcome;
@@ -258,6 +260,15 @@ public class SyncExecutionContext implements SynchronizerStatus {
     deviceInfo.put("androidHardware", Build.HARDWARE);
     deviceInfo.put("androidProduct", Build.PRODUCT);
     deviceInfo.put(PropertyManager.OR_DEVICE_ID_PROPERTY, deviceId );
+    // written by the database service, which runs in a different process
+    Map<String,Object> serviceCallMetrics = ServiceCallMetrics.readPublishedSnapshot(appName);
+    if ( serviceCallMetrics != null ) {
+      deviceInfo.put("databaseServiceCallMetrics", serviceCallMetrics);
+    }
+    Map<String,Object> walCheckpointMetrics = WalCheckpointScheduler.readPublishedSnapshot(appName);
+    if ( walCheckpointMetrics != null ) {
+      deviceInfo.put("databaseWalCheckpointMetrics", walCheckpointMetrics);
+    }
     return deviceInfo;
   }
 
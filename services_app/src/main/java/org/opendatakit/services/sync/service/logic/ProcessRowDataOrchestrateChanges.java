@@ -31,6 +31,7 @@ import org.opendatakit.logging.WebLoggerIf;
 import org.opendatakit.provider.DataTableColumns;
 import org.opendatakit.provider.FormsColumns;
 import org.opendatakit.services.R;
+import org.opendatakit.services.database.utilities.TableHealthUtils;
 import org.opendatakit.services.sync.service.SyncExecutionContext;
 import org.opendatakit.sync.service.SyncAttachmentState;
 import org.opendatakit.sync.service.SyncOutcome;
@@ -178,14 +179,25 @@ public class ProcessRowDataOrchestrateChanges {
         int rows = 0;
         try {
           db = sc.getDatabase();
-          // get counts of checkpoints, conflicts and rows in the table
+          // get counts of checkpoints, conflicts and rows in the table.
+          // These are maintained by triggers on the data table; fall back to
+          // counting the rows if they have not been initialized for this table yet.
           BaseTable t = sc.getDatabaseService().arbitrarySqlQuery(sc.getAppName(), db, null,
-              "SELECT sum(case when " + DataTableColumns.SAVEPOINT_TYPE +
-                  " IS NULL THEN 1 ELSE 0 END) as n_checkpoints,"
-                  + " sum(case when " + DataTableColumns.CONFLICT_TYPE +
-                  " IS NOT NULL THEN 1 ELSE 0 END) as n_dblconflicts,"
-                  + " count(*) as n_rows"
-                  + " FROM " + tableId, null, null, null );
+              "SELECT " + TableHealthUtils.CHECKPOINTS + " as n_checkpoints, "
+                  + TableHealthUtils.CONFLICTS + " as n_dblconflicts, "
+                  + TableHealthUtils.ROWS + " as n_rows"
+                  + " FROM " + TableHealthUtils.TABLE_HEALTH_TABLE_NAME
+                  + " WHERE " + TableHealthUtils.TABLE_ID + "=?",
+              new BindArgs(new Object[] { tableId }), null, null );
+          if ( t.getNumberOfRows() != 1 ) {
+            t = sc.getDatabaseService().arbitrarySqlQuery(sc.getAppName(), db, null,
+                "SELECT sum(case when " + DataTableColumns.SAVEPOINT_TYPE +
+                    " IS NULL THEN 1 ELSE 0 END) as n_checkpoints,"
+                    + " sum(case when " + DataTableColumns.CONFLICT_TYPE +
+                    " IS NOT NULL THEN 1 ELSE 0 END) as n_dblconflicts,"
+                    + " count(*) as n_rows"
+                    + " FROM " + tableId, null, null, null );
+          }
           if ( t.getNumberOfRows() == 1 ) {
             Row row = t.getRowAtIndex(0);
             String checkpointStr = row.getRawStringByKey("n_checkpoints");
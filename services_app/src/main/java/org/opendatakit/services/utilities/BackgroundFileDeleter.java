@@ -0,0 +1,112 @@
+package org.opendatakit.services.utilities;
+
+import org.opendatakit.logging.WebLogger;
+import org.opendatakit.utilities.ODKFileUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Deletes directory trees off the caller's thread.
+ * <p>
+ * The directory is first renamed into the app's trash folder (a cheap,
+ * atomic operation on the same filesystem) so that its original path is
+ * immediately free for reuse; the actual recursive delete runs on a single
+ * low-priority background thread. Anything left in the trash folder by an
+ * interrupted delete (e.g., the process was killed) is removed the next
+ * time a delete is scheduled for that appName.
+ */
+public final class BackgroundFileDeleter {
+
+  private static final String TAG = BackgroundFileDeleter.class.getSimpleName();
+
+  private static final String TRASH_FOLDER_NAME = ".trash";
+
+  private static BackgroundFileDeleter deleter = new BackgroundFileDeleter();
+
+  public static BackgroundFileDeleter get() {
+    return deleter;
+  }
+
+  /**
+   * For mocking -- supply a mocked object.
+   *
+   * @param deleter
+   */
+  public static void set(BackgroundFileDeleter deleter) {
+    BackgroundFileDeleter.deleter = deleter;
+  }
+
+  private final ExecutorService executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+    @Override
+    public Thread newThread(Runnable r) {
+      Thread thread = new Thread(r, TAG);
+      thread.setDaemon(true);
+      thread.setPriority(Thread.MIN_PRIORITY);
+      return thread;
+    }
+  });
+
+  protected BackgroundFileDeleter() {
+  }
+
+  /**
+   * Remove the directory and everything under it. On return, the directory
+   * no longer exists at its original path. If it cannot be moved to the
+   * trash folder, it is deleted before returning.
+   *
+   * @param appName
+   * @param dir
+   * @throws IOException if the fallback (synchronous) delete fails
+   */
+  public void deleteDirectory(String appName, File dir) throws IOException {
+    if (!dir.exists()) {
+      return;
+    }
+    File trash = getTrashFolder(appName);
+    File target = new File(trash, dir.getName() + "." + UUID.randomUUID().toString());
+    if ((!trash.exists() && !trash.mkdirs()) || !dir.renameTo(target)) {
+      WebLogger.getLogger(appName).w(TAG, "unable to move " + dir.getAbsolutePath() +
+          " to the trash folder -- deleting it in the foreground");
+      ODKFileUtils.deleteDirectory(dir);
+      return;
+    }
+    schedulePurge(appName);
+  }
+
+  private void schedulePurge(final String appName) {
+    executor.execute(new Runnable() {
+      @Override
+      public void run() {
+        purgeTrash(appName);
+      }
+    });
+  }
+
+  private void purgeTrash(String appName) {
+    File[] entries = getTrashFolder(appName).listFiles();
+    if (entries == null) {
+      return;
+    }
+    for (File entry : entries) {
+      try {
+        if (entry.isDirectory()) {
+          ODKFileUtils.deleteDirectory(entry);
+        } else {
+          ODKFileUtils.deleteQuietly(entry);
+        }
+      } catch (IOException e) {
+        WebLogger.getLogger(appName).e(TAG, "unable to delete " + entry.getAbsolutePath());
+        WebLogger.getLogger(appName).printStackTrace(e);
+      }
+    }
+  }
+
+  private static File getTrashFolder(String appName) {
+    return new File(ODKFileUtils.getAppFolder(appName), TRASH_FOLDER_NAME);
+  }
+}
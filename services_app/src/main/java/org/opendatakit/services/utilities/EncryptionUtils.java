@@ -18,12 +18,11 @@ import org.apache.commons.lang3.CharEncoding;
 import org.opendatakit.logging.WebLogger;
 import org.opendatakit.utilities.FileSet;
 import org.opendatakit.utilities.FileSet.MimeFile;
-import org.opendatakit.utilities.ODKFileUtils;
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
 import org.w3c.dom.Text;
 
-import java.io.ByteArrayInputStream;
+import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
@@ -32,6 +31,8 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
+import java.math.BigInteger;
+import java.security.DigestOutputStream;
 import java.security.InvalidAlgorithmParameterException;
 import java.security.InvalidKeyException;
 import java.security.KeyFactory;
@@ -44,6 +45,11 @@ import java.security.spec.X509EncodedKeySpec;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import javax.crypto.BadPaddingException;
 import javax.crypto.Cipher;
@@ -97,9 +103,25 @@ public class EncryptionUtils {
   private static final String BASE64_ENCRYPTED_ELEMENT_SIGNATURE = "base64EncryptedElementSignature";
   private static final String NEW_LINE = "\n";
 
+  private static final int ENCRYPTION_BUFFER_SIZE = 64 * 1024;
+  /**
+   * Upper bound on the number of attachments encrypted concurrently.
+   */
+  private static final int MAX_ENCRYPTION_THREADS =
+      Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors()));
+
   private EncryptionUtils() {
   }
 
+  /**
+   * Emits the content of a submission document. Used to stream the
+   * submission directly into its destination (plaintext file or cipher)
+   * without first materializing it as a String.
+   */
+  public interface SubmissionWriter {
+    void writeTo(OutputStream out) throws IOException;
+  }
+
   public static final class EncryptedFormInformation {
     public final String appName;
     public final String tableId;
@@ -195,14 +217,12 @@ public class EncryptionUtils {
       elementSignatureSource.append(value).append("\n");
     }
 
-    public void appendSubmissionFileSignatureSource(String contents, File file) {
-      String md5Hash = ODKFileUtils.getNakedMd5Hash(appName, contents);
-      appendElementSignatureSource(file.getName() + "::" + md5Hash);
+    public void appendSubmissionFileSignatureSource(byte[] messageDigest, File file) {
+      appendElementSignatureSource(file.getName() + "::" + toNakedMd5Hash(messageDigest));
     }
 
-    public void appendFileSignatureSource(File file) {
-      String md5Hash = ODKFileUtils.getNakedMd5Hash(appName, file);
-      appendElementSignatureSource(file.getName() + "::" + md5Hash);
+    public void appendFileSignatureSource(byte[] messageDigest, File file) {
+      appendElementSignatureSource(file.getName() + "::" + toNakedMd5Hash(messageDigest));
     }
 
     public String getBase64EncryptedElementSignature() {
@@ -344,78 +364,95 @@ public class EncryptionUtils {
     return new EncryptedFormInformation(appName, tableId, xmlBase64RsaPublicKey, instanceId, pk, wrapper);
   }
 
-  private static void encryptFile(File file, File encryptedFile, EncryptedFormInformation formInfo)
-      throws IOException, NoSuchAlgorithmException, NoSuchPaddingException, InvalidKeyException,
-      InvalidAlgorithmParameterException {
-
-    // add elementSignatureSource for this file...
-    formInfo.appendFileSignatureSource(file);
+  /**
+   * Encrypt the file in a single pass, computing the md5 of the plaintext
+   * (for the element signature) as it is read.
+   *
+   * @param file
+   * @param encryptedFile
+   * @param c the cipher for this file (already initialized)
+   * @param appName
+   * @return the md5 digest of the plaintext file
+   */
+  private static byte[] encryptFile(File file, File encryptedFile, Cipher c, String appName)
+      throws IOException, NoSuchAlgorithmException {
 
     try {
-      Cipher c = formInfo.getCipher();
+      MessageDigest md = MessageDigest.getInstance("MD5");
 
-      OutputStream fout;
-      fout = new FileOutputStream(encryptedFile);
-      fout = new CipherOutputStream(fout, c);
-      InputStream fin;
-      fin = new FileInputStream(file);
-      byte[] buffer = new byte[2048];
-      int len = fin.read(buffer);
-      while (len != -1) {
-        fout.write(buffer, 0, len);
-        len = fin.read(buffer);
+      InputStream fin = new FileInputStream(file);
+      try {
+        OutputStream fout;
+        fout = new BufferedOutputStream(new FileOutputStream(encryptedFile));
+        fout = new CipherOutputStream(fout, c);
+        try {
+          byte[] buffer = new byte[ENCRYPTION_BUFFER_SIZE];
+          int len = fin.read(buffer);
+          while (len != -1) {
+            md.update(buffer, 0, len);
+            fout.write(buffer, 0, len);
+            len = fin.read(buffer);
+          }
+          fout.flush();
+        } finally {
+          fout.close();
+        }
+      } finally {
+        fin.close();
       }
-      fin.close();
-      fout.flush();
-      fout.close();
-      WebLogger.getLogger(formInfo.appName).i(t, "Encrpyted:" + file.getName() + " -> " + encryptedFile.getName());
+      WebLogger.getLogger(appName).i(t, "Encrpyted:" + file.getName() + " -> " + encryptedFile.getName());
+      return md.digest();
     } catch (IOException e) {
-      WebLogger.getLogger(formInfo.appName).e(t, "Error encrypting: " + file.getName() + " -> " + encryptedFile.getName());
-      WebLogger.getLogger(formInfo.appName).printStackTrace(e);
+      WebLogger.getLogger(appName).e(t, "Error encrypting: " + file.getName() + " -> " + encryptedFile.getName());
+      WebLogger.getLogger(appName).printStackTrace(e);
       throw e;
     } catch (NoSuchAlgorithmException e) {
-      WebLogger.getLogger(formInfo.appName).e(t, "Error encrypting: " + file.getName() + " -> " + encryptedFile.getName());
-      WebLogger.getLogger(formInfo.appName).printStackTrace(e);
-      throw e;
-    } catch (NoSuchPaddingException e) {
-      WebLogger.getLogger(formInfo.appName).e(t, "Error encrypting: " + file.getName() + " -> " + encryptedFile.getName());
-      WebLogger.getLogger(formInfo.appName).printStackTrace(e);
-      throw e;
-    } catch (InvalidKeyException e) {
-      WebLogger.getLogger(formInfo.appName).e(t, "Error encrypting: " + file.getName() + " -> " + encryptedFile.getName());
-      WebLogger.getLogger(formInfo.appName).printStackTrace(e);
-      throw e;
-    } catch (InvalidAlgorithmParameterException e) {
-      WebLogger.getLogger(formInfo.appName).e(t, "Error encrypting: " + file.getName() + " -> " + encryptedFile.getName());
-      WebLogger.getLogger(formInfo.appName).printStackTrace(e);
+      WebLogger.getLogger(appName).e(t, "Error encrypting: " + file.getName() + " -> " + encryptedFile.getName());
+      WebLogger.getLogger(appName).printStackTrace(e);
       throw e;
     }
   }
 
-  private static void encryptIntoFile(String contents, File submissionFile, File encryptedFile,
-      EncryptedFormInformation formInfo) throws IOException, NoSuchAlgorithmException,
-      NoSuchPaddingException, InvalidKeyException, InvalidAlgorithmParameterException {
+  /**
+   * Convert a raw md5 digest into the zero-padded 32-character hex string
+   * used in the element signature.
+   *
+   * @param messageDigest
+   * @return
+   */
+  static String toNakedMd5Hash(byte[] messageDigest) {
+    String md5 = new BigInteger(1, messageDigest).toString(16);
+    StringBuilder b = new StringBuilder(32);
+    for (int i = md5.length(); i < 32; ++i) {
+      b.append('0');
+    }
+    return b.append(md5).toString();
+  }
 
-    // add elementSignatureSource for this file...
-    formInfo.appendSubmissionFileSignatureSource(contents, submissionFile);
+  private static void encryptIntoFile(SubmissionWriter writer, File submissionFile,
+      File encryptedFile, EncryptedFormInformation formInfo) throws IOException,
+      NoSuchAlgorithmException, NoSuchPaddingException, InvalidKeyException,
+      InvalidAlgorithmParameterException {
 
     try {
       Cipher c = formInfo.getCipher();
+      MessageDigest md = MessageDigest.getInstance("MD5");
 
+      // the plaintext is digested (for the element signature) on its way
+      // into the cipher; it is never held in memory or written to disk.
       OutputStream fout;
-      fout = new FileOutputStream(encryptedFile);
+      fout = new BufferedOutputStream(new FileOutputStream(encryptedFile));
       fout = new CipherOutputStream(fout, c);
-      InputStream fin;
-      fin = new ByteArrayInputStream(contents.getBytes(CharEncoding.UTF_8));
-      byte[] buffer = new byte[2048];
-      int len = fin.read(buffer);
-      while (len != -1) {
-        fout.write(buffer, 0, len);
-        len = fin.read(buffer);
+      DigestOutputStream dout = new DigestOutputStream(fout, md);
+      try {
+        writer.writeTo(dout);
+        dout.flush();
+      } finally {
+        dout.close();
       }
-      fin.close();
-      fout.flush();
-      fout.close();
+
+      // add elementSignatureSource for this file...
+      formInfo.appendSubmissionFileSignatureSource(md.digest(), submissionFile);
       WebLogger.getLogger(formInfo.appName).i(t, "Encrpyted: content -> " + encryptedFile.getName());
     } catch (IOException e) {
       WebLogger.getLogger(formInfo.appName).e(t, "Error encrypting: content -> " + encryptedFile.getName());
@@ -463,8 +500,9 @@ public class EncryptionUtils {
     return allSuccessful;
   }
 
-  private static List<MimeFile> encryptSubmissionFiles(FileSet fileSet, String submission,
-                                                       File submissionXml, File submissionXmlEnc, EncryptedFormInformation formInfo) {
+  private static List<MimeFile> encryptSubmissionFiles(FileSet fileSet, SubmissionWriter submission,
+      File submissionXml, File submissionXmlEnc, final EncryptedFormInformation formInfo,
+      boolean parallel) {
 
     // encrypt files that do not end with ".enc"
     List<MimeFile> filesToProcess = new ArrayList<MimeFile>();
@@ -475,26 +513,79 @@ public class EncryptionUtils {
         filesToProcess.add(f);
       }
     }
+
+    // the ciphers must be handed out in manifest order (each one advances
+    // the iv) even when the files themselves are encrypted concurrently.
+    final int count = filesToProcess.size();
+    final File[] plaintextFiles = new File[count];
+    final File[] encryptedFiles = new File[count];
+    final Cipher[] ciphers = new Cipher[count];
+    byte[][] digests = new byte[count][];
+    try {
+      for (int i = 0; i < count; ++i) {
+        MimeFile f = filesToProcess.get(i);
+        plaintextFiles[i] = f.file;
+        encryptedFiles[i] = new File(f.file.getParentFile(), f.file.getName() + ".enc");
+        ciphers[i] = formInfo.getCipher();
+      }
+    } catch (InvalidKeyException e) {
+      return null;
+    } catch (NoSuchAlgorithmException e) {
+      return null;
+    } catch (NoSuchPaddingException e) {
+      return null;
+    } catch (InvalidAlgorithmParameterException e) {
+      return null;
+    }
+
     // encrypt here...
-    for (MimeFile f : filesToProcess) {
+    int threads = parallel ? Math.min(count, MAX_ENCRYPTION_THREADS) : 1;
+    if (threads > 1) {
+      ExecutorService executor = Executors.newFixedThreadPool(threads);
       try {
-        File encryptedFile = new File(f.file.getParentFile(), f.file.getName() + ".enc");
-        encryptFile(f.file, encryptedFile, formInfo);
-        f.file = encryptedFile;
-        f.contentType = APPLICATION_OCTET_STREAM;
-      } catch (IOException e) {
-        return null;
-      } catch (InvalidKeyException e) {
+        List<Future<byte[]>> results = new ArrayList<Future<byte[]>>();
+        for (int i = 0; i < count; ++i) {
+          final int idx = i;
+          results.add(executor.submit(new Callable<byte[]>() {
+            @Override
+            public byte[] call() throws Exception {
+              return encryptFile(plaintextFiles[idx], encryptedFiles[idx], ciphers[idx],
+                  formInfo.appName);
+            }
+          }));
+        }
+        for (int i = 0; i < count; ++i) {
+          digests[i] = results.get(i).get();
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
         return null;
-      } catch (NoSuchAlgorithmException e) {
+      } catch (ExecutionException e) {
         return null;
-      } catch (NoSuchPaddingException e) {
+      } finally {
+        executor.shutdownNow();
+      }
+    } else {
+      try {
+        for (int i = 0; i < count; ++i) {
+          digests[i] = encryptFile(plaintextFiles[i], encryptedFiles[i], ciphers[i],
+              formInfo.appName);
+        }
+      } catch (IOException e) {
         return null;
-      } catch (InvalidAlgorithmParameterException e) {
+      } catch (NoSuchAlgorithmException e) {
         return null;
       }
     }
 
+    // add elementSignatureSource for each file, in manifest order...
+    for (int i = 0; i < count; ++i) {
+      MimeFile f = filesToProcess.get(i);
+      formInfo.appendFileSignatureSource(digests[i], plaintextFiles[i]);
+      f.file = encryptedFiles[i];
+      f.contentType = APPLICATION_OCTET_STREAM;
+    }
+
     // encrypt the submission.xml as the last file...
     try {
       encryptIntoFile(submission, submissionXml, submissionXmlEnc, formInfo);
@@ -523,18 +614,39 @@ public class EncryptionUtils {
    * Does not delete any of the original files.
    *
    * @parma fileSet
-   * @param submission
+   * @param submission emits the plaintext submission document
    * @param submissionXml
    * @param submissionXmlEnc
    * @param formInfo
    * @return
    */
-  public static boolean generateEncryptedSubmission(FileSet fileSet, String submission,
+  public static boolean generateEncryptedSubmission(FileSet fileSet, SubmissionWriter submission,
       File submissionXml, File submissionXmlEnc, EncryptedFormInformation formInfo) {
+    return generateEncryptedSubmission(fileSet, submission, submissionXml, submissionXmlEnc,
+        formInfo, Runtime.getRuntime().availableProcessors() > 1);
+  }
+
+  /**
+   * Constructs the encrypted attachments, encrypted form xml, and the plaintext
+   * submission manifest (with signature) for the form submission.
+   *
+   * Does not delete any of the original files.
+   *
+   * @parma fileSet
+   * @param submission emits the plaintext submission document
+   * @param submissionXml
+   * @param submissionXmlEnc
+   * @param formInfo
+   * @param parallel true to encrypt several attachments concurrently
+   * @return
+   */
+  public static boolean generateEncryptedSubmission(FileSet fileSet, SubmissionWriter submission,
+      File submissionXml, File submissionXmlEnc, EncryptedFormInformation formInfo,
+      boolean parallel) {
 
     // Step 1: encrypt the submission and all the media files...
     List<MimeFile> mediaFiles = encryptSubmissionFiles(fileSet, submission, submissionXml,
-        submissionXmlEnc, formInfo);
+        submissionXmlEnc, formInfo, parallel);
     if (mediaFiles == null) {
       return false; // something failed...
     }
@@ -30,6 +30,24 @@ import java.util.Map;
 
 public class ODKServicesPropertyUtils {
 
+   /**
+    * Number of query results the database service may cache for the appName.
+    * Absent, empty or 0 (the default) disables the cache.
+    */
+   public static final String KEY_QUERY_RESULT_CACHE_SIZE = "common.query_result_cache_size";
+
+   public static int getQueryResultCacheSize(PropertiesSingleton props) {
+      String value = props.getProperty(KEY_QUERY_RESULT_CACHE_SIZE);
+      if (value == null || value.length() == 0) {
+         return 0;
+      }
+      try {
+         return Math.max(0, Integer.parseInt(value.trim()));
+      } catch (NumberFormatException e) {
+         return 0;
+      }
+   }
+
    public static void clearActiveUser(PropertiesSingleton props) {
       Map<String,String> properties = new HashMap<String,String>();
       properties.put(CommonToolProperties.KEY_ROLES_LIST, "");
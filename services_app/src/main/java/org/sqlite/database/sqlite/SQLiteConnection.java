@@ -267,6 +267,7 @@ public final class SQLiteConnection extends SQLiteConnectionBase implements Canc
 
    /**
     * Build an SQL query string from the given clauses.
+    * This is the statement executed by {@link #query}.
     *
     * @param distinct true if you want each row to be unique, false otherwise.
     * @param tables The table names to compile the query against.
@@ -291,7 +292,7 @@ public final class SQLiteConnection extends SQLiteConnectionBase implements Canc
     *            formatted as LIMIT clause. Passing null denotes no LIMIT clause.
     * @return the SQL query string
     */
-   private static String buildQueryString(
+   public static String buildQueryString(
        boolean distinct, String tables, String[] columns, String where,
        String groupBy, String having, String orderBy, String limit) {
       if (isEmpty(groupBy) && !isEmpty(having)) {
@@ -696,7 +697,7 @@ public final class SQLiteConnection extends SQLiteConnectionBase implements Canc
             throw t;
          } finally {
             mRecentOperations.endOperationDeferLogAdditional(cookie,
-                "countedRows=" + ((result != null) ? result.length-1 : 0));
+                "countedRows=", ((result != null) ? result.length-1 : 0));
          }
          if ( result != null && result.length > 0 ) {
             SQLiteMemoryCursor cursor = new SQLiteMemoryCursor(result);
@@ -871,6 +872,7 @@ public final class SQLiteConnection extends SQLiteConnectionBase implements Canc
     * This method must be called exactly once for each call to {@link #beginTransactionNonExclusive}.
     * </p>
     *
+    * @return true if this ended the outermost transaction and its changes were committed.
     * @throws IllegalStateException if there is no current transaction.
     * @throws SQLiteException if an error occurs.
     * @throws OperationCanceledException if the operation was canceled.
@@ -878,8 +880,8 @@ public final class SQLiteConnection extends SQLiteConnectionBase implements Canc
     * @see #beginTransaction
     * @see #setTransactionSuccessful
     */
-   public void endTransaction() {
-      endTransaction(null);
+   public boolean endTransaction() {
+      return endTransaction(null);
    }
 
    /**
@@ -1334,6 +1336,19 @@ public final class SQLiteConnection extends SQLiteConnectionBase implements Canc
                }
             }
 
+            {
+               // a new database uses incremental auto-vacuum. This must be set
+               // before the switch to WAL mode. Existing databases are migrated
+               // by the background database maintenance.
+               if (executeForLongImpl("PRAGMA page_count", null, null) == 0L) {
+                  final long newValue = 2L; // INCREMENTAL
+                  long value = executeForLongImpl("PRAGMA auto_vacuum", null, null);
+                  if (value != newValue) {
+                     executeImpl("PRAGMA auto_vacuum=" + newValue, null, null);
+                  }
+               }
+            }
+
             {
                final long newValue = mConfiguration.foreignKeyConstraintsEnabled ? 1 : 0;
                long value = executeForLongImpl("PRAGMA foreign_keys", null, null);
@@ -1546,6 +1561,7 @@ public final class SQLiteConnection extends SQLiteConnectionBase implements Canc
     *
     * @param cancellationSignal A signal to cancel the operation in progress, or null if none.
     *
+    * @return true if this ended the outermost transaction and its changes were committed.
     * @throws IllegalStateException if there is no current transaction.
     * @throws SQLiteException if an error occurs.
     * @throws OperationCanceledException if the operation was canceled.
@@ -1553,7 +1569,7 @@ public final class SQLiteConnection extends SQLiteConnectionBase implements Canc
     * @see #beginTransaction
     * @see #setTransactionSuccessful
     */
-   public void endTransaction(CancellationSignal cancellationSignal) {
+   public boolean endTransaction(CancellationSignal cancellationSignal) {
       if (cancellationSignal != null) {
          cancellationSignal.throwIfCanceled();
       }
@@ -1565,9 +1581,11 @@ public final class SQLiteConnection extends SQLiteConnectionBase implements Canc
          // do nothing on the no-action outcome
          if (outcome == SQLiteTransactionManager.TransactionOutcome.COMMIT_ACTION) {
             executeImpl("COMMIT;", null, cancellationSignal); // might throw
+            return true;
          } else if (outcome == SQLiteTransactionManager.TransactionOutcome.ROLLBACK_ACTION) {
             executeImpl("ROLLBACK;", null, cancellationSignal); // might throw
          }
+         return false;
       }
    }
 
@@ -1754,7 +1772,7 @@ public final class SQLiteConnection extends SQLiteConnectionBase implements Canc
             mRecentOperations.failOperation(cookie, t);
             throw t;
          } finally {
-            mRecentOperations.endOperationDeferLogAdditional(cookie, "changedRows=" + changedRows);
+            mRecentOperations.endOperationDeferLogAdditional(cookie, "changedRows=", changedRows);
          }
       }
    }
@@ -187,7 +187,7 @@ public abstract class SQLiteConnectionBase extends SQLiteClosable {
 
    public abstract void setTransactionSuccessful();
 
-   public abstract void endTransaction();
+   public abstract boolean endTransaction();
 
    public abstract int update(String table, Map<String,Object> values, String whereClause, Object[] whereArgs);
 
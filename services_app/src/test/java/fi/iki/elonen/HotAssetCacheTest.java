@@ -0,0 +1,131 @@
+package fi.iki.elonen;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(JUnit4.class)
+public class HotAssetCacheTest {
+
+  private File dir;
+
+  @Before
+  public void setUp() throws IOException {
+    dir = File.createTempFile("hotAssetCache", "");
+    assertTrue(dir.delete());
+    assertTrue(dir.mkdirs());
+  }
+
+  @After
+  public void tearDown() {
+    File[] files = dir.listFiles();
+    if (files != null) {
+      for (File f : files) {
+        f.delete();
+      }
+    }
+    dir.delete();
+  }
+
+  private File write(String name, String content) throws IOException {
+    File f = new File(dir, name);
+    FileOutputStream os = new FileOutputStream(f);
+    try {
+      os.write(content.getBytes("UTF-8"));
+    } finally {
+      os.close();
+    }
+    return f;
+  }
+
+  private static String repeat(String s, int count) {
+    StringBuilder b = new StringBuilder();
+    for (int i = 0; i < count; ++i) {
+      b.append(s);
+    }
+    return b.toString();
+  }
+
+  @Test
+  public void testCachesRawAndGzipWithStrongEtags() throws IOException {
+    HotAssetCache cache = new HotAssetCache();
+    File f = write("a.js", repeat("function f() { return 1; }\n", 200));
+
+    HotAssetCache.Entry entry = cache.get(f, true);
+    assertNotNull(entry);
+    assertNotNull(entry.gzip);
+    assertTrue(entry.gzip.length < entry.raw.length);
+    assertTrue(entry.etag.startsWith("\"") && entry.etag.endsWith("\""));
+    assertFalse(entry.etag.equals(entry.gzipEtag));
+
+    // second lookup returns the same entry without reloading
+    assertSame(entry, cache.get(f, true));
+  }
+
+  @Test
+  public void testEtagDependsOnContentOnly() throws IOException {
+    HotAssetCache cache = new HotAssetCache();
+    File a = write("a.css", "body { color: red; }");
+    File b = write("b.css", "body { color: red; }");
+    assertEquals(cache.get(a, false).etag, cache.get(b, false).etag);
+  }
+
+  @Test
+  public void testStaleEntryIsReloaded() throws IOException {
+    HotAssetCache cache = new HotAssetCache();
+    File f = write("a.html", "<html>one</html>");
+    HotAssetCache.Entry first = cache.get(f, false);
+    f = write("a.html", "<html>three</html>");
+    assertTrue(f.setLastModified(first.lastModified + 2000L));
+    HotAssetCache.Entry second = cache.get(f, false);
+    assertFalse(first.etag.equals(second.etag));
+    assertArrayEquals("<html>three</html>".getBytes("UTF-8"), second.raw);
+    assertEquals(1, cache.size());
+  }
+
+  @Test
+  public void testLargeFilesAreNotCached() throws IOException {
+    HotAssetCache cache = new HotAssetCache(1024L, 100L);
+    File f = write("big.txt", repeat("x", 200));
+    assertNull(cache.get(f, true));
+    assertEquals(0, cache.size());
+  }
+
+  @Test
+  public void testLeastRecentlyUsedIsEvicted() throws IOException {
+    HotAssetCache cache = new HotAssetCache(250L, 100L);
+    File a = write("a.bin", repeat("a", 100));
+    File b = write("b.bin", repeat("b", 100));
+    File c = write("c.bin", repeat("c", 100));
+    HotAssetCache.Entry ea = cache.get(a, false);
+    cache.get(b, false);
+    // touch a so that b becomes the eldest
+    assertSame(ea, cache.get(a, false));
+    cache.get(c, false);
+    assertEquals(2, cache.size());
+    assertTrue(cache.getCurrentBytes() <= 250L);
+    assertSame(ea, cache.get(a, false));
+  }
+
+  @Test
+  public void testEtagListMatches() {
+    assertTrue(SimpleWebServer.etagListMatches("*", "\"abc\""));
+    assertTrue(SimpleWebServer.etagListMatches("\"x\", \"abc\"", "\"abc\""));
+    assertTrue(SimpleWebServer.etagListMatches("W/\"abc\"", "\"abc\""));
+    assertFalse(SimpleWebServer.etagListMatches("\"abcd\"", "\"abc\""));
+  }
+}
@@ -0,0 +1,110 @@
+package org.opendatakit.services.database;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(JUnit4.class)
+public class OperationLogTest {
+
+  private static final int RING_SIZE = 64;
+
+  private static int begin(OperationLog log, int i) {
+    return log.beginMethodOperation("session", "op" + i, new Object[] { "arg" + i });
+  }
+
+  private static String dump(OperationLog log) {
+    StringBuilder b = new StringBuilder();
+    log.dump(b, false);
+    return b.toString();
+  }
+
+  private static int countEntries(String dump) {
+    int count = 0;
+    for (String line : dump.split("\n")) {
+      if (line.matches("^ \\d+: .*")) {
+        ++count;
+      }
+    }
+    return count;
+  }
+
+  @Test
+  public void testEndOperation() {
+    OperationLog log = new OperationLog("operationLogTest");
+    assertNull(log.describeCurrentOperation());
+
+    int cookie = begin(log, 1);
+    String current = log.describeCurrentOperation();
+    assertNotNull(current);
+    assertTrue(current.startsWith("op1(\"arg1\") started "));
+
+    log.endOperation(cookie);
+    assertNull(log.describeCurrentOperation());
+    assertTrue(dump(log).contains(" 0: op1(\"arg1\") took "));
+  }
+
+  @Test
+  public void testMethodArgsAreElided() {
+    OperationLog log = new OperationLog("operationLogTest");
+    log.beginMethodOperation("session", "rawQuery",
+        new Object[] { "SELECT 1", new Object[] { "x" }, 5, null });
+    assertTrue(log.describeCurrentOperation()
+        .startsWith("rawQuery(\"SELECT 1\",...,5,null) started "));
+  }
+
+  @Test
+  public void testDumpIsNewestFirst() {
+    OperationLog log = new OperationLog("operationLogTest");
+    assertTrue(dump(log).contains("    <none>\n"));
+
+    begin(log, 1);
+    begin(log, 2);
+    String dump = dump(log);
+    assertEquals(2, countEntries(dump));
+    assertTrue(dump.indexOf(" 0: op2(") < dump.indexOf(" 1: op1("));
+  }
+
+  @Test
+  public void testSlotsAreReused() {
+    OperationLog log = new OperationLog("operationLogTest");
+    int first = begin(log, 0);
+    int last = first;
+    for (int i = 1; i <= RING_SIZE; ++i) {
+      last = begin(log, i);
+    }
+    assertEquals(first + RING_SIZE, last);
+
+    // the first operation has been displaced by the last
+    String dump = dump(log);
+    assertEquals(RING_SIZE, countEntries(dump));
+    assertFalse(dump.contains("op0("));
+    assertTrue(dump.contains(" 0: op" + RING_SIZE + "("));
+    assertTrue(dump.contains(" " + (RING_SIZE - 1) + ": op1("));
+
+    // ending the displaced operation does not end the one now in its slot
+    log.endOperation(first);
+    assertNotNull(log.describeCurrentOperation());
+    log.endOperation(last);
+    assertNull(log.describeCurrentOperation());
+  }
+
+  @Test
+  public void testClearOperations() {
+    OperationLog log = new OperationLog("operationLogTest");
+    int cookie = begin(log, 1);
+    log.clearOperations();
+    assertNull(log.describeCurrentOperation());
+    assertTrue(dump(log).contains("    <none>\n"));
+    // ending an operation that was cleared is ignored
+    log.endOperation(cookie);
+    // cookies keep increasing
+    assertTrue(begin(log, 2) > cookie);
+  }
+}
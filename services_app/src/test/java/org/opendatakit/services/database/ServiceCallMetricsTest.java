@@ -0,0 +1,120 @@
+package org.opendatakit.services.database;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(JUnit4.class)
+public class ServiceCallMetricsTest {
+
+  private static final long ONE_MILLISECOND_NANOS = 1000000L;
+
+  @Test
+  public void testSmallValuesHaveTheirOwnBuckets() {
+    for (int micros = 0; micros < 8; ++micros) {
+      assertEquals(micros, ServiceCallMetrics.LatencyHistogram.bucketIndex(micros));
+      assertEquals(micros, ServiceCallMetrics.LatencyHistogram.bucketUpperBound(micros));
+    }
+    assertEquals(0, ServiceCallMetrics.LatencyHistogram.bucketIndex(-5L));
+  }
+
+  @Test
+  public void testBucketsAreContiguous() {
+    // the upper bound of each bucket is immediately followed by the next bucket
+    int idx = ServiceCallMetrics.LatencyHistogram.bucketIndex(1L << 40) - 1;
+    for (int i = 0; i < idx; ++i) {
+      long upper = ServiceCallMetrics.LatencyHistogram.bucketUpperBound(i);
+      assertEquals(i, ServiceCallMetrics.LatencyHistogram.bucketIndex(upper));
+      assertEquals(i + 1, ServiceCallMetrics.LatencyHistogram.bucketIndex(upper + 1));
+    }
+  }
+
+  @Test
+  public void testRelativeError() {
+    for (long micros = 8; micros < (1L << 32); micros = micros * 3 / 2 + 1) {
+      int idx = ServiceCallMetrics.LatencyHistogram.bucketIndex(micros);
+      long lower = ServiceCallMetrics.LatencyHistogram.bucketUpperBound(idx - 1) + 1;
+      long upper = ServiceCallMetrics.LatencyHistogram.bucketUpperBound(idx);
+      assertTrue(lower <= micros && micros <= upper);
+      assertTrue((upper - lower + 1) * 8 <= lower);
+    }
+  }
+
+  @Test
+  public void testHugeValuesGoInTheLastBucket() {
+    int last = ServiceCallMetrics.LatencyHistogram.bucketIndex(Long.MAX_VALUE);
+    assertEquals(last, ServiceCallMetrics.LatencyHistogram.bucketIndex(1L << 50));
+    assertTrue(ServiceCallMetrics.LatencyHistogram.bucketIndex((1L << 40) - 1) < last);
+  }
+
+  @Test
+  public void testSnapshot() {
+    ServiceCallMetrics.LatencyHistogram histogram = new ServiceCallMetrics.LatencyHistogram();
+    Map<String, Object> empty = histogram.snapshot();
+    assertEquals(0L, empty.get("count"));
+    assertEquals(0L, empty.get("p99Micros"));
+
+    // 90 calls of 1ms and 10 calls of 100ms
+    for (int i = 0; i < 90; ++i) {
+      histogram.record(ONE_MILLISECOND_NANOS);
+    }
+    for (int i = 0; i < 10; ++i) {
+      histogram.record(100 * ONE_MILLISECOND_NANOS);
+    }
+    Map<String, Object> snapshot = histogram.snapshot();
+    assertEquals(100L, snapshot.get("count"));
+    assertEquals(100000L, snapshot.get("maxMicros"));
+    assertEquals((90L * 1000L + 10L * 100000L) / 100L, snapshot.get("meanMicros"));
+
+    long p50 = (Long) snapshot.get("p50Micros");
+    assertTrue(1000L <= p50 && p50 < 1125L);
+    // never reported beyond the largest recorded value
+    assertEquals(100000L, snapshot.get("p95Micros"));
+    assertEquals(100000L, snapshot.get("p99Micros"));
+  }
+
+  @Test
+  public void testOnlyIdentifiedCallsAreRecorded() {
+    ServiceCallMetrics metrics = new ServiceCallMetrics();
+    // e.g., a binder interface query
+    metrics.beginCall();
+    metrics.endCall();
+    assertTrue(metrics.getSnapshot("").isEmpty());
+
+    metrics.beginCall();
+    metrics.identifyCall(null, "getAdminColumns");
+    metrics.failCall();
+    metrics.endCall();
+    Map<String, Object> snapshot = metrics.getSnapshot("");
+    assertEquals(1, snapshot.size());
+    @SuppressWarnings("unchecked")
+    Map<String, Object> method = (Map<String, Object>) snapshot.get("getAdminColumns");
+    assertEquals(1L, method.get("failures"));
+    assertTrue(method.containsKey("total"));
+  }
+
+  @Test
+  public void testNestedCallsFoldIntoTheOutermost() {
+    ServiceCallMetrics metrics = new ServiceCallMetrics();
+    metrics.beginCall();
+    metrics.identifyCall(null, "outer");
+    metrics.beginCall();
+    metrics.identifyCall(null, "inner");
+    metrics.endCall();
+    metrics.endCall();
+    Map<String, Object> snapshot = metrics.getSnapshot("");
+    assertTrue(snapshot.containsKey("outer"));
+    assertFalse(snapshot.containsKey("inner"));
+
+    // identifying a call outside of beginCall/endCall does nothing
+    metrics.identifyCall(null, "stray");
+    metrics.endCall();
+    assertFalse(metrics.getSnapshot("").containsKey("stray"));
+  }
+}
@@ -0,0 +1,59 @@
+package org.opendatakit.services.database;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(JUnit4.class)
+public class SlowQueryLogTest {
+
+  @Test
+  public void testNormalizeCollapsesLiterals() {
+    assertEquals("SELECT * FROM t WHERE a = ? AND b = ? AND c = ?",
+        SlowQueryLog.normalizeSql("SELECT * FROM t WHERE a = 'x' AND b = 12 AND c = 3.5"));
+    // escaped quotes stay within the literal
+    assertEquals("SELECT * FROM t WHERE a = ?",
+        SlowQueryLog.normalizeSql("SELECT * FROM t WHERE a = 'it''s'"));
+    // digits within identifiers are not literals
+    assertEquals("SELECT col1 FROM t2 LIMIT ?",
+        SlowQueryLog.normalizeSql("SELECT col1 FROM t2 LIMIT 10"));
+  }
+
+  @Test
+  public void testNormalizeCollapsesWhitespace() {
+    assertEquals("SELECT * FROM t WHERE a = ?",
+        SlowQueryLog.normalizeSql("  SELECT *\n  FROM t\tWHERE   a = ? "));
+  }
+
+  @Test
+  public void testNormalizeCollapsesInLists() {
+    String expected = "SELECT * FROM t WHERE _id IN (?...)";
+    assertEquals(expected, SlowQueryLog.normalizeSql("SELECT * FROM t WHERE _id IN (?)"));
+    assertEquals(expected, SlowQueryLog.normalizeSql("SELECT * FROM t WHERE _id IN (?,?,?)"));
+    assertEquals(expected, SlowQueryLog.normalizeSql("SELECT * FROM t WHERE _id in ( ?, ? )"));
+    // literal lists collapse to the same shape
+    assertEquals(expected, SlowQueryLog.normalizeSql("SELECT * FROM t WHERE _id IN ('a', 'b')"));
+    // but a subquery does not
+    assertEquals("SELECT * FROM t WHERE _id IN (SELECT _id FROM u WHERE x = ?)",
+        SlowQueryLog.normalizeSql("SELECT * FROM t WHERE _id IN (SELECT _id FROM u WHERE x = 1)"));
+  }
+
+  @Test
+  public void testIsFullScan() {
+    assertTrue(SlowQueryLog.isFullScan(Collections.singletonList("SCAN TABLE t")));
+    assertFalse(SlowQueryLog.isFullScan(
+        Collections.singletonList("SCAN TABLE t USING COVERING INDEX t_idx_id")));
+    assertFalse(SlowQueryLog.isFullScan(
+        Collections.singletonList("SEARCH TABLE t USING INDEX t_idx_id (_id=?)")));
+    assertTrue(SlowQueryLog.isFullScan(Arrays.asList(
+        "SEARCH TABLE t USING INDEX t_idx_id (_id=?)", "SCAN TABLE u")));
+    assertFalse(SlowQueryLog.isFullScan(Collections.<String>emptyList()));
+  }
+}
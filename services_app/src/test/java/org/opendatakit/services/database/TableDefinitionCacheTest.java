@@ -0,0 +1,102 @@
+package org.opendatakit.services.database;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import org.opendatakit.aggregate.odktables.rest.entity.Column;
+import org.opendatakit.database.data.KeyValueStoreEntry;
+import org.opendatakit.database.data.OrderedColumns;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+@RunWith(JUnit4.class)
+public class TableDefinitionCacheTest {
+
+  private static final String APP_NAME = "tableDefinitionCacheTest";
+
+  private TableDefinitionCache cache;
+
+  @Before
+  public void setUp() {
+    cache = new TableDefinitionCache();
+  }
+
+  private static OrderedColumns newColumns(String tableId) {
+    return new OrderedColumns(APP_NAME, tableId, new ArrayList<Column>());
+  }
+
+  private static List<KeyValueStoreEntry> newMetadata() {
+    return Collections.singletonList(new KeyValueStoreEntry());
+  }
+
+  @Test
+  public void testLookupRequiresSameRevId() {
+    OrderedColumns columns = newColumns("t1");
+    cache.putColumns("t1", "rev1", columns);
+    assertSame(columns, cache.getColumns("t1", "rev1"));
+    assertNull(cache.getColumns("t1", "rev2"));
+    assertNull(cache.getColumns("t2", "rev1"));
+  }
+
+  @Test
+  public void testNewRevIdReplacesAllContent() {
+    OrderedColumns columns = newColumns("t1");
+    List<KeyValueStoreEntry> metadata = newMetadata();
+    cache.putColumns("t1", "rev1", columns);
+    cache.putMetadata("t1", "rev1", metadata);
+    assertSame(metadata, cache.getMetadata("t1", "rev1"));
+
+    // the KVS changed: its new content is cached under the new revId...
+    List<KeyValueStoreEntry> newerMetadata = newMetadata();
+    cache.putMetadata("t1", "rev2", newerMetadata);
+    assertSame(newerMetadata, cache.getMetadata("t1", "rev2"));
+    // ...and the columns of the old revId are no longer returned under either
+    assertNull(cache.getColumns("t1", "rev2"));
+    assertNull(cache.getColumns("t1", "rev1"));
+    assertNull(cache.getMetadata("t1", "rev1"));
+  }
+
+  @Test
+  public void testSameRevIdKeepsOtherContent() {
+    OrderedColumns columns = newColumns("t1");
+    List<KeyValueStoreEntry> metadata = newMetadata();
+    cache.putColumns("t1", "rev1", columns);
+    cache.putMetadata("t1", "rev1", metadata);
+    assertSame(columns, cache.getColumns("t1", "rev1"));
+    assertSame(metadata, cache.getMetadata("t1", "rev1"));
+  }
+
+  @Test
+  public void testRollBackToAnEarlierRevId() {
+    // a transaction that cached its uncommitted revision and then rolled back
+    cache.putColumns("t1", "rev1", newColumns("t1"));
+    cache.putColumns("t1", "uncommitted", newColumns("t1"));
+
+    // the committed revision is reloaded rather than served from the cache
+    assertNull(cache.getColumns("t1", "rev1"));
+    OrderedColumns columns = newColumns("t1");
+    cache.putColumns("t1", "rev1", columns);
+    assertSame(columns, cache.getColumns("t1", "rev1"));
+    assertNull(cache.getColumns("t1", "uncommitted"));
+  }
+
+  @Test
+  public void testRemoveAndClear() {
+    OrderedColumns columns = newColumns("t2");
+    cache.putColumns("t1", "rev1", newColumns("t1"));
+    cache.putColumns("t2", "rev1", columns);
+
+    cache.remove("t1");
+    assertNull(cache.getColumns("t1", "rev1"));
+    assertSame(columns, cache.getColumns("t2", "rev1"));
+
+    cache.clear();
+    assertNull(cache.getColumns("t2", "rev1"));
+  }
+}
@@ -0,0 +1,165 @@
+package org.opendatakit.services.database.utilities;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import org.opendatakit.aggregate.odktables.rest.entity.Column;
+import org.opendatakit.database.data.OrderedColumns;
+import org.opendatakit.provider.DataTableColumns;
+import org.opendatakit.services.database.OdkConnectionInterface;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+@RunWith(JUnit4.class)
+public class DataTableWriteStatementsTest {
+
+  private static final String APP_NAME = "dataTableWriteStatementsTest";
+
+  /**
+   * The connection methods invoked, with their arguments.
+   */
+  private final List<Object[]> calls = new ArrayList<Object[]>();
+  private OdkConnectionInterface db;
+
+  @Before
+  public void setUp() {
+    calls.clear();
+    db = (OdkConnectionInterface) Proxy.newProxyInstance(
+        OdkConnectionInterface.class.getClassLoader(),
+        new Class<?>[] { OdkConnectionInterface.class }, new InvocationHandler() {
+          @Override
+          public Object invoke(Object proxy, Method method, Object[] args) {
+            if (method.getName().equals("getAppName")) {
+              return APP_NAME;
+            }
+            calls.add(new Object[] { method.getName(), args });
+            if (method.getReturnType() == int.class) {
+              return 0;
+            }
+            return null;
+          }
+        });
+  }
+
+  private static OrderedColumns newColumns(String tableId, String... names) {
+    List<Column> columns = new ArrayList<Column>();
+    for (String name : names) {
+      columns.add(new Column(name, name, "string", "[]"));
+    }
+    return new OrderedColumns(APP_NAME, tableId, columns);
+  }
+
+  private String getMethod(int call) {
+    return (String) calls.get(call)[0];
+  }
+
+  private Object[] getArgs(int call) {
+    return (Object[]) calls.get(call)[1];
+  }
+
+  @Test
+  public void testInsertUsesFixedColumnOrder() {
+    String tableId = "insertTest";
+    DataTableWriteStatements statements =
+        DataTableWriteStatements.get(db, tableId, newColumns(tableId, "col1", "col2"));
+
+    Map<String, Object> values = new LinkedHashMap<String, Object>();
+    values.put("col2", "b");
+    values.put("col1", "a");
+    values.put(DataTableColumns.ID, "r1");
+    statements.insert(db, values);
+
+    Map<String, Object> reordered = new LinkedHashMap<String, Object>();
+    reordered.put(DataTableColumns.ID, "r2");
+    reordered.put("col1", "c");
+    reordered.put("col2", "d");
+    statements.insert(db, reordered);
+
+    assertEquals(2, calls.size());
+    assertEquals("execSQL", getMethod(0));
+    assertEquals("execSQL", getMethod(1));
+    // admin columns precede the user-defined ones
+    String sql = "INSERT INTO " + tableId + " (" + DataTableColumns.ID + ",col1,col2) "
+        + "VALUES (?,?,?)";
+    assertEquals(sql, getArgs(0)[0]);
+    assertEquals(sql, getArgs(1)[0]);
+    assertArrayEquals(new Object[] { "r1", "a", "b" }, (Object[]) getArgs(0)[1]);
+    assertArrayEquals(new Object[] { "r2", "c", "d" }, (Object[]) getArgs(1)[1]);
+  }
+
+  @Test
+  public void testUpdateAppendsWhereClause() {
+    String tableId = "updateTest";
+    DataTableWriteStatements statements =
+        DataTableWriteStatements.get(db, tableId, newColumns(tableId, "col1", "col2"));
+
+    Map<String, Object> values = new LinkedHashMap<String, Object>();
+    values.put("col2", "b");
+    values.put(DataTableColumns.SYNC_STATE, "changed");
+    statements.update(db, values, DataTableColumns.ID + "=?", new Object[] { "r1" });
+    statements.update(db, values, null, null);
+
+    assertEquals(2, calls.size());
+    String sql = "UPDATE " + tableId + " SET " + DataTableColumns.SYNC_STATE + "=?,col2=?";
+    assertEquals("execSQL", getMethod(0));
+    assertEquals(sql + " WHERE " + DataTableColumns.ID + "=?", getArgs(0)[0]);
+    assertArrayEquals(new Object[] { "changed", "b", "r1" }, (Object[]) getArgs(0)[1]);
+    assertEquals("execSQL", getMethod(1));
+    assertEquals(sql, getArgs(1)[0]);
+    assertArrayEquals(new Object[] { "changed", "b" }, (Object[]) getArgs(1)[1]);
+  }
+
+  @Test
+  public void testUnknownColumnsFallBack() {
+    String tableId = "fallBackTest";
+    DataTableWriteStatements statements =
+        DataTableWriteStatements.get(db, tableId, newColumns(tableId, "col1"));
+
+    Map<String, Object> values = new LinkedHashMap<String, Object>();
+    values.put("col1", "a");
+    values.put("noSuchColumn", "x");
+    statements.insert(db, values);
+    statements.update(db, values, null, null);
+    // and nothing to write at all
+    statements.insert(db, new LinkedHashMap<String, Object>());
+
+    assertEquals(3, calls.size());
+    assertEquals("insertOrThrow", getMethod(0));
+    assertSame(values, getArgs(0)[2]);
+    assertEquals("update", getMethod(1));
+    assertSame(values, getArgs(1)[1]);
+    assertEquals("insertOrThrow", getMethod(2));
+  }
+
+  @Test
+  public void testStatementsFollowTheColumnLayout() {
+    String tableId = "layoutTest";
+    DataTableWriteStatements statements =
+        DataTableWriteStatements.get(db, tableId, newColumns(tableId, "col1"));
+    // an equivalent column list reuses the statements
+    assertSame(statements,
+        DataTableWriteStatements.get(db, tableId, newColumns(tableId, "col1")));
+
+    // a column was added
+    DataTableWriteStatements altered =
+        DataTableWriteStatements.get(db, tableId, newColumns(tableId, "col1", "col2"));
+    assertNotSame(statements, altered);
+
+    Map<String, Object> values = new LinkedHashMap<String, Object>();
+    values.put("col2", "b");
+    altered.insert(db, values);
+    assertEquals("INSERT INTO " + tableId + " (col2) VALUES (?)", getArgs(0)[0]);
+  }
+}